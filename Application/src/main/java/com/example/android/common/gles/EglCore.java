@@ -0,0 +1,152 @@
+package com.example.android.common.gles;
+
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Build;
+
+/**
+ * Minimal EGL state for rendering camera frames with GLES 2.0 into window surfaces, e.g. the
+ * input {@link android.view.Surface} of a video encoder or a preview
+ * {@link android.graphics.SurfaceTexture}.
+ *
+ * All methods must be called from the thread that created the instance.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class EglCore {
+
+    // Android-specific extension, lets the config render into MediaCodec input surfaces.
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig mConfig;
+
+    public EglCore() {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("Unable to get EGL14 display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            mDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("Unable to initialize EGL14");
+        }
+
+        int[] attribList = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, attribList, 0, configs, 0, configs.length,
+                numConfigs, 0) || numConfigs[0] == 0) {
+            throw new RuntimeException("Unable to find a recordable RGB8888 ES2 EGL config");
+        }
+        mConfig = configs[0];
+
+        int[] contextAttribs = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT,
+                contextAttribs, 0);
+        checkEglError("eglCreateContext");
+    }
+
+    /**
+     * Creates an EGL surface rendering into a {@link android.view.Surface} or
+     * {@link android.graphics.SurfaceTexture}.
+     */
+    public EGLSurface createWindowSurface(Object surface) {
+        int[] surfaceAttribs = {
+                EGL14.EGL_NONE
+        };
+        EGLSurface eglSurface = EGL14.eglCreateWindowSurface(mDisplay, mConfig, surface,
+                surfaceAttribs, 0);
+        checkEglError("eglCreateWindowSurface");
+        if (eglSurface == null) {
+            throw new RuntimeException("Surface was null");
+        }
+        return eglSurface;
+    }
+
+    /**
+     * Creates an offscreen surface. Handy to make the context current before any window
+     * surface exists.
+     */
+    public EGLSurface createOffscreenSurface(int width, int height) {
+        int[] surfaceAttribs = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        EGLSurface eglSurface = EGL14.eglCreatePbufferSurface(mDisplay, mConfig,
+                surfaceAttribs, 0);
+        checkEglError("eglCreatePbufferSurface");
+        return eglSurface;
+    }
+
+    public void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+    }
+
+    /**
+     * @return false on failure, e.g. when the consumer of the surface has gone away.
+     */
+    public boolean swapBuffers(EGLSurface surface) {
+        return EGL14.eglSwapBuffers(mDisplay, surface);
+    }
+
+    /**
+     * Tags the next frame swapped into {@code surface} with a timestamp, in nanoseconds. The
+     * encoder uses it as the presentation time of the frame.
+     */
+    public void setPresentationTime(EGLSurface surface, long nsecs) {
+        EGLExt.eglPresentationTimeANDROID(mDisplay, surface, nsecs);
+    }
+
+    public int querySurface(EGLSurface surface, int what) {
+        int[] value = new int[1];
+        EGL14.eglQuerySurface(mDisplay, surface, what, value, 0);
+        return value[0];
+    }
+
+    public void releaseSurface(EGLSurface surface) {
+        EGL14.eglDestroySurface(mDisplay, surface);
+    }
+
+    /**
+     * Destroys the context and releases the display. Surfaces must be released first.
+     */
+    public void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroyContext(mDisplay, mContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mConfig = null;
+    }
+
+    private static void checkEglError(String msg) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new RuntimeException(msg + ": EGL error: 0x" + Integer.toHexString(error));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.common.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Draws an external (camera) texture over the whole viewport. The texture coordinates are
+ * transformed by the matrix supplied by {@link android.graphics.SurfaceTexture}, so the
+ * frame keeps its orientation and crop.
+ *
+ * Must be created and used on a thread with a current GLES 2.0 context.
+ */
+public class ExternalTextureRenderer {
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final float[] FULL_RECTANGLE_COORDS = {
+            -1.0f, -1.0f,
+            1.0f, -1.0f,
+            -1.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
+    private static final float[] FULL_RECTANGLE_TEX_COORDS = {
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
+    private final FloatBuffer mVertexArray = GlUtil.createFloatBuffer(FULL_RECTANGLE_COORDS);
+    private final FloatBuffer mTexCoordArray =
+            GlUtil.createFloatBuffer(FULL_RECTANGLE_TEX_COORDS);
+
+    private int mProgram;
+    private final int muTexMatrixLoc;
+    private final int maPositionLoc;
+    private final int maTextureCoordLoc;
+
+    public ExternalTextureRenderer() {
+        mProgram = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        maPositionLoc = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgram, "uTexMatrix");
+    }
+
+    /**
+     * @return a new texture name suitable for a {@link android.graphics.SurfaceTexture}
+     * receiving camera frames.
+     */
+    public int createTextureObject() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        int texId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("createTextureObject");
+        return texId;
+    }
+
+    /**
+     * Draws the frame currently latched in {@code textureId}.
+     *
+     * @param texMatrix Transform from {@link android.graphics.SurfaceTexture#getTransformMatrix}.
+     */
+    public void draw(int textureId, float[] texMatrix) {
+        GLES20.glUseProgram(mProgram);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, 8, mVertexArray);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 8,
+                mTexCoordArray);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    public void release() {
+        GLES20.glDeleteProgram(mProgram);
+        mProgram = -1;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.android.common.gles;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Draws a single line of text, e.g. a timestamp, over the current frame. Glyphs are rendered
+ * once into a texture atlas; each character is a quad sampling its cell of the atlas, and all
+ * of them are drawn with one draw call. When the text changes only the texture coordinates of
+ * the characters that differ are rewritten, so a clock ticking every second touches one or two
+ * quads and nothing is allocated per frame.
+ *
+ * Must be created and used on a thread with a current GLES 2.0 context.
+ */
+public class TextOverlayRenderer {
+
+    /** Characters available in the atlas; anything else is drawn as a space. */
+    public static final String GLYPHS =
+            " 0123456789-:./_ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final int ATLAS_COLUMNS = 16;
+
+    // 6 vertices (two triangles) of 2 coordinates per character.
+    private static final int FLOATS_PER_GLYPH = 12;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTextureCoord = aTextureCoord;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private final int mMaxChars;
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mAtlasWidth;
+    private final int mAtlasHeight;
+    private final int mReferenceHeight;
+
+    // Atlas index of each char code below 128, 0 (space) for the rest.
+    private final byte[] mGlyphIndex = new byte[128];
+
+    private final char[] mText;
+    private int mLength;
+    private final FloatBuffer mPositions;
+    private final FloatBuffer mTexCoords;
+    private final float[] mQuad = new float[FLOATS_PER_GLYPH];
+    private int mViewportWidth;
+    private int mViewportHeight;
+
+    private int mProgram;
+    private int mTexture;
+    private final int maPositionLoc;
+    private final int maTextureCoordLoc;
+
+    /**
+     * @param maxChars Longest text that will be drawn.
+     * @param textSizePx Height of the text in pixels of the target surface.
+     */
+    public TextOverlayRenderer(int maxChars, float textSizePx) {
+        this(maxChars, textSizePx, 0);
+    }
+
+    /**
+     * @param maxChars Longest text that will be drawn.
+     * @param textSizePx Height of the text in pixels of a surface {@code referenceHeight} high.
+     * @param referenceHeight Surface height the glyphs are rendered for; on surfaces of another
+     * height the text is scaled to cover the same fraction of the frame. 0 to never scale.
+     */
+    public TextOverlayRenderer(int maxChars, float textSizePx, int referenceHeight) {
+        mMaxChars = maxChars;
+        mReferenceHeight = referenceHeight;
+        mText = new char[maxChars];
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTypeface(Typeface.MONOSPACE);
+        paint.setTextSize(textSizePx);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+        // Leave room for the outline that keeps the text readable on any background.
+        float outline = Math.max(1, textSizePx / 12);
+        mCellWidth = (int) Math.ceil(paint.measureText("M") + 2 * outline);
+        mCellHeight = (int) Math.ceil(metrics.descent - metrics.ascent + 2 * outline);
+        int rows = (GLYPHS.length() + ATLAS_COLUMNS - 1) / ATLAS_COLUMNS;
+        mAtlasWidth = mCellWidth * ATLAS_COLUMNS;
+        mAtlasHeight = mCellHeight * rows;
+
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            mGlyphIndex[GLYPHS.charAt(i)] = (byte) i;
+        }
+
+        mPositions = GlUtil.createFloatBuffer(new float[maxChars * FLOATS_PER_GLYPH]);
+        mTexCoords = GlUtil.createFloatBuffer(new float[maxChars * FLOATS_PER_GLYPH]);
+
+        mProgram = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        maPositionLoc = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
+        mTexture = createAtlas(paint, outline, -metrics.ascent + outline);
+    }
+
+    /**
+     * Renders every glyph once, white with a black outline, and uploads the atlas.
+     */
+    private int createAtlas(Paint paint, float outline, float baseline) {
+        Bitmap bitmap = Bitmap.createBitmap(mAtlasWidth, mAtlasHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint stroke = new Paint(paint);
+        stroke.setStyle(Paint.Style.STROKE);
+        stroke.setStrokeWidth(outline * 2);
+        stroke.setColor(Color.BLACK);
+        paint.setColor(Color.WHITE);
+        char[] glyph = new char[1];
+        for (int i = 0; i < GLYPHS.length(); i++) {
+            glyph[0] = GLYPHS.charAt(i);
+            float x = (i % ATLAS_COLUMNS) * mCellWidth + outline;
+            float y = (i / ATLAS_COLUMNS) * mCellHeight + baseline;
+            canvas.drawText(glyph, 0, 1, x, y, stroke);
+            canvas.drawText(glyph, 0, 1, x, y, paint);
+        }
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        bitmap.recycle();
+        GlUtil.checkGlError("createAtlas");
+        return textures[0];
+    }
+
+    /**
+     * Sets the text to draw. Only characters that differ from the previous text are updated.
+     *
+     * @param length Number of characters of {@code text} to use, at most {@code maxChars}.
+     */
+    public void setText(char[] text, int length) {
+        length = Math.min(length, mMaxChars);
+        for (int i = 0; i < length; i++) {
+            if (i >= mLength || mText[i] != text[i]) {
+                mText[i] = text[i];
+                updateTexCoords(i);
+            }
+        }
+        mLength = length;
+    }
+
+    /**
+     * Draws the text in the top left corner of the current viewport, blended over the frame.
+     */
+    public void draw(int viewportWidth, int viewportHeight) {
+        if (mLength == 0) {
+            return;
+        }
+        if (viewportWidth != mViewportWidth || viewportHeight != mViewportHeight) {
+            layout(viewportWidth, viewportHeight);
+        }
+        GLES20.glUseProgram(mProgram);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        // The atlas comes from a Bitmap, so its alpha is premultiplied.
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+
+        mPositions.position(0);
+        mTexCoords.position(0);
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glVertexAttribPointer(maPositionLoc, 2, GLES20.GL_FLOAT, false, 8, mPositions);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 8,
+                mTexCoords);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mLength * 6);
+
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glUseProgram(0);
+    }
+
+    public void release() {
+        GLES20.glDeleteTextures(1, new int[] {mTexture}, 0);
+        GLES20.glDeleteProgram(mProgram);
+        mTexture = 0;
+        mProgram = -1;
+    }
+
+    /**
+     * Places one cell per character, left to right from the top left corner with a margin of
+     * half a cell, in normalized device coordinates.
+     */
+    private void layout(int viewportWidth, int viewportHeight) {
+        mViewportWidth = viewportWidth;
+        mViewportHeight = viewportHeight;
+        float scale = mReferenceHeight > 0 ? (float) viewportHeight / mReferenceHeight : 1;
+        float cellWidth = 2f * mCellWidth * scale / viewportWidth;
+        float cellHeight = 2f * mCellHeight * scale / viewportHeight;
+        float left = -1 + cellWidth / 2;
+        float top = 1 - cellHeight / 2;
+        for (int i = 0; i < mMaxChars; i++) {
+            float x0 = left + i * cellWidth;
+            setQuad(x0, top - cellHeight, x0 + cellWidth, top);
+            mPositions.position(i * FLOATS_PER_GLYPH);
+            mPositions.put(mQuad);
+        }
+    }
+
+    private void updateTexCoords(int position) {
+        char c = mText[position];
+        int glyph = c < mGlyphIndex.length ? mGlyphIndex[c] : 0;
+        float u0 = (float) ((glyph % ATLAS_COLUMNS) * mCellWidth) / mAtlasWidth;
+        float v0 = (float) ((glyph / ATLAS_COLUMNS) * mCellHeight) / mAtlasHeight;
+        float u1 = u0 + (float) mCellWidth / mAtlasWidth;
+        float v1 = v0 + (float) mCellHeight / mAtlasHeight;
+        // Bitmap rows run top to bottom, so the top of the quad samples v0.
+        setQuad(u0, v1, u1, v0);
+        mTexCoords.position(position * FLOATS_PER_GLYPH);
+        mTexCoords.put(mQuad);
+    }
+
+    /**
+     * Fills {@link #mQuad} with two triangles spanning (x0, y0) to (x1, y1).
+     */
+    private void setQuad(float x0, float y0, float x1, float y1) {
+        float[] q = mQuad;
+        q[0] = x0; q[1] = y0;
+        q[2] = x1; q[3] = y0;
+        q[4] = x0; q[5] = y1;
+        q[6] = x0; q[7] = y1;
+        q[8] = x1; q[9] = y0;
+        q[10] = x1; q[11] = y1;
+    }
+}
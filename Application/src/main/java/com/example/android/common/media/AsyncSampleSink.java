@@ -0,0 +1,383 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link SampleSink} that hands samples over to a writer thread, so slow storage doesn't stall
+ * the thread draining the encoder. Samples are copied into a bounded, preallocated direct
+ * buffer; the writer thread feeds them to the wrapped sink in order.
+ *
+ * When the buffer is full the {@linkplain #POLICY_BLOCK blocking} policy waits for the writer,
+ * while the {@linkplain #POLICY_DROP dropping} policy discards samples until the next video key
+ * frame, leaving a clean gap in the recording instead of stalling the encoder.
+ */
+public class AsyncSampleSink implements SampleSink {
+
+    private static final String TAG = "AsyncSampleSink";
+
+    /** Waits for the writer to free space. */
+    public static final int POLICY_BLOCK = 0;
+    /** Drops samples until there is space again and the next video key frame arrives. */
+    public static final int POLICY_DROP = 1;
+
+    /**
+     * Notifications about dropped samples, called on the thread writing samples to us.
+     */
+    public interface Listener {
+        /**
+         * Samples are being dropped; recording resumes with the next key frame, so encoders
+         * should be asked for one now.
+         */
+        void onKeyFrameNeeded();
+    }
+
+    /**
+     * Snapshot of the writer stage, see {@link #getStats()}.
+     */
+    public static class Stats {
+        /** Samples waiting for the writer. */
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        /** Bytes waiting for the writer. */
+        public final int queuedBytes;
+        public final long writtenSamples;
+        public final long droppedSamples;
+        /** Time spent in the wrapped sink per sample. */
+        public final long averageWriteLatencyUs;
+        public final long maxWriteLatencyUs;
+        /** Time the encoder side spent waiting for space, with {@link #POLICY_BLOCK}. */
+        public final long blockedUs;
+
+        Stats(int queueDepth, int maxQueueDepth, int queuedBytes, long writtenSamples,
+              long droppedSamples, long averageWriteLatencyUs, long maxWriteLatencyUs,
+              long blockedUs) {
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.queuedBytes = queuedBytes;
+            this.writtenSamples = writtenSamples;
+            this.droppedSamples = droppedSamples;
+            this.averageWriteLatencyUs = averageWriteLatencyUs;
+            this.maxWriteLatencyUs = maxWriteLatencyUs;
+            this.blockedUs = blockedUs;
+        }
+
+        @Override
+        public String toString() {
+            return "queue " + queueDepth + " (max " + maxQueueDepth + ", " + queuedBytes
+                    + " bytes), written " + writtenSamples + ", dropped " + droppedSamples
+                    + ", write latency avg " + averageWriteLatencyUs + " us, max "
+                    + maxWriteLatencyUs + " us, blocked " + blockedUs / 1000 + " ms";
+        }
+    }
+
+    private final SampleSink mSink;
+    private final int mPolicy;
+    private Listener mListener;
+    private int mVideoTrack = -1;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+
+    // Sample data, used circularly from the head sample's offset to mWriteOffset.
+    private final ByteBuffer mData;
+    private final ByteBuffer mReadView;
+    private int mWriteOffset;
+    private int mBytesUsed;
+
+    // Sample metadata, indexed by slot. Slots are used circularly from mHead on.
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private int mHead;
+    private int mCount;
+
+    private boolean mDropping;
+    private boolean mStopping;
+    private IOException mWriteError;
+    private Thread mWriterThread;
+
+    // Stats, guarded by mLock.
+    private int mMaxQueueDepth;
+    private long mWrittenSamples;
+    private long mDroppedSamples;
+    private long mTotalWriteLatencyNs;
+    private long mMaxWriteLatencyNs;
+    private long mBlockedNs;
+
+    /**
+     * @param sink Receives the samples on the writer thread. Started and stopped by us.
+     * @param bufferBytes Memory reserved for queued samples.
+     * @param maxSamples Maximum number of queued samples.
+     * @param policy {@link #POLICY_BLOCK} or {@link #POLICY_DROP}.
+     */
+    public AsyncSampleSink(SampleSink sink, int bufferBytes, int maxSamples, int policy) {
+        mSink = sink;
+        mPolicy = policy;
+        mData = ByteBuffer.allocateDirect(bufferBytes);
+        mReadView = mData.duplicate();
+        mTracks = new int[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mWriterThread != null) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        int index = mSink.addTrack(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = index;
+        }
+        return index;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mSink.start();
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SampleWriter");
+        mWriterThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        boolean isKeyFrame = mVideoTrack < 0 || (trackIndex == mVideoTrack
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean keyFrameNeeded = false;
+        mLock.lock();
+        try {
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+            if (mDropping && !isKeyFrame && !isConfig) {
+                mDroppedSamples++;
+                return;
+            }
+            // A sample larger than the whole buffer can never be queued.
+            boolean fits = info.size <= mData.capacity();
+            int offset = fits ? findSpace(info.size) : -1;
+            if (offset < 0 && fits && mPolicy == POLICY_BLOCK) {
+                long start = System.nanoTime();
+                while ((offset = findSpace(info.size)) < 0 && mWriteError == null) {
+                    mNotFull.awaitUninterruptibly();
+                }
+                mBlockedNs += System.nanoTime() - start;
+                if (mWriteError != null) {
+                    throw mWriteError;
+                }
+            }
+            if (offset < 0) {
+                mDroppedSamples++;
+                keyFrameNeeded = !mDropping;
+                mDropping = true;
+                return;
+            }
+            if (isKeyFrame) {
+                mDropping = false;
+            }
+            enqueue(offset, trackIndex, buffer, info);
+        } finally {
+            mLock.unlock();
+            if (keyFrameNeeded && mListener != null) {
+                mListener.onKeyFrameNeeded();
+            }
+        }
+    }
+
+    /**
+     * Waits until every queued sample is written, then stops the wrapped sink.
+     */
+    @Override
+    public void stop() throws IOException {
+        IOException error;
+        mLock.lock();
+        try {
+            mStopping = true;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            if (mWriterThread != null) {
+                try {
+                    mWriterThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mWriterThread = null;
+            }
+            mLock.lock();
+            try {
+                error = mWriteError;
+            } finally {
+                mLock.unlock();
+            }
+        } finally {
+            mSink.stop();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return bytes that can be queued for the writer.
+     */
+    public int getCapacity() {
+        return mData.capacity();
+    }
+
+    public Stats getStats() {
+        mLock.lock();
+        try {
+            long written = mWrittenSamples;
+            return new Stats(mCount, mMaxQueueDepth, mBytesUsed, written, mDroppedSamples,
+                    written == 0 ? 0 : mTotalWriteLatencyNs / written / 1000,
+                    mMaxWriteLatencyNs / 1000, mBlockedNs / 1000);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            int slot;
+            mLock.lock();
+            try {
+                while (mCount == 0 && !mStopping) {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+                if (mCount == 0) {
+                    return;
+                }
+                slot = mHead;
+            } finally {
+                mLock.unlock();
+            }
+
+            // The slot stays queued, and its data untouched, until it is written.
+            mReadView.clear();
+            mReadView.position(mOffsets[slot]);
+            mReadView.limit(mOffsets[slot] + mSizes[slot]);
+            info.set(mOffsets[slot], mSizes[slot], mPtsUs[slot], mFlags[slot]);
+            long start = System.nanoTime();
+            IOException error = null;
+            try {
+                mSink.writeSampleData(mTracks[slot], mReadView, info);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e.toString());
+            }
+            long latencyNs = System.nanoTime() - start;
+
+            mLock.lock();
+            try {
+                if (error != null) {
+                    Log.e(TAG, "Unable to write sample: " + error.getMessage());
+                    mWriteError = error;
+                    mNotFull.signal();
+                    return;
+                }
+                mWrittenSamples++;
+                mTotalWriteLatencyNs += latencyNs;
+                mMaxWriteLatencyNs = Math.max(mMaxWriteLatencyNs, latencyNs);
+                removeHead();
+                mNotFull.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // Called with mLock held.
+    private void enqueue(int offset, int trackIndex, ByteBuffer buffer,
+                         MediaCodec.BufferInfo info) {
+        int oldPosition = buffer.position();
+        int oldLimit = buffer.limit();
+        buffer.clear();
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        mData.clear();
+        mData.position(offset);
+        mData.put(buffer);
+        buffer.clear();
+        buffer.position(oldPosition);
+        buffer.limit(oldLimit);
+
+        int slot = (mHead + mCount) % mOffsets.length;
+        int padding = offset < mWriteOffset ? mData.capacity() - mWriteOffset : 0;
+        mTracks[slot] = trackIndex;
+        mOffsets[slot] = offset;
+        mSizes[slot] = info.size;
+        mPtsUs[slot] = info.presentationTimeUs;
+        mFlags[slot] = info.flags;
+        mCount++;
+        mWriteOffset = offset + info.size;
+        mBytesUsed += padding + info.size;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mCount);
+        mNotEmpty.signal();
+    }
+
+    // Called with mLock held.
+    private void removeHead() {
+        int slot = mHead;
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+        if (mCount == 0) {
+            mWriteOffset = 0;
+            mBytesUsed = 0;
+        } else {
+            int freedTo = mOffsets[mHead];
+            int freedFrom = mOffsets[slot];
+            mBytesUsed -= freedTo >= freedFrom
+                    ? freedTo - freedFrom : mData.capacity() - freedFrom + freedTo;
+        }
+    }
+
+    /**
+     * @return where {@code size} bytes can be queued contiguously, or -1 if they don't fit now.
+     * Called with mLock held.
+     */
+    private int findSpace(int size) {
+        if (mCount == mOffsets.length) {
+            return -1;
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        int start = mOffsets[mHead];
+        if (mWriteOffset > start) {
+            if (mData.capacity() - mWriteOffset >= size) {
+                return mWriteOffset;
+            }
+            return start >= size ? 0 : -1;
+        }
+        return start - mWriteOffset >= size ? mWriteOffset : -1;
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds an audio encoder from {@link AudioRecord}. PCM is read straight into the encoder's
+ * input buffers, taken with {@link MediaCodecWrapper#dequeueInputBuffer()}, so it is never
+ * copied through the Java heap. While the encoder is busy, samples wait in the buffer of the
+ * {@link AudioRecord}.
+ *
+ * Presentation times come from an {@link AudioClock}: counted from the frames read and kept in
+ * line with the clock of the video, so audio stays in sync over recordings of any length.
+ *
+ * The encoder's output is not touched; drain it like any other encoder.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AudioCapture {
+
+    private static final String TAG = "AudioCapture";
+
+    // Frames per read: one AAC frame, so each input buffer becomes one encoded sample.
+    private static final int FRAMES_PER_READ = 1024;
+    // Audio the AudioRecord holds while the encoder is busy.
+    private static final int RECORD_BUFFER_MS = 500;
+    // How long the capture thread waits for an input buffer before re-checking for a stop.
+    private static final long INPUT_TIMEOUT_MS = 100;
+
+    private final MediaCodecWrapper mEncoder;
+    private final AudioRecord mRecord;
+    private final AudioClock mClock;
+    private final int mSampleRate;
+    private final int mFrameBytes;
+
+    private Thread mCaptureThread;
+    private volatile boolean mStopRequested;
+    private volatile long mClockOffsetNs;
+    private volatile long mCapturedFrames;
+    private volatile int mResyncs;
+
+    /**
+     * @param encoder Encoder of {@code format}, see {@link MediaCodecWrapper#fromEncoderFormat}.
+     * @param format Audio encoder format, see
+     * {@link MediaCodecWrapper#createAudioEncoderFormat}; 16 bit PCM of its sample rate and
+     * channel count is captured.
+     * @param audioSource One of {@link android.media.MediaRecorder.AudioSource}.
+     * @throws IOException if the microphone can't be opened, e.g. without the
+     * {@code RECORD_AUDIO} permission.
+     */
+    public AudioCapture(MediaCodecWrapper encoder, MediaFormat format, int audioSource)
+            throws IOException {
+        mEncoder = encoder;
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int channelMask = channels == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        mFrameBytes = 2 * channels;
+        int minBuffer = AudioRecord.getMinBufferSize(mSampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            throw new IOException("Unsupported audio input " + mSampleRate + " Hz, "
+                    + channels + " channels");
+        }
+        int bufferBytes = Math.max(minBuffer,
+                mSampleRate * RECORD_BUFFER_MS / 1000 * mFrameBytes);
+        mRecord = new AudioRecord(audioSource, mSampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT, bufferBytes);
+        if (mRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            mRecord.release();
+            throw new IOException("Unable to open audio source " + audioSource);
+        }
+        mClock = new AudioClock(mSampleRate);
+    }
+
+    /**
+     * Starts capturing on a thread of its own.
+     *
+     * @param clockOffsetNs Offset from {@link System#nanoTime()} to the clock of the video
+     * frames, e.g. 0 for camera timestamps on the monotonic clock.
+     */
+    public void start(long clockOffsetNs) {
+        mClockOffsetNs = clockOffsetNs;
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "AudioCapture");
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stops capturing, signals end of stream to the encoder and releases the microphone. Also
+     * ends the stream if capture never started.
+     */
+    public void stop() {
+        mStopRequested = true;
+        if (mCaptureThread != null) {
+            try {
+                mCaptureThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCaptureThread = null;
+        } else {
+            signalEndOfStream(0);
+        }
+        mRecord.release();
+        Log.d(TAG, "Captured " + mCapturedFrames + " frames, clock correction "
+                + mClock.getCorrectionUs() + " us, " + mResyncs + " resyncs");
+    }
+
+    /**
+     * @return frames captured so far.
+     */
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    private void capture() {
+        try {
+            mRecord.startRecording();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Unable to start audio capture: " + e.getMessage());
+            signalEndOfStream(0);
+            return;
+        }
+        try {
+            while (!mStopRequested) {
+                if (!mEncoder.awaitInputBuffer(INPUT_TIMEOUT_MS)) {
+                    continue;
+                }
+                int index = mEncoder.dequeueInputBuffer();
+                if (index < 0) {
+                    continue;
+                }
+                ByteBuffer buffer = mEncoder.getInputBuffer(index);
+                buffer.clear();
+                int capacity = buffer.capacity() - buffer.capacity() % mFrameBytes;
+                int bytes = mRecord.read(buffer, Math.min(capacity,
+                        FRAMES_PER_READ * mFrameBytes));
+                long readNs = System.nanoTime();
+                if (bytes < 0) {
+                    mEncoder.queueInputBuffer(index, 0, mClock.getEndUs(), 0);
+                    Log.e(TAG, "Audio capture failed: " + bytes);
+                    break;
+                }
+                int frames = bytes / mFrameBytes;
+                // The last frame of the chunk was captured just before the read returned.
+                long captureUs = (readNs + mClockOffsetNs) / 1000
+                        - (long) frames * 1000000 / mSampleRate;
+                long ptsUs = mClock.next(frames, captureUs);
+                mEncoder.queueInputBuffer(index, bytes, ptsUs, 0);
+                mCapturedFrames += frames;
+                mResyncs = mClock.getResyncCount();
+            }
+            mRecord.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Audio encoder failed: " + e.getMessage());
+        }
+        signalEndOfStream(mClock.getEndUs());
+    }
+
+    private void signalEndOfStream(long presentationTimeUs) {
+        try {
+            if (mEncoder.awaitInputBuffer(INPUT_TIMEOUT_MS)) {
+                mEncoder.writeEndOfStream(presentationTimeUs);
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to end the audio stream: " + e.getMessage());
+        }
+    }
+}
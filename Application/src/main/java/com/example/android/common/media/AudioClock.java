@@ -0,0 +1,118 @@
+package com.example.android.common.media;
+
+/**
+ * Presentation times for captured audio, derived from the number of frames captured so far:
+ * they advance exactly with the audio sample clock and never jitter.
+ *
+ * The audio clock drifts against the video clock, typically by tens to hundreds of ppm, which
+ * adds up to seconds over a multi-hour recording. Each chunk is therefore also given the time it
+ * was captured at on the video clock, and the difference is slewed away by at most
+ * {@link #MAX_SLEW_PPM}, far below anything audible or visible. Differences over
+ * {@link #RESYNC_THRESHOLD_US}, e.g. frames lost to an overrun, are jumped at once.
+ *
+ * Capture times are only known roughly: a read returns late when its thread is scheduled late,
+ * but never early. The earliest capture time relative to the frame count over
+ * {@link #WINDOW_US} of audio is taken as the truth.
+ *
+ * Plain Java without a clock of its own, so it can be driven by simulated clocks.
+ */
+public class AudioClock {
+
+    /** Audio over which the earliest capture time is looked for. */
+    static final long WINDOW_US = 1000000;
+    /** Largest correction per time of audio, in parts per million. */
+    static final long MAX_SLEW_PPM = 1000;
+    /** Differences larger than this are corrected at once instead of slewed. */
+    static final long RESYNC_THRESHOLD_US = 100000;
+
+    private final int mSampleRate;
+    private boolean mStarted;
+    private long mBaseUs;
+    private long mFrames;
+    private long mLastPtsUs;
+
+    // Correction applied to the frame count based time, and where it is slewing to.
+    private long mCorrectionUs;
+    private long mTargetUs;
+    private boolean mTargetKnown;
+
+    // Earliest capture time relative to the frame count in the current window.
+    private long mWindowMinUs = Long.MAX_VALUE;
+    private long mWindowFrames;
+    private int mResyncs;
+
+    public AudioClock(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * @param frames Frames in the chunk.
+     * @param captureTimeUs When the first frame of the chunk was captured, on the video clock;
+     * e.g. when the read of the chunk returned, minus the duration of the chunk.
+     * @return presentation time of the first frame of the chunk. Strictly increasing.
+     */
+    public long next(int frames, long captureTimeUs) {
+        if (!mStarted) {
+            mStarted = true;
+            mBaseUs = captureTimeUs;
+            mLastPtsUs = Long.MIN_VALUE;
+        }
+        long nominalUs = mBaseUs + framesToUs(mFrames);
+
+        mWindowMinUs = Math.min(mWindowMinUs, captureTimeUs - nominalUs);
+        mWindowFrames += frames;
+        if (framesToUs(mWindowFrames) >= WINDOW_US) {
+            mTargetUs = mWindowMinUs;
+            // The first chunk may have been read late, the first window fixes that at once.
+            if (!mTargetKnown || Math.abs(mTargetUs - mCorrectionUs) > RESYNC_THRESHOLD_US) {
+                if (mTargetKnown) {
+                    mResyncs++;
+                }
+                mCorrectionUs = mTargetUs;
+            }
+            mTargetKnown = true;
+            mWindowMinUs = Long.MAX_VALUE;
+            mWindowFrames = 0;
+        }
+
+        if (mTargetKnown) {
+            long maxStepUs = Math.max(1, framesToUs(frames) * MAX_SLEW_PPM / 1000000);
+            long step = mTargetUs - mCorrectionUs;
+            mCorrectionUs += Math.max(-maxStepUs, Math.min(maxStepUs, step));
+        }
+
+        long ptsUs = Math.max(nominalUs + mCorrectionUs, mLastPtsUs + 1);
+        mLastPtsUs = ptsUs;
+        mFrames += frames;
+        return ptsUs;
+    }
+
+    /**
+     * @return presentation time following the last chunk, e.g. for the end of stream.
+     */
+    public long getEndUs() {
+        return mBaseUs + framesToUs(mFrames) + mCorrectionUs;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return how far the audio clock currently is from the frame count, in microseconds.
+     */
+    public long getCorrectionUs() {
+        return mCorrectionUs;
+    }
+
+    /**
+     * @return how often a difference was too large to slew, e.g. after lost frames.
+     */
+    public int getResyncCount() {
+        return mResyncs;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000 / mSampleRate;
+    }
+}
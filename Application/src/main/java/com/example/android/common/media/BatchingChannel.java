@@ -0,0 +1,113 @@
+package com.example.android.common.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Collects small writes into large ones that are a multiple of the storage block size. SD cards
+ * in particular are much faster with few large writes than with many small ones, and a write
+ * that ends mid-block forces the card to rewrite that block with the next one.
+ *
+ * Writes are aligned to the file as long as the wrapped channel starts at a block boundary,
+ * e.g. on a new or truncated file. Up to one batch of data only reaches the file when the
+ * channel is closed.
+ */
+public class BatchingChannel implements WritableByteChannel {
+
+    /** Storage block size writes are aligned to. */
+    public static final int ALIGNMENT = 4096;
+
+    public static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+
+    private final WritableByteChannel mChannel;
+    private final ByteBuffer mBatch;
+    private boolean mOpen = true;
+
+    private long mBytesWritten;
+    private int mWriteCount;
+
+    public BatchingChannel(WritableByteChannel channel) {
+        this(channel, DEFAULT_BATCH_BYTES);
+    }
+
+    /**
+     * @param channel Destination, closed by {@link #close()}.
+     * @param batchBytes Size of a batch, rounded up to a multiple of {@link #ALIGNMENT}.
+     */
+    public BatchingChannel(WritableByteChannel channel, int batchBytes) {
+        mChannel = channel;
+        int size = (Math.max(batchBytes, 1) + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        mBatch = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!mOpen) {
+            throw new ClosedChannelException();
+        }
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (mBatch.remaining() >= src.remaining()) {
+                mBatch.put(src);
+            } else {
+                int oldLimit = src.limit();
+                src.limit(src.position() + mBatch.remaining());
+                mBatch.put(src);
+                src.limit(oldLimit);
+            }
+            if (!mBatch.hasRemaining()) {
+                writeBatch();
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * Writes the last, partial batch and closes the wrapped channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        try {
+            writeBatch();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return bytes passed to the wrapped channel so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return number of batches written so far.
+     */
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    private void writeBatch() throws IOException {
+        mBatch.flip();
+        if (mBatch.hasRemaining()) {
+            mBytesWritten += mBatch.remaining();
+            mWriteCount++;
+            while (mBatch.hasRemaining()) {
+                mChannel.write(mBatch);
+            }
+        }
+        mBatch.clear();
+    }
+}
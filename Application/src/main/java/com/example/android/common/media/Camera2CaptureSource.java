@@ -0,0 +1,417 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.CamcorderProfile;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CaptureSource} on the camera2 API. Unlike the legacy camera it lets us pick the target
+ * frame rate range of the auto-exposure, and it feeds a texture, an encoder surface and a low
+ * resolution analysis surface from a single capture session, so each frame is produced once
+ * for all of them.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2CaptureSource implements CaptureSource {
+
+    private static final String TAG = "Camera2CaptureSource";
+
+    // How long we wait for the camera to open or a session to be configured.
+    private static final long TIMEOUT_MS = 3000;
+
+    // Zoom values per 1x of digital zoom, i.e. each value zooms in by another 0.1x.
+    private static final int ZOOM_STEPS_PER_X = 10;
+
+    private final CameraManager mManager;
+    private final int mFacing;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private String mCameraId;
+    private CameraCharacteristics mCharacteristics;
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+    private Surface mTextureSurface;
+    private Range<Integer> mFpsRange;
+    private int mZoom;
+    private boolean mStarted;
+
+    /**
+     * @param facing {@link CameraCharacteristics#LENS_FACING_BACK} or
+     * {@link CameraCharacteristics#LENS_FACING_FRONT}.
+     */
+    public Camera2CaptureSource(Context context, int facing) {
+        mManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mFacing = facing;
+    }
+
+    /**
+     * @return true if a camera with the given facing implements camera2 natively rather than
+     * as a wrapper around the legacy API, which brings no benefit over
+     * {@link LegacyCaptureSource}.
+     */
+    public static boolean isPreferred(Context context, int facing) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String id = findCamera(manager, facing);
+            if (id == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null
+                    && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch (CameraAccessException e) {
+            return false;
+        }
+    }
+
+    private static String findCamera(CameraManager manager, int facing)
+            throws CameraAccessException {
+        for (String id : manager.getCameraIdList()) {
+            Integer lensFacing = manager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (lensFacing != null && lensFacing == facing) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void open() throws IOException {
+        try {
+            mCameraId = findCamera(mManager, mFacing);
+            if (mCameraId == null) {
+                throw new IOException("No camera facing " + mFacing);
+            }
+            mCharacteristics = mManager.getCameraCharacteristics(mCameraId);
+        } catch (CameraAccessException e) {
+            throw new IOException("Unable to query cameras: " + e.getMessage());
+        }
+
+        // Camera callbacks need a looper; the caller's thread may be busy waiting for them.
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        final HandlerThread thread = mThread;
+        final CameraDevice[] device = new CameraDevice[1];
+        final int[] error = new int[1];
+        // Set once we gave up waiting. The callback then owns the thread, and closes a camera
+        // that opens late, so that it isn't held until the process dies. Guards device too.
+        final boolean[] abandoned = new boolean[1];
+        final CountDownLatch opened = new CountDownLatch(1);
+        try {
+            mManager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(CameraDevice camera) {
+                    synchronized (abandoned) {
+                        if (abandoned[0]) {
+                            Log.w(TAG, "Camera " + camera.getId() + " opened too late");
+                            camera.close();
+                            thread.quitSafely();
+                            return;
+                        }
+                        device[0] = camera;
+                    }
+                    opened.countDown();
+                }
+
+                @Override
+                public void onDisconnected(CameraDevice camera) {
+                    Log.w(TAG, "Camera " + camera.getId() + " disconnected");
+                    camera.close();
+                    opened.countDown();
+                    quitIfAbandoned();
+                }
+
+                @Override
+                public void onError(CameraDevice camera, int code) {
+                    Log.e(TAG, "Camera " + camera.getId() + " failed: " + code);
+                    error[0] = code;
+                    camera.close();
+                    opened.countDown();
+                    quitIfAbandoned();
+                }
+
+                private void quitIfAbandoned() {
+                    synchronized (abandoned) {
+                        if (abandoned[0]) {
+                            thread.quitSafely();
+                        }
+                    }
+                }
+            }, mHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            release();
+            throw new IOException("Unable to open camera " + mCameraId + ": " + e.getMessage());
+        }
+        try {
+            await(opened, "opening camera " + mCameraId);
+        } catch (IOException e) {
+            synchronized (abandoned) {
+                if (device[0] != null) {
+                    // Opened just now; release() closes it.
+                    mDevice = device[0];
+                } else {
+                    abandoned[0] = true;
+                    // Leave the thread to the callback, which still has to arrive on it.
+                    mThread = null;
+                    mHandler = null;
+                }
+            }
+            release();
+            throw e;
+        }
+        if (device[0] == null || error[0] != 0) {
+            release();
+            throw new IOException("Unable to open camera " + mCameraId + ", error " + error[0]);
+        }
+        mDevice = device[0];
+    }
+
+    @Override
+    public int getCameraId() {
+        try {
+            return Integer.parseInt(mCameraId);
+        } catch (NumberFormatException e) {
+            // Non-numeric ids have no CamcorderProfile of their own.
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean supportsQuality(int quality) {
+        return CamcorderProfile.hasProfile(getCameraId(), quality);
+    }
+
+    @Override
+    public boolean supportsVideoSize(int width, int height) {
+        StreamConfigurationMap map =
+                mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return false;
+        }
+        for (Size size : map.getOutputSizes(MediaRecorder.class)) {
+            if (size.getWidth() == width && size.getHeight() == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getMaxZoom() {
+        Float maxZoom = mCharacteristics.get(
+                CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        return maxZoom == null ? 0 : (int) ((maxZoom - 1) * ZOOM_STEPS_PER_X);
+    }
+
+    @Override
+    public int[] setFrameRateRange(int minFps, int maxFps) {
+        Range<Integer>[] supported = mCharacteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (supported == null || supported.length == 0) {
+            return null;
+        }
+        int[][] ranges = new int[supported.length][];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new int[] {supported[i].getLower(), supported[i].getUpper()};
+        }
+        int index = CameraHelper.chooseFrameRateRange(ranges, minFps, maxFps);
+        mFpsRange = supported[index];
+        return ranges[index];
+    }
+
+    @Override
+    public void configure(SurfaceTexture texture, int width, int height, Surface encoder,
+                          Surface analysis) throws IOException {
+        stop();
+        List<Surface> outputs = new ArrayList<Surface>(3);
+        if (texture != null) {
+            texture.setDefaultBufferSize(width, height);
+            mTextureSurface = new Surface(texture);
+            outputs.add(mTextureSurface);
+        }
+        if (encoder != null) {
+            outputs.add(encoder);
+        }
+        if (analysis != null) {
+            outputs.add(analysis);
+        }
+
+        final CameraCaptureSession[] session = new CameraCaptureSession[1];
+        final CountDownLatch configured = new CountDownLatch(1);
+        try {
+            mRequest = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            for (Surface output : outputs) {
+                mRequest.addTarget(output);
+            }
+            if (supportsAfMode(CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO)) {
+                mRequest.set(CaptureRequest.CONTROL_AF_MODE,
+                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+            }
+            if (mFpsRange != null) {
+                mRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+            }
+            applyZoom();
+
+            mDevice.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession s) {
+                    session[0] = s;
+                    configured.countDown();
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession s) {
+                    configured.countDown();
+                }
+            }, mHandler);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            throw new IOException("Unable to configure camera: " + e.getMessage());
+        }
+        await(configured, "configuring the capture session");
+        if (session[0] == null) {
+            throw new IOException("Capture session configuration failed");
+        }
+        mSession = session[0];
+    }
+
+    @Override
+    public boolean supportsSurfaceOutputs() {
+        return true;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mSession == null) {
+            throw new IllegalStateException("Not configured");
+        }
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), null, mHandler);
+        } catch (CameraAccessException e) {
+            throw new IOException("Unable to start capture: " + e.getMessage());
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void setZoom(int zoom) {
+        mZoom = Math.max(0, Math.min(zoom, getMaxZoom()));
+        if (mRequest == null) {
+            return;
+        }
+        applyZoom();
+        if (mStarted) {
+            try {
+                mSession.setRepeatingRequest(mRequest.build(), null, mHandler);
+            } catch (CameraAccessException e) {
+                Log.w(TAG, "Unable to zoom: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mSession != null) {
+            try {
+                if (mStarted) {
+                    mSession.stopRepeating();
+                }
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.w(TAG, "Unable to stop capture: " + e.getMessage());
+            }
+            mSession.close();
+            mSession = null;
+        }
+        mStarted = false;
+        mRequest = null;
+        if (mTextureSurface != null) {
+            mTextureSurface.release();
+            mTextureSurface = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        if (mDevice != null) {
+            mDevice.close();
+            mDevice = null;
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    private boolean supportsAfMode(int mode) {
+        int[] modes = mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (modes != null) {
+            for (int m : modes) {
+                if (m == mode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the crop region of the request to the center of the sensor matching {@link #mZoom}.
+     */
+    private void applyZoom() {
+        Rect active = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (active == null) {
+            return;
+        }
+        float ratio = 1 + mZoom / (float) ZOOM_STEPS_PER_X;
+        int width = (int) (active.width() / ratio);
+        int height = (int) (active.height() / ratio);
+        int left = (active.width() - width) / 2;
+        int top = (active.height() - height) / 2;
+        mRequest.set(CaptureRequest.SCALER_CROP_REGION,
+                new Rect(left, top, left + width, top + height));
+    }
+
+    private static void await(CountDownLatch latch, String what) throws IOException {
+        try {
+            if (!latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out " + what);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted " + what);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.common.media;
+
+import android.hardware.Camera;
+import android.media.CamcorderProfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What one camera supports, as far as recording is concerned. Reading this from
+ * {@link Camera.Parameters} requires opening the camera and parsing its parameter string, so it
+ * is kept in a {@link CameraCapabilityCache} between runs.
+ */
+public class CameraCapabilities {
+
+    // CamcorderProfile qualities we look for, best first.
+    private static final int[] QUALITIES = {
+            CamcorderProfile.QUALITY_1080P,
+            CamcorderProfile.QUALITY_720P,
+            CamcorderProfile.QUALITY_480P,
+            CamcorderProfile.QUALITY_HIGH,
+            CamcorderProfile.QUALITY_LOW,
+    };
+
+    public final int cameraId;
+    /** {@link Camera.CameraInfo#CAMERA_FACING_BACK} or {@code CAMERA_FACING_FRONT}. */
+    public final int facing;
+    public final int orientation;
+    /** Supported preview sizes as {width, height} pairs. */
+    public final List<int[]> previewSizes;
+    public final List<String> focusModes;
+    /** Zoom ratios times 100, one per zoom value; empty if zoom is unsupported. */
+    public final List<Integer> zoomRatios;
+    public final boolean smoothZoomSupported;
+    /** {@link CamcorderProfile} qualities available for this camera. */
+    public final List<Integer> qualities;
+
+    CameraCapabilities(int cameraId, int facing, int orientation, List<int[]> previewSizes,
+                       List<String> focusModes, List<Integer> zoomRatios,
+                       boolean smoothZoomSupported, List<Integer> qualities) {
+        this.cameraId = cameraId;
+        this.facing = facing;
+        this.orientation = orientation;
+        this.previewSizes = Collections.unmodifiableList(previewSizes);
+        this.focusModes = Collections.unmodifiableList(focusModes);
+        this.zoomRatios = Collections.unmodifiableList(zoomRatios);
+        this.smoothZoomSupported = smoothZoomSupported;
+        this.qualities = Collections.unmodifiableList(qualities);
+    }
+
+    /**
+     * Reads the capabilities of an opened camera.
+     */
+    public static CameraCapabilities fromParameters(int cameraId, Camera.CameraInfo info,
+                                                    Camera.Parameters parameters) {
+        List<int[]> sizes = new ArrayList<int[]>();
+        List<Camera.Size> supportedSizes = parameters.getSupportedPreviewSizes();
+        if (supportedSizes != null) {
+            for (Camera.Size size : supportedSizes) {
+                sizes.add(new int[] {size.width, size.height});
+            }
+        }
+        List<String> focusModes = parameters.getSupportedFocusModes();
+        List<Integer> zoomRatios = parameters.isZoomSupported()
+                ? parameters.getZoomRatios() : null;
+        List<Integer> qualities = new ArrayList<Integer>();
+        for (int quality : QUALITIES) {
+            if (CamcorderProfile.hasProfile(cameraId, quality)) {
+                qualities.add(quality);
+            }
+        }
+        return new CameraCapabilities(cameraId, info.facing, info.orientation, sizes,
+                focusModes != null ? new ArrayList<String>(focusModes) : new ArrayList<String>(),
+                zoomRatios != null
+                        ? new ArrayList<Integer>(zoomRatios) : new ArrayList<Integer>(),
+                parameters.isSmoothZoomSupported(), qualities);
+    }
+
+    public boolean supportsFocusMode(String mode) {
+        return focusModes.contains(mode);
+    }
+
+    public boolean supportsQuality(int quality) {
+        return qualities.contains(quality);
+    }
+
+    /**
+     * @return the highest zoom value, 0 if zoom is unsupported.
+     */
+    public int getMaxZoom() {
+        return Math.max(0, zoomRatios.size() - 1);
+    }
+
+    public boolean supportsPreviewSize(int width, int height) {
+        for (int[] size : previewSizes) {
+            if (size[0] == width && size[1] == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a compact string form, read back by {@link #decode(String)}.
+     */
+    String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(cameraId).append(';').append(facing).append(';').append(orientation)
+                .append(';');
+        for (int i = 0; i < previewSizes.size(); i++) {
+            int[] size = previewSizes.get(i);
+            sb.append(i > 0 ? "," : "").append(size[0]).append('x').append(size[1]);
+        }
+        sb.append(';').append(join(focusModes)).append(';').append(join(zoomRatios))
+                .append(';').append(smoothZoomSupported ? 1 : 0)
+                .append(';').append(join(qualities));
+        return sb.toString();
+    }
+
+    /**
+     * @return the capabilities encoded by {@link #encode()}, or null if {@code value} is
+     * malformed.
+     */
+    static CameraCapabilities decode(String value) {
+        String[] fields = value.split(";", -1);
+        if (fields.length != 8) {
+            return null;
+        }
+        try {
+            List<int[]> sizes = new ArrayList<int[]>();
+            for (String size : split(fields[3])) {
+                int x = size.indexOf('x');
+                sizes.add(new int[] {Integer.parseInt(size.substring(0, x)),
+                        Integer.parseInt(size.substring(x + 1))});
+            }
+            return new CameraCapabilities(Integer.parseInt(fields[0]),
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), sizes,
+                    split(fields[4]), parseInts(fields[5]), "1".equals(fields[6]),
+                    parseInts(fields[7]));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static String join(List<?> values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            sb.append(i > 0 ? "," : "").append(values.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static List<String> split(String value) {
+        List<String> values = new ArrayList<String>();
+        if (!value.isEmpty()) {
+            Collections.addAll(values, value.split(","));
+        }
+        return values;
+    }
+
+    private static List<Integer> parseInts(String value) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (String s : split(value)) {
+            values.add(Integer.parseInt(s));
+        }
+        return values;
+    }
+}
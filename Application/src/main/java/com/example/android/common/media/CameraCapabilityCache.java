@@ -0,0 +1,83 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Persists {@link CameraCapabilities} and the camera id of each facing, so a recording can be
+ * set up without enumerating cameras and parsing their parameters again. The cache is keyed by
+ * the build fingerprint and starts over after a system update, which may change what the
+ * camera supports.
+ */
+public class CameraCapabilityCache {
+
+    private static final String TAG = "CameraCapabilityCache";
+
+    private static final String PREFS_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_COUNT = "camera_count";
+    private static final String KEY_FACING_PREFIX = "facing_";
+    private static final String KEY_CAMERA_PREFIX = "camera_";
+
+    private final SharedPreferences mPrefs;
+
+    public CameraCapabilityCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String fingerprint = String.valueOf(Build.FINGERPRINT);
+        if (!fingerprint.equals(mPrefs.getString(KEY_FINGERPRINT, null))) {
+            Log.d(TAG, "Build changed, dropping cached camera capabilities");
+            mPrefs.edit().clear().putString(KEY_FINGERPRINT, fingerprint).apply();
+        }
+    }
+
+    /**
+     * @param facing {@link Camera.CameraInfo#CAMERA_FACING_BACK} or
+     * {@link Camera.CameraInfo#CAMERA_FACING_FRONT}.
+     * @return the id of the first camera with that facing, or -1 if there is none. Cameras are
+     * only enumerated the first time.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public int getCameraId(int facing) {
+        String key = KEY_FACING_PREFIX + facing;
+        if (mPrefs.getInt(KEY_CAMERA_COUNT, -1) >= 0) {
+            return mPrefs.getInt(key, -1);
+        }
+
+        int count = Camera.getNumberOfCameras();
+        SharedPreferences.Editor editor = mPrefs.edit().putInt(KEY_CAMERA_COUNT, count);
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int i = count - 1; i >= 0; i--) {
+            // Iterating backwards leaves the first camera of each facing in the cache.
+            Camera.getCameraInfo(i, info);
+            editor.putInt(KEY_FACING_PREFIX + info.facing, i);
+        }
+        editor.apply();
+        return mPrefs.getInt(key, -1);
+    }
+
+    /**
+     * @return the cached capabilities of a camera, or null if they were never stored.
+     */
+    public CameraCapabilities get(int cameraId) {
+        String value = mPrefs.getString(KEY_CAMERA_PREFIX + cameraId, null);
+        if (value == null) {
+            return null;
+        }
+        CameraCapabilities capabilities = CameraCapabilities.decode(value);
+        if (capabilities == null) {
+            Log.w(TAG, "Dropping malformed capabilities of camera " + cameraId);
+            mPrefs.edit().remove(KEY_CAMERA_PREFIX + cameraId).apply();
+        }
+        return capabilities;
+    }
+
+    public void put(CameraCapabilities capabilities) {
+        mPrefs.edit()
+                .putString(KEY_CAMERA_PREFIX + capabilities.cameraId, capabilities.encode())
+                .apply();
+    }
+}
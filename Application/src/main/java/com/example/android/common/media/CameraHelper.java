@@ -24,8 +24,10 @@ import android.util.Log;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Camera related utilities.
@@ -89,6 +91,28 @@ public class CameraHelper {
         return optimalSize;
     }
 
+    /**
+     * Picks the frame rate range closest to the requested one. Matching the maximum matters
+     * most, as it is the rate the recording is meant to have; the minimum only decides how far
+     * the camera may slow down in low light.
+     *
+     * @param ranges Supported {min, max} ranges in frames per second.
+     * @return the index of the best range in {@code ranges}.
+     */
+    public static int chooseFrameRateRange(int[][] ranges, int minFps, int maxFps) {
+        int best = 0;
+        long bestScore = Long.MAX_VALUE;
+        for (int i = 0; i < ranges.length; i++) {
+            long score = Math.abs(ranges[i][1] - maxFps) * 1000L
+                    + Math.abs(ranges[i][0] - minFps);
+            if (score < bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
     /**
      * @return the default camera on the device. Return null if there is no camera on the device.
      */
@@ -143,8 +167,66 @@ public class CameraHelper {
      * @return A file object pointing to the newly created file.
      */
     public static String getOutputMediaFileName(){
-        String timeStamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+        String timeStamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US)
+                .format(new Date());
         return "VID_" + timeStamp + ".mp4";
     }
 
+    /**
+     * Names one segment of a segmented recording.
+     *
+     * @param recordingName Name of the whole recording, see {@link #getOutputMediaFileName()}.
+     * @param index Zero-based number of the segment.
+     * @return e.g. {@code VID_2016-02-22_10-00-00_part001.mp4}.
+     */
+    public static String getSegmentFileName(String recordingName, int index) {
+        String base = recordingName.endsWith(".mp4")
+                ? recordingName.substring(0, recordingName.length() - 4) : recordingName;
+        return String.format(Locale.US, "%s_part%03d.mp4", base, index);
+    }
+
+    /**
+     * @return the segments of a segmented recording found in {@code dir}, in order, e.g. to
+     * join them with {@link Remuxer#concat}.
+     */
+    public static List<File> getSegmentFiles(File dir, String recordingName) {
+        List<File> segments = new ArrayList<File>();
+        File segment;
+        while ((segment = new File(dir,
+                getSegmentFileName(recordingName, segments.size()))).exists()) {
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Names the low resolution proxy of a recording.
+     *
+     * @param recordingName Name of the recording, see {@link #getOutputMediaFileName()}.
+     * @return e.g. {@code VID_2016-02-22_10-00-00_proxy.mp4}.
+     */
+    public static String getProxyFileName(String recordingName) {
+        String base = recordingName.endsWith(".mp4")
+                ? recordingName.substring(0, recordingName.length() - 4) : recordingName;
+        return base + "_proxy.mp4";
+    }
+
+    /**
+     * @return the {@link #dir} folder under the shared movies directory, created if needed,
+     * or null if external storage is unavailable.
+     */
+    public static File getOutputMediaDir() {
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            Log.d(TAG, "External storage is not mounted");
+            return null;
+        }
+        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_MOVIES), dir);
+        if (!mediaStorageDir.exists() && !mediaStorageDir.mkdirs()) {
+            Log.d(TAG, "Failed to create directory " + mediaStorageDir);
+            return null;
+        }
+        return mediaStorageDir;
+    }
+
 }
@@ -0,0 +1,77 @@
+package com.example.android.common.media;
+
+import android.graphics.SurfaceTexture;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * A camera delivering frames for recording, independent of the camera API behind it. See
+ * {@link LegacyCaptureSource} for {@link android.hardware.Camera} and
+ * {@link Camera2CaptureSource} for camera2.
+ *
+ * The lifecycle is {@link #open()}, then any number of {@link #configure}, {@link #start()},
+ * {@link #stop()} rounds, then {@link #release()}. All methods must be called from the same
+ * thread and may block.
+ */
+public interface CaptureSource {
+
+    void open() throws IOException;
+
+    /**
+     * @return the numeric id of the camera, as used by {@link android.media.CamcorderProfile}.
+     */
+    int getCameraId();
+
+    boolean supportsQuality(int quality);
+
+    boolean supportsVideoSize(int width, int height);
+
+    /**
+     * @return the highest zoom value accepted by {@link #setZoom(int)}, 0 if zoom is
+     * unsupported.
+     */
+    int getMaxZoom();
+
+    /**
+     * Selects the supported frame rate range closest to {@code [minFps, maxFps]} for the next
+     * {@link #configure}. A fixed range ({@code minFps == maxFps}) gives a steady frame rate,
+     * a wider one lets the camera lower it in the dark.
+     *
+     * @return the selected {minFps, maxFps}, or null to leave the camera default.
+     */
+    int[] setFrameRateRange(int minFps, int maxFps);
+
+    /**
+     * Sets up the outputs of the next {@link #start()}.
+     *
+     * @param texture Receives full-size frames, e.g. a preview or the input texture of
+     * a {@link com.example.android.common.gles.EglCore} based encoder. May be null if
+     * {@code encoder} is set.
+     * @param encoder Surface of an encoder or of a {@link android.media.MediaRecorder} using
+     * {@code VideoSource.SURFACE}, or null. Only supported if {@link #supportsSurfaceOutputs()}.
+     * @param analysis Low resolution surface, e.g. of an {@link android.media.ImageReader},
+     * fed in the same session, or null. Only supported if {@link #supportsSurfaceOutputs()}.
+     */
+    void configure(SurfaceTexture texture, int width, int height, Surface encoder,
+                   Surface analysis) throws IOException;
+
+    /**
+     * @return true if {@link #configure} accepts encoder and analysis surfaces.
+     */
+    boolean supportsSurfaceOutputs();
+
+    /**
+     * Starts delivering frames to the configured outputs.
+     */
+    void start() throws IOException;
+
+    void setZoom(int zoom);
+
+    /**
+     * Stops delivering frames. The camera stays open for the next {@link #configure}.
+     */
+    void stop();
+
+    void release();
+}
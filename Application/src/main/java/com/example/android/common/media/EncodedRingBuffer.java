@@ -0,0 +1,251 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded samples in a fixed, preallocated direct {@link ByteBuffer},
+ * e.g. the last seconds of a recording to persist only when something happens.
+ *
+ * Sample data is copied into one circular region and sample metadata into parallel primitive
+ * arrays, so buffering a sample never allocates. Old samples are evicted a whole GOP at a time:
+ * the retained window always starts on a video key frame and can be decoded on its own.
+ *
+ * Not thread safe; all methods must be called from the same thread.
+ */
+public class EncodedRingBuffer {
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mReadView;
+    private final long mWindowUs;
+    private final int mVideoTrack;
+
+    // Sample metadata, indexed by slot. Slots are used circularly from mHead on.
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final int[] mTracks;
+    private int mHead;
+    private int mCount;
+
+    // Slots holding video key frames, oldest first.
+    private final IntRingQueue mKeyFrames;
+
+    // Next write offset in mData; data lives between the head sample's offset and here,
+    // possibly wrapping around.
+    private int mWriteOffset;
+    private int mBytesUsed;
+
+    private final MediaCodec.BufferInfo mReadInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param byteBudget Memory reserved for sample data. Never exceeded.
+     * @param maxSamples Maximum number of samples retained, bounds the metadata arrays.
+     * @param windowUs Duration to retain; whole GOPs are dropped once the samples after them
+     * still cover this window. 0 to keep as much as the budget allows.
+     * @param videoTrack Track whose key frames define the GOPs, or -1 if there is no video, in
+     * which case every sample is treated as a key frame.
+     */
+    public EncodedRingBuffer(int byteBudget, int maxSamples, long windowUs, int videoTrack) {
+        mData = ByteBuffer.allocateDirect(byteBudget);
+        mReadView = mData.duplicate();
+        mWindowUs = windowUs;
+        mVideoTrack = videoTrack;
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+        mTracks = new int[maxSamples];
+        mKeyFrames = new IntRingQueue(maxSamples);
+    }
+
+    /**
+     * Copies a sample into the buffer, evicting the oldest GOPs as needed.
+     *
+     * @return false if the sample was dropped: it is larger than the whole budget, or it
+     * can't be decoded because the key frame it depends on was evicted or not seen yet.
+     */
+    public boolean add(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            // Codec config travels with the track format.
+            return false;
+        }
+        boolean isKeyFrame = isKeyFrame(track, info.flags);
+        if (mKeyFrames.isEmpty() && !isKeyFrame) {
+            // Nothing decodable to attach this sample to.
+            return false;
+        }
+        if (info.size > mData.capacity()) {
+            return false;
+        }
+
+        if (isKeyFrame) {
+            trimToWindow(info.presentationTimeUs);
+        }
+        int offset;
+        while ((offset = findSpace(info.size)) < 0 || mCount == mOffsets.length) {
+            evictOldestGop();
+            if (mKeyFrames.isEmpty() && !isKeyFrame) {
+                // We just dropped the key frame this sample depends on.
+                return false;
+            }
+        }
+
+        int slot = (mHead + mCount) % mOffsets.length;
+        int oldPosition = data.position();
+        int oldLimit = data.limit();
+        data.clear();
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        mData.clear();
+        mData.position(offset);
+        mData.put(data);
+        data.clear();
+        data.position(oldPosition);
+        data.limit(oldLimit);
+
+        int padding = offset < mWriteOffset ? mData.capacity() - mWriteOffset : 0;
+        mOffsets[slot] = offset;
+        mSizes[slot] = info.size;
+        mPtsUs[slot] = info.presentationTimeUs;
+        mFlags[slot] = info.flags;
+        mTracks[slot] = track;
+        mCount++;
+        mWriteOffset = offset + info.size;
+        mBytesUsed += padding + info.size;
+        if (isKeyFrame) {
+            mKeyFrames.add(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Writes all buffered samples, oldest first, and empties the buffer.
+     *
+     * @param sink Started sink to write to.
+     * @param trackMap Maps our track indices to those of {@code sink}.
+     * @return the number of samples written.
+     */
+    public int drainTo(SampleSink sink, int[] trackMap) throws IOException {
+        int written = 0;
+        while (mCount > 0) {
+            int slot = mHead;
+            mReadView.clear();
+            mReadView.position(mOffsets[slot]);
+            mReadView.limit(mOffsets[slot] + mSizes[slot]);
+            mReadInfo.set(mOffsets[slot], mSizes[slot], mPtsUs[slot], mFlags[slot]);
+            sink.writeSampleData(trackMap[mTracks[slot]], mReadView, mReadInfo);
+            removeHead();
+            written++;
+        }
+        return written;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        mKeyFrames.clear();
+        mWriteOffset = 0;
+        mBytesUsed = 0;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return bytes of the budget in use, including space skipped when wrapping around.
+     */
+    public int getBytesUsed() {
+        return mBytesUsed;
+    }
+
+    public int getByteBudget() {
+        return mData.capacity();
+    }
+
+    /**
+     * @return the time between the oldest and the newest buffered sample.
+     */
+    public long getBufferedDurationUs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mPtsUs[(mHead + mCount - 1) % mOffsets.length] - mPtsUs[mHead];
+    }
+
+    private boolean isKeyFrame(int track, int flags) {
+        if (mVideoTrack < 0) {
+            return true;
+        }
+        return track == mVideoTrack && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * Drops whole GOPs from the head while the GOPs after them still cover the window, ending
+     * at {@code newestPtsUs}.
+     */
+    private void trimToWindow(long newestPtsUs) {
+        if (mWindowUs <= 0) {
+            return;
+        }
+        while (mKeyFrames.size() > 1 && newestPtsUs - mPtsUs[mKeyFrames.get(1)] >= mWindowUs) {
+            evictOldestGop();
+        }
+    }
+
+    /**
+     * Removes samples from the head up to, not including, the next key frame.
+     */
+    private void evictOldestGop() {
+        if (mCount == 0) {
+            return;
+        }
+        do {
+            removeHead();
+        } while (mCount > 0 && !isKeyFrame(mTracks[mHead], mFlags[mHead]));
+    }
+
+    private void removeHead() {
+        int slot = mHead;
+        if (!mKeyFrames.isEmpty() && mKeyFrames.peek() == slot) {
+            mKeyFrames.remove();
+        }
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+        if (mCount == 0) {
+            mWriteOffset = 0;
+            mBytesUsed = 0;
+        } else {
+            // Everything before the new head's data is free again, including any padding
+            // skipped at the end of the buffer.
+            int freedTo = mOffsets[mHead];
+            int freedFrom = mOffsets[slot];
+            mBytesUsed -= freedTo >= freedFrom
+                    ? freedTo - freedFrom : mData.capacity() - freedFrom + freedTo;
+        }
+    }
+
+    /**
+     * @return where {@code size} bytes can be written contiguously, or -1 if they don't fit.
+     */
+    private int findSpace(int size) {
+        int capacity = mData.capacity();
+        if (mCount == 0) {
+            return 0;
+        }
+        int start = mOffsets[mHead];
+        if (mWriteOffset > start) {
+            // Free space is after the write offset and before the head's data.
+            if (capacity - mWriteOffset >= size) {
+                return mWriteOffset;
+            }
+            return start >= size ? 0 : -1;
+        }
+        // Data wraps around: free space is between the write offset and the head.
+        return start - mWriteOffset >= size ? mWriteOffset : -1;
+    }
+}
@@ -0,0 +1,586 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link SampleSink} writing a fragmented MP4: an empty {@code moov} up front, then a
+ * {@code moof}/{@code mdat} pair every few seconds. Unlike a classic MP4, whose index is only
+ * written when recording stops, the file is playable up to its last complete fragment at all
+ * times and is never rewritten, so it can be tailed or uploaded while it grows.
+ *
+ * Supports H.264 ({@code video/avc}) and AAC tracks. Samples are expected in decode order with
+ * increasing presentation times, i.e. without B-frames, which is what our encoders produce.
+ */
+public class FragmentedMp4Sink implements SampleSink {
+
+    /** Fragment duration used by {@link #FragmentedMp4Sink(WritableByteChannel)}. */
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    // trun flags: data-offset, sample-duration, sample-size and sample-flags present.
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd flags: default-base-is-moof, data offsets are relative to the moof box.
+    private static final int TFHD_FLAGS = 0x020000;
+    // Sample flags: a sync sample that depends on no other sample...
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // ... and a non-sync sample that depends on others.
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static class Track {
+        final int id;
+        final MediaFormat format;
+        final boolean isVideo;
+        final int timescale;
+
+        // Samples of the fragment being built.
+        int count;
+        long[] ptsUs = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        ByteBuffer data = ByteBuffer.allocateDirect(1 << 20);
+
+        // Duration of the last sample of the previous fragment, reused when the duration of a
+        // fragment's last sample can't be known yet.
+        long lastDurationTicks;
+
+        // Position of the data offset in the trun of the fragment being written.
+        int dataOffsetPosition;
+
+        Track(int id, MediaFormat format) {
+            this.id = id;
+            this.format = format;
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            this.isVideo = mime.startsWith("video/");
+            this.timescale = isVideo
+                    ? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            // AAC frames carry 1024 samples.
+            this.lastDurationTicks = isVideo ? VIDEO_TIMESCALE / 30 : 1024;
+        }
+
+        long toTicks(long us) {
+            return us * timescale / 1000000;
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    private final Mp4BoxWriter mBoxWriter = new Mp4BoxWriter(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+
+    private int mVideoTrack = -1;
+    private int mSequenceNumber;
+    private long mStartPtsUs = -1;
+    private long mFragmentStartUs = -1;
+    private boolean mStarted;
+
+    public FragmentedMp4Sink(WritableByteChannel channel) {
+        this(channel, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param channel Destination of the file, closed by {@link #stop()}.
+     * @param fragmentDurationUs Minimum duration of a fragment; fragments start on video key
+     * frames, so they may be longer. Shorter fragments lose less on a crash and reach readers
+     * sooner, at the cost of some overhead.
+     */
+    public FragmentedMp4Sink(WritableByteChannel channel, long fragmentDurationUs) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Writes to an already open file, e.g. one handed out by the Storage Access Framework.
+     * Writes are batched by a {@link BatchingChannel}.
+     */
+    public static FragmentedMp4Sink fromFileDescriptor(FileDescriptor fd) throws IOException {
+        ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        return new FragmentedMp4Sink(new BatchingChannel(
+                new ParcelFileDescriptor.AutoCloseOutputStream(dup).getChannel()));
+    }
+
+    /**
+     * Writes to a file, truncating it. Writes are batched by a {@link BatchingChannel}.
+     */
+    public static FragmentedMp4Sink fromPath(String path) throws IOException {
+        return new FragmentedMp4Sink(
+                new BatchingChannel(new FileOutputStream(path).getChannel()));
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)
+                && !MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            throw new IllegalArgumentException("Unsupported track type " + mime);
+        }
+        Track track = new Track(mTracks.size() + 1, format);
+        if (track.isVideo && mVideoTrack < 0) {
+            mVideoTrack = mTracks.size();
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mStarted = true;
+        mBoxWriter.reset();
+        writeFtyp(mBoxWriter);
+        writeMoov(mBoxWriter);
+        writeFully(mBoxWriter.getBuffer());
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        // Codec config is already part of the track format.
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            return;
+        }
+        boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        boolean cutsHere = mVideoTrack < 0 ? true : trackIndex == mVideoTrack && sync;
+        if (mStartPtsUs < 0) {
+            mStartPtsUs = info.presentationTimeUs;
+            mFragmentStartUs = info.presentationTimeUs;
+        } else if (cutsHere
+                && info.presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+            flushFragment(trackIndex, info.presentationTimeUs);
+            mFragmentStartUs = info.presentationTimeUs;
+        }
+
+        Track track = mTracks.get(trackIndex);
+        int oldPosition = buffer.position();
+        int oldLimit = buffer.limit();
+        buffer.clear();
+        int start = track.data.position();
+        if (track.isVideo) {
+            appendLengthPrefixed(track, buffer, info.offset, info.offset + info.size);
+        } else {
+            appendRange(track, buffer, info.offset, info.offset + info.size);
+        }
+        buffer.clear();
+        buffer.position(oldPosition);
+        buffer.limit(oldLimit);
+        addSample(track, info.presentationTimeUs, track.data.position() - start,
+                sync || !track.isVideo);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        try {
+            if (mStarted) {
+                flushFragment(-1, 0);
+            }
+        } finally {
+            mStarted = false;
+            mChannel.close();
+        }
+    }
+
+    private void writeFtyp(Mp4BoxWriter w) {
+        w.beginBox("ftyp")
+                .writeFourCC("isom").writeInt(0x200)
+                .writeFourCC("isom").writeFourCC("iso6").writeFourCC("avc1").writeFourCC("mp41")
+                .endBox();
+    }
+
+    private void writeMoov(Mp4BoxWriter w) {
+        w.beginBox("moov");
+
+        w.beginFullBox("mvhd", 0, 0)
+                .writeInt(0).writeInt(0)            // creation, modification time
+                .writeInt(MOVIE_TIMESCALE)
+                .writeInt(0)                        // duration, unknown when fragmented
+                .writeInt(0x00010000)               // rate 1.0
+                .writeShort(0x0100)                 // volume 1.0
+                .writeZeros(10)
+                .writeUnityMatrix()
+                .writeZeros(24)
+                .writeInt(mTracks.size() + 1)       // next track id
+                .endBox();
+
+        for (Track track : mTracks) {
+            writeTrak(w, track);
+        }
+
+        w.beginBox("mvex");
+        for (Track track : mTracks) {
+            w.beginFullBox("trex", 0, 0)
+                    .writeInt(track.id)
+                    .writeInt(1)                    // sample description index
+                    .writeInt(0).writeInt(0).writeInt(0)
+                    .endBox();
+        }
+        w.endBox();
+
+        w.endBox();
+    }
+
+    private void writeTrak(Mp4BoxWriter w, Track track) {
+        MediaFormat format = track.format;
+        int width = track.isVideo ? format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+        int height = track.isVideo ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+
+        w.beginBox("trak");
+        w.beginFullBox("tkhd", 0, 0x3)              // enabled, in movie
+                .writeInt(0).writeInt(0)
+                .writeInt(track.id)
+                .writeInt(0)
+                .writeInt(0)                        // duration
+                .writeZeros(8)
+                .writeShort(0)                      // layer
+                .writeShort(0)                      // alternate group
+                .writeShort(track.isVideo ? 0 : 0x0100)
+                .writeShort(0)
+                .writeUnityMatrix()
+                .writeInt(width << 16)
+                .writeInt(height << 16)
+                .endBox();
+
+        w.beginBox("mdia");
+        w.beginFullBox("mdhd", 0, 0)
+                .writeInt(0).writeInt(0)
+                .writeInt(track.timescale)
+                .writeInt(0)
+                .writeShort(0x55C4)                 // language "und"
+                .writeShort(0)
+                .endBox();
+        w.beginFullBox("hdlr", 0, 0)
+                .writeInt(0)
+                .writeFourCC(track.isVideo ? "vide" : "soun")
+                .writeZeros(12)
+                .writeString(track.isVideo ? "VideoHandler" : "SoundHandler")
+                .endBox();
+
+        w.beginBox("minf");
+        if (track.isVideo) {
+            w.beginFullBox("vmhd", 0, 1).writeZeros(8).endBox();
+        } else {
+            w.beginFullBox("smhd", 0, 0).writeZeros(4).endBox();
+        }
+        w.beginBox("dinf");
+        w.beginFullBox("dref", 0, 0).writeInt(1);
+        w.beginFullBox("url ", 0, 1).endBox();      // media is in this file
+        w.endBox();
+        w.endBox();
+
+        w.beginBox("stbl");
+        w.beginFullBox("stsd", 0, 0).writeInt(1);
+        if (track.isVideo) {
+            writeAvc1(w, format, width, height);
+        } else {
+            writeMp4a(w, format);
+        }
+        w.endBox();
+        // Sample tables are empty, samples are described by the fragments.
+        w.beginFullBox("stts", 0, 0).writeInt(0).endBox();
+        w.beginFullBox("stsc", 0, 0).writeInt(0).endBox();
+        w.beginFullBox("stsz", 0, 0).writeInt(0).writeInt(0).endBox();
+        w.beginFullBox("stco", 0, 0).writeInt(0).endBox();
+        w.endBox();
+
+        w.endBox(); // minf
+        w.endBox(); // mdia
+        w.endBox(); // trak
+    }
+
+    private static void writeAvc1(Mp4BoxWriter w, MediaFormat format, int width, int height) {
+        // The encoder reports SPS and PPS as Annex-B in csd-0 and csd-1, sometimes both in csd-0.
+        List<ByteBuffer> sps = new ArrayList<ByteBuffer>();
+        List<ByteBuffer> pps = new ArrayList<ByteBuffer>();
+        for (String key : new String[] {"csd-0", "csd-1"}) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            if (csd == null) {
+                continue;
+            }
+            for (ByteBuffer nal : splitAnnexB(csd)) {
+                int type = nal.get(nal.position()) & 0x1F;
+                if (type == 7) {
+                    sps.add(nal);
+                } else if (type == 8) {
+                    pps.add(nal);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("AVC format lacks SPS/PPS");
+        }
+        ByteBuffer firstSps = sps.get(0);
+
+        w.beginBox("avc1")
+                .writeZeros(6).writeShort(1)        // reserved, data reference index
+                .writeZeros(16)
+                .writeShort(width).writeShort(height)
+                .writeInt(0x00480000).writeInt(0x00480000) // 72 dpi
+                .writeInt(0)
+                .writeShort(1)                      // frame count
+                .writeZeros(32)                     // compressor name
+                .writeShort(0x0018)                 // depth
+                .writeShort(0xFFFF);                // pre-defined -1
+
+        w.beginBox("avcC")
+                .writeByte(1)
+                .writeByte(firstSps.get(firstSps.position() + 1))  // profile
+                .writeByte(firstSps.get(firstSps.position() + 2))  // compatibility
+                .writeByte(firstSps.get(firstSps.position() + 3))  // level
+                .writeByte(0xFF)                    // 4 byte NAL lengths
+                .writeByte(0xE0 | sps.size());
+        for (ByteBuffer nal : sps) {
+            w.writeShort(nal.remaining()).writeBytes(nal);
+        }
+        w.writeByte(pps.size());
+        for (ByteBuffer nal : pps) {
+            w.writeShort(nal.remaining()).writeBytes(nal);
+        }
+        w.endBox();
+
+        w.endBox();
+    }
+
+    private static void writeMp4a(Mp4BoxWriter w, MediaFormat format) {
+        ByteBuffer config = format.getByteBuffer("csd-0");
+        if (config == null) {
+            throw new IllegalArgumentException("AAC format lacks csd-0");
+        }
+        int configSize = config.remaining();
+        int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+
+        w.beginBox("mp4a")
+                .writeZeros(6).writeShort(1)
+                .writeZeros(8)
+                .writeShort(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT))
+                .writeShort(16)                     // sample size
+                .writeZeros(4)
+                .writeInt(format.getInteger(MediaFormat.KEY_SAMPLE_RATE) << 16);
+
+        // Elementary stream descriptor, ISO/IEC 14496-1. All sizes fit one byte.
+        w.beginFullBox("esds", 0, 0)
+                .writeByte(0x03).writeByte(3 + 15 + 2 + configSize + 3)
+                .writeShort(0)                      // ES id
+                .writeByte(0)
+                .writeByte(0x04).writeByte(13 + 2 + configSize)
+                .writeByte(0x40)                    // object type: MPEG-4 audio
+                .writeByte(0x15)                    // stream type: audio
+                .writeByte(0).writeShort(0)         // buffer size
+                .writeInt(bitRate).writeInt(bitRate)
+                .writeByte(0x05).writeByte(configSize)
+                .writeBytes(config)
+                .writeByte(0x06).writeByte(1).writeByte(0x02)
+                .endBox();
+
+        w.endBox();
+    }
+
+    /**
+     * Writes the buffered samples of all tracks as one {@code moof}/{@code mdat} pair.
+     *
+     * @param nextTrack Track whose sample at {@code nextPtsUs} triggered the flush, or -1.
+     * Lets us compute the exact duration of that track's last sample.
+     */
+    private void flushFragment(int nextTrack, long nextPtsUs) throws IOException {
+        // Indexed loops: an iterator per fragment would be garbage.
+        boolean empty = true;
+        for (int t = 0; t < mTracks.size(); t++) {
+            empty &= mTracks.get(t).count == 0;
+        }
+        if (empty) {
+            return;
+        }
+
+        Mp4BoxWriter w = mBoxWriter;
+        w.reset();
+        w.beginBox("moof");
+        w.beginFullBox("mfhd", 0, 0).writeInt(++mSequenceNumber).endBox();
+
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            if (track.count == 0) {
+                continue;
+            }
+            long baseTicks = Math.max(0, track.toTicks(track.ptsUs[0] - mStartPtsUs));
+
+            w.beginBox("traf");
+            w.beginFullBox("tfhd", 0, TFHD_FLAGS).writeInt(track.id).endBox();
+            w.beginFullBox("tfdt", 1, 0).writeLong(baseTicks).endBox();
+            w.beginFullBox("trun", 0, TRUN_FLAGS).writeInt(track.count);
+            track.dataOffsetPosition = w.position();
+            w.writeInt(0); // data offset, patched below
+            for (int i = 0; i < track.count; i++) {
+                long durationTicks;
+                if (i + 1 < track.count) {
+                    durationTicks = track.toTicks(track.ptsUs[i + 1])
+                            - track.toTicks(track.ptsUs[i]);
+                } else if (t == nextTrack) {
+                    durationTicks = track.toTicks(nextPtsUs) - track.toTicks(track.ptsUs[i]);
+                } else {
+                    durationTicks = track.lastDurationTicks;
+                }
+                durationTicks = Math.max(0, durationTicks);
+                track.lastDurationTicks = durationTicks;
+                w.writeInt((int) durationTicks)
+                        .writeInt(track.sizes[i])
+                        .writeInt(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            w.endBox(); // trun
+            w.endBox(); // traf
+        }
+        w.endBox(); // moof
+
+        // Sample data of every track follows the moof, inside a single mdat.
+        int offset = w.position() + mMdatHeader.capacity();
+        long mdatSize = mMdatHeader.capacity();
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            if (track.count == 0) {
+                continue;
+            }
+            w.putInt(track.dataOffsetPosition, offset);
+            offset += track.data.position();
+            mdatSize += track.data.position();
+        }
+        mMdatHeader.clear();
+        mMdatHeader.putInt((int) mdatSize).put((byte) 'm').put((byte) 'd').put((byte) 'a')
+                .put((byte) 't');
+        mMdatHeader.flip();
+
+        writeFully(w.getBuffer());
+        writeFully(mMdatHeader);
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            track.data.flip();
+            writeFully(track.data);
+            track.data.clear();
+            track.count = 0;
+        }
+    }
+
+    private void addSample(Track track, long ptsUs, int size, boolean sync) {
+        if (track.count == track.ptsUs.length) {
+            int capacity = track.count * 2;
+            track.ptsUs = Arrays.copyOf(track.ptsUs, capacity);
+            track.sizes = Arrays.copyOf(track.sizes, capacity);
+            track.sync = Arrays.copyOf(track.sync, capacity);
+        }
+        track.ptsUs[track.count] = ptsUs;
+        track.sizes[track.count] = size;
+        track.sync[track.count] = sync;
+        track.count++;
+    }
+
+    /**
+     * Converts an Annex-B access unit (start code separated NAL units, as produced by
+     * MediaCodec) in {@code src} from {@code start} to {@code end} to the 4 byte length
+     * prefixed form MP4 requires. NAL units are found and copied in place, nothing is allocated.
+     */
+    private static void appendLengthPrefixed(Track track, ByteBuffer src, int start, int end) {
+        int next = findStartCode(src, start, end);
+        if (next != start) {
+            // Not Annex-B, assume it is length prefixed already.
+            appendRange(track, src, start, end);
+            return;
+        }
+        while (next < end) {
+            int nalStart = skipStartCode(src, next);
+            int nalEnd = findStartCode(src, nalStart, end);
+            if (nalEnd > nalStart) {
+                ensureData(track, 4 + nalEnd - nalStart);
+                track.data.putInt(nalEnd - nalStart);
+                appendRange(track, src, nalStart, nalEnd);
+            }
+            next = nalEnd;
+        }
+    }
+
+    /**
+     * Copies {@code src} from {@code start} to {@code end} into the track's data. {@code src}
+     * must be cleared; its position moves, its limit is left at the capacity so later absolute
+     * reads still work.
+     */
+    private static void appendRange(Track track, ByteBuffer src, int start, int end) {
+        ensureData(track, end - start);
+        src.limit(end);
+        src.position(start);
+        track.data.put(src);
+        src.limit(src.capacity());
+    }
+
+    /**
+     * @return the NAL units of an Annex-B buffer, without start codes, or an empty list if
+     * {@code src} doesn't start with a start code. Allocates; only for the codec config.
+     */
+    static List<ByteBuffer> splitAnnexB(ByteBuffer src) {
+        List<ByteBuffer> nals = new ArrayList<ByteBuffer>(4);
+        int end = src.limit();
+        int next = findStartCode(src, src.position(), end);
+        if (next != src.position()) {
+            return nals;
+        }
+        while (next < end) {
+            int nalStart = skipStartCode(src, next);
+            int nalEnd = findStartCode(src, nalStart, end);
+            if (nalEnd > nalStart) {
+                ByteBuffer nal = src.duplicate();
+                nal.position(nalStart);
+                nal.limit(nalEnd);
+                nals.add(nal.slice());
+            }
+            next = nalEnd;
+        }
+        return nals;
+    }
+
+    // Index of the next 00 00 01 or 00 00 00 01 start code at or after from, or end.
+    private static int findStartCode(ByteBuffer buf, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0) {
+                if (buf.get(i + 2) == 1) {
+                    return i;
+                }
+                if (i + 3 < end && buf.get(i + 2) == 0 && buf.get(i + 3) == 1) {
+                    return i;
+                }
+            }
+        }
+        return end;
+    }
+
+    private static int skipStartCode(ByteBuffer buf, int at) {
+        return buf.get(at + 2) == 1 ? at + 3 : at + 4;
+    }
+
+    private static void ensureData(Track track, int bytes) {
+        if (track.data.remaining() >= bytes) {
+            return;
+        }
+        int capacity = Math.max(track.data.capacity() * 2, track.data.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        track.data.flip();
+        grown.put(track.data);
+        track.data = grown;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
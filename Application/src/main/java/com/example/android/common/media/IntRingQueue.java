@@ -0,0 +1,95 @@
+package com.example.android.common.media;
+
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO queue of primitive ints backed by a circular array. Unlike {@code ArrayDeque<Integer>}
+ * it never boxes, so adding and removing elements does not allocate once the queue has grown
+ * to its working size.
+ */
+class IntRingQueue {
+
+    private int[] mItems;
+    private int mHead;
+    private int mSize;
+
+    IntRingQueue(int initialCapacity) {
+        mItems = new int[Math.max(1, initialCapacity)];
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void add(int value) {
+        if (mSize == mItems.length) {
+            grow();
+        }
+        mItems[(mHead + mSize) % mItems.length] = value;
+        mSize++;
+    }
+
+    /**
+     * Puts {@code count} values back in front of the head, in order, e.g. elements that were
+     * removed but not used.
+     */
+    void addFirst(int[] values, int offset, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            if (mSize == mItems.length) {
+                grow();
+            }
+            mHead = (mHead - 1 + mItems.length) % mItems.length;
+            mItems[mHead] = values[i];
+            mSize++;
+        }
+    }
+
+    /**
+     * @return the head of the queue without removing it.
+     */
+    int peek() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mItems[mHead];
+    }
+
+    /**
+     * @return the element {@code index} places after the head, without removing anything.
+     */
+    int get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new NoSuchElementException();
+        }
+        return mItems[(mHead + index) % mItems.length];
+    }
+
+    /**
+     * @return the head of the queue, removing it.
+     */
+    int remove() {
+        int value = peek();
+        mHead = (mHead + 1) % mItems.length;
+        mSize--;
+        return value;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    // Only happens when the codec uses more buffers than we sized for.
+    private void grow() {
+        int[] items = new int[mItems.length * 2];
+        for (int i = 0; i < mSize; i++) {
+            items[i] = mItems[(mHead + i) % mItems.length];
+        }
+        mItems = items;
+        mHead = 0;
+    }
+}
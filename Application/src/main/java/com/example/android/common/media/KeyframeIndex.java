@@ -0,0 +1,225 @@
+package com.example.android.common.media;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Key frame times and thumbnails of a recording, read from the sidecar file written by
+ * {@link KeyframeIndexer}. The sidecar is memory mapped: loading only walks its segment headers
+ * and key frame tables, thumbnail pixels are read by the kernel on first access, straight from
+ * the page cache into a {@link Bitmap}.
+ *
+ * The sidecar is little endian and append-only, so indexing a file that is still being
+ * recorded only ever adds to it:
+ * <pre>
+ * header:  int magic, int version, int thumbnail width, int thumbnail height
+ * segment: int magic, int key frame count, int thumbnail count, int reserved,
+ *          long length of the media file when the segment was written,
+ *          thumbnail count x (long time in us, width x height RGB 565 pixels),
+ *          key frame count x long time in us
+ * </pre>
+ * A segment's magic is written last, so one cut short by a crash is ignored on load and
+ * overwritten by the next update.
+ */
+public class KeyframeIndex {
+
+    static final int MAGIC = 0x5846494b; // "KIFX" in little endian
+    static final int VERSION = 1;
+    static final int SEGMENT_MAGIC = 0x4745534b; // "KSEG" in little endian
+    static final int HEADER_SIZE = 16;
+    static final int SEGMENT_HEADER_SIZE = 24;
+
+    /** Extension appended to the media file name, see {@link #sidecarFor(File)}. */
+    public static final String SIDECAR_EXTENSION = ".kfi";
+
+    private final MappedByteBuffer mMap;
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private final long[] mKeyframeTimesUs;
+    private final long[] mThumbnailTimesUs;
+    // Position of the pixels of each thumbnail in mMap.
+    private final int[] mThumbnailOffsets;
+    private final long mSourceLength;
+    private final long mValidLength;
+
+    private KeyframeIndex(MappedByteBuffer map, int thumbnailWidth, int thumbnailHeight,
+            long[] keyframeTimesUs, long[] thumbnailTimesUs, int[] thumbnailOffsets,
+            long sourceLength, long validLength) {
+        mMap = map;
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+        mKeyframeTimesUs = keyframeTimesUs;
+        mThumbnailTimesUs = thumbnailTimesUs;
+        mThumbnailOffsets = thumbnailOffsets;
+        mSourceLength = sourceLength;
+        mValidLength = validLength;
+    }
+
+    /**
+     * @return where the index of {@code media} is kept, next to it.
+     */
+    public static File sidecarFor(File media) {
+        return new File(media.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * Maps a sidecar written by {@link KeyframeIndexer}.
+     *
+     * @throws IOException if the file can't be read or is not an index.
+     */
+    public static KeyframeIndex load(File sidecar) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+        MappedByteBuffer map;
+        try {
+            // The mapping stays valid after the channel is closed.
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+            throw new IOException("Not a key frame index: " + sidecar);
+        }
+        if (map.getInt(4) != VERSION) {
+            throw new IOException("Unsupported key frame index version " + map.getInt(4));
+        }
+        int width = map.getInt(8);
+        int height = map.getInt(12);
+        int thumbnailRecord = 8 + width * height * 2;
+
+        long[] keyframes = new long[64];
+        int keyframeCount = 0;
+        long[] thumbnails = new long[16];
+        int[] offsets = new int[16];
+        int thumbnailCount = 0;
+        long sourceLength = 0;
+        int position = HEADER_SIZE;
+        while (position + SEGMENT_HEADER_SIZE <= map.limit()
+                && map.getInt(position) == SEGMENT_MAGIC) {
+            int segmentKeyframes = map.getInt(position + 4);
+            int segmentThumbnails = map.getInt(position + 8);
+            long end = position + SEGMENT_HEADER_SIZE
+                    + (long) segmentThumbnails * thumbnailRecord + segmentKeyframes * 8L;
+            if (segmentKeyframes < 0 || segmentThumbnails < 0 || end > map.limit()) {
+                break;
+            }
+            sourceLength = map.getLong(position + 16);
+            int p = position + SEGMENT_HEADER_SIZE;
+            if (thumbnailCount + segmentThumbnails > thumbnails.length) {
+                int size = Math.max(thumbnails.length * 2, thumbnailCount + segmentThumbnails);
+                thumbnails = Arrays.copyOf(thumbnails, size);
+                offsets = Arrays.copyOf(offsets, size);
+            }
+            for (int i = 0; i < segmentThumbnails; i++) {
+                thumbnails[thumbnailCount] = map.getLong(p);
+                offsets[thumbnailCount] = p + 8;
+                thumbnailCount++;
+                p += thumbnailRecord;
+            }
+            if (keyframeCount + segmentKeyframes > keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes,
+                        Math.max(keyframes.length * 2, keyframeCount + segmentKeyframes));
+            }
+            for (int i = 0; i < segmentKeyframes; i++) {
+                keyframes[keyframeCount++] = map.getLong(p);
+                p += 8;
+            }
+            position = (int) end;
+        }
+        return new KeyframeIndex(map, width, height, Arrays.copyOf(keyframes, keyframeCount),
+                Arrays.copyOf(thumbnails, thumbnailCount),
+                Arrays.copyOf(offsets, thumbnailCount), sourceLength, position);
+    }
+
+    public int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+
+    /**
+     * @return length of the media file when it was last indexed.
+     */
+    public long getSourceLength() {
+        return mSourceLength;
+    }
+
+    /**
+     * @return bytes of the sidecar holding complete segments; anything after is garbage.
+     */
+    long getValidLength() {
+        return mValidLength;
+    }
+
+    public int getKeyframeCount() {
+        return mKeyframeTimesUs.length;
+    }
+
+    public long getKeyframeTimeUs(int index) {
+        return mKeyframeTimesUs[index];
+    }
+
+    /**
+     * @return index of the last key frame at or before {@code timeUs}, i.e. where decoding
+     * has to start to show that time, or -1 if there is none.
+     */
+    public int findKeyframe(long timeUs) {
+        return floor(mKeyframeTimesUs, timeUs);
+    }
+
+    public int getThumbnailCount() {
+        return mThumbnailTimesUs.length;
+    }
+
+    public long getThumbnailTimeUs(int index) {
+        return mThumbnailTimesUs[index];
+    }
+
+    /**
+     * @return index of the last thumbnail at or before {@code timeUs}, or of the first one if
+     * there is none before, or -1 if there are no thumbnails.
+     */
+    public int findThumbnail(long timeUs) {
+        if (mThumbnailTimesUs.length == 0) {
+            return -1;
+        }
+        return Math.max(0, floor(mThumbnailTimesUs, timeUs));
+    }
+
+    /**
+     * Copies a thumbnail into {@code bitmap}, which must be a mutable
+     * {@link Bitmap.Config#RGB_565} bitmap of the thumbnail size. Reuse it while scrubbing to
+     * avoid allocating a bitmap per frame.
+     */
+    public void copyThumbnail(int index, Bitmap bitmap) {
+        ByteBuffer pixels = mMap.duplicate();
+        pixels.position(mThumbnailOffsets[index]);
+        pixels.limit(mThumbnailOffsets[index] + mThumbnailWidth * mThumbnailHeight * 2);
+        bitmap.copyPixelsFromBuffer(pixels);
+    }
+
+    /**
+     * @return a new bitmap with the thumbnail; see {@link #copyThumbnail} to reuse one.
+     */
+    public Bitmap getThumbnail(int index) {
+        Bitmap bitmap = Bitmap.createBitmap(mThumbnailWidth, mThumbnailHeight,
+                Bitmap.Config.RGB_565);
+        copyThumbnail(index, bitmap);
+        return bitmap;
+    }
+
+    private static int floor(long[] times, long timeUs) {
+        int i = Arrays.binarySearch(times, timeUs);
+        return i >= 0 ? i : -i - 2;
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.example.android.common.gles.EglCore;
+import com.example.android.common.gles.ExternalTextureRenderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the {@link KeyframeIndex} sidecar of a recording.
+ *
+ * Key frames are found from the sync sample flags of {@link MediaExtractor} alone: the
+ * extractor hops from one sync sample to the next without reading any sample data. Only the
+ * key frames chosen for thumbnails, one per thumbnail interval, are read and decoded, each on
+ * its own. The decoder renders into a {@link SurfaceTexture} and the GPU scales the frame down
+ * to the thumbnail size, so only the few kilobytes of the thumbnail are read back.
+ *
+ * Updating the index of a file that grew since, e.g. a fragmented MP4 still being recorded,
+ * resumes after the last indexed key frame and appends a segment to the sidecar.
+ *
+ * Must not be called on the main thread: frame notifications of the decoder surface are
+ * delivered there when the calling thread has no looper.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class KeyframeIndexer {
+
+    private static final String TAG = "KeyframeIndexer";
+
+    // How long we wait for the decoder to take or produce a buffer.
+    private static final long DECODE_TIMEOUT_MS = 500;
+
+    private final int mThumbnailWidth;
+    private final int mThumbnailHeight;
+    private final long mThumbnailIntervalUs;
+
+    // Thumbnail decoding state, set up for the first thumbnail of an update.
+    private MediaCodecWrapper mDecoder;
+    private EglCore mEglCore;
+    private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private ExternalTextureRenderer mRenderer;
+    private int mTextureId;
+    private SurfaceTexture mTexture;
+    private Surface mSurface;
+    private final float[] mTexMatrix = new float[16];
+    private final Object mFrameLock = new Object();
+    private boolean mFrameAvailable;
+    private ByteBuffer mRgba;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param thumbnailWidth Width of the thumbnails, e.g. 96.
+     * @param thumbnailHeight Height of the thumbnails, e.g. 54.
+     * @param thumbnailIntervalUs Minimum time between two thumbnails; the first key frame after
+     * it gets the next one.
+     */
+    public KeyframeIndexer(int thumbnailWidth, int thumbnailHeight, long thumbnailIntervalUs) {
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+        mThumbnailIntervalUs = thumbnailIntervalUs;
+    }
+
+    /**
+     * Brings the sidecar of {@code media} up to date and loads it. Does nothing but load it if
+     * the file didn't change since the last update.
+     */
+    public KeyframeIndex update(File media) throws IOException {
+        File sidecar = KeyframeIndex.sidecarFor(media);
+        KeyframeIndex existing = null;
+        if (sidecar.exists()) {
+            try {
+                existing = KeyframeIndex.load(sidecar);
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding unreadable index " + sidecar + ": " + e.getMessage());
+            }
+        }
+        long length = media.length();
+        if (existing != null && (existing.getThumbnailWidth() != mThumbnailWidth
+                || existing.getThumbnailHeight() != mThumbnailHeight
+                || existing.getSourceLength() > length)) {
+            // Other thumbnail size or another file under the same name.
+            existing = null;
+        }
+        if (existing != null && existing.getSourceLength() == length) {
+            return existing;
+        }
+
+        long startTimeUs = -1;
+        long lastThumbnailUs = Long.MIN_VALUE;
+        if (existing != null) {
+            int keyframes = existing.getKeyframeCount();
+            if (keyframes > 0) {
+                startTimeUs = existing.getKeyframeTimeUs(keyframes - 1);
+            }
+            int thumbnails = existing.getThumbnailCount();
+            if (thumbnails > 0) {
+                lastThumbnailUs = existing.getThumbnailTimeUs(thumbnails - 1);
+            }
+        }
+
+        long startNs = System.nanoTime();
+        RandomAccessFile file = new RandomAccessFile(sidecar, "rw");
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            FileChannel channel = file.getChannel();
+            long position;
+            if (existing == null) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(KeyframeIndex.HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(KeyframeIndex.MAGIC).putInt(KeyframeIndex.VERSION)
+                        .putInt(mThumbnailWidth).putInt(mThumbnailHeight).flip();
+                writeFully(channel, header, 0);
+                position = KeyframeIndex.HEADER_SIZE;
+            } else {
+                // Drops a segment cut short by a crash.
+                position = existing.getValidLength();
+                channel.truncate(position);
+            }
+
+            extractor.setDataSource(media.getPath());
+            MediaFormat format = selectVideoTrack(extractor);
+            if (startTimeUs >= 0) {
+                extractor.seekTo(startTimeUs + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            }
+            int[] counts = appendSegment(channel, position, extractor, format, startTimeUs,
+                    lastThumbnailUs, length);
+            Log.d(TAG, "Indexed " + media.getName() + ": " + counts[0] + " key frames, "
+                    + counts[1] + " thumbnails in " + (System.nanoTime() - startNs) / 1000000
+                    + " ms");
+        } finally {
+            extractor.release();
+            file.close();
+            releaseDecoder();
+        }
+        return KeyframeIndex.load(sidecar);
+    }
+
+    private static MediaFormat selectVideoTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("No video track");
+    }
+
+    /**
+     * Walks the key frames from the current position of {@code extractor} and writes them as
+     * a segment at {@code position}.
+     *
+     * @return the number of key frames and thumbnails written.
+     */
+    private int[] appendSegment(FileChannel channel, long position, MediaExtractor extractor,
+            MediaFormat format, long lastTimeUs, long lastThumbnailUs, long sourceLength)
+            throws IOException {
+        int thumbnailRecord = 8 + mThumbnailWidth * mThumbnailHeight * 2;
+        ByteBuffer thumbnail = ByteBuffer.allocateDirect(thumbnailRecord)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        long[] keyframes = new long[256];
+        int keyframeCount = 0;
+        int thumbnailCount = 0;
+        long write = position + KeyframeIndex.SEGMENT_HEADER_SIZE;
+
+        while (true) {
+            long timeUs = extractor.getSampleTime();
+            if (timeUs < 0) {
+                break;
+            }
+            if (timeUs <= lastTimeUs
+                    || (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) == 0) {
+                // The seek didn't get past the last key frame; step until the next one.
+                if (!extractor.advance()) {
+                    break;
+                }
+                continue;
+            }
+            if (keyframeCount == keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+            }
+            keyframes[keyframeCount++] = timeUs;
+            lastTimeUs = timeUs;
+
+            if (lastThumbnailUs == Long.MIN_VALUE
+                    || timeUs - lastThumbnailUs >= mThumbnailIntervalUs) {
+                thumbnail.clear();
+                thumbnail.putLong(timeUs);
+                if (decodeThumbnail(extractor, format, timeUs, thumbnail)) {
+                    thumbnail.flip();
+                    write += writeFully(channel, thumbnail, write);
+                    thumbnailCount++;
+                }
+                // Also after a failure, rather than retrying on every key frame.
+                lastThumbnailUs = timeUs;
+            }
+            extractor.seekTo(timeUs + 1, MediaExtractor.SEEK_TO_NEXT_SYNC);
+        }
+
+        // Written even when empty: the new source length makes the next update a no-op.
+        ByteBuffer table = ByteBuffer.allocate(keyframeCount * 8).order(ByteOrder.LITTLE_ENDIAN);
+        table.asLongBuffer().put(keyframes, 0, keyframeCount);
+        writeFully(channel, table, write);
+
+        // The magic goes in last, after everything else of the segment is on disk.
+        ByteBuffer header = ByteBuffer.allocate(KeyframeIndex.SEGMENT_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0).putInt(keyframeCount).putInt(thumbnailCount).putInt(0)
+                .putLong(sourceLength).flip();
+        writeFully(channel, header, position);
+        channel.force(false);
+        header.clear();
+        header.putInt(KeyframeIndex.SEGMENT_MAGIC).flip();
+        writeFully(channel, header, position);
+        channel.force(false);
+        return new int[] {keyframeCount, thumbnailCount};
+    }
+
+    /**
+     * Decodes the key frame at the current position of {@code extractor} and puts it, scaled
+     * to the thumbnail size, into {@code out} as RGB 565.
+     *
+     * @return false if the decoder didn't produce the frame.
+     */
+    private boolean decodeThumbnail(MediaExtractor extractor, MediaFormat format, long timeUs,
+            ByteBuffer out) throws IOException {
+        if (mDecoder == null) {
+            setUpDecoder(format);
+        } else {
+            mDecoder.flush();
+        }
+        if (!mDecoder.awaitInputBuffer(DECODE_TIMEOUT_MS)
+                || !mDecoder.writeSample(extractor, false, timeUs, 0)
+                || !mDecoder.awaitInputBuffer(DECODE_TIMEOUT_MS)
+                || !mDecoder.writeEndOfStream(timeUs)) {
+            Log.w(TAG, "Decoder didn't take the key frame at " + timeUs + " us");
+            return false;
+        }
+
+        synchronized (mFrameLock) {
+            mFrameAvailable = false;
+        }
+        boolean rendered = false;
+        while (!rendered && mDecoder.awaitSample(DECODE_TIMEOUT_MS)) {
+            mDecoder.peekSample(mInfo);
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && mInfo.size == 0) {
+                mDecoder.popSample(false);
+                break;
+            }
+            mDecoder.popSample(true);
+            rendered = true;
+        }
+        if (!rendered || !awaitFrame()) {
+            Log.w(TAG, "No frame decoded at " + timeUs + " us");
+            return false;
+        }
+
+        mTexture.updateTexImage();
+        mTexture.getTransformMatrix(mTexMatrix);
+        GLES20.glViewport(0, 0, mThumbnailWidth, mThumbnailHeight);
+        mRenderer.draw(mTextureId, mTexMatrix);
+        mRgba.clear();
+        GLES20.glReadPixels(0, 0, mThumbnailWidth, mThumbnailHeight, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, mRgba);
+        toRgb565(mRgba, mThumbnailWidth, mThumbnailHeight, out);
+        return true;
+    }
+
+    private boolean awaitFrame() {
+        long deadline = System.nanoTime() + DECODE_TIMEOUT_MS * 1000000;
+        synchronized (mFrameLock) {
+            long remaining = DECODE_TIMEOUT_MS;
+            while (!mFrameAvailable && remaining > 0) {
+                try {
+                    mFrameLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = (deadline - System.nanoTime()) / 1000000;
+            }
+            return mFrameAvailable;
+        }
+    }
+
+    /**
+     * Converts bottom-up RGBA rows as read by glReadPixels into top-down RGB 565, the layout
+     * of an {@link android.graphics.Bitmap.Config#RGB_565} bitmap.
+     */
+    private static void toRgb565(ByteBuffer rgba, int width, int height, ByteBuffer out) {
+        for (int y = height - 1; y >= 0; y--) {
+            int row = y * width * 4;
+            for (int x = 0; x < width; x++) {
+                int p = row + x * 4;
+                int r = rgba.get(p) & 0xff;
+                int g = rgba.get(p + 1) & 0xff;
+                int b = rgba.get(p + 2) & 0xff;
+                out.putShort((short) (((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3)));
+            }
+        }
+    }
+
+    private void setUpDecoder(MediaFormat format) throws IOException {
+        mEglCore = new EglCore();
+        mEglSurface = mEglCore.createOffscreenSurface(mThumbnailWidth, mThumbnailHeight);
+        mEglCore.makeCurrent(mEglSurface);
+        mRenderer = new ExternalTextureRenderer();
+        mTextureId = mRenderer.createTextureObject();
+        mTexture = new SurfaceTexture(mTextureId);
+        mTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                synchronized (mFrameLock) {
+                    mFrameAvailable = true;
+                    mFrameLock.notifyAll();
+                }
+            }
+        });
+        mSurface = new Surface(mTexture);
+        mRgba = ByteBuffer.allocateDirect(mThumbnailWidth * mThumbnailHeight * 4);
+        // Polling mode: the decoder only ever holds one frame, a callback thread buys nothing.
+        mDecoder = MediaCodecWrapper.fromVideoFormat(format, mSurface, false);
+        if (mDecoder == null) {
+            throw new IOException("No decoder for " + format.getString(MediaFormat.KEY_MIME));
+        }
+    }
+
+    private void releaseDecoder() {
+        if (mDecoder != null) {
+            mDecoder.stopAndRelease();
+            mDecoder = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mTexture != null) {
+            mTexture.setOnFrameAvailableListener(null);
+            mTexture.release();
+            mTexture = null;
+        }
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+        if (mEglCore != null) {
+            if (mEglSurface != EGL14.EGL_NO_SURFACE) {
+                mEglCore.releaseSurface(mEglSurface);
+                mEglSurface = EGL14.EGL_NO_SURFACE;
+            }
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+}
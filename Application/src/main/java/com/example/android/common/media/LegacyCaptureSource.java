@@ -0,0 +1,230 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link CaptureSource} on the deprecated {@link Camera} API, the only one before API 21. Frames
+ * only go to a {@link SurfaceTexture}; a {@link android.media.MediaRecorder} records through
+ * {@link #unlock()} instead of an encoder surface.
+ */
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class LegacyCaptureSource implements CaptureSource {
+
+    private static final String TAG = "LegacyCaptureSource";
+
+    private final CameraCapabilityCache mCache;
+    private final int mFacing;
+
+    private Camera mCamera;
+    private Camera.Parameters mParameters;
+    private CameraCapabilities mCapabilities;
+    private boolean mUnlocked;
+    private Camera.PreviewCallback mFrameCallback;
+    private byte[][] mCallbackBuffers = new byte[0][];
+
+    /**
+     * @param facing {@link Camera.CameraInfo#CAMERA_FACING_BACK} or
+     * {@link Camera.CameraInfo#CAMERA_FACING_FRONT}.
+     */
+    public LegacyCaptureSource(CameraCapabilityCache cache, int facing) {
+        mCache = cache;
+        mFacing = facing;
+    }
+
+    /**
+     * Opens the first camera with the requested facing and applies the settings that don't
+     * depend on the recording, using cached capabilities when available.
+     */
+    @Override
+    public void open() throws IOException {
+        int cameraId = mCache.getCameraId(mFacing);
+        if (cameraId < 0) {
+            throw new IOException("No camera facing " + mFacing);
+        }
+        try {
+            mCamera = Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to open camera " + cameraId + ": " + e.getMessage());
+        }
+        mParameters = mCamera.getParameters();
+        mCapabilities = mCache.get(cameraId);
+        if (mCapabilities == null) {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+            mCapabilities = CameraCapabilities.fromParameters(cameraId, info, mParameters);
+            mCache.put(mCapabilities);
+        }
+
+        // dreaded auto-focus FOCUS_MODE_CONTINUOUS_VIDEO
+        if (mCapabilities.supportsFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+            mParameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+        }
+        // Lets the camera set itself up for video right away instead of when recording starts.
+        mParameters.setRecordingHint(true);
+        applyParameters();
+    }
+
+    @Override
+    public int getCameraId() {
+        return mCapabilities.cameraId;
+    }
+
+    @Override
+    public boolean supportsQuality(int quality) {
+        return mCapabilities.supportsQuality(quality);
+    }
+
+    @Override
+    public boolean supportsVideoSize(int width, int height) {
+        return mCapabilities.supportsPreviewSize(width, height);
+    }
+
+    @Override
+    public int getMaxZoom() {
+        return mCapabilities.smoothZoomSupported ? mCapabilities.getMaxZoom() : 0;
+    }
+
+    @Override
+    public int[] setFrameRateRange(int minFps, int maxFps) {
+        // Camera.Parameters counts frames per 1000 seconds.
+        List<int[]> supported = mParameters.getSupportedPreviewFpsRange();
+        if (supported == null || supported.isEmpty()) {
+            return null;
+        }
+        int[][] ranges = new int[supported.size()][];
+        for (int i = 0; i < ranges.length; i++) {
+            int[] range = supported.get(i);
+            ranges[i] = new int[] {range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000,
+                    range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000};
+        }
+        int index = CameraHelper.chooseFrameRateRange(ranges, minFps, maxFps);
+        int[] chosen = supported.get(index);
+        mParameters.setPreviewFpsRange(chosen[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                chosen[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        return ranges[index];
+    }
+
+    @Override
+    public void configure(SurfaceTexture texture, int width, int height, Surface encoder,
+                          Surface analysis) throws IOException {
+        if (encoder != null || analysis != null) {
+            throw new IllegalArgumentException("The legacy camera only renders into a texture");
+        }
+        mParameters.setPreviewSize(width, height);
+        applyParameters();
+        // Requires API level 11+, For backward compatibility use {@link setPreviewDisplay}
+        // with {@link SurfaceView}
+        mCamera.setPreviewTexture(texture);
+        applyFrameCallback();
+    }
+
+    /**
+     * Hands preview frames in the camera's default NV21 format to {@code callback}, starting
+     * with the next {@link #configure}, on the thread that opened the camera. Frames go into
+     * {@code bufferCount} buffers allocated once per preview size; the callback must return
+     * each one with {@link Camera#addCallbackBuffer(byte[])}, frames are skipped while none is
+     * free. Doesn't work while a {@link android.media.MediaRecorder} has the camera.
+     *
+     * @param callback The callback, or null to stop delivering frames.
+     */
+    public void setFrameCallback(Camera.PreviewCallback callback, int bufferCount) {
+        mFrameCallback = callback;
+        if (callback == null) {
+            mCallbackBuffers = new byte[0][];
+            if (mCamera != null) {
+                mCamera.setPreviewCallbackWithBuffer(null);
+            }
+        } else if (mCallbackBuffers.length != bufferCount) {
+            mCallbackBuffers = new byte[bufferCount][];
+        }
+    }
+
+    private void applyFrameCallback() {
+        // Clears the buffers queued for the previous preview size.
+        mCamera.setPreviewCallbackWithBuffer(null);
+        if (mFrameCallback == null) {
+            return;
+        }
+        Camera.Size size = mParameters.getPreviewSize();
+        int bytes = size.width * size.height
+                * ImageFormat.getBitsPerPixel(mParameters.getPreviewFormat()) / 8;
+        for (int i = 0; i < mCallbackBuffers.length; i++) {
+            if (mCallbackBuffers[i] == null || mCallbackBuffers[i].length != bytes) {
+                mCallbackBuffers[i] = new byte[bytes];
+            }
+            mCamera.addCallbackBuffer(mCallbackBuffers[i]);
+        }
+        mCamera.setPreviewCallbackWithBuffer(mFrameCallback);
+    }
+
+    @Override
+    public boolean supportsSurfaceOutputs() {
+        return false;
+    }
+
+    @Override
+    public void start() {
+        if (!mUnlocked) {
+            mCamera.startPreview();
+        }
+    }
+
+    /**
+     * Hands the camera over to a {@link android.media.MediaRecorder}, which then starts and
+     * stops the preview itself. Taken back by {@link #stop()}.
+     *
+     * @return the camera to pass to {@link android.media.MediaRecorder#setCamera(Camera)}.
+     */
+    public Camera unlock() {
+        mCamera.unlock();
+        mUnlocked = true;
+        return mCamera;
+    }
+
+    @Override
+    public void setZoom(int zoom) {
+        if (mCapabilities.smoothZoomSupported) {
+            mCamera.startSmoothZoom(Math.min(zoom, mCapabilities.getMaxZoom()));
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mUnlocked) {
+            mCamera.lock(); // take camera access back from MediaRecorder
+            mUnlocked = false;
+        }
+        mCamera.stopPreview();
+    }
+
+    @Override
+    public void release() {
+        if (mCamera != null) {
+            if (mUnlocked) {
+                mCamera.lock();
+                mUnlocked = false;
+            }
+            // release the camera for other applications
+            mCamera.release();
+            mCamera = null;
+            mParameters = null;
+        }
+    }
+
+    private void applyParameters() {
+        try {
+            mCamera.setParameters(mParameters);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to apply camera settings: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link SampleSink} streaming a recording live as HLS: samples are packaged by a
+ * {@link FragmentedMp4Sink} into short fMP4 segments, which a sender thread uploads together
+ * with a rolling playlist through an {@link Uploader}, by default HTTP {@code PUT} requests to
+ * any server that can store and serve the files.
+ *
+ * The encoder never waits for the network. Segments wait in a bounded send queue; once it is
+ * half full, non-reference video frames, which no other frame is predicted from, are dropped,
+ * and once it is full every sample is dropped until the queue drained and the next video key
+ * frame arrives.
+ */
+public class LiveStreamSink implements SampleSink {
+
+    private static final String TAG = "LiveStreamSink";
+
+    /** Segment duration used when none is given; segments start on video key frames. */
+    public static final long DEFAULT_SEGMENT_DURATION_US = 1000000;
+
+    public static final String PLAYLIST_NAME = "live.m3u8";
+    static final String INIT_SEGMENT_NAME = "init.mp4";
+
+    // Attempts at uploading a segment before it is left out of the playlist.
+    private static final int MAX_ATTEMPTS = 2;
+    // How long stop() lets the sender upload what is left.
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    /**
+     * Stores the files of the stream where viewers can fetch them. Called on the sender thread
+     * only.
+     */
+    public interface Uploader {
+        void put(String name, byte[] data, int length, String contentType) throws IOException;
+
+        /** Removes a segment that left the playlist, best effort. */
+        void delete(String name) throws IOException;
+    }
+
+    /**
+     * Notifications about dropped samples, called on the thread writing samples to us.
+     */
+    public interface Listener {
+        /**
+         * Samples are being dropped; streaming resumes with the next key frame, so the encoder
+         * should be asked for one now.
+         */
+        void onKeyFrameNeeded();
+    }
+
+    /**
+     * Snapshot of the stream, see {@link #getStats()}.
+     */
+    public static class Stats {
+        public final long segmentsSent;
+        public final long segmentsFailed;
+        public final long bytesSent;
+        /** Bytes of segments waiting for the sender, including the one being uploaded. */
+        public final int queuedBytes;
+        /** Non-reference frames dropped because the queue was half full. */
+        public final long droppedNonReference;
+        /** Samples dropped because the queue was full. */
+        public final long droppedSamples;
+        public final long averageUploadMs;
+
+        Stats(long segmentsSent, long segmentsFailed, long bytesSent, int queuedBytes,
+              long droppedNonReference, long droppedSamples, long averageUploadMs) {
+            this.segmentsSent = segmentsSent;
+            this.segmentsFailed = segmentsFailed;
+            this.bytesSent = bytesSent;
+            this.queuedBytes = queuedBytes;
+            this.droppedNonReference = droppedNonReference;
+            this.droppedSamples = droppedSamples;
+            this.averageUploadMs = averageUploadMs;
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + segmentsSent + " segments (" + bytesSent + " bytes, avg "
+                    + averageUploadMs + " ms), failed " + segmentsFailed + ", queued "
+                    + queuedBytes + " bytes, dropped " + droppedNonReference
+                    + " non-reference frames and " + droppedSamples + " samples";
+        }
+    }
+
+    /**
+     * Uploads with HTTP {@code PUT} and {@code DELETE} requests relative to a base URL.
+     */
+    public static class HttpUploader implements Uploader {
+
+        private static final int TIMEOUT_MS = 5000;
+
+        private final URL mBase;
+
+        /**
+         * @param baseUrl Directory of the stream, e.g. {@code http://10.0.2.2:8080/live/}.
+         */
+        public HttpUploader(String baseUrl) throws IOException {
+            mBase = new URL(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+        }
+
+        @Override
+        public void put(String name, byte[] data, int length, String contentType)
+                throws IOException {
+            HttpURLConnection connection = open(name, "PUT");
+            try {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+                connection.setRequestProperty("Content-Type", contentType);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(data, 0, length);
+                } finally {
+                    out.close();
+                }
+                checkResponse(connection, name);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void delete(String name) throws IOException {
+            HttpURLConnection connection = open(name, "DELETE");
+            try {
+                checkResponse(connection, name);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private HttpURLConnection open(String name, String method) throws IOException {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(mBase, name).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setUseCaches(false);
+            return connection;
+        }
+
+        private static void checkResponse(HttpURLConnection connection, String name)
+                throws IOException {
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("HTTP " + code + " for " + name);
+            }
+        }
+    }
+
+    private static class Segment {
+        final String name;
+        final byte[] data;
+        final long durationUs;
+        // Set on the segment queued by stop(), which carries no data.
+        final boolean end;
+
+        Segment(String name, byte[] data, long durationUs, boolean end) {
+            this.name = name;
+            this.data = data;
+            this.durationUs = durationUs;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Collects what the {@link FragmentedMp4Sink} writes; each fragment becomes a segment.
+     */
+    private static class CaptureChannel implements WritableByteChannel {
+        private byte[] mData = new byte[256 * 1024];
+        private int mSize;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            if (mSize + length > mData.length) {
+                byte[] grown = new byte[Math.max(mData.length * 2, mSize + length)];
+                System.arraycopy(mData, 0, grown, 0, mSize);
+                mData = grown;
+            }
+            src.get(mData, mSize, length);
+            mSize += length;
+            return length;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        byte[] take() {
+            byte[] data = new byte[mSize];
+            System.arraycopy(mData, 0, data, 0, mSize);
+            mSize = 0;
+            return data;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Uploader mUploader;
+    private final int mMaxQueuedBytes;
+    private final int mPlaylistSize;
+    private final CaptureChannel mCapture = new CaptureChannel();
+    private final FragmentedMp4Sink mPackager;
+    private Listener mListener;
+    private int mVideoTrack = -1;
+
+    // Encoder side state.
+    private int mSequence;
+    private long mSegmentStartUs = -1;
+    // Last video sample written, and the time since the one before, taken as its duration.
+    private long mLastPtsUs = -1;
+    private long mLastDurationUs;
+    private boolean mDropping;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final ArrayDeque<Segment> mQueue = new ArrayDeque<Segment>();
+    private int mQueuedBytes;
+    private boolean mAbandoned;
+    private Thread mSenderThread;
+
+    // Sender side state.
+    private final ArrayDeque<Segment> mPlaylist = new ArrayDeque<Segment>();
+    // Segments of mPlaylist following a segment that couldn't be uploaded.
+    private final ArrayDeque<String> mDiscontinuities = new ArrayDeque<String>();
+    private Segment mInitSegment;
+    private boolean mInitSent;
+    private boolean mDiscontinuity;
+    private int mFirstSequence;
+    private long mMaxDurationUs;
+
+    // Stats, guarded by mLock.
+    private long mSegmentsSent;
+    private long mSegmentsFailed;
+    private long mBytesSent;
+    private long mUploadNs;
+    private long mDroppedNonReference;
+    private long mDroppedSamples;
+
+    /**
+     * @param uploader Destination of the segments and the playlist.
+     * @param segmentDurationUs Minimum duration of a segment, see
+     * {@link FragmentedMp4Sink#FragmentedMp4Sink(WritableByteChannel, long)}.
+     * @param maxQueuedBytes Segment bytes that may wait for the sender before samples are
+     * dropped. A few seconds of the stream's bit rate is a good start.
+     * @param playlistSize Number of segments listed by the rolling playlist.
+     */
+    public LiveStreamSink(Uploader uploader, long segmentDurationUs, int maxQueuedBytes,
+            int playlistSize) {
+        mUploader = uploader;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mPlaylistSize = playlistSize;
+        mPackager = new FragmentedMp4Sink(mCapture, segmentDurationUs);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int index = mPackager.addTrack(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = index;
+        }
+        return index;
+    }
+
+    /**
+     * Queues the initialization segment and starts the sender thread.
+     */
+    @Override
+    public void start() throws IOException {
+        mPackager.start();
+        enqueue(new Segment(INIT_SEGMENT_NAME, mCapture.take(), 0, false));
+        mSenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "LiveStreamSender");
+        mSenderThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            return;
+        }
+        boolean isVideo = trackIndex == mVideoTrack;
+        boolean isKeyFrame = isVideo && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        int queued;
+        mLock.lock();
+        try {
+            queued = mQueuedBytes;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (mDropping && (!isKeyFrame || queued >= mMaxQueuedBytes)) {
+            countDropped(false);
+            return;
+        }
+        mDropping = false;
+        if (queued >= mMaxQueuedBytes) {
+            countDropped(false);
+            if (mVideoTrack >= 0) {
+                mDropping = true;
+                if (mListener != null) {
+                    mListener.onKeyFrameNeeded();
+                }
+            }
+            return;
+        }
+        if (isVideo && !isKeyFrame && queued >= mMaxQueuedBytes / 2
+                && isNonReference(buffer, info)) {
+            countDropped(true);
+            return;
+        }
+
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = info.presentationTimeUs;
+        }
+        mPackager.writeSampleData(trackIndex, buffer, info);
+        if (mCapture.size() > 0) {
+            // The sample started a new fragment, the previous one is complete.
+            queueSegment(info.presentationTimeUs);
+        }
+        if (isVideo || mVideoTrack < 0) {
+            if (mLastPtsUs >= 0 && info.presentationTimeUs > mLastPtsUs) {
+                mLastDurationUs = info.presentationTimeUs - mLastPtsUs;
+            }
+            mLastPtsUs = info.presentationTimeUs;
+        }
+    }
+
+    /**
+     * Queues the last segment and ends the playlist, then lets the sender upload what is left
+     * for a few seconds at most.
+     */
+    @Override
+    public void stop() throws IOException {
+        try {
+            mPackager.stop();
+            if (mCapture.size() > 0) {
+                queueSegment(mLastPtsUs + mLastDurationUs);
+            }
+        } finally {
+            enqueue(new Segment(null, null, 0, true));
+            if (mSenderThread != null) {
+                try {
+                    mSenderThread.join(STOP_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mSenderThread.isAlive()) {
+                    Log.w(TAG, "Stream didn't finish uploading in time, abandoned");
+                    mLock.lock();
+                    try {
+                        mAbandoned = true;
+                    } finally {
+                        mLock.unlock();
+                    }
+                }
+                mSenderThread = null;
+            }
+        }
+    }
+
+    public Stats getStats() {
+        mLock.lock();
+        try {
+            return new Stats(mSegmentsSent, mSegmentsFailed, mBytesSent, mQueuedBytes,
+                    mDroppedNonReference, mDroppedSamples,
+                    mSegmentsSent == 0 ? 0 : mUploadNs / mSegmentsSent / 1000000);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void countDropped(boolean nonReference) {
+        mLock.lock();
+        try {
+            if (nonReference) {
+                mDroppedNonReference++;
+            } else {
+                mDroppedSamples++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void queueSegment(long endUs) {
+        String name = String.format(Locale.US, "segment%05d.m4s", mSequence++);
+        long durationUs = Math.max(endUs - mSegmentStartUs, 1);
+        enqueue(new Segment(name, mCapture.take(), durationUs, false));
+        mSegmentStartUs = endUs;
+    }
+
+    private void enqueue(Segment segment) {
+        mLock.lock();
+        try {
+            mQueue.addLast(segment);
+            if (segment.data != null) {
+                mQueuedBytes += segment.data.length;
+            }
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Segment segment;
+            mLock.lock();
+            try {
+                while (mQueue.isEmpty()) {
+                    mNotEmpty.awaitUninterruptibly();
+                }
+                segment = mQueue.peekFirst();
+                if (mAbandoned) {
+                    return;
+                }
+            } finally {
+                mLock.unlock();
+            }
+
+            if (segment.end) {
+                uploadPlaylist(true);
+                return;
+            }
+            if (segment.name.equals(INIT_SEGMENT_NAME)) {
+                mInitSegment = segment;
+                mInitSent = upload(segment, "video/mp4");
+            } else {
+                send(segment);
+            }
+
+            mLock.lock();
+            try {
+                mQueue.removeFirst();
+                mQueuedBytes -= segment.data.length;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    private void send(Segment segment) {
+        if (!mInitSent) {
+            // Nothing is playable without it.
+            mInitSent = upload(mInitSegment, "video/mp4");
+        }
+        if (!upload(segment, "video/iso.segment")) {
+            mDiscontinuity = true;
+            return;
+        }
+        mPlaylist.addLast(segment);
+        if (mDiscontinuity) {
+            mDiscontinuities.addLast(segment.name);
+            mDiscontinuity = false;
+        }
+        mMaxDurationUs = Math.max(mMaxDurationUs, segment.durationUs);
+        Segment removed = null;
+        if (mPlaylist.size() > mPlaylistSize) {
+            removed = mPlaylist.removeFirst();
+            mFirstSequence++;
+            if (removed.name.equals(mDiscontinuities.peekFirst())) {
+                mDiscontinuities.removeFirst();
+            }
+        }
+        uploadPlaylist(false);
+        if (removed != null) {
+            try {
+                mUploader.delete(removed.name);
+            } catch (IOException e) {
+                Log.d(TAG, "Couldn't delete " + removed.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean upload(Segment segment, String contentType) {
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                mUploader.put(segment.name, segment.data, segment.data.length, contentType);
+                mLock.lock();
+                try {
+                    mSegmentsSent++;
+                    mBytesSent += segment.data.length;
+                    mUploadNs += System.nanoTime() - start;
+                } finally {
+                    mLock.unlock();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Upload of " + segment.name + " failed (attempt " + attempt + "): "
+                        + e.getMessage());
+                if (attempt >= MAX_ATTEMPTS) {
+                    mLock.lock();
+                    try {
+                        mSegmentsFailed++;
+                    } finally {
+                        mLock.unlock();
+                    }
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void uploadPlaylist(boolean ended) {
+        StringBuilder sb = new StringBuilder(256 + 48 * mPlaylist.size());
+        sb.append("#EXTM3U\n#EXT-X-VERSION:7\n")
+                .append("#EXT-X-TARGETDURATION:")
+                .append(Math.max(1, (mMaxDurationUs + 999999) / 1000000)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(mFirstSequence).append('\n')
+                .append("#EXT-X-MAP:URI=\"").append(INIT_SEGMENT_NAME).append("\"\n");
+        for (Segment segment : mPlaylist) {
+            if (mDiscontinuities.contains(segment.name)) {
+                sb.append("#EXT-X-DISCONTINUITY\n");
+            }
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1e6))
+                    .append(segment.name).append('\n');
+        }
+        if (ended) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        byte[] data;
+        try {
+            data = sb.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        try {
+            mUploader.put(PLAYLIST_NAME, data, data.length, "application/vnd.apple.mpegurl");
+        } catch (IOException e) {
+            // The next segment uploads it again.
+            Log.w(TAG, "Playlist upload failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether an H.264 access unit in Annex-B form is a non-reference picture, i.e.
+     * the {@code nal_ref_idc} of its first slice is 0 and no other frame depends on it.
+     */
+    static boolean isNonReference(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        int end = info.offset + info.size;
+        int zeros = 0;
+        for (int i = info.offset; i < end - 1; i++) {
+            byte b = buffer.get(i);
+            if (b == 0) {
+                zeros++;
+                continue;
+            }
+            if (b == 1 && zeros >= 2) {
+                int header = buffer.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                if (type == 1 || type == 5) {
+                    return (header & 0x60) == 0;
+                }
+            }
+            zeros = 0;
+        }
+        return false;
+    }
+}
@@ -16,15 +16,19 @@
 
 package com.example.android.common.media;
 
+import android.annotation.TargetApi;
 import android.media.*;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Simplifies the MediaCodec interface by wrapping around the buffer processing operations.
@@ -52,9 +56,17 @@ public class MediaCodecWrapper {
     }
 
     /**
-     * The {@link MediaCodec} that is managed by this class.
+     * The codec that is managed by this class, a {@link MediaCodec} unless created with
+     * {@link #fromCodec}.
      */
-    private MediaCodec mDecoder;
+    private Codec mCodec;
+
+    // True if mCodec encodes. Encoded output is never rendered, it is handed to the
+    // OutputSampleListener instead.
+    private boolean mIsEncoder;
+
+    // Input surface of a video encoder created by fromEncoderFormat(), null otherwise.
+    private Surface mInputSurface;
 
     // References to the internal buffers managed by the codec. The codec
     // refers to these buffers by index, never by reference so it's up to us
@@ -64,37 +76,204 @@ public class MediaCodecWrapper {
 
     // Indices of the input buffers that are currently available for writing. We'll
     // consume these in the order they were dequeued from the codec.
-    private Queue<Integer> mAvailableInputBuffers;
+    private IntRingQueue mAvailableInputBuffers;
 
     // Indices of the output buffers that currently hold valid data, in the order
     // they were produced by the codec.
-    private Queue<Integer> mAvailableOutputBuffers;
+    private IntRingQueue mAvailableOutputBuffers;
 
-    // Information about each output buffer, by index. Each entry in this array
-    // is valid if and only if its index is currently contained in mAvailableOutputBuffers.
+    // Information about each output buffer, by index. Entries are preallocated and reused, each
+    // one is valid if and only if its index is currently contained in mAvailableOutputBuffers.
     private MediaCodec.BufferInfo[] mOutputBufferInfo;
 
+    // Receives the metadata of each dequeued output buffer in polling mode before it is copied
+    // into mOutputBufferInfo.
+    private final MediaCodec.BufferInfo mDequeueInfo = new MediaCodec.BufferInfo();
+
+    // Set while a thread waits in the codec for an input or output buffer in polling mode,
+    // outside mLock. MediaCodec rejects a dequeue while another one of the same kind is
+    // pending, so meanwhile nobody else dequeues that kind; the waiting thread publishes what
+    // it got and wakes the others. Guarded by mLock.
+    private boolean mAwaitingInput;
+    private boolean mAwaitingOutput;
+
+    // Receives the metadata of the output buffer awaitSample() waits for in polling mode. Only
+    // used by the thread that set mAwaitingOutput.
+    private final MediaCodec.BufferInfo mAwaitInfo = new MediaCodec.BufferInfo();
+
     // An (optional) stream that will receive decoded data.
     private OutputSampleListener mOutputSampleListener;
 
-    private MediaCodecWrapper(MediaCodec codec) {
-        mDecoder = codec;
-        codec.start();
-        mInputBuffers = codec.getInputBuffers();
-        mOutputBuffers = codec.getOutputBuffers();
-        mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-        mAvailableInputBuffers = new ArrayDeque<Integer>(mOutputBuffers.length);
-        mAvailableOutputBuffers = new ArrayDeque<Integer>(mInputBuffers.length);
+    // Guards the buffer queues above. In asynchronous mode they are filled from the codec
+    // callback thread and drained from the client thread.
+    private final Object mLock = new Object();
+
+    // Input buffer indices taken by one writeSamples() call, reused across calls.
+    private int[] mBatchIndices = new int[0];
+
+    // Thread delivering {@link MediaCodec.Callback} events, null in polling mode.
+    private HandlerThread mCallbackThread;
+
+    // First error reported by the codec in asynchronous mode, rethrown to the client.
+    private MediaCodec.CodecException mCodecError;
+
+    // Number of buffers assumed for the bookkeeping arrays in asynchronous mode, where the
+    // codec never tells us its buffer count up front. Arrays grow if the codec uses more.
+    private static final int ASYNC_INITIAL_BUFFER_COUNT = 16;
+
+    // Longest single wait in the codec in polling mode, which is as long as flush() may have to
+    // wait for it.
+    private static final long DEQUEUE_SLICE_US = 10000;
+
+    private MediaCodecWrapper(Codec codec, HandlerThread callbackThread, boolean encoder) {
+        mCodec = codec;
+        mCallbackThread = callbackThread;
+        mIsEncoder = encoder;
+        if (callbackThread != null) {
+            // Must happen before the codec is configured.
+            setCodecCallback();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setCodecCallback() {
+        mCodec.setCallback(new CodecCallback());
+    }
+
+    /**
+     * Starts the configured codec and sets up the buffer bookkeeping.
+     */
+    private void start() {
+        Codec codec = mCodec;
+        if (mCallbackThread == null) {
+            codec.start();
+            mInputBuffers = codec.getInputBuffers();
+            mOutputBuffers = codec.getOutputBuffers();
+            mOutputBufferInfo = allocateBufferInfo(null, mOutputBuffers.length);
+            mAvailableInputBuffers = new IntRingQueue(mInputBuffers.length);
+            mAvailableOutputBuffers = new IntRingQueue(mOutputBuffers.length);
+        } else {
+            // Buffers are fetched by index with getInputBuffer()/getOutputBuffer() instead.
+            // Callbacks may fire as soon as the codec starts, so set up everything first.
+            mOutputBufferInfo = allocateBufferInfo(null, ASYNC_INITIAL_BUFFER_COUNT);
+            mAvailableInputBuffers = new IntRingQueue(ASYNC_INITIAL_BUFFER_COUNT);
+            mAvailableOutputBuffers = new IntRingQueue(ASYNC_INITIAL_BUFFER_COUNT);
+            codec.start();
+        }
+    }
+
+    /**
+     * Returns a pool of at least {@code count} {@link MediaCodec.BufferInfo} objects, reusing
+     * the entries of {@code pool} so that the steady state never allocates.
+     */
+    private static MediaCodec.BufferInfo[] allocateBufferInfo(MediaCodec.BufferInfo[] pool,
+            int count) {
+        if (pool != null && pool.length >= count) {
+            return pool;
+        }
+        int reused = pool == null ? 0 : pool.length;
+        MediaCodec.BufferInfo[] result = pool == null
+                ? new MediaCodec.BufferInfo[count] : Arrays.copyOf(pool, count);
+        for (int i = reused; i < count; i++) {
+            result[i] = new MediaCodec.BufferInfo();
+        }
+        return result;
     }
 
     /**
      * Releases resources and ends the encoding/decoding session.
      */
     public void stopAndRelease() {
-        mDecoder.stop();
-        mDecoder.release();
-        mDecoder = null;
+        mCodec.stop();
+        mCodec.release();
+        mCodec = null;
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
         mHandler = null;
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+    }
+
+    /**
+     * @return True, if the codec reports its buffers through {@link MediaCodec.Callback}
+     * instead of being polled on every {@link #peekSample} and {@link #popSample}.
+     */
+    public boolean isAsync() {
+        return mCallbackThread != null;
+    }
+
+    /**
+     * @return the {@link Surface} that feeds a video encoder created by
+     * {@link #fromEncoderFormat(MediaFormat)}, or null for decoders and audio encoders.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * Signals end-of-stream on the input {@link Surface} of a video encoder. The encoder will
+     * emit a sample flagged with {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM} once it has
+     * drained.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    /**
+     * Asks a video encoder to make the next frame a sync (key) frame, e.g. to cut a file there.
+     * Has no effect before API 19, where callers have to wait for the next periodic key frame.
+     */
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            setParameterApi19(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+    }
+
+    /**
+     * Changes the target bitrate of a running video encoder, in bits per second. Only supported
+     * from API 19 on; ignored on older devices.
+     */
+    public void setVideoBitRate(int bitRate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            setParameterApi19(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void setParameterApi19(String key, int value) {
+        Bundle params = new Bundle();
+        params.putInt(key, value);
+        mCodec.setParameters(params);
+    }
+
+    /**
+     * @return the current output format of the codec. For encoders this carries the codec
+     * specific data (e.g. SPS/PPS) needed by a muxer and is valid once the first sample is out.
+     */
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    /**
+     * Getter for the registered {@link OutputSampleListener}
+     */
+    public OutputSampleListener getOutputSampleListener() {
+        return mOutputSampleListener;
+    }
+
+    /**
+     * Registers a listener notified from {@link #popSample(boolean)} with every sample that is
+     * rendered or, for encoders, with every encoded sample.
+     *
+     * @param outputSampleListener the listener for callback.
+     */
+    public void setOutputSampleListener(OutputSampleListener outputSampleListener) {
+        mOutputSampleListener = outputSampleListener;
     }
 
     /**
@@ -132,14 +311,33 @@ public class MediaCodecWrapper {
      * The codec is created using the encapsulated information in the
      * {@link MediaFormat} object.
      *
+     * The codec is polled, see {@link #fromVideoFormat(MediaFormat, Surface, boolean)} for
+     * asynchronous mode.
+     *
      * @param trackFormat The format of the media object to be decoded.
      * @param surface Surface to render the decoded frames.
      * @return
      */
     public static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
             Surface surface) throws IOException {
+        return fromVideoFormat(trackFormat, surface, false);
+    }
+
+    /**
+     * Constructs the {@link MediaCodecWrapper} wrapper object around the video codec.
+     *
+     * @param trackFormat The format of the media object to be decoded.
+     * @param surface Surface to render the decoded frames.
+     * @param preferAsync True to receive buffers through {@link MediaCodec.Callback} on a
+     * dedicated thread when the platform supports it (API 21+). Otherwise, or on older devices,
+     * the codec is polled with zero timeouts whenever a sample is peeked, popped or written.
+     * @return
+     */
+    public static MediaCodecWrapper fromVideoFormat(final MediaFormat trackFormat,
+            Surface surface, boolean preferAsync) throws IOException {
         MediaCodecWrapper result = null;
         MediaCodec videoCodec = null;
+        HandlerThread callbackThread = null;
 
         // BEGIN_INCLUDE(create_codec)
         final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
@@ -147,21 +345,210 @@ public class MediaCodecWrapper {
         // Check to see if this is actually a video mime type. If it is, then create
         // a codec that can decode this mime type.
         if (mimeType.contains("video/")) {
-            videoCodec = MediaCodec.createDecoderByType(mimeType);
-            videoCodec.configure(trackFormat, surface, null,  0);
-
+            if (preferAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                callbackThread = startCallbackThread();
+                videoCodec = createCodecOnThread(callbackThread, mimeType, false);
+            } else {
+                videoCodec = MediaCodec.createDecoderByType(mimeType);
+            }
         }
 
         // If codec creation was successful, then create a wrapper object around the
         // newly created codec.
         if (videoCodec != null) {
-            result = new MediaCodecWrapper(videoCodec);
+            result = new MediaCodecWrapper(new PlatformCodec(videoCodec), callbackThread, false);
+            videoCodec.configure(trackFormat, surface, null,  0);
+            result.start();
         }
         // END_INCLUDE(create_codec)
 
         return result;
     }
 
+    /**
+     * Creates a {@link MediaFormat} describing a video encoder fed from a {@link Surface}.
+     *
+     * @param mimeType Output mime type, e.g. {@link MediaFormat#MIMETYPE_VIDEO_AVC}.
+     * @param width Width of the encoded frames.
+     * @param height Height of the encoded frames.
+     * @param bitRate Target bit rate in bits per second.
+     * @param frameRate Expected frame rate of the input.
+     * @param iFrameInterval Seconds between key frames. Shorter intervals make cutting and
+     * seeking cheaper at the cost of compression.
+     * @param bitrateMode One of the {@code MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*}
+     * constants, or -1 for the codec default. Honoured from API 21.
+     * @param profile One of the {@code MediaCodecInfo.CodecProfileLevel} profiles, or -1 for the
+     * codec default. Honoured from API 21; when set, {@code level} should be set as well.
+     * @param level The matching {@code MediaCodecInfo.CodecProfileLevel} level, or -1.
+     * Honoured from API 23.
+     * @return the encoder format, ready for {@link #fromEncoderFormat(MediaFormat)}.
+     */
+    public static MediaFormat createVideoEncoderFormat(String mimeType, int width, int height,
+            int bitRate, int frameRate, int iFrameInterval, int bitrateMode, int profile,
+            int level) {
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        // Older platforms simply ignore keys they don't know.
+        if (bitrateMode >= 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        }
+        if (profile >= 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile);
+        }
+        if (level >= 0) {
+            format.setInteger(MediaFormat.KEY_LEVEL, level);
+        }
+        return format;
+    }
+
+    /**
+     * Creates a {@link MediaFormat} describing an AAC encoder fed with 16 bit PCM.
+     *
+     * @param sampleRate Sample rate of the input, in Hz.
+     * @param channelCount Number of interleaved input channels.
+     * @param bitRate Target bit rate in bits per second.
+     * @param aacProfile One of the {@code MediaCodecInfo.CodecProfileLevel.AACObject*}
+     * constants, e.g. {@code AACObjectLC}.
+     * @return the encoder format, ready for {@link #fromEncoderFormat(MediaFormat)}.
+     */
+    public static MediaFormat createAudioEncoderFormat(int sampleRate, int channelCount,
+            int bitRate, int aacProfile) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, aacProfile);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        return format;
+    }
+
+    /**
+     * Constructs the {@link MediaCodecWrapper} wrapper object around an encoder. On API 21+ the
+     * codec runs in asynchronous mode, see {@link #fromEncoderFormat(MediaFormat, boolean)}.
+     *
+     * @param format The output format, see {@link #createVideoEncoderFormat} and
+     * {@link #createAudioEncoderFormat}.
+     * @return
+     */
+    public static MediaCodecWrapper fromEncoderFormat(final MediaFormat format)
+            throws IOException {
+        return fromEncoderFormat(format, true);
+    }
+
+    /**
+     * Constructs the {@link MediaCodecWrapper} wrapper object around an encoder.
+     *
+     * A video encoder takes its input from a {@link Surface}, available through
+     * {@link #getInputSurface()}; frames rendered to it are encoded without passing through
+     * the Java heap. An audio encoder takes PCM through {@link #writeSample}.
+     *
+     * Encoded samples are retrieved with {@link #peekSample} and {@link #popSample}, the
+     * latter passing them to the {@link OutputSampleListener}.
+     *
+     * @param format The output format, see {@link #createVideoEncoderFormat} and
+     * {@link #createAudioEncoderFormat}.
+     * @param preferAsync See {@link #fromVideoFormat(MediaFormat, Surface, boolean)}.
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public static MediaCodecWrapper fromEncoderFormat(final MediaFormat format,
+            boolean preferAsync) throws IOException {
+        final String mimeType = format.getString(MediaFormat.KEY_MIME);
+        final boolean isVideo = mimeType.startsWith("video/");
+        MediaCodec codec;
+        HandlerThread callbackThread = null;
+
+        if (preferAsync && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            callbackThread = startCallbackThread();
+            codec = createCodecOnThread(callbackThread, mimeType, true);
+        } else {
+            codec = MediaCodec.createEncoderByType(mimeType);
+        }
+
+        MediaCodecWrapper result =
+                new MediaCodecWrapper(new PlatformCodec(codec), callbackThread, true);
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (isVideo) {
+                // Has to be requested between configure() and start().
+                result.mInputSurface = codec.createInputSurface();
+            }
+            result.start();
+        } catch (RuntimeException e) {
+            // Never started, so there is nothing to stop.
+            codec.release();
+            if (callbackThread != null) {
+                callbackThread.quit();
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Wraps a configured codec in polling mode and starts it, e.g. a fake {@link Codec} to
+     * test the buffer bookkeeping without a device codec.
+     */
+    static MediaCodecWrapper fromCodec(Codec codec, boolean encoder) {
+        MediaCodecWrapper result = new MediaCodecWrapper(codec, null, encoder);
+        result.start();
+        return result;
+    }
+
+    private static HandlerThread startCallbackThread() {
+        HandlerThread thread = new HandlerThread("MediaCodecWrapper");
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates the codec on the looper of {@code thread}. Before API 23
+     * {@link MediaCodec#setCallback(MediaCodec.Callback)} delivers events on the looper of the
+     * thread that created the codec, so this is how we get them off the caller's thread.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static MediaCodec createCodecOnThread(HandlerThread thread, final String mimeType,
+            final boolean encoder) throws IOException {
+        final MediaCodec[] codec = new MediaCodec[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch created = new CountDownLatch(1);
+
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    codec[0] = encoder
+                            ? MediaCodec.createEncoderByType(mimeType)
+                            : MediaCodec.createDecoderByType(mimeType);
+                } catch (IOException e) {
+                    error[0] = e;
+                } finally {
+                    created.countDown();
+                }
+            }
+        });
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                created.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) {
+            thread.quit();
+            throw error[0];
+        }
+        return codec[0];
+    }
+
 
     /**
      * Write a media sample to the decoder.
@@ -181,7 +568,11 @@ public class MediaCodecWrapper {
      * @param flags Flags to pass to the decoder. See {@link MediaCodec#queueInputBuffer(int,
      * int, int, long, int)}
      *
+     * @return True, if the sample was queued; false if it was empty or no input buffer was
+     * free. See {@link #writeSamples} to write several samples at once.
+     *
      * @throws MediaCodec.CryptoException
+     * @throws WriteException if the sample is larger than the input buffer.
      */
     public boolean writeSample(final ByteBuffer input,
             final MediaCodec.CryptoInfo crypto,
@@ -189,36 +580,168 @@ public class MediaCodecWrapper {
             final int flags) throws MediaCodec.CryptoException, WriteException {
         boolean result = false;
         int size = input.remaining();
+        int index;
 
         // check if we have dequed input buffers available from the codec
-        if (size > 0 &&  !mAvailableInputBuffers.isEmpty()) {
-            int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
-
-            // we can't write our sample to a lesser capacity input buffer.
-            if (size > buffer.capacity()) {
-                throw new MediaCodecWrapper.WriteException(String.format(
-                        "Insufficient capacity in MediaCodec buffer: "
-                            + "tried to write %d, buffer capacity is %d.",
-                        input.remaining(),
-                        buffer.capacity()));
+        synchronized (mLock) {
+            checkCodecError();
+            if (size <= 0 || mAvailableInputBuffers.isEmpty()) {
+                return false;
             }
+            index = mAvailableInputBuffers.remove();
+        }
+        ByteBuffer buffer = getInputBuffer(index);
 
-            buffer.clear();
-            buffer.put(input);
-
-            // Submit the buffer to the codec for decoding. The presentationTimeUs
-            // indicates the position (play time) for the current sample.
-            if (crypto == null) {
-                mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
-            } else {
-                mDecoder.queueSecureInputBuffer(index, 0, crypto, presentationTimeUs, flags);
+        // we can't write our sample to a lesser capacity input buffer.
+        if (size > buffer.capacity()) {
+            synchronized (mLock) {
+                // Keep the buffer for the next sample.
+                mAvailableInputBuffers.addFirst(new int[] {index}, 0, 1);
             }
-            result = true;
+            throw new MediaCodecWrapper.WriteException(String.format(
+                    "Insufficient capacity in MediaCodec buffer: "
+                        + "tried to write %d, buffer capacity is %d.",
+                    input.remaining(),
+                    buffer.capacity()));
         }
+
+        buffer.clear();
+        buffer.put(input);
+
+        // Submit the buffer to the codec for decoding. The presentationTimeUs
+        // indicates the position (play time) for the current sample.
+        if (crypto == null) {
+            mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        } else {
+            mCodec.queueSecureInputBuffer(index, 0, crypto, presentationTimeUs, flags);
+        }
+        result = true;
         return result;
     }
 
+    /**
+     * Queues an empty buffer flagged {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM}, so a decoder
+     * outputs every frame it still holds, e.g. after being fed a single key frame. Call
+     * {@link #flush()} before writing further samples.
+     *
+     * @return True, if an input buffer was available.
+     */
+    public boolean writeEndOfStream(long presentationTimeUs) {
+        int index;
+        synchronized (mLock) {
+            checkCodecError();
+            if (mAvailableInputBuffers.isEmpty()) {
+                return false;
+            }
+            index = mAvailableInputBuffers.remove();
+        }
+        mCodec.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * Takes a free input buffer to be filled in place, e.g. by
+     * {@link android.media.AudioRecord#read(ByteBuffer, int)}, and then handed back with
+     * {@link #queueInputBuffer}. Saves the copy {@link #writeSample} makes.
+     *
+     * @return index of the buffer, see {@link #getInputBuffer(int)}, or -1 if none is free;
+     * see {@link #awaitInputBuffer}.
+     */
+    public int dequeueInputBuffer() {
+        synchronized (mLock) {
+            update();
+            if (mAvailableInputBuffers.isEmpty()) {
+                return -1;
+            }
+            return mAvailableInputBuffers.remove();
+        }
+    }
+
+    /**
+     * Queues an input buffer taken with {@link #dequeueInputBuffer()}.
+     *
+     * @param size Bytes of data, from the start of the buffer.
+     */
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    /**
+     * Writes as many of the given samples as there are free input buffers, in order, taking
+     * all the buffers the codec has released in one go instead of one call per sample.
+     *
+     * Samples that aren't accepted stay pending; write them again, starting at
+     * {@code offset} plus the returned count, once the codec has freed buffers (see
+     * {@link #awaitInputBuffer}).
+     *
+     * @param inputs One sample per buffer, set up for reading as for
+     * {@link #writeSample(ByteBuffer, MediaCodec.CryptoInfo, long, int)}. Empty samples without
+     * {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM} are skipped and count as accepted.
+     * @param presentationTimesUs Presentation time of each sample.
+     * @param flags Flags of each sample, or null for none.
+     * @param offset Index of the first sample to write.
+     * @param count Number of samples to write.
+     *
+     * @return the number of samples accepted, from 0 to {@code count}.
+     * @throws WriteException if a sample doesn't fit into an input buffer; the samples before
+     * it were queued, see {@link WriteException#getAcceptedSamples()}.
+     */
+    public int writeSamples(final ByteBuffer[] inputs, final long[] presentationTimesUs,
+            final int[] flags, final int offset, final int count) throws WriteException {
+        int[] indices;
+        int taken = 0;
+        synchronized (mLock) {
+            // In polling mode this collects every buffer the codec released.
+            update();
+            indices = mBatchIndices;
+            int available = Math.min(count, mAvailableInputBuffers.size());
+            if (indices.length < available) {
+                indices = mBatchIndices = new int[available];
+            }
+            while (taken < available) {
+                indices[taken++] = mAvailableInputBuffers.remove();
+            }
+        }
+
+        int used = 0;
+        int accepted = 0;
+        try {
+            while (accepted < count && used < taken) {
+                int sample = offset + accepted;
+                ByteBuffer input = inputs[sample];
+                int sampleFlags = flags == null ? 0 : flags[sample];
+                int size = input.remaining();
+                if (size == 0 && (sampleFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                    accepted++;
+                    continue;
+                }
+                int index = indices[used];
+                ByteBuffer buffer = getInputBuffer(index);
+                if (size > buffer.capacity()) {
+                    throw new WriteException(String.format(
+                            "Insufficient capacity in MediaCodec buffer: "
+                                + "tried to write %d, buffer capacity is %d.",
+                            size, buffer.capacity()), accepted);
+                }
+                buffer.clear();
+                buffer.put(input);
+                mCodec.queueInputBuffer(index, 0, size, presentationTimesUs[sample],
+                        sampleFlags);
+                used++;
+                accepted++;
+            }
+        } finally {
+            if (used < taken) {
+                // Hand back what we didn't fill, still ahead of anything released since.
+                synchronized (mLock) {
+                    mAvailableInputBuffers.addFirst(indices, used, taken - used);
+                }
+            }
+        }
+        return accepted;
+    }
+
     static MediaCodec.CryptoInfo cryptoInfo= new MediaCodec.CryptoInfo();
 
     /**
@@ -245,28 +768,35 @@ public class MediaCodecWrapper {
             int flags) {
         boolean result = false;
         boolean isEos = false;
+        int index;
 
-        if (!mAvailableInputBuffers.isEmpty()) {
-            int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
-
-            // reads the sample from the file using extractor into the buffer
-            int size = extractor.readSampleData(buffer, 0);
-            if (size <= 0) {
-                flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        synchronized (mLock) {
+            checkCodecError();
+            if (mAvailableInputBuffers.isEmpty()) {
+                return false;
             }
+            index = mAvailableInputBuffers.remove();
+        }
+        ByteBuffer buffer = getInputBuffer(index);
 
-            // Submit the buffer to the codec for decoding. The presentationTimeUs
-            // indicates the position (play time) for the current sample.
-            if (!isSecure) {
-                mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
-            } else {
-                extractor.getSampleCryptoInfo(cryptoInfo);
-                mDecoder.queueSecureInputBuffer(index, 0, cryptoInfo, presentationTimeUs, flags);
-            }
+        // reads the sample from the file using extractor into the buffer
+        int size = extractor.readSampleData(buffer, 0);
+        if (size <= 0) {
+            // readSampleData() returns -1 past the last sample, queue an empty buffer instead.
+            size = 0;
+            flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        }
 
-            result = true;
+        // Submit the buffer to the codec for decoding. The presentationTimeUs
+        // indicates the position (play time) for the current sample.
+        if (!isSecure) {
+            mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        } else {
+            extractor.getSampleCryptoInfo(cryptoInfo);
+            mCodec.queueSecureInputBuffer(index, 0, cryptoInfo, presentationTimeUs, flags);
         }
+
+        result = true;
         return result;
     }
 
@@ -279,21 +809,149 @@ public class MediaCodecWrapper {
      * @return True, if the peek was successful.
      */
     public boolean peekSample(MediaCodec.BufferInfo out_bufferInfo) {
-        // dequeue available buffers and synchronize our data structures with the codec.
-        update();
-        boolean result = false;
-        if (!mAvailableOutputBuffers.isEmpty()) {
-            int index = mAvailableOutputBuffers.peek();
-            MediaCodec.BufferInfo info = mOutputBufferInfo[index];
-            // metadata of the sample
-            out_bufferInfo.set(
-                    info.offset,
-                    info.size,
-                    info.presentationTimeUs,
-                    info.flags);
-            result = true;
+        synchronized (mLock) {
+            // dequeue available buffers and synchronize our data structures with the codec.
+            update();
+            boolean result = false;
+            if (!mAvailableOutputBuffers.isEmpty()) {
+                int index = mAvailableOutputBuffers.peek();
+                MediaCodec.BufferInfo info = mOutputBufferInfo[index];
+                // metadata of the sample
+                out_bufferInfo.set(
+                        info.offset,
+                        info.size,
+                        info.presentationTimeUs,
+                        info.flags);
+                result = true;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Blocks until an output sample is ready to be peeked or popped, or the timeout expires.
+     * Lets clients wait for the codec instead of spinning on {@link #peekSample}.
+     *
+     * @param timeoutMs Maximum time to wait, in milliseconds.
+     *
+     * @return True, if a sample is available.
+     */
+    public boolean awaitSample(long timeoutMs) {
+        if (mCallbackThread == null) {
+            return awaitSamplePolling(timeoutMs);
+        }
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutMs * 1000000;
+            long remaining = timeoutMs;
+            while (mAvailableOutputBuffers.isEmpty() && mCodecError == null && remaining > 0) {
+                waitLocked(remaining);
+                remaining = (deadline - System.nanoTime()) / 1000000;
+            }
+            update();
+            return !mAvailableOutputBuffers.isEmpty();
+        }
+    }
+
+    private boolean awaitSamplePolling(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        long remainingUs;
+        while (true) {
+            synchronized (mLock) {
+                update();
+                if (!mAvailableOutputBuffers.isEmpty()) {
+                    return true;
+                }
+                remainingUs = (deadline - System.nanoTime()) / 1000;
+                if (remainingUs <= 0) {
+                    return false;
+                }
+                if (mAwaitingOutput) {
+                    // Another thread waits in the codec and wakes us once it got something.
+                    waitLocked(Math.max(1, remainingUs / 1000));
+                    continue;
+                }
+                mAwaitingOutput = true;
+            }
+            // Let the codec block for us without holding mLock, so that other threads keep
+            // writing and popping samples meanwhile. Then publish what we got.
+            int index = MediaCodec.INFO_TRY_AGAIN_LATER;
+            try {
+                index = mCodec.dequeueOutputBuffer(mAwaitInfo,
+                        Math.min(remainingUs, DEQUEUE_SLICE_US));
+            } finally {
+                synchronized (mLock) {
+                    mAwaitingOutput = false;
+                    handleOutputIndex(index, mAwaitInfo);
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until an input buffer is free for {@link #writeSample}, or the timeout expires.
+     *
+     * @param timeoutMs Maximum time to wait, in milliseconds.
+     *
+     * @return True, if an input buffer is available.
+     */
+    public boolean awaitInputBuffer(long timeoutMs) {
+        if (mCallbackThread == null) {
+            return awaitInputBufferPolling(timeoutMs);
+        }
+        synchronized (mLock) {
+            long deadline = System.nanoTime() + timeoutMs * 1000000;
+            long remaining = timeoutMs;
+            while (mAvailableInputBuffers.isEmpty() && mCodecError == null && remaining > 0) {
+                waitLocked(remaining);
+                remaining = (deadline - System.nanoTime()) / 1000000;
+            }
+            update();
+            return !mAvailableInputBuffers.isEmpty();
+        }
+    }
+
+    private boolean awaitInputBufferPolling(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        long remainingUs;
+        while (true) {
+            synchronized (mLock) {
+                update();
+                if (!mAvailableInputBuffers.isEmpty()) {
+                    return true;
+                }
+                remainingUs = (deadline - System.nanoTime()) / 1000;
+                if (remainingUs <= 0) {
+                    return false;
+                }
+                if (mAwaitingInput) {
+                    waitLocked(Math.max(1, remainingUs / 1000));
+                    continue;
+                }
+                mAwaitingInput = true;
+            }
+            // Block in the codec without holding mLock, see awaitSamplePolling().
+            int index = MediaCodec.INFO_TRY_AGAIN_LATER;
+            try {
+                index = mCodec.dequeueInputBuffer(Math.min(remainingUs, DEQUEUE_SLICE_US));
+            } finally {
+                synchronized (mLock) {
+                    mAwaitingInput = false;
+                    if (index >= 0) {
+                        mAvailableInputBuffers.add(index);
+                    }
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitLocked(long timeoutMs) {
+        try {
+            mLock.wait(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return result;
     }
 
     /**
@@ -302,86 +960,443 @@ public class MediaCodecWrapper {
      * OutputSampleListener#outputSample(MediaCodecWrapper, android.media.MediaCodec.BufferInfo,
      * java.nio.ByteBuffer)}
      *
-     * @param render True, if the buffer is to be rendered on the {@link Surface} configured
+     * @param render True, if the buffer is to be rendered on the {@link Surface} configured.
+     * Ignored for encoders, whose samples are always passed to the listener.
      *
      */
     public void popSample(boolean render) {
-        // dequeue available buffers and synchronize our data structures with the codec.
-        update();
-        if (!mAvailableOutputBuffers.isEmpty()) {
-            int index = mAvailableOutputBuffers.remove();
+        // Encoders have no output surface, their samples always go to the listener.
+        boolean notify = render || mIsEncoder;
+        if (mIsEncoder) {
+            render = false;
+        }
+        int index;
+        MediaCodec.BufferInfo info;
+        synchronized (mLock) {
+            // dequeue available buffers and synchronize our data structures with the codec.
+            update();
+            if (mAvailableOutputBuffers.isEmpty()) {
+                return;
+            }
+            index = mAvailableOutputBuffers.remove();
+            info = mOutputBufferInfo[index];
+        }
 
-            if (render && mOutputSampleListener != null) {
-                ByteBuffer buffer = mOutputBuffers[index];
-                MediaCodec.BufferInfo info = mOutputBufferInfo[index];
-                mOutputSampleListener.outputSample(this, info, buffer);
+        if (notify && mOutputSampleListener != null) {
+            ByteBuffer buffer = getOutputBuffer(index);
+            mOutputSampleListener.outputSample(this, info, buffer);
+        }
+
+        // releases the buffer back to the codec
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    /**
+     * Like {@link #popSample(boolean)} with {@code render} set, but lets the display show the
+     * frame at {@code renderTimeNs} on the {@link System#nanoTime()} clock instead of as soon
+     * as possible, so it lands on the right vsync. Requires API 21.
+     *
+     * @param renderTimeNs When the frame should be shown; frames more than a second ahead or
+     * already late are shown right away.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void popSample(long renderTimeNs) {
+        int index;
+        MediaCodec.BufferInfo info;
+        synchronized (mLock) {
+            update();
+            if (mAvailableOutputBuffers.isEmpty()) {
+                return;
             }
+            index = mAvailableOutputBuffers.remove();
+            info = mOutputBufferInfo[index];
+        }
 
-            // releases the buffer back to the codec
-            mDecoder.releaseOutputBuffer(index, render);
+        if (mOutputSampleListener != null) {
+            mOutputSampleListener.outputSample(this, info, getOutputBuffer(index));
         }
+        mCodec.releaseOutputBuffer(index, renderTimeNs);
+    }
+
+    /**
+     * Discards every sample queued in the codec, e.g. to feed samples from another position
+     * after {@link MediaExtractor#seekTo}. Buffers peeked before are invalid afterwards.
+     */
+    public void flush() {
+        if (mCallbackThread == null) {
+            synchronized (mLock) {
+                // A flush fails dequeues still pending in the codec, so let them finish first.
+                while (mAwaitingInput || mAwaitingOutput) {
+                    waitLocked(DEQUEUE_SLICE_US / 1000);
+                }
+                mCodec.flush();
+                mAvailableInputBuffers.clear();
+                mAvailableOutputBuffers.clear();
+            }
+            return;
+        }
+        // Flush on the callback thread, so that no callback of a buffer from before the flush
+        // can queue it after we cleared the queues.
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final RuntimeException[] error = new RuntimeException[1];
+        new Handler(mCallbackThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushAsync();
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                } finally {
+                    flushed.countDown();
+                }
+            }
+        });
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void flushAsync() {
+        synchronized (mLock) {
+            mCodec.flush();
+            mAvailableInputBuffers.clear();
+            mAvailableOutputBuffers.clear();
+        }
+        // In asynchronous mode the codec only hands out input buffers again once restarted.
+        mCodec.start();
+    }
+
+    /**
+     * @return the input buffer at {@code index}, see {@link #dequeueInputBuffer()}. Its
+     * content and position are undefined, clear it before filling it.
+     */
+    public ByteBuffer getInputBuffer(int index) {
+        return mCallbackThread == null ? mInputBuffers[index] : mCodec.getInputBuffer(index);
+    }
+
+    private ByteBuffer getOutputBuffer(int index) {
+        return mCallbackThread == null ? mOutputBuffers[index] : mCodec.getOutputBuffer(index);
     }
 
     /**
      * Synchronize this object's state with the internal state of the wrapped
-     * MediaCodec.
+     * MediaCodec. In asynchronous mode the callback keeps our state current, so this only
+     * surfaces errors the codec has reported. Must be called with {@code mLock} held.
      */
     private void update() {
+        if (mCallbackThread != null) {
+            checkCodecError();
+            return;
+        }
+
         // BEGIN_INCLUDE(update_codec_state)
         int index;
 
         // Get valid input buffers from the codec to fill later in the same order they were
-        // made available by the codec.
-        while ((index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+        // made available by the codec. Not while a thread waits for one in the codec: a second
+        // dequeue would fail, and that thread publishes what it gets.
+        while (!mAwaitingInput
+                && (index = mCodec.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
             mAvailableInputBuffers.add(index);
         }
 
 
         // Likewise with output buffers. If the output buffers have changed, start using the
         // new set of output buffers. If the output format has changed, notify listeners.
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        while ((index = mDecoder.dequeueOutputBuffer(info, 0)) !=  MediaCodec.INFO_TRY_AGAIN_LATER) {
-            switch (index) {
-                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    mOutputBuffers = mDecoder.getOutputBuffers();
-                    mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-                    mAvailableOutputBuffers.clear();
-                    break;
-                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                    if (mOutputFormatChangedListener != null) {
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mOutputFormatChangedListener
-                                        .outputFormatChanged(MediaCodecWrapper.this,
-                                                mDecoder.getOutputFormat());
-
-                            }
-                        });
-                    }
-                    break;
-                default:
-                    // Making sure the index is valid before adding to output buffers. We've already
-                    // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
-                    // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
-                    // asserting index value anyways for future-proofing the code.
-                    if(index >= 0) {
-                        mOutputBufferInfo[index] = info;
-                        mAvailableOutputBuffers.add(index);
-                    } else {
-                        throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
-                    }
-                    break;
+        MediaCodec.BufferInfo info = mDequeueInfo;
+        while (!mAwaitingOutput && (index = mCodec.dequeueOutputBuffer(info, 0))
+                != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            handleOutputIndex(index, info);
+        }
+        // END_INCLUDE(update_codec_state)
+
+    }
+
+    private void checkCodecError() {
+        if (mCodecError != null) {
+            throw mCodecError;
+        }
+    }
+
+    private void handleOutputIndex(int index, MediaCodec.BufferInfo info) {
+        switch (index) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                break;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mOutputBuffers = mCodec.getOutputBuffers();
+                mOutputBufferInfo = allocateBufferInfo(mOutputBufferInfo, mOutputBuffers.length);
+                mAvailableOutputBuffers.clear();
+                break;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                notifyOutputFormatChanged();
+                break;
+            default:
+                // Making sure the index is valid before adding to output buffers. We've already
+                // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
+                // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
+                // asserting index value anyways for future-proofing the code.
+                if(index >= 0) {
+                    // Copy rather than keep a reference: the same info object is reused for
+                    // every dequeue.
+                    mOutputBufferInfo[index].set(info.offset, info.size,
+                            info.presentationTimeUs, info.flags);
+                    mAvailableOutputBuffers.add(index);
+                } else {
+                    throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
+                }
+                break;
+        }
+    }
+
+    private void notifyOutputFormatChanged() {
+        if (mOutputFormatChangedListener != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOutputFormatChangedListener
+                            .outputFormatChanged(MediaCodecWrapper.this,
+                                    mCodec.getOutputFormat());
+
+                }
+            });
+        }
+    }
+
+    /**
+     * Receives buffers from the codec in asynchronous mode and queues them for the client,
+     * waking up anyone blocked in {@link #awaitSample} or {@link #awaitInputBuffer}.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class CodecCallback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mLock) {
+                mAvailableInputBuffers.add(index);
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            synchronized (mLock) {
+                if (index >= mOutputBufferInfo.length) {
+                    mOutputBufferInfo = allocateBufferInfo(mOutputBufferInfo,
+                            Math.max(index + 1, mOutputBufferInfo.length * 2));
+                }
+                // The codec may reuse the info object, keep our own copy.
+                mOutputBufferInfo[index].set(info.offset, info.size, info.presentationTimeUs,
+                        info.flags);
+                mAvailableOutputBuffers.add(index);
+                mLock.notifyAll();
             }
+        }
 
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            synchronized (mLock) {
+                if (mCodecError == null) {
+                    mCodecError = e;
+                }
+                mLock.notifyAll();
+            }
         }
-        // END_INCLUDE(update_codec_state)
 
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            notifyOutputFormatChanged();
+        }
+    }
+
+    /**
+     * The calls made on a codec once it is configured, as declared by {@link MediaCodec}.
+     * Implemented by {@link PlatformCodec}, and by fakes in tests.
+     */
+    interface Codec {
+        void start();
+
+        void stop();
+
+        void release();
+
+        void flush();
+
+        void setCallback(MediaCodec.Callback callback);
+
+        /** Polling mode only. */
+        ByteBuffer[] getInputBuffers();
+
+        /** Polling mode only. */
+        ByteBuffer[] getOutputBuffers();
+
+        /** Asynchronous mode only, API 21+. */
+        ByteBuffer getInputBuffer(int index);
+
+        /** Asynchronous mode only, API 21+. */
+        ByteBuffer getOutputBuffer(int index);
+
+        int dequeueInputBuffer(long timeoutUs);
+
+        int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+        void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                int flags);
+
+        void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+                long presentationTimeUs, int flags);
+
+        void releaseOutputBuffer(int index, boolean render);
+
+        /** API 21+. */
+        void releaseOutputBuffer(int index, long renderTimestampNs);
+
+        MediaFormat getOutputFormat();
+
+        /** API 19+. */
+        void setParameters(Bundle params);
+
+        /** API 18+. */
+        void signalEndOfInputStream();
     }
 
-    private class WriteException extends Throwable {
+    /**
+     * {@link Codec} forwarding to a {@link MediaCodec}.
+     */
+    private static class PlatformCodec implements Codec {
+        private final MediaCodec mCodec;
+
+        PlatformCodec(MediaCodec codec) {
+            mCodec = codec;
+        }
+
+        @Override
+        public void start() {
+            mCodec.start();
+        }
+
+        @Override
+        public void stop() {
+            mCodec.stop();
+        }
+
+        @Override
+        public void release() {
+            mCodec.release();
+        }
+
+        @Override
+        public void flush() {
+            mCodec.flush();
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public void setCallback(MediaCodec.Callback callback) {
+            mCodec.setCallback(callback);
+        }
+
+        @Override
+        public ByteBuffer[] getInputBuffers() {
+            return mCodec.getInputBuffers();
+        }
+
+        @Override
+        public ByteBuffer[] getOutputBuffers() {
+            return mCodec.getOutputBuffers();
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mCodec.getInputBuffer(index);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            return mCodec.dequeueOutputBuffer(info, timeoutUs);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                int flags) {
+            mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+                long presentationTimeUs, int flags) {
+            mCodec.queueSecureInputBuffer(index, offset, info, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            mCodec.releaseOutputBuffer(index, render);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public void releaseOutputBuffer(int index, long renderTimestampNs) {
+            mCodec.releaseOutputBuffer(index, renderTimestampNs);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return mCodec.getOutputFormat();
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        @Override
+        public void setParameters(Bundle params) {
+            mCodec.setParameters(params);
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+        @Override
+        public void signalEndOfInputStream() {
+            mCodec.signalEndOfInputStream();
+        }
+    }
+
+    /**
+     * Thrown when a sample can't be written to the codec, e.g. because it is larger than the
+     * input buffers of the codec.
+     */
+    public static class WriteException extends IOException {
+        private final int mAcceptedSamples;
+
         private WriteException(final String detailMessage) {
+            this(detailMessage, 0);
+        }
+
+        private WriteException(final String detailMessage, int acceptedSamples) {
             super(detailMessage);
+            mAcceptedSamples = acceptedSamples;
+        }
+
+        /**
+         * @return how many samples of a {@link #writeSamples} batch were queued before the one
+         * that failed.
+         */
+        public int getAcceptedSamples() {
+            return mAcceptedSamples;
         }
     }
 }
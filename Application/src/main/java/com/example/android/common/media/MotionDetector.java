@@ -0,0 +1,166 @@
+package com.example.android.common.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects motion in a stream of frames from their luma alone. Each frame is sampled on a coarse
+ * grid and compared against a background that slowly follows the scene, so a moving object
+ * keeps standing out while lighting drifts and objects that stop are absorbed within a second
+ * or two. A change of the whole frame, e.g. auto exposure, is taken out before comparing.
+ *
+ * Any luma plane works, whatever its resolution: a 176x144 analysis stream and a full size
+ * preview frame cost the same, only the grid is read. Plain Java and allocation free after
+ * construction, so it can run on every frame of a camera callback.
+ */
+public class MotionDetector {
+
+    /** Luma difference from the background that counts a sample as changed. */
+    public static final int DEFAULT_THRESHOLD = 24;
+    /** Changed samples, in per mille of the grid, that make a frame show motion. */
+    public static final int DEFAULT_TRIGGER_PERMILLE = 15;
+
+    // Fraction bits of the background, so it can follow the scene in small steps.
+    static final int BACKGROUND_SHIFT = 4;
+    // The background moves by 1 / 2^LEARN_SHIFT of the difference per frame.
+    static final int LEARN_SHIFT = 4;
+    // Consecutive frames showing motion before it is reported; filters sensor noise and flicker.
+    static final int CONFIRM_FRAMES = 2;
+
+    private final int mGridWidth;
+    private final int mGridHeight;
+    private final int[] mBackground;
+    private final int[] mSamples;
+    // Position of each grid column in a row, for frames of mFrameWidth.
+    private final int[] mColumns;
+    private final int[] mRows;
+    private int mFrameWidth;
+    private int mFrameHeight;
+
+    private int mThreshold = DEFAULT_THRESHOLD;
+    private int mTriggerPermille = DEFAULT_TRIGGER_PERMILLE;
+    private boolean mHasBackground;
+    private int mMotionFrames;
+    private int mChangedPermille;
+
+    /**
+     * @param gridWidth Samples per row, at most the width of the frames.
+     * @param gridHeight Sampled rows, at most the height of the frames.
+     */
+    public MotionDetector(int gridWidth, int gridHeight) {
+        mGridWidth = gridWidth;
+        mGridHeight = gridHeight;
+        mBackground = new int[gridWidth * gridHeight];
+        mSamples = new int[gridWidth * gridHeight];
+        mColumns = new int[gridWidth];
+        mRows = new int[gridHeight];
+    }
+
+    public void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+
+    public void setTriggerPermille(int permille) {
+        mTriggerPermille = permille;
+    }
+
+    /**
+     * Forgets the background; the next frame becomes the new one.
+     */
+    public void reset() {
+        mHasBackground = false;
+        mMotionFrames = 0;
+        mChangedPermille = 0;
+    }
+
+    /**
+     * @param luma Luma plane starting at {@code offset}, e.g. an NV21 preview frame.
+     * @param rowStride Bytes from one row to the next.
+     * @return true if the frame shows motion.
+     */
+    public boolean process(byte[] luma, int offset, int width, int height, int rowStride) {
+        setFrameSize(width, height);
+        int i = 0;
+        for (int gy = 0; gy < mGridHeight; gy++) {
+            int row = offset + mRows[gy] * rowStride;
+            for (int gx = 0; gx < mGridWidth; gx++) {
+                mSamples[i++] = luma[row + mColumns[gx]] & 0xff;
+            }
+        }
+        return detect();
+    }
+
+    /**
+     * @param luma Luma plane from its position on, e.g. the first plane of a
+     * {@link android.media.Image} in {@code YUV_420_888}. Its position is not changed.
+     * @param rowStride Bytes from one row to the next.
+     * @return true if the frame shows motion.
+     */
+    public boolean process(ByteBuffer luma, int width, int height, int rowStride) {
+        setFrameSize(width, height);
+        int offset = luma.position();
+        int i = 0;
+        for (int gy = 0; gy < mGridHeight; gy++) {
+            int row = offset + mRows[gy] * rowStride;
+            for (int gx = 0; gx < mGridWidth; gx++) {
+                mSamples[i++] = luma.get(row + mColumns[gx]) & 0xff;
+            }
+        }
+        return detect();
+    }
+
+    /**
+     * @return changed samples of the last frame, in per mille of the grid.
+     */
+    public int getChangedPermille() {
+        return mChangedPermille;
+    }
+
+    private void setFrameSize(int width, int height) {
+        if (width == mFrameWidth && height == mFrameHeight) {
+            return;
+        }
+        // Sample the center of each grid cell.
+        for (int gx = 0; gx < mGridWidth; gx++) {
+            mColumns[gx] = (2 * gx + 1) * width / (2 * mGridWidth);
+        }
+        for (int gy = 0; gy < mGridHeight; gy++) {
+            mRows[gy] = (2 * gy + 1) * height / (2 * mGridHeight);
+        }
+        mFrameWidth = width;
+        mFrameHeight = height;
+        reset();
+    }
+
+    private boolean detect() {
+        int count = mSamples.length;
+        if (!mHasBackground) {
+            for (int i = 0; i < count; i++) {
+                mBackground[i] = mSamples[i] << BACKGROUND_SHIFT;
+            }
+            mHasBackground = true;
+            return false;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += (mSamples[i] << BACKGROUND_SHIFT) - mBackground[i];
+        }
+        int global = (int) (sum / count);
+        int threshold = mThreshold << BACKGROUND_SHIFT;
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            int difference = (mSamples[i] << BACKGROUND_SHIFT) - mBackground[i];
+            int local = difference - global;
+            if (local > threshold || local < -threshold) {
+                changed++;
+            }
+            mBackground[i] += difference >> LEARN_SHIFT;
+        }
+        mChangedPermille = changed * 1000 / count;
+        if (mChangedPermille >= mTriggerPermille) {
+            mMotionFrames++;
+        } else {
+            mMotionFrames = 0;
+        }
+        return mMotionFrames >= CONFIRM_FRAMES;
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.common.media;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Serializes ISO base media file format (MP4) boxes into a growable buffer. Boxes nest with
+ * {@link #beginBox}/{@link #endBox}; sizes are patched in when a box ends.
+ *
+ * Plain Java on purpose, so the layout can be checked without a device.
+ */
+public class Mp4BoxWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    public Mp4BoxWriter(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Opens a box of the given four character type.
+     */
+    public Mp4BoxWriter beginBox(String type) {
+        if (mDepth == MAX_DEPTH) {
+            throw new IllegalStateException("Boxes nested too deeply");
+        }
+        mBoxStarts[mDepth++] = mBuffer.position();
+        writeInt(0); // size, patched by endBox()
+        writeFourCC(type);
+        return this;
+    }
+
+    /**
+     * Opens a "full box", which carries a version and 24 bits of flags.
+     */
+    public Mp4BoxWriter beginFullBox(String type, int version, int flags) {
+        beginBox(type);
+        writeInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    public Mp4BoxWriter endBox() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("No open box");
+        }
+        int start = mBoxStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    public Mp4BoxWriter writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    public Mp4BoxWriter writeShort(int value) {
+        ensureCapacity(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    public Mp4BoxWriter writeInt(int value) {
+        ensureCapacity(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    public Mp4BoxWriter writeLong(long value) {
+        ensureCapacity(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    public Mp4BoxWriter writeZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    public Mp4BoxWriter writeFourCC(String type) {
+        if (type.length() != 4) {
+            throw new IllegalArgumentException("Not a four character code: " + type);
+        }
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) type.charAt(i));
+        }
+        return this;
+    }
+
+    public Mp4BoxWriter writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        mBuffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Copies the remaining bytes of {@code bytes} without moving its position.
+     */
+    public Mp4BoxWriter writeBytes(ByteBuffer bytes) {
+        ensureCapacity(bytes.remaining());
+        mBuffer.put(bytes.duplicate());
+        return this;
+    }
+
+    /**
+     * Writes a null-terminated UTF-8 string, as used in {@code hdlr}.
+     */
+    public Mp4BoxWriter writeString(String value) {
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        writeBytes(bytes);
+        return writeByte(0);
+    }
+
+    /**
+     * Writes the unity transformation matrix of {@code mvhd} and {@code tkhd}.
+     */
+    public Mp4BoxWriter writeUnityMatrix() {
+        writeInt(0x00010000).writeInt(0).writeInt(0);
+        writeInt(0).writeInt(0x00010000).writeInt(0);
+        writeInt(0).writeInt(0).writeInt(0x40000000);
+        return this;
+    }
+
+    /**
+     * @return the number of bytes written so far.
+     */
+    public int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Overwrites a 32 bit value written earlier, e.g. an offset only known later.
+     */
+    public void putInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    /**
+     * @return a read-only view of the bytes written, valid until the next write or reset.
+     */
+    public ByteBuffer getBuffer() {
+        if (mDepth != 0) {
+            throw new IllegalStateException(mDepth + " boxes still open");
+        }
+        ByteBuffer result = mBuffer.duplicate();
+        result.flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    /**
+     * Discards everything written, keeping the allocated buffer.
+     */
+    public void reset() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (mBuffer.remaining() >= bytes) {
+            return;
+        }
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes);
+        ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+        mBuffer.flip();
+        grown.put(mBuffer);
+        mBuffer = grown;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSink} writing an MP4 file through {@link MediaMuxer}.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MuxerSink implements SampleSink {
+
+    private final MediaMuxer mMuxer;
+
+    // Keeps the descriptor the muxer writes to open until we are done.
+    private final ParcelFileDescriptor mFileDescriptor;
+
+    private boolean mStarted;
+
+    /**
+     * @param path Output file, truncated if it exists.
+     */
+    public MuxerSink(String path) throws IOException {
+        this(path, null);
+    }
+
+    private MuxerSink(String path, ParcelFileDescriptor fd) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mFileDescriptor = fd;
+    }
+
+    /**
+     * Opens a muxer on an already open file, e.g. one handed out by the Storage Access
+     * Framework. {@link MediaMuxer} only takes a path before API 26, so the file is reopened
+     * through {@code /proc/self/fd}, which works for descriptors backed by a real file.
+     */
+    public static MuxerSink fromFileDescriptor(FileDescriptor fd) throws IOException {
+        ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        try {
+            return new MuxerSink("/proc/self/fd/" + dup.getFd(), dup);
+        } catch (IOException e) {
+            dup.close();
+            throw e;
+        }
+    }
+
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        // Codec config is already part of the track format.
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            return;
+        }
+        mMuxer.writeSampleData(trackIndex, buffer, info);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        try {
+            if (mStarted) {
+                // Writes the moov box; throws if no sample was ever written.
+                mMuxer.stop();
+            }
+        } finally {
+            mStarted = false;
+            mMuxer.release();
+            if (mFileDescriptor != null) {
+                mFileDescriptor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SampleSink} for "dashcam" recording: samples are kept in an {@link EncodedRingBuffer}
+ * and only reach storage when {@link #trigger(long)} is called. The clip then holds the buffered
+ * window followed by the live stream until the requested post-roll has passed.
+ *
+ * A clip always starts and ends on a video key frame, so the buffer resumes on a decodable
+ * sample. The clip sink is created and finished on a worker thread; samples arriving meanwhile
+ * keep going into the buffer, so nothing is lost while the file is opened.
+ */
+public class PreRecordSink implements SampleSink {
+
+    private static final String TAG = "PreRecordSink";
+
+    // How long stop() waits for clips still being created or finished in the background.
+    private static final long FINISH_TIMEOUT_SEC = 10;
+
+    /**
+     * Creates the sink of every clip.
+     */
+    public interface ClipFactory {
+        /**
+         * @param index Zero-based number of the clip since the sink started.
+         * @return a new, not yet started sink.
+         */
+        SampleSink createClip(int index) throws IOException;
+    }
+
+    private final ClipFactory mFactory;
+    private final int mByteBudget;
+    private final int mMaxSamples;
+    private final long mWindowUs;
+
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mVideoTrack = -1;
+    private EncodedRingBuffer mRing;
+
+    // Post-roll of the latest trigger() not yet seen by the writing thread, or -1.
+    private final AtomicLong mTriggerPostRollUs = new AtomicLong(-1);
+
+    private int mClipCount;
+    private Future<SampleSink> mPendingClip;
+    private SampleSink mClip;
+    private int[] mClipTracks;
+    private long mClipEndUs;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param factory Creates the sink of each clip.
+     * @param byteBudget Memory reserved for buffered samples, allocated off the Java heap when
+     * the sink starts.
+     * @param maxSamples Maximum number of buffered samples.
+     * @param windowUs Duration to keep buffered, see {@link EncodedRingBuffer}.
+     */
+    public PreRecordSink(ClipFactory factory, int byteBudget, int maxSamples, long windowUs) {
+        mFactory = factory;
+        mByteBudget = byteBudget;
+        mMaxSamples = maxSamples;
+        mWindowUs = windowUs;
+    }
+
+    /**
+     * Persists the buffered window, then keeps recording for {@code postRollUs}. Triggering
+     * while a clip is being written extends it instead. Can be called from any thread; takes
+     * effect with the next sample.
+     */
+    public void trigger(long postRollUs) {
+        mTriggerPostRollUs.set(Math.max(0, postRollUs));
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mRing != null) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mRing = new EncodedRingBuffer(mByteBudget, mMaxSamples, mWindowUs, mVideoTrack);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Every clip gets the codec specific data from the track formats.
+            return;
+        }
+        long postRollUs = mTriggerPostRollUs.getAndSet(-1);
+        if (postRollUs >= 0) {
+            long endUs = info.presentationTimeUs + postRollUs;
+            if (mClip != null || mPendingClip != null) {
+                mClipEndUs = Math.max(mClipEndUs, endUs);
+            } else {
+                mClipEndUs = endUs;
+                mPendingClip = mWorker.submit(new Callable<SampleSink>() {
+                    final int index = mClipCount++;
+
+                    @Override
+                    public SampleSink call() throws IOException {
+                        return mFactory.createClip(index);
+                    }
+                });
+            }
+        }
+        if (mPendingClip != null && mPendingClip.isDone()) {
+            openClip();
+        }
+
+        if (mClip != null) {
+            boolean isKeyFrame = mVideoTrack < 0 || (trackIndex == mVideoTrack
+                    && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            if (!isKeyFrame || info.presentationTimeUs < mClipEndUs) {
+                mClip.writeSampleData(mClipTracks[trackIndex], buffer, info);
+                return;
+            }
+            // Post-roll is over; this key frame starts the buffer again.
+            finishClip();
+        }
+        mRing.add(trackIndex, buffer, info);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        mWorker.shutdown();
+        try {
+            if (mPendingClip != null) {
+                // Still save what was asked for.
+                openClip();
+            }
+            if (mClip != null) {
+                finishClip();
+            }
+            try {
+                if (!mWorker.awaitTermination(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "Clip is still being finished");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            mRing = null;
+        }
+    }
+
+    /**
+     * Starts the clip created by the worker and writes the buffered window into it.
+     */
+    private void openClip() throws IOException {
+        SampleSink clip;
+        try {
+            clip = mPendingClip.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating clip");
+        } catch (ExecutionException e) {
+            // Keep buffering; the next trigger can try again.
+            Log.e(TAG, "Unable to create clip: " + e.getCause());
+            return;
+        } finally {
+            mPendingClip = null;
+        }
+
+        int[] tracks = new int[mFormats.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = clip.addTrack(mFormats.get(i));
+        }
+        clip.start();
+        mClip = clip;
+        mClipTracks = tracks;
+        int count = mRing.drainTo(clip, tracks);
+        Log.d(TAG, "Clip started with " + count + " buffered samples");
+    }
+
+    /**
+     * Finishes the current clip on the worker thread, so writing its index doesn't stall us.
+     */
+    private void finishClip() {
+        final SampleSink clip = mClip;
+        mClip = null;
+        mClipTracks = null;
+        Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clip.stop();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Unable to finish clip: " + e.getMessage());
+                }
+            }
+        };
+        if (mWorker.isShutdown()) {
+            finish.run();
+        } else {
+            mWorker.execute(finish);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.android.common.media;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cuts and joins recordings without re-encoding. Encoded samples are copied from
+ * {@link MediaExtractor} to a {@link SampleSink} through a single reused direct
+ * {@link ByteBuffer}: no codec is involved and nothing is allocated per sample, so copying runs
+ * at close to the speed of the storage.
+ *
+ * Without decoding, a video clip can only start at a key frame. {@link #trim} therefore widens
+ * the requested range to the key frames around it.
+ *
+ * Not thread safe; use one instance per thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class Remuxer {
+
+    private static final String TAG = "Remuxer";
+
+    // Used when the tracks don't state their largest sample.
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * What a {@link #trim} or {@link #concat} copied.
+     */
+    public static class Result {
+        public final long samples;
+        public final long bytes;
+        /** Duration of the output. */
+        public final long durationUs;
+        public final long elapsedMs;
+
+        Result(long samples, long bytes, long durationUs, long elapsedMs) {
+            this.samples = samples;
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+            this.elapsedMs = elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return samples + " samples, " + bytes + " bytes, " + durationUs / 1000 + " ms in "
+                    + elapsedMs + " ms (" + (elapsedMs == 0 ? "-" : bytes / 1000 / elapsedMs)
+                    + " MB/s)";
+        }
+    }
+
+    private ByteBuffer mBuffer;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mSamples;
+    private long mBytes;
+
+    /**
+     * Copies the part of {@code input} from the key frame at or before {@code startUs} up to
+     * the key frame at or after {@code endUs} into {@code output}, which is started and
+     * stopped. The output starts at time 0.
+     *
+     * @param endUs End of the clip, or {@link Long#MAX_VALUE} for the end of the file.
+     */
+    public Result trim(String input, long startUs, long endUs, SampleSink output)
+            throws IOException {
+        long startNs = System.nanoTime();
+        mSamples = 0;
+        mBytes = 0;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(input);
+            int trackCount = extractor.getTrackCount();
+            int video = findVideoTrack(extractor);
+
+            // Find the key frames around the range on the video track alone.
+            long clipStartUs = startUs;
+            long clipEndUs = endUs;
+            if (video >= 0) {
+                extractor.selectTrack(video);
+                if (endUs != Long.MAX_VALUE) {
+                    extractor.seekTo(endUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+                    long time = extractor.getSampleTime();
+                    clipEndUs = time < endUs ? Long.MAX_VALUE : time;
+                }
+                extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                clipStartUs = Math.max(0, extractor.getSampleTime());
+            }
+
+            int[] tracks = addTracks(extractor, output);
+            output.start();
+            extractor.seekTo(clipStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            long lastUs = copy(extractor, output, tracks, clipStartUs, clipEndUs, -clipStartUs,
+                    new long[trackCount]);
+            output.stop();
+            Result result = new Result(mSamples, mBytes, Math.max(0, lastUs),
+                    (System.nanoTime() - startNs) / 1000000);
+            Log.d(TAG, "Trimmed " + input + " to " + clipStartUs / 1000 + "-"
+                    + (clipEndUs == Long.MAX_VALUE ? "end" : clipEndUs / 1000 + " ms") + ": "
+                    + result);
+            return result;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Joins {@code inputs}, e.g. the segments of a segmented recording, into {@code output},
+     * which is started and stopped. Each input continues where the previous one ended. All
+     * inputs must have the same tracks as the first one, encoded the same way.
+     */
+    public Result concat(List<String> inputs, SampleSink output) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to join");
+        }
+        long startNs = System.nanoTime();
+        mSamples = 0;
+        mBytes = 0;
+        int[] tracks = null;
+        MediaFormat[] formats = null;
+        long offsetUs = 0;
+        for (String input : inputs) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(input);
+                if (tracks == null) {
+                    formats = getFormats(extractor);
+                    tracks = addTracks(extractor, output);
+                    output.start();
+                } else {
+                    checkCompatible(formats, getFormats(extractor), input);
+                    for (int i = 0; i < formats.length; i++) {
+                        extractor.selectTrack(i);
+                    }
+                }
+                // Each input starts at 0, i.e. right after the previous one.
+                long firstUs = Math.max(0, extractor.getSampleTime());
+                long[] lastDurationUs = new long[formats.length];
+                long endUs = copy(extractor, output, tracks, 0, Long.MAX_VALUE,
+                        offsetUs - firstUs, lastDurationUs);
+                if (endUs == Long.MIN_VALUE) {
+                    Log.w(TAG, "No samples in " + input);
+                    continue;
+                }
+                long frameUs = 0;
+                for (long d : lastDurationUs) {
+                    frameUs = Math.max(frameUs, d);
+                }
+                // The next input starts one frame after the last sample of this one.
+                offsetUs = endUs + frameUs;
+            } finally {
+                extractor.release();
+            }
+        }
+        output.stop();
+        Result result = new Result(mSamples, mBytes, offsetUs,
+                (System.nanoTime() - startNs) / 1000000);
+        Log.d(TAG, "Joined " + inputs.size() + " files: " + result);
+        return result;
+    }
+
+    private static int findVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)
+                    .startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static MediaFormat[] getFormats(MediaExtractor extractor) {
+        MediaFormat[] formats = new MediaFormat[extractor.getTrackCount()];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = extractor.getTrackFormat(i);
+        }
+        return formats;
+    }
+
+    private static void checkCompatible(MediaFormat[] expected, MediaFormat[] actual,
+            String input) throws IOException {
+        if (expected.length != actual.length) {
+            throw new IOException(input + " has " + actual.length + " tracks, expected "
+                    + expected.length);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            String mime = expected[i].getString(MediaFormat.KEY_MIME);
+            if (!mime.equals(actual[i].getString(MediaFormat.KEY_MIME))
+                    || (mime.startsWith("video/") && (
+                    expected[i].getInteger(MediaFormat.KEY_WIDTH)
+                            != actual[i].getInteger(MediaFormat.KEY_WIDTH)
+                    || expected[i].getInteger(MediaFormat.KEY_HEIGHT)
+                            != actual[i].getInteger(MediaFormat.KEY_HEIGHT)))) {
+                throw new IOException("Track " + i + " of " + input + " is " + actual[i]
+                        + ", expected " + expected[i]);
+            }
+        }
+    }
+
+    /**
+     * Selects every track of {@code extractor}, adds it to {@code output} and makes sure the
+     * copy buffer holds the largest sample of any of them.
+     *
+     * @return the output track of each input track.
+     */
+    private int[] addTracks(MediaExtractor extractor, SampleSink output) throws IOException {
+        int[] tracks = new int[extractor.getTrackCount()];
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        for (int i = 0; i < tracks.length; i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            extractor.selectTrack(i);
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                bufferSize = Math.max(bufferSize,
+                        format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            }
+            if (output instanceof MuxerSink && format.containsKey(MediaFormat.KEY_ROTATION)) {
+                ((MuxerSink) output).setOrientationHint(
+                        format.getInteger(MediaFormat.KEY_ROTATION));
+            }
+            tracks[i] = output.addTrack(format);
+        }
+        ensureBuffer(bufferSize);
+        return tracks;
+    }
+
+    private void ensureBuffer(int size) {
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * Copies samples from the current position of {@code extractor}. Samples before
+     * {@code startUs} are skipped and each track ends at its first sample at or after
+     * {@code endUs}, which {@link #trim} puts on a video key frame.
+     *
+     * @param offsetUs Added to every presentation time.
+     * @param lastDurationUs Receives the time between the last two samples of each track.
+     * @return the latest output presentation time written, {@link Long#MIN_VALUE} if none.
+     */
+    private long copy(MediaExtractor extractor, SampleSink output, int[] tracks, long startUs,
+            long endUs, long offsetUs, long[] lastDurationUs) throws IOException {
+        int trackCount = tracks.length;
+        boolean[] ended = new boolean[trackCount];
+        int endedCount = 0;
+        long[] lastUs = new long[trackCount];
+        Arrays.fill(lastUs, -1);
+        long latestUs = Long.MIN_VALUE;
+        MediaCodec.BufferInfo info = mInfo;
+        ByteBuffer buffer = mBuffer;
+
+        while (endedCount < trackCount) {
+            int track = extractor.getSampleTrackIndex();
+            if (track < 0) {
+                break;
+            }
+            long timeUs = extractor.getSampleTime();
+            int flags = extractor.getSampleFlags();
+            if (ended[track] || timeUs < startUs) {
+                extractor.advance();
+                continue;
+            }
+            if (timeUs >= endUs) {
+                ended[track] = true;
+                endedCount++;
+                extractor.advance();
+                continue;
+            }
+
+            buffer.clear();
+            int size;
+            try {
+                size = extractor.readSampleData(buffer, 0);
+            } catch (IllegalArgumentException e) {
+                // The track understated its largest sample; the buffer is grown once.
+                ensureBuffer(buffer.capacity() * 2);
+                buffer = mBuffer;
+                continue;
+            }
+            if (size < 0) {
+                break;
+            }
+            buffer.position(0);
+            buffer.limit(size);
+            info.set(0, size, timeUs + offsetUs,
+                    (flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                            ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            output.writeSampleData(tracks[track], buffer, info);
+            mSamples++;
+            mBytes += size;
+
+            if (lastUs[track] >= 0) {
+                lastDurationUs[track] = timeUs - lastUs[track];
+            }
+            lastUs[track] = timeUs;
+            latestUs = Math.max(latestUs, timeUs + offsetUs);
+            extractor.advance();
+        }
+        return latestUs;
+    }
+}
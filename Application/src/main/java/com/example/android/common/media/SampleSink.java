@@ -0,0 +1,43 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for encoded samples, modelled after {@link android.media.MediaMuxer}: all tracks
+ * are added, then the sink is started, fed with samples and finally stopped.
+ *
+ * Samples are written from one thread at a time, typically the one draining the encoder with
+ * {@link MediaCodecWrapper#popSample(boolean)}; with several encoders the caller serializes
+ * their writes. The sink must not keep a reference to
+ * {@code buffer} or {@code info} after {@link #writeSampleData} returns: both are recycled by
+ * the codec.
+ */
+public interface SampleSink {
+
+    /**
+     * Adds a track. Must be called before {@link #start()}.
+     *
+     * @param format The output format of the encoder, including its codec specific data.
+     * @return the index to pass to {@link #writeSampleData}.
+     */
+    int addTrack(MediaFormat format);
+
+    void start() throws IOException;
+
+    /**
+     * @param trackIndex Index returned by {@link #addTrack}.
+     * @param buffer Encoded data between {@code info.offset} and {@code info.offset + info.size}.
+     * @param info Metadata of the sample.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException;
+
+    /**
+     * Finishes the output and releases resources. The sink can't be used afterwards.
+     */
+    void stop() throws IOException;
+}
@@ -0,0 +1,481 @@
+package com.example.android.common.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent list of the segments of a loop recording, oldest first, with their start time,
+ * duration, size and whether they are locked against eviction. Lives next to the segments in a
+ * small memory mapped file: opening it reads the header and the newest record, no matter how
+ * many segments there are, and the directory never has to be listed.
+ *
+ * Entries are fixed size records in a ring, little endian:
+ * <pre>
+ * header: int magic, int version, int capacity, int head, int count, int reserved,
+ *         long total bytes of all segments
+ * record: long start time in ms since the epoch, long duration in us, long bytes,
+ *         int flags, int name length, {@link #MAX_NAME_BYTES} bytes of file name
+ * </pre>
+ * Records are written before the header that makes them part of the list, so a crash loses at
+ * most the last change. Segments still being written when the recording died are cut back to
+ * their last complete fragment on {@link #open}, or deleted if nothing of them is playable. The
+ * ring grows when full.
+ *
+ * All methods are synchronized: segments are added by the recording while eviction and locking
+ * may happen on other threads.
+ */
+public class SegmentIndex {
+
+    /** Name of the index in the directory of the segments. */
+    public static final String FILE_NAME = "segments.idx";
+
+    static final int MAGIC = 0x5849534c; // "LSIX" in little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int MAX_NAME_BYTES = 64;
+    static final int RECORD_SIZE = 32 + MAX_NAME_BYTES;
+    static final int INITIAL_CAPACITY = 256;
+
+    // Record flags.
+    static final int FLAG_COMPLETE = 1;
+    static final int FLAG_LOCKED = 2;
+
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private static final int BOX_MOOV = 0x6d6f6f76;
+    private static final int BOX_MOOF = 0x6d6f6f66;
+    private static final int BOX_MDAT = 0x6d646174;
+
+    private final File mFile;
+    private final File mDir;
+    private MappedByteBuffer mMap;
+    private int mCapacity;
+    private int mHead;
+    private int mCount;
+    private long mTotalBytes;
+
+    private SegmentIndex(File file) {
+        mFile = file;
+        mDir = file.getParentFile();
+    }
+
+    /**
+     * Maps the index of the segments in {@code dir}, creating it if there is none.
+     *
+     * @throws IOException if the index can't be read or written.
+     */
+    public static SegmentIndex open(File dir) throws IOException {
+        SegmentIndex index = new SegmentIndex(new File(dir, FILE_NAME));
+        index.load();
+        return index;
+    }
+
+    private void load() throws IOException {
+        boolean exists = mFile.length() >= HEADER_SIZE;
+        mMap = map(exists
+                ? mFile.length() : HEADER_SIZE + (long) INITIAL_CAPACITY * RECORD_SIZE);
+        if (!exists || mMap.getInt(0) != MAGIC) {
+            if (exists) {
+                throw new IOException("Not a segment index: " + mFile);
+            }
+            mCapacity = INITIAL_CAPACITY;
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, VERSION);
+            writeHeader();
+            return;
+        }
+        if (mMap.getInt(4) != VERSION) {
+            throw new IOException("Unsupported segment index version " + mMap.getInt(4));
+        }
+        mCapacity = mMap.getInt(8);
+        mHead = mMap.getInt(12);
+        mCount = mMap.getInt(16);
+        mTotalBytes = mMap.getLong(24);
+        if (mCapacity <= 0 || HEADER_SIZE + (long) mCapacity * RECORD_SIZE > mMap.limit()
+                || mHead < 0 || mHead >= mCapacity || mCount < 0 || mCount > mCapacity) {
+            throw new IOException("Corrupt segment index: " + mFile);
+        }
+        // Only the newest segments can have been cut short: the one being written and the
+        // one prepared after it.
+        for (int i = mCount - 1; i >= 0 && !isComplete(i); i--) {
+            File segment = new File(mDir, getName(i));
+            long bytes = segment.exists() ? recover(segment) : 0;
+            if (bytes > 0) {
+                int offset = recordOffset(i);
+                mMap.putLong(offset + 16, bytes);
+                mMap.putInt(offset + 24, mMap.getInt(offset + 24) | FLAG_COMPLETE);
+                mTotalBytes += bytes;
+            } else {
+                segment.delete();
+                KeyframeIndex.sidecarFor(segment).delete();
+                removeAt(i);
+            }
+        }
+        writeHeader();
+    }
+
+    /**
+     * Cuts a segment that was being written when the recording died back to its playable part,
+     * see {@link #findPlayableEnd}.
+     *
+     * @return size of the segment afterwards, 0 if nothing of it is playable.
+     */
+    private static long recover(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            long end = findPlayableEnd(file);
+            if (end > 0 && end < file.length()) {
+                file.setLength(end);
+            }
+            return end;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Walks the top level boxes of an MP4 file that may have been cut short. A fragmented file
+     * is playable up to the end of its last {@code moof} that is followed by a complete
+     * {@code mdat}; a classic one only if its {@code moov} was written, up to the end of its
+     * last complete box. Trusting the file length instead would keep half written fragments
+     * that players choke on.
+     *
+     * @return end of the playable part, 0 if there is none.
+     */
+    static long findPlayableEnd(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long offset = 0;
+        long boxesEnd = 0;
+        long fragmentsEnd = 0;
+        boolean moov = false;
+        boolean mdat = false;
+        boolean moof = false;
+        boolean fragmentOpen = false;
+        while (offset + 8 <= length) {
+            file.seek(offset);
+            long size = file.readInt() & 0xffffffffL;
+            int type = file.readInt();
+            if (size == 1) {
+                if (offset + 16 > length) {
+                    break;
+                }
+                size = file.readLong();
+            }
+            // A size of 0, up to the end of the file, is only written for an mdat whose size
+            // was never filled in.
+            if (size < 8 || offset + size > length) {
+                break;
+            }
+            offset += size;
+            boxesEnd = offset;
+            if (type == BOX_MOOV) {
+                moov = true;
+            } else if (type == BOX_MOOF) {
+                moof = true;
+                fragmentOpen = true;
+            } else if (type == BOX_MDAT) {
+                mdat = true;
+                if (fragmentOpen && moov) {
+                    fragmentsEnd = offset;
+                    fragmentOpen = false;
+                }
+            }
+        }
+        if (moof) {
+            return fragmentsEnd;
+        }
+        return moov && mdat ? boxesEnd : 0;
+    }
+
+    private MappedByteBuffer map(long size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        MappedByteBuffer map;
+        try {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            // The mapping stays valid after the channel is closed.
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return map;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return size of all segments in the index, the ones being written as of their last
+     * update.
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @param i Position in the index, 0 being the oldest segment.
+     * @return file name of the segment, in the directory of the index.
+     */
+    public synchronized String getName(int i) {
+        int offset = recordOffset(i);
+        int length = mMap.getInt(offset + 28);
+        byte[] name = new byte[length];
+        for (int b = 0; b < length; b++) {
+            name[b] = mMap.get(offset + 32 + b);
+        }
+        return new String(name, NAME_CHARSET);
+    }
+
+    /**
+     * @return wall clock time the segment started at, or 0 while it is being written.
+     */
+    public synchronized long getStartTimeMs(int i) {
+        return mMap.getLong(recordOffset(i));
+    }
+
+    public synchronized long getDurationUs(int i) {
+        return mMap.getLong(recordOffset(i) + 8);
+    }
+
+    public synchronized long getBytes(int i) {
+        return mMap.getLong(recordOffset(i) + 16);
+    }
+
+    /**
+     * @return false while the segment is being written.
+     */
+    public synchronized boolean isComplete(int i) {
+        return (mMap.getInt(recordOffset(i) + 24) & FLAG_COMPLETE) != 0;
+    }
+
+    public synchronized boolean isLocked(int i) {
+        return (mMap.getInt(recordOffset(i) + 24) & FLAG_LOCKED) != 0;
+    }
+
+    /**
+     * @return position of the segment named {@code name}, or -1 if it is not in the index.
+     * Searches from the newest segment.
+     */
+    public synchronized int find(String name) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (getName(i).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return names of the locked segments, e.g. to spare them when cleaning up the directory.
+     */
+    public synchronized Set<String> getLockedNames() {
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < mCount; i++) {
+            if (isLocked(i)) {
+                names.add(getName(i));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Adds a segment that is about to be written as the newest one.
+     */
+    public synchronized void add(String name) throws IOException {
+        byte[] bytes = name.getBytes(NAME_CHARSET);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IOException("Segment name too long: " + name);
+        }
+        if (mCount == mCapacity) {
+            grow();
+        }
+        int offset = slotOffset((mHead + mCount) % mCapacity);
+        mMap.putLong(offset, 0);
+        mMap.putLong(offset + 8, 0);
+        mMap.putLong(offset + 16, 0);
+        mMap.putInt(offset + 24, 0);
+        mMap.putInt(offset + 28, bytes.length);
+        for (int b = 0; b < bytes.length; b++) {
+            mMap.put(offset + 32 + b, bytes[b]);
+        }
+        mCount++;
+        writeHeader();
+    }
+
+    /**
+     * Records the final size and times of a segment that was written.
+     *
+     * @return false if the segment is not in the index.
+     */
+    public synchronized boolean complete(String name, long startTimeMs, long durationUs,
+            long bytes) {
+        int i = find(name);
+        if (i < 0) {
+            return false;
+        }
+        int offset = recordOffset(i);
+        mTotalBytes += bytes - mMap.getLong(offset + 16);
+        mMap.putLong(offset, startTimeMs);
+        mMap.putLong(offset + 8, durationUs);
+        mMap.putLong(offset + 16, bytes);
+        mMap.putInt(offset + 24, mMap.getInt(offset + 24) | FLAG_COMPLETE);
+        writeHeader();
+        mMap.force();
+        return true;
+    }
+
+    /**
+     * Removes a segment from the index without deleting its file.
+     *
+     * @return false if the segment is not in the index.
+     */
+    public synchronized boolean remove(String name) {
+        int i = find(name);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Locks a segment against eviction, or unlocks it. A segment still being written can be
+     * locked too.
+     *
+     * @return false if the segment is not in the index.
+     */
+    public synchronized boolean setLocked(String name, boolean locked) {
+        int i = find(name);
+        if (i < 0) {
+            return false;
+        }
+        setLockedAt(i, locked);
+        mMap.force();
+        return true;
+    }
+
+    /**
+     * Locks the segments that ended at or after {@code sinceMs}, and the ones being written,
+     * e.g. to keep the video around an event.
+     *
+     * @return number of segments locked.
+     */
+    public synchronized int lockSince(long sinceMs) {
+        int locked = 0;
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (isComplete(i) && getStartTimeMs(i) + getDurationUs(i) / 1000 < sinceMs) {
+                break;
+            }
+            setLockedAt(i, true);
+            locked++;
+        }
+        mMap.force();
+        return locked;
+    }
+
+    private void setLockedAt(int i, boolean locked) {
+        int offset = recordOffset(i);
+        int flags = mMap.getInt(offset + 24);
+        mMap.putInt(offset + 24, locked ? flags | FLAG_LOCKED : flags & ~FLAG_LOCKED);
+    }
+
+    /**
+     * Deletes the oldest segment that is complete and not locked, with its
+     * {@link KeyframeIndex key frame index}, and removes it from the index. A segment whose file
+     * is already gone is removed all the same.
+     *
+     * @return bytes the segment had, or -1 if every segment is locked or being written.
+     */
+    public synchronized long evictOldest() {
+        for (int i = 0; i < mCount; i++) {
+            if (!isComplete(i) || isLocked(i)) {
+                continue;
+            }
+            File segment = new File(mDir, getName(i));
+            long bytes = getBytes(i);
+            if (segment.exists() && !segment.delete()) {
+                // Try again with the next eviction rather than leaking the space for good.
+                return -1;
+            }
+            KeyframeIndex.sidecarFor(segment).delete();
+            removeAt(i);
+            writeHeader();
+            mMap.force();
+            return bytes;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the record at position {@code i}, moving the records in front of it up by one so
+     * the rest of the ring stays in place. Only locked or unfinished segments are in front of
+     * an evicted one, so this is usually a single step.
+     */
+    private void removeAt(int i) {
+        int offset = recordOffset(i);
+        if ((mMap.getInt(offset + 24) & FLAG_COMPLETE) != 0) {
+            mTotalBytes -= mMap.getLong(offset + 16);
+        }
+        if (i < mCount - 1 - i) {
+            for (int j = i; j > 0; j--) {
+                copyRecord(recordOffset(j - 1), recordOffset(j));
+            }
+            mHead = (mHead + 1) % mCapacity;
+        } else {
+            for (int j = i; j < mCount - 1; j++) {
+                copyRecord(recordOffset(j + 1), recordOffset(j));
+            }
+        }
+        mCount--;
+    }
+
+    private void copyRecord(int from, int to) {
+        for (int b = 0; b < RECORD_SIZE; b += 4) {
+            mMap.putInt(to + b, mMap.getInt(from + b));
+        }
+    }
+
+    /**
+     * Doubles the ring. The records that wrapped around move behind the old end, so the ring is
+     * consistent under either capacity until the header is written.
+     */
+    private void grow() throws IOException {
+        int capacity = mCapacity * 2;
+        mMap.force();
+        mMap = map(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        for (int slot = 0; slot < mHead; slot++) {
+            copyRecord(slotOffset(slot), slotOffset(mCapacity + slot));
+        }
+        mCapacity = capacity;
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        mMap.putInt(8, mCapacity);
+        mMap.putInt(12, mHead);
+        mMap.putInt(16, mCount);
+        mMap.putLong(24, mTotalBytes);
+    }
+
+    private int recordOffset(int i) {
+        if (i < 0 || i >= mCount) {
+            throw new IndexOutOfBoundsException("Segment " + i + " of " + mCount);
+        }
+        return slotOffset((mHead + i) % mCapacity);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+}
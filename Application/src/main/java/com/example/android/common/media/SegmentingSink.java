@@ -0,0 +1,289 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SampleSink} that splits a recording into consecutive segments, each one a complete
+ * file written by its own sink. A crash only loses the segment being written, and every file
+ * keeps a small index.
+ *
+ * Once a segment exceeds its duration or size limit the next one starts at the following video
+ * key frame, so every segment is independently playable and no sample is dropped. The sink of
+ * the next segment is created ahead of time and the previous one is finished on a worker
+ * thread, keeping file creation and index writing off the thread that feeds us.
+ */
+public class SegmentingSink implements SampleSink {
+
+    private static final String TAG = "SegmentingSink";
+
+    // How long stop() waits for segments still being finished in the background.
+    private static final long FINISH_TIMEOUT_SEC = 10;
+
+    /**
+     * Creates the sink of every segment.
+     */
+    public interface SegmentFactory {
+        /**
+         * @param index Zero-based number of the segment within the recording.
+         * @return a new, not yet started sink.
+         */
+        SampleSink createSegment(int index) throws IOException;
+
+        /**
+         * Called when a segment sink was created ahead of time but never used because the
+         * recording stopped. Its output should be deleted.
+         */
+        void onSegmentDiscarded(int index);
+    }
+
+    /**
+     * Progress notifications. {@link #onSegmentFinished} is usually called on the worker
+     * thread, for the last segment on the thread calling {@link #stop()}.
+     */
+    public interface Listener {
+        /**
+         * The current segment reached its limit; the next key frame will start a new one.
+         * Encoders should be asked for a key frame now.
+         */
+        void onKeyFrameNeeded();
+
+        /**
+         * A segment was completed and its file is final.
+         *
+         * @param durationUs Time between the first and the last sample of the segment.
+         * @param bytes Size of the samples written.
+         */
+        void onSegmentFinished(int index, long durationUs, long bytes);
+    }
+
+    private static class Segment {
+        final int index;
+        final SampleSink sink;
+        final int[] tracks;
+        long firstPtsUs = -1;
+        long lastPtsUs;
+        long bytes;
+
+        Segment(int index, SampleSink sink, int trackCount) {
+            this.index = index;
+            this.sink = sink;
+            this.tracks = new int[trackCount];
+        }
+    }
+
+    private final SegmentFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private Listener mListener;
+
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int mVideoTrack = -1;
+
+    private Segment mCurrent;
+    private Future<Segment> mNext;
+    private boolean mRolloverPending;
+    // Set by requestRollover() from any thread, picked up by the next writeSampleData().
+    private volatile boolean mRolloverRequested;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param factory Creates the sink of each segment.
+     * @param maxDurationUs Duration after which a new segment starts, 0 for no limit.
+     * @param maxBytes Size after which a new segment starts, 0 for no limit.
+     */
+    public SegmentingSink(SegmentFactory factory, long maxDurationUs, long maxBytes) {
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts a new segment at the next video key frame regardless of the limits. May be called
+     * from any thread.
+     */
+    public void requestRollover() {
+        mRolloverRequested = true;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mCurrent != null) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mCurrent = createSegment(0);
+        mCurrent.sink.start();
+        prepareNext();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        if (mRolloverRequested) {
+            mRolloverRequested = false;
+            if (!mRolloverPending) {
+                mRolloverPending = true;
+                if (mListener != null) {
+                    mListener.onKeyFrameNeeded();
+                }
+            }
+        }
+        boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean cutsHere = mVideoTrack < 0 || trackIndex == mVideoTrack;
+        if (mRolloverPending && cutsHere && !isConfig
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            rollover();
+        }
+
+        Segment segment = mCurrent;
+        segment.sink.writeSampleData(segment.tracks[trackIndex], buffer, info);
+        if (isConfig) {
+            return;
+        }
+        if (segment.firstPtsUs < 0) {
+            segment.firstPtsUs = info.presentationTimeUs;
+        }
+        segment.lastPtsUs = Math.max(segment.lastPtsUs, info.presentationTimeUs);
+        segment.bytes += info.size;
+
+        if (!mRolloverPending && isFull(segment)) {
+            mRolloverPending = true;
+            if (mListener != null) {
+                mListener.onKeyFrameNeeded();
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        mWorker.shutdown();
+        try {
+            if (mNext != null) {
+                Segment next = null;
+                try {
+                    next = getNext();
+                } catch (IOException e) {
+                    Log.w(TAG, "Next segment failed to prepare: " + e.getMessage());
+                }
+                if (next != null) {
+                    stopQuietly(next);
+                    mFactory.onSegmentDiscarded(next.index);
+                }
+                mNext = null;
+            }
+        } finally {
+            if (mCurrent != null) {
+                finish(mCurrent);
+                mCurrent = null;
+            }
+            try {
+                if (!mWorker.awaitTermination(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "Previous segment is still being finished");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isFull(Segment segment) {
+        return (mMaxDurationUs > 0 && segment.lastPtsUs - segment.firstPtsUs >= mMaxDurationUs)
+                || (mMaxBytes > 0 && segment.bytes >= mMaxBytes);
+    }
+
+    private void rollover() throws IOException {
+        Segment next = getNext();
+        next.sink.start();
+        final Segment previous = mCurrent;
+        mCurrent = next;
+        mRolloverPending = false;
+
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finish(previous);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to finish segment " + previous.index + ": "
+                            + e.getMessage());
+                }
+            }
+        });
+        prepareNext();
+    }
+
+    private void prepareNext() {
+        final int index = mCurrent.index + 1;
+        mNext = mWorker.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws IOException {
+                return createSegment(index);
+            }
+        });
+    }
+
+    private Segment getNext() throws IOException {
+        try {
+            return mNext.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing the next segment");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to prepare the next segment: " + cause);
+        }
+    }
+
+    private Segment createSegment(int index) throws IOException {
+        Segment segment = new Segment(index, mFactory.createSegment(index), mFormats.size());
+        for (int i = 0; i < mFormats.size(); i++) {
+            segment.tracks[i] = segment.sink.addTrack(mFormats.get(i));
+        }
+        return segment;
+    }
+
+    private void finish(Segment segment) throws IOException {
+        segment.sink.stop();
+        if (mListener != null) {
+            long durationUs = segment.firstPtsUs < 0 ? 0 : segment.lastPtsUs - segment.firstPtsUs;
+            mListener.onSegmentFinished(segment.index, durationUs, segment.bytes);
+        }
+    }
+
+    private static void stopQuietly(Segment segment) {
+        try {
+            segment.sink.stop();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to release unused segment: " + e.getMessage());
+        }
+    }
+}
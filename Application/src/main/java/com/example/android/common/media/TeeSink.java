@@ -0,0 +1,100 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link SampleSink} writing every sample to several sinks, e.g. a file and a
+ * {@link LiveStreamSink}. Sinks are called in the order they were added, on the calling thread;
+ * put an {@link AsyncSampleSink} in front of any that may block.
+ */
+public class TeeSink implements SampleSink {
+
+    private final List<SampleSink> mSinks = new ArrayList<SampleSink>();
+    // Track index of each of our tracks in each sink.
+    private final List<int[]> mTracks = new ArrayList<int[]>();
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private boolean mStarted;
+
+    public TeeSink(SampleSink first) {
+        mSinks.add(first);
+    }
+
+    /**
+     * Adds a sink, which receives the tracks added so far. Must be called before
+     * {@link #start()}.
+     */
+    public void add(SampleSink sink) {
+        if (mStarted) {
+            throw new IllegalStateException("Sinks must be added before start()");
+        }
+        mSinks.add(sink);
+        for (int i = 0; i < mFormats.size(); i++) {
+            int[] tracks = mTracks.get(i);
+            int[] grown = new int[mSinks.size()];
+            System.arraycopy(tracks, 0, grown, 0, tracks.length);
+            grown[mSinks.size() - 1] = sink.addTrack(mFormats.get(i));
+            mTracks.set(i, grown);
+        }
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks must be added before start()");
+        }
+        int[] tracks = new int[mSinks.size()];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = mSinks.get(i).addTrack(format);
+        }
+        mFormats.add(format);
+        mTracks.add(tracks);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mStarted = true;
+        for (SampleSink sink : mSinks) {
+            sink.start();
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        int[] tracks = mTracks.get(trackIndex);
+        int position = buffer.position();
+        int limit = buffer.limit();
+        for (int i = 0; i < tracks.length; i++) {
+            // A sink may move the buffer's position; each one gets it as we did.
+            buffer.limit(limit).position(position);
+            mSinks.get(i).writeSampleData(tracks[i], buffer, info);
+        }
+    }
+
+    /**
+     * Stops every sink, even if some fail, and throws the first error.
+     */
+    @Override
+    public void stop() throws IOException {
+        IOException error = null;
+        for (SampleSink sink : mSinks) {
+            try {
+                sink.stop();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
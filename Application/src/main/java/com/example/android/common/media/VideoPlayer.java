@@ -0,0 +1,437 @@
+package com.example.android.common.media;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Plays the video track of a file onto a {@link Surface}. Samples flow from a
+ * {@link MediaExtractor} through a {@link MediaCodecWrapper} decoder to the surface on a
+ * dedicated thread, which keeps the decoder fed while it waits for the next frame to be due.
+ *
+ * Frames are shown at their presentation time relative to a clock anchored at the first frame
+ * after starting or seeking. A frame that is already more than {@link #LATE_THRESHOLD_NS} late
+ * is released without rendering, so a decoder that falls behind catches up instead of drifting
+ * further. Seeks go to the key frame closest to the requested time: it decodes on its own, so a
+ * seek costs one frame no matter how long the GOP is. Only the latest of several pending seeks
+ * is carried out, which keeps scrubbing responsive.
+ *
+ * Audio tracks are ignored.
+ */
+public class VideoPlayer {
+
+    private static final String TAG = "VideoPlayer";
+
+    // Frames later than this are dropped rather than shown.
+    private static final long LATE_THRESHOLD_NS = 30 * 1000000L;
+
+    // How long before its time a frame is handed to the display. From API 21 the display
+    // queues it until then, before that it is shown right away.
+    private static final long RENDER_AHEAD_API21_NS = 30 * 1000000L;
+    private static final long RENDER_AHEAD_NS = 3 * 1000000L;
+
+    // Longest pause between two rounds of feeding and draining the decoder.
+    private static final long MAX_WORK_INTERVAL_MS = 10;
+
+    private static final int MSG_OPEN = 0;
+    private static final int MSG_PLAY = 1;
+    private static final int MSG_PAUSE = 2;
+    private static final int MSG_SEEK = 3;
+    private static final int MSG_DO_WORK = 4;
+    private static final int MSG_RELEASE = 5;
+
+    /**
+     * Notified on the handler passed to the constructor.
+     */
+    public interface Listener {
+        /** The file is open and its first frame is on the surface. */
+        void onPrepared(VideoPlayer player, int width, int height, long durationUs);
+
+        /** The last frame was shown. {@link #play()} starts over from the beginning. */
+        void onCompletion(VideoPlayer player);
+
+        /** Playback failed and stopped; only {@link #release()} is left to call. */
+        void onError(VideoPlayer player, String message);
+    }
+
+    /**
+     * Snapshot of the playback metrics, see {@link #getStats()}.
+     */
+    public static class Stats {
+        public final long framesDecoded;
+        public final long framesRendered;
+        /** Frames decoded too late to be shown. */
+        public final long framesDropped;
+        /** Decoded frames per second of playing time. */
+        public final float decodeFps;
+        public final long positionUs;
+        public final long durationUs;
+
+        Stats(long framesDecoded, long framesRendered, long framesDropped, float decodeFps,
+              long positionUs, long durationUs) {
+            this.framesDecoded = framesDecoded;
+            this.framesRendered = framesRendered;
+            this.framesDropped = framesDropped;
+            this.decodeFps = decodeFps;
+            this.positionUs = positionUs;
+            this.durationUs = durationUs;
+        }
+
+        @Override
+        public String toString() {
+            return "decoded " + framesDecoded + " (" + String.format(Locale.US, "%.1f", decodeFps)
+                    + " fps), rendered " + framesRendered + ", dropped " + framesDropped
+                    + ", at " + positionUs / 1000 + " of " + durationUs / 1000 + " ms";
+        }
+    }
+
+    private final Surface mSurface;
+    private final Listener mListener;
+    private final Handler mListenerHandler;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Only touched on the playback thread.
+    private MediaExtractor mExtractor;
+    private MediaCodecWrapper mDecoder;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mWidth;
+    private int mHeight;
+    private boolean mPlaying;
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    // Shows the next decoded frame right away, even while paused: the first one after
+    // opening or seeking.
+    private boolean mShowNextFrame;
+    // Anchors the clock at the next frame to show, after starting or seeking.
+    private boolean mAnchorPending;
+    private long mAnchorNs;
+    private long mAnchorPtsUs;
+    private boolean mPrepared;
+    private boolean mFailed;
+
+    // Metrics, written on the playback thread.
+    private volatile long mFramesDecoded;
+    private volatile long mFramesRendered;
+    private volatile long mFramesDropped;
+    private volatile long mPositionUs;
+    private volatile long mDurationUs;
+    private volatile long mPlayedNs;
+    private volatile long mPlayStartNs;
+
+    /**
+     * @param surface Where frames are rendered, e.g. of a {@link android.view.TextureView}.
+     * @param listener Receives the state changes, on {@code listenerHandler}.
+     */
+    public VideoPlayer(Surface surface, Listener listener, Handler listenerHandler) {
+        mSurface = surface;
+        mListener = listener;
+        mListenerHandler = listenerHandler;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (mFailed && msg.what != MSG_RELEASE) {
+                    return;
+                }
+                try {
+                    handleCommand(msg);
+                } catch (IOException | RuntimeException e) {
+                    fail(e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens {@code uri}, e.g. a recording picked through the storage access framework, and
+     * shows its first frame. Playback starts with {@link #play()}.
+     */
+    public void open(Context context, Uri uri) {
+        mHandler.obtainMessage(MSG_OPEN, new Object[] {context.getApplicationContext(), uri})
+                .sendToTarget();
+    }
+
+    public void play() {
+        mHandler.sendEmptyMessage(MSG_PLAY);
+    }
+
+    public void pause() {
+        mHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    /**
+     * Jumps to the key frame closest to {@code timeUs} and shows it, whether playing or not.
+     * Supersedes seeks that haven't been carried out yet.
+     */
+    public void seekTo(long timeUs) {
+        mHandler.removeMessages(MSG_SEEK);
+        mHandler.obtainMessage(MSG_SEEK, (int) (timeUs >>> 32), (int) timeUs).sendToTarget();
+    }
+
+    /**
+     * Stops playback and releases the decoder. Commands issued before are carried out first.
+     * Returns once the playback thread is gone, so the surface may be released right after.
+     */
+    public void release() {
+        mHandler.sendEmptyMessage(MSG_RELEASE);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Stats getStats() {
+        long playedNs = mPlayedNs;
+        long startNs = mPlayStartNs;
+        if (startNs != 0) {
+            playedNs += System.nanoTime() - startNs;
+        }
+        long decoded = mFramesDecoded;
+        return new Stats(decoded, mFramesRendered, mFramesDropped,
+                playedNs == 0 ? 0 : decoded * 1e9f / playedNs, mPositionUs, mDurationUs);
+    }
+
+    private void handleCommand(Message msg) throws IOException {
+        switch (msg.what) {
+            case MSG_OPEN: {
+                Object[] args = (Object[]) msg.obj;
+                openOnThread((Context) args[0], (Uri) args[1]);
+                break;
+            }
+            case MSG_PLAY:
+                if (mDecoder == null || mPlaying) {
+                    break;
+                }
+                if (mOutputDone) {
+                    seekOnThread(0);
+                }
+                mPlaying = true;
+                mAnchorPending = true;
+                mPlayStartNs = System.nanoTime();
+                scheduleWork(0);
+                break;
+            case MSG_PAUSE:
+                if (mPlaying) {
+                    mPlaying = false;
+                    mPlayedNs += System.nanoTime() - mPlayStartNs;
+                    mPlayStartNs = 0;
+                }
+                break;
+            case MSG_SEEK:
+                if (mDecoder != null) {
+                    seekOnThread(((long) msg.arg1 << 32) | (msg.arg2 & 0xffffffffL));
+                }
+                break;
+            case MSG_DO_WORK:
+                doWork();
+                break;
+            case MSG_RELEASE:
+                releaseOnThread();
+                break;
+        }
+    }
+
+    private void openOnThread(Context context, Uri uri) throws IOException {
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(context, uri, null);
+        MediaFormat format = null;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+            if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                mExtractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("No video track in " + uri);
+        }
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        mDurationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        mDecoder = MediaCodecWrapper.fromVideoFormat(format, mSurface, true);
+        if (mDecoder == null) {
+            throw new IOException("No decoder for " + format.getString(MediaFormat.KEY_MIME));
+        }
+        mShowNextFrame = true;
+        scheduleWork(0);
+    }
+
+    private void seekOnThread(long timeUs) {
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        mDecoder.flush();
+        mInputDone = false;
+        mOutputDone = false;
+        mShowNextFrame = true;
+        mAnchorPending = true;
+        scheduleWork(0);
+    }
+
+    private void scheduleWork(long delayMs) {
+        mHandler.removeMessages(MSG_DO_WORK);
+        mHandler.sendEmptyMessageDelayed(MSG_DO_WORK, delayMs);
+    }
+
+    /**
+     * One round of moving samples into the decoder and due frames out of it. Reschedules
+     * itself for when the next frame is due while there is anything to show.
+     */
+    private void doWork() {
+        feedInput();
+        long delayMs = drainOutput();
+        if (!mOutputDone && (mPlaying || mShowNextFrame)) {
+            scheduleWork(delayMs);
+        }
+    }
+
+    private void feedInput() {
+        while (!mInputDone) {
+            long ptsUs = mExtractor.getSampleTime();
+            // Past the last sample this queues an empty buffer flagged end-of-stream.
+            if (!mDecoder.writeSample(mExtractor, false, Math.max(ptsUs, 0), 0)) {
+                return;
+            }
+            if (ptsUs < 0) {
+                mInputDone = true;
+            } else {
+                mExtractor.advance();
+            }
+        }
+    }
+
+    /**
+     * Shows or drops the decoded frames that are due.
+     *
+     * @return how long to wait before the next frame may be due, in milliseconds.
+     */
+    private long drainOutput() {
+        while (mDecoder.peekSample(mInfo)) {
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mDecoder.popSample(false);
+                finishPlayback();
+                return 0;
+            }
+            long ptsUs = mInfo.presentationTimeUs;
+            long nowNs = System.nanoTime();
+            if (mShowNextFrame) {
+                mFramesDecoded++;
+                mDecoder.popSample(true);
+                mFramesRendered++;
+                mPositionUs = ptsUs;
+                mAnchorNs = nowNs;
+                mAnchorPtsUs = ptsUs;
+                mAnchorPending = false;
+                mShowNextFrame = false;
+                if (!mPrepared) {
+                    mPrepared = true;
+                    notifyPrepared();
+                }
+                if (!mPlaying) {
+                    return 0;
+                }
+                continue;
+            }
+            if (!mPlaying) {
+                return 0;
+            }
+            if (mAnchorPending) {
+                // Resumed after a pause: continue from this frame without a jump.
+                mAnchorNs = nowNs;
+                mAnchorPtsUs = ptsUs;
+                mAnchorPending = false;
+            }
+
+            long dueNs = mAnchorNs + (ptsUs - mAnchorPtsUs) * 1000;
+            long earlyNs = dueNs - nowNs;
+            if (earlyNs < -LATE_THRESHOLD_NS) {
+                mFramesDecoded++;
+                mDecoder.popSample(false);
+                mFramesDropped++;
+                continue;
+            }
+            long renderAheadNs = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? RENDER_AHEAD_API21_NS : RENDER_AHEAD_NS;
+            if (earlyNs > renderAheadNs) {
+                return Math.min((earlyNs - renderAheadNs) / 1000000, MAX_WORK_INTERVAL_MS);
+            }
+            mFramesDecoded++;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mDecoder.popSample(dueNs);
+            } else {
+                mDecoder.popSample(true);
+            }
+            mFramesRendered++;
+            mPositionUs = ptsUs;
+        }
+        return mInputDone ? MAX_WORK_INTERVAL_MS : 1;
+    }
+
+    private void finishPlayback() {
+        mOutputDone = true;
+        if (mPlaying) {
+            mPlaying = false;
+            mPlayedNs += System.nanoTime() - mPlayStartNs;
+            mPlayStartNs = 0;
+        }
+        Log.d(TAG, "Finished: " + getStats());
+        mListenerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onCompletion(VideoPlayer.this);
+            }
+        });
+    }
+
+    private void notifyPrepared() {
+        final int width = mWidth;
+        final int height = mHeight;
+        final long durationUs = mDurationUs;
+        mListenerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPrepared(VideoPlayer.this, width, height, durationUs);
+            }
+        });
+    }
+
+    private void fail(final String message) {
+        Log.e(TAG, "Playback failed: " + message);
+        mFailed = true;
+        mPlaying = false;
+        mHandler.removeMessages(MSG_DO_WORK);
+        mListenerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onError(VideoPlayer.this, message);
+            }
+        });
+    }
+
+    private void releaseOnThread() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mDecoder != null) {
+            mDecoder.stopAndRelease();
+            mDecoder = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mThread.quit();
+    }
+}
@@ -69,6 +69,7 @@ public class MainActivity extends Activity {
             MainService.LocalBinder binder = (MainService.LocalBinder) service;
             mService = binder.getService();
             mBound = true;
+            StartupTrace.mark(StartupTrace.SERVICE_CONNECTED);
             try {
                 mService.startRecord(
                         getContentResolver().openFileDescriptor(outputFileUri, "w").getFileDescriptor(),
@@ -138,6 +139,7 @@ public class MainActivity extends Activity {
      */
     public void onCaptureClick(View view) {
         Log.d(TAG, "CAPTURE clicked, create output file");
+        StartupTrace.begin(StartupTrace.CAPTURE_CLICK);
         //Log.d(TAG, "service Intent created, create a file that would be used by it");
         createFile(CameraHelper.getOutputMediaFileName());
     }
@@ -159,6 +161,19 @@ public class MainActivity extends Activity {
         stopService(new Intent(this, MainService.class));
     }
 
+    /**
+     * The play button reviews the last recording made in this session.
+     */
+    public void onPlayClick(View view) {
+        if (outputFileUri == null) {
+            Log.d(TAG, "PLAY clicked, but nothing was recorded yet");
+            return;
+        }
+        Intent intent = new Intent(this, PlaybackActivity.class);
+        intent.setData(outputFileUri);
+        startActivity(intent);
+    }
+
     public void onRadioButtonClicked(View view) {
         // Disclaimer: this implementation seems ugly to me and I know 1000 and 1 way to improve the algo
         //             BUT I get it from official man and afraid to touch it.
@@ -218,6 +233,7 @@ public class MainActivity extends Activity {
             // Pull that URI using resultData.getData().
             if (resultData != null) {
                 outputFileUri = resultData.getData();
+                StartupTrace.mark(StartupTrace.FILE_CREATED);
                 Log.d(TAG, "Uri: " + outputFileUri.toString());
                 Intent bgVideoServiceIntent = new Intent(this, MainService.class);
                 Log.d(TAG, "about to start service");
@@ -1,31 +1,65 @@
 package com.example.android.mediarecorder;
 
+import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.graphics.PixelFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
 import android.media.CamcorderProfile;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStatVfs;
 import android.util.Log;
 import android.view.Gravity;
+import android.view.Surface;
 import android.view.TextureView;
 import android.view.WindowManager;
 
+import com.example.android.common.media.AsyncSampleSink;
+import com.example.android.common.media.Camera2CaptureSource;
+import com.example.android.common.media.CameraCapabilityCache;
 import com.example.android.common.media.CameraHelper;
+import com.example.android.common.media.CaptureSource;
+import com.example.android.common.media.FragmentedMp4Sink;
+import com.example.android.common.media.KeyframeIndex;
+import com.example.android.common.media.LegacyCaptureSource;
+import com.example.android.common.media.LiveStreamSink;
+import com.example.android.common.media.MediaCodecWrapper;
+import com.example.android.common.media.MuxerSink;
+import com.example.android.common.media.PreRecordSink;
+import com.example.android.common.media.SampleSink;
+import com.example.android.common.media.SegmentIndex;
+import com.example.android.common.media.SegmentingSink;
+import com.example.android.common.media.TeeSink;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Artem Pelenitsyn on 22.02.16.
@@ -36,17 +70,128 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
     private WindowManager windowManager;
     private static final String TAG = "RecorderService";
 
-    private Camera mCamera = null;
+    /** Records through {@link MediaRecorder}, with audio. Works on every API level. */
+    public static final int ENGINE_MEDIA_RECORDER = 0;
+    /**
+     * Renders camera frames straight into an encoder input surface and muxes with
+     * {@link android.media.MediaMuxer}. Audio is captured with {@link android.media.AudioRecord}
+     * and timed against the camera frames, or left out without the microphone permission.
+     * Requires API 18; falls back to {@link #ENGINE_MEDIA_RECORDER} on older devices.
+     */
+    public static final int ENGINE_SURFACE = 1;
+
+    /**
+     * For {@link #ENGINE_SURFACE} camera2 where the camera supports it natively, the legacy
+     * camera API otherwise; always the legacy camera API for {@link #ENGINE_MEDIA_RECORDER}.
+     */
+    public static final int CAMERA_API_AUTO = 0;
+    /** {@link android.hardware.Camera}, available on every API level. */
+    public static final int CAMERA_API_LEGACY = 1;
+    /** {@link android.hardware.camera2}, requires API 21; legacy API on older devices. */
+    public static final int CAMERA_API_CAMERA2 = 2;
+
+    /** Classic MP4, indexed when the recording stops. */
+    public static final int CONTAINER_MP4 = 0;
+    /**
+     * Fragmented MP4, playable up to the last fragment while it is being written. Only for
+     * {@link #ENGINE_SURFACE}.
+     */
+    public static final int CONTAINER_FRAGMENTED_MP4 = 1;
+
+    // Seconds between key frames for the surface engine.
+    private static final int I_FRAME_INTERVAL_SEC = 1;
+
+    // Encoded output the surface engine can queue for slow storage before dropping frames.
+    private static final int WRITER_QUEUE_SEC = 3;
+    private static final int MIN_WRITER_QUEUE_BYTES = 1 << 20;
+
+    // Encoded output the live stream can queue for the network before dropping frames, and
+    // the segments its playlist lists.
+    private static final int LIVE_QUEUE_SEC = 3;
+    private static final int LIVE_PLAYLIST_SEGMENTS = 6;
+
+    // How often the adaptive quality controller looks at the recording.
+    private static final long QUALITY_CHECK_INTERVAL_MS = 1000;
+
+    // How often the storage forecast looks at the free space while recording.
+    private static final long STORAGE_CHECK_INTERVAL_MS = 5000;
+    // Files modified more recently may belong to the running recording and are never evicted.
+    private static final long EVICT_MIN_AGE_MS = 60 * 1000;
+
+    // Only touched on the controller thread.
+    private CaptureSource captureSource = null;
+    private volatile int cameraApi = CAMERA_API_AUTO;
+    private int minFrameRate;
+    private int maxFrameRate;
+    private Surface analysisSurface;
+    private CameraCapabilityCache cameraCache;
     private TextureView mPreview;
     private MediaRecorder mMediaRecorder = null;
+    // Read from the main thread and by listeners, written on the controller thread.
+    private volatile SurfaceRecorder mSurfaceRecorder = null;
+    private volatile AsyncSampleSink writerSink = null;
+    private AsyncSampleSink proxyWriterSink = null;
+    private LiveStreamSink liveStreamSink = null;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean adaptiveQuality = false;
+    private QualityController qualityController = null;
     private FileDescriptor outputFileDescriptor = null;
+    // Runs all camera and recorder operations, see CameraDelegate.
+    private RecorderController controller;
     private int quality;
+    private int engine = ENGINE_MEDIA_RECORDER;
+    private int container = CONTAINER_MP4;
+    private PowerStats powerStats;
+
+    // Storage forecast of the running recording, main thread only; see checkStorage.
+    private StorageForecast storageForecast;
+    private FileDescriptor storageFd;
+    private boolean storageLow;
+    // Expected write rate of the prepared recording, from its profile.
+    private long nominalBytesPerSecond;
+    private volatile boolean storageEviction = false;
+    private volatile boolean evicting = false;
+    private volatile long remainingRecordSeconds = -1;
+
+    // Segmented recording into CameraHelper.getOutputMediaDir(), see startSegmentedRecord().
+    private boolean segmented = false;
+    private long segmentDurationMs;
+    private long segmentBytes;
+    private SegmentingSink segmentingSink;
+    // Storage budget of a loop recording, see startLoopRecord(); 0 for a plain segmented one.
+    private long loopBudgetBytes;
+    // Segments of loop recordings in CameraHelper.getOutputMediaDir(), null until opened.
+    private volatile SegmentIndex segmentIndex;
+
+    // Dashcam recording into CameraHelper.getOutputMediaDir(), see startDashcam().
+    private boolean dashcam = false;
+    private int dashcamBufferBytes;
+    private long dashcamWindowMs;
+    private volatile PreRecordSink preRecordSink;
+    // Post-roll of clips triggered by motion, see startMotionRecord(); 0 for manual saves.
+    private volatile long motionPostRollMs;
+    // Controller thread only.
+    private MotionMonitor motionMonitor;
 
     private boolean isSurfaceCreated = false;
 
+    // Records without the preview overlay, see setHeadless().
+    private volatile boolean headless = false;
+    // Stands in for the preview of the legacy camera when headless, controller thread only.
+    private SurfaceTexture offscreenTexture;
+    private volatile String lastPowerUsage;
+    // Label of the timestamp overlay, null for none; see setTimestampOverlay().
+    private volatile String overlayLabel;
+    // Second, low resolution stream, see setProxyStream(); height 0 for none.
+    private volatile int proxyHeight;
+    private volatile int proxyBitRate;
+    // Where the next recordings are streamed to, see setLiveStream(); null for nowhere.
+    private volatile String liveStreamUrl;
+
     @Override
     public void onCreate() {
         Log.d(TAG, "START Creating Background Recorder Service");
+        StartupTrace.mark(StartupTrace.SERVICE_CREATED);
         // Start foreground service to avoid unexpected kill
         Notification notification = new Notification.Builder(this)
                 .setContentTitle("Background Video Recorder")
@@ -56,6 +201,21 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
         startForeground(1234, notification);
 
         windowManager = (WindowManager) this.getSystemService(Context.WINDOW_SERVICE);
+
+        // Opening the camera dominates the time to the first frame, so do it before anyone asks
+        // for a recording. The controller runs commands in order, so this is done before any
+        // recording is prepared.
+        cameraCache = new CameraCapabilityCache(this);
+        controller = new RecorderController(new CameraDelegate());
+        controller.open();
+        Log.d(TAG, "FINISH Creating Background Recorder Service");
+    }
+
+    /**
+     * Adds the preview overlay. Recording starts in {@link #onSurfaceTextureAvailable} once its
+     * surface exists.
+     */
+    private void showPreview() {
         mPreview = new TextureView(this);
         WindowManager.LayoutParams layoutParams = new WindowManager.LayoutParams(
                 768, 432, //1024, 576,
@@ -66,7 +226,20 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
         layoutParams.gravity = Gravity.CENTER_HORIZONTAL | Gravity.CENTER_VERTICAL;
         windowManager.addView(mPreview, layoutParams);
         mPreview.setSurfaceTextureListener(this);
-        Log.d(TAG, "FINISH Creating Background Recorder Service");
+    }
+
+    /**
+     * Starts the requested recording right away when headless, otherwise as soon as the
+     * preview overlay has a surface.
+     */
+    private void requestStart() {
+        if (headless) {
+            controller.prepareAndStart();
+        } else if (mPreview == null) {
+            showPreview();
+        } else if (isSurfaceCreated) {
+            controller.prepareAndStart();
+        }
     }
 
     // Method called right after Surface created (initializing and starting MediaRecorder)
@@ -76,8 +249,9 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
         // BEGIN_INCLUDE(prepare_start_media_recorder)
 
         isSurfaceCreated = true;
-        if (outputFileDescriptor != null)
-            new MediaPrepareTask().execute(null, null, null);
+        StartupTrace.mark(StartupTrace.SURFACE_AVAILABLE);
+        if ((outputFileDescriptor != null || segmented || dashcam) && !headless)
+            controller.prepareAndStart();
 
         Log.d(TAG, "FINISH surfaceCreated handler: MediaRecorder fired");
         // END_INCLUDE(prepare_start_media_recorder)
@@ -96,28 +270,38 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
 
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        // empty so far
+        // The first preview frame after the recorder started closes the startup timeline.
+        if (StartupTrace.isMarked(StartupTrace.RECORDER_STARTED)
+                && !StartupTrace.isMarked(StartupTrace.FIRST_FRAME)) {
+            StartupTrace.mark(StartupTrace.FIRST_FRAME);
+            reportStartup();
+        }
+    }
+
+    private void reportStartup() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.report(MainService.this);
+            }
+        });
     }
 
     // Stop recording and remove preview
     @Override
     public void onDestroy() {
         Log.d(TAG, "About to destroy");
-        // BEGIN_INCLUDE(stop_release_media_recorder)
-        // stop recording and release camera
-        if (mMediaRecorder != null) {
-            mMediaRecorder.stop();  // stop the recording
-            releaseMediaRecorder(); // release the MediaRecorder object
-            outputFileDescriptor = null;
-        }
-
-        if (mCamera != null) {
-            mCamera.lock(); // take camera access back from MediaRecorder
-            releaseCamera();
-        }
-        // END_INCLUDE(stop_release_media_recorder)
-
-        windowManager.removeView(mPreview);
+        // The controller thread stops the recording and releases the camera; the preview is
+        // removed once nothing renders into it anymore.
+        controller.release(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreview != null) {
+                    windowManager.removeView(mPreview);
+                    mPreview = null;
+                }
+            }
+        }, mainHandler);
         isSurfaceCreated = false;
     }
 
@@ -126,67 +310,107 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
     private boolean prepareVideoRecorder(){
         Log.d(TAG, "START prepareVideoRecorder");
         // BEGIN_INCLUDE (configure_preview)
-        try {
-            mCamera = CameraHelper.getDefaultCameraInstance();
-        } catch (RuntimeException e) {
-            return false;
+        // The controller opened the camera already, unless another camera API was selected
+        // since.
+        if (captureSource == null
+                || (captureSource instanceof Camera2CaptureSource) != useCamera2()) {
+            releaseCamera();
+            if (!openCamera()) {
+                return false;
+            }
         }
 
         // We need to make sure that our preview and recording video size are supported by the
-        // camera. Query camera to find all the sizes and choose the optimal size given the
-        // dimensions of our preview surface.
-        Camera.Parameters parameters = mCamera.getParameters();
-        List<Camera.Size> mSupportedPreviewSizes = parameters.getSupportedPreviewSizes();
-        Camera.Size optimalSize = CameraHelper.getOptimalPreviewSize(mSupportedPreviewSizes,
-                mPreview.getWidth(), mPreview.getHeight());
+        // camera. The cached capabilities tell without parsing the camera parameters again.
+        int cameraId = captureSource.getCameraId();
+        int profileQuality = quality;
+        if (!captureSource.supportsQuality(profileQuality)) {
+            Log.w(TAG, "Quality " + quality + " unsupported, using the highest available");
+            profileQuality = CamcorderProfile.QUALITY_HIGH;
+        }
 
         // Use the same size for recording profile.
-        CamcorderProfile profile = CamcorderProfile.get(quality);
-        //profile.videoFrameWidth = optimalSize.width;
-        //profile.videoFrameHeight = optimalSize.height;
-
-        // likewise for the camera object itself.
-        parameters.setPreviewSize(profile.videoFrameWidth, profile.videoFrameHeight);
-
-        // dreaded auto-focus FOCUS_MODE_CONTINUOUS_VIDEO
-        parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+        CamcorderProfile profile = CamcorderProfile.get(cameraId, profileQuality);
+        nominalBytesPerSecond = (profile.videoBitRate + profile.audioBitRate) / 8;
+        if (!captureSource.supportsVideoSize(profile.videoFrameWidth,
+                profile.videoFrameHeight)) {
+            Log.w(TAG, "Video size " + profile.videoFrameWidth + "x"
+                    + profile.videoFrameHeight + " not listed by the camera");
+        }
 
-        mCamera.setParameters(parameters);
-        try {
-            // Requires API level 11+, For backward compatibility use {@link setPreviewDisplay}
-            // with {@link SurfaceView}
-            mCamera.setPreviewTexture(mPreview.getSurfaceTexture());
-        } catch (IOException e) {
-            Log.e(TAG, "Surface texture is unavailable or unsuitable" + e.getMessage());
-            return false;
+        int[] fps = captureSource.setFrameRateRange(
+                minFrameRate > 0 ? minFrameRate : profile.videoFrameRate,
+                maxFrameRate > 0 ? maxFrameRate : profile.videoFrameRate);
+        if (fps != null) {
+            Log.d(TAG, "Camera frame rate " + fps[0] + "-" + fps[1] + " fps");
+            if (maxFrameRate > 0) {
+                // Encode at the requested rate rather than the one of the profile.
+                profile.videoFrameRate = fps[1];
+            }
+        }
+        Surface analysis = analysisSurface;
+        if (dashcam && motionPostRollMs > 0) {
+            analysis = startMotionMonitor(profile, analysis);
+        }
+        if (analysis != null && !captureSource.supportsSurfaceOutputs()) {
+            Log.w(TAG, "Analysis output requires camera2, ignored");
+            analysis = null;
         }
         // END_INCLUDE (configure_preview)
 
+        if (useSurfaceEngine()) {
+            return prepareSurfaceRecorder(profile, analysis);
+        }
+        if (overlayLabel != null) {
+            Log.w(TAG, "Timestamp overlay requires the surface engine, ignored");
+        }
+        if (proxyHeight > 0) {
+            Log.w(TAG, "Proxy stream requires the surface engine, ignored");
+        }
+        if (liveStreamUrl != null) {
+            Log.w(TAG, "Live streaming requires the surface engine, ignored");
+        }
 
         // BEGIN_INCLUDE (configure_media_recorder)
         mMediaRecorder = new MediaRecorder();
+        boolean surfaceInput = captureSource.supportsSurfaceOutputs();
+        try {
+            if (!surfaceInput) {
+                // Step 1: Preview into our overlay, unlock and set camera to MediaRecorder
+                captureSource.configure(getPreviewTexture(true),
+                        profile.videoFrameWidth, profile.videoFrameHeight, null, null);
+                mMediaRecorder.setCamera(((LegacyCaptureSource) captureSource).unlock());
+            }
 
-        // Step 1: Unlock and set camera to MediaRecorder
-        mCamera.unlock();
-        mMediaRecorder.setCamera(mCamera);
+            // Step 2: Set sources
+            mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT );
+            mMediaRecorder.setVideoSource(surfaceInput
+                    ? MediaRecorder.VideoSource.SURFACE : MediaRecorder.VideoSource.CAMERA);
 
-        // Step 2: Set sources
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT );
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+            // Step 3: Set a CamcorderProfile (requires API Level 8 or higher)
+            mMediaRecorder.setProfile(profile);
 
-        // Step 3: Set a CamcorderProfile (requires API Level 8 or higher)
-        mMediaRecorder.setProfile(profile);
+            // Step 4: Set output file
+            mMediaRecorder.setOutputFile(outputFileDescriptor);
 
-        // Step 4: Set output file
-        mMediaRecorder.setOutputFile(outputFileDescriptor);
+            // END_INCLUDE (configure_media_recorder)
 
-        // END_INCLUDE (configure_media_recorder)
+            Log.d(TAG, "MediaRecorder successfully configured, now prepare it");
 
-        Log.d(TAG, "MediaRecorder successfully configured, now prepare it");
+            // Step 5: Prepare configured MediaRecorder
+            StartupTrace.beginSection("MediaRecorder.prepare");
+            try {
+                mMediaRecorder.prepare();
+            } finally {
+                StartupTrace.endSection();
+            }
 
-        // Step 5: Prepare configured MediaRecorder
-        try {
-            mMediaRecorder.prepare();
+            if (surfaceInput) {
+                // The input surface of the recorder exists once it is prepared.
+                captureSource.configure(getPreviewTexture(false),
+                        profile.videoFrameWidth, profile.videoFrameHeight,
+                        getRecorderSurface(), analysis);
+            }
         } catch (IllegalStateException e) {
             Log.d(TAG, "IllegalStateException preparing MediaRecorder: " + e.getMessage());
             releaseMediaRecorder();
@@ -200,30 +424,809 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
     }
 
     /**
-     * Asynchronous task for preparing the {@link android.media.MediaRecorder} since it's a long blocking
-     * operation.
+     * @param required True if the camera needs a texture to render into even without preview,
+     * as the legacy camera does.
+     * @return the texture of the preview overlay, or when headless an offscreen texture nobody
+     * draws, or null if not required.
      */
-    class MediaPrepareTask extends AsyncTask<Void, Void, Boolean> {
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private SurfaceTexture getPreviewTexture(boolean required) {
+        if (!headless) {
+            return mPreview.getSurfaceTexture();
+        }
+        if (!required) {
+            return null;
+        }
+        if (offscreenTexture == null) {
+            // Never attached to a GL context: frames are queued and dropped without any
+            // compositing.
+            offscreenTexture = new SurfaceTexture(0);
+        }
+        return offscreenTexture;
+    }
 
-        @Override
-        protected Boolean doInBackground(Void... voids) {
-            // initialize video camera
-            if (prepareVideoRecorder()) {
-                // Camera is available and unlocked, MediaRecorder is prepared,
-                // now you can start recording
-                Log.d(TAG, "Starting record");
-                mMediaRecorder.start();
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private Surface getRecorderSurface() {
+        return mMediaRecorder.getSurface();
+    }
+
+    private boolean useSurfaceEngine() {
+        return engine == ENGINE_SURFACE
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Sets up the {@link SurfaceRecorder} engine: the camera previews into a texture of the
+     * recorder, which encodes it and mirrors it to our overlay.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean prepareSurfaceRecorder(CamcorderProfile profile, Surface analysis) {
+        MediaFormat format = MediaCodecWrapper.createVideoEncoderFormat(
+                MediaFormat.MIMETYPE_VIDEO_AVC,
+                profile.videoFrameWidth, profile.videoFrameHeight,
+                profile.videoBitRate, profile.videoFrameRate, I_FRAME_INTERVAL_SEC,
+                -1, -1, -1);
+        try {
+            SampleSink sink;
+            if (segmented) {
+                segmentingSink = createSegmentingSink();
+                sink = segmentingSink;
+            } else if (dashcam) {
+                preRecordSink = createPreRecordSink(profile);
+                sink = preRecordSink;
+            } else if (container == CONTAINER_FRAGMENTED_MP4) {
+                sink = FragmentedMp4Sink.fromFileDescriptor(outputFileDescriptor);
             } else {
-                // prepare didn't work, release the camera
-                releaseMediaRecorder();
+                sink = MuxerSink.fromFileDescriptor(outputFileDescriptor);
+            }
+            SampleSink output = createWriterSink(sink, profile);
+            TeeSink tee = liveStreamUrl != null ? new TeeSink(output) : null;
+            mSurfaceRecorder = new SurfaceRecorder(format, tee != null ? tee : output);
+            if (overlayLabel != null) {
+                mSurfaceRecorder.setTimestampOverlay(overlayLabel);
+            }
+            if (checkCallingOrSelfPermission(Manifest.permission.RECORD_AUDIO)
+                    == PackageManager.PERMISSION_GRANTED) {
+                mSurfaceRecorder.setAudio(MediaCodecWrapper.createAudioEncoderFormat(
+                        profile.audioSampleRate, profile.audioChannels, profile.audioBitRate,
+                        MediaCodecInfo.CodecProfileLevel.AACObjectLC),
+                        MediaRecorder.AudioSource.CAMCORDER);
+            } else {
+                Log.w(TAG, "No permission to record audio, recording video only");
+            }
+            if (proxyHeight > 0) {
+                if (dashcam) {
+                    Log.w(TAG, "Proxy stream isn't supported by dashcam recording, ignored");
+                } else {
+                    addProxy(profile);
+                }
+            }
+            // The proxy is streamed when there is one, it is cheaper to send.
+            if (tee != null && liveStreamSink == null) {
+                liveStreamSink = createLiveStreamSink(profile.videoBitRate, false);
+                if (liveStreamSink != null) {
+                    tee.add(liveStreamSink);
+                }
+            }
+            SurfaceTexture cameraTexture = mSurfaceRecorder.start(getPreviewTexture(false));
+            captureSource.configure(cameraTexture, profile.videoFrameWidth,
+                    profile.videoFrameHeight, null, analysis);
+            if (adaptiveQuality) {
+                startQualityControl(profile.videoBitRate);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "IOException preparing SurfaceRecorder: " + e.getMessage());
+            releaseSurfaceRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the proxy stream to {@link #mSurfaceRecorder}: the same frames scaled to
+     * {@link #proxyHeight}, encoded into a file of their own in
+     * {@link CameraHelper#getOutputMediaDir()} with a writer of their own, so a slow proxy file
+     * never stalls the main recording. A proxy that can't be created is skipped. When live
+     * streaming, the proxy is what gets streamed.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void addProxy(CamcorderProfile profile) {
+        File dir = CameraHelper.getOutputMediaDir();
+        if (dir == null) {
+            Log.w(TAG, "Output directory is unavailable, recording without proxy");
+            return;
+        }
+        int height = Math.min(proxyHeight, profile.videoFrameHeight);
+        // Keep the aspect ratio; encoders want dimensions in whole macroblocks.
+        int width = Math.round(profile.videoFrameWidth * height
+                / (float) profile.videoFrameHeight / 16) * 16;
+        height = Math.round(height / 16f) * 16;
+        MediaFormat format = MediaCodecWrapper.createVideoEncoderFormat(
+                MediaFormat.MIMETYPE_VIDEO_AVC, width, height, proxyBitRate,
+                profile.videoFrameRate, I_FRAME_INTERVAL_SEC, -1, -1, -1);
+        String path = new File(dir, CameraHelper.getProxyFileName(
+                CameraHelper.getOutputMediaFileName())).getPath();
+        SampleSink sink;
+        try {
+            sink = container == CONTAINER_FRAGMENTED_MP4
+                    ? FragmentedMp4Sink.fromPath(path)
+                    : new MuxerSink(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create proxy " + path + ": " + e.getMessage());
+            return;
+        }
+
+        int bytes = Math.max(MIN_WRITER_QUEUE_BYTES, proxyBitRate / 8 * WRITER_QUEUE_SEC);
+        int samples = Math.max(1, profile.videoFrameRate * WRITER_QUEUE_SEC);
+        proxyWriterSink = new AsyncSampleSink(sink, bytes, samples, AsyncSampleSink.POLICY_DROP);
+        proxyWriterSink.setListener(new AsyncSampleSink.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                Log.w(TAG, "Storage is too slow, dropping proxy frames");
+                SurfaceRecorder recorder = mSurfaceRecorder;
+                if (recorder != null) {
+                    recorder.requestProxySyncFrame();
+                }
+            }
+        });
+        SampleSink output = proxyWriterSink;
+        if (liveStreamUrl != null) {
+            liveStreamSink = createLiveStreamSink(proxyBitRate, true);
+            if (liveStreamSink != null) {
+                TeeSink tee = new TeeSink(proxyWriterSink);
+                tee.add(liveStreamSink);
+                output = tee;
+            }
+        }
+        mSurfaceRecorder.setProxy(format, output);
+        Log.d(TAG, "Proxy " + width + "x" + height + " at " + proxyBitRate / 1000 + " kbps to "
+                + path);
+    }
+
+    /**
+     * Moves writing to storage off the encoder thread. When storage falls behind by more than
+     * {@link #WRITER_QUEUE_SEC} frames are dropped up to the next key frame, which is
+     * requested right away.
+     */
+    private SampleSink createWriterSink(SampleSink sink, CamcorderProfile profile) {
+        int bytes = Math.max(MIN_WRITER_QUEUE_BYTES,
+                profile.videoBitRate / 8 * WRITER_QUEUE_SEC);
+        int samples = Math.max(1, profile.videoFrameRate * WRITER_QUEUE_SEC);
+        writerSink = new AsyncSampleSink(sink, bytes, samples, AsyncSampleSink.POLICY_DROP);
+        writerSink.setListener(new AsyncSampleSink.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                Log.w(TAG, "Storage is too slow, dropping frames");
+                SurfaceRecorder recorder = mSurfaceRecorder;
+                if (recorder != null) {
+                    recorder.requestSyncFrame();
+                }
+            }
+        });
+        return writerSink;
+    }
+
+    /**
+     * Creates the sink streaming to {@link #liveStreamUrl}, with a send queue of
+     * {@link #LIVE_QUEUE_SEC} of the stream. Returns null if the URL is invalid, the recording
+     * then goes on without streaming.
+     *
+     * @param proxy Whether the proxy encoder feeds the stream, which then gets key frame
+     * requests when frames are dropped.
+     */
+    private LiveStreamSink createLiveStreamSink(int bitRate, final boolean proxy) {
+        String url = liveStreamUrl;
+        if (url == null) {
+            return null;
+        }
+        LiveStreamSink.HttpUploader uploader;
+        try {
+            uploader = new LiveStreamSink.HttpUploader(url);
+        } catch (IOException e) {
+            Log.w(TAG, "Invalid live stream URL " + url + ": " + e.getMessage());
+            return null;
+        }
+        int bytes = Math.max(MIN_WRITER_QUEUE_BYTES, bitRate / 8 * LIVE_QUEUE_SEC);
+        LiveStreamSink live = new LiveStreamSink(uploader,
+                LiveStreamSink.DEFAULT_SEGMENT_DURATION_US, bytes, LIVE_PLAYLIST_SEGMENTS);
+        live.setListener(new LiveStreamSink.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                Log.w(TAG, "Network is too slow, dropping live frames");
+                SurfaceRecorder recorder = mSurfaceRecorder;
+                if (recorder == null) {
+                    return;
+                }
+                if (proxy) {
+                    recorder.requestProxySyncFrame();
+                } else {
+                    recorder.requestSyncFrame();
+                }
+            }
+        });
+        Log.d(TAG, "Streaming " + (proxy ? "proxy" : "recording") + " to " + url);
+        return live;
+    }
+
+    /**
+     * Creates the sink for segmented recording: one MP4 per segment in
+     * {@link CameraHelper#getOutputMediaDir()}, named after the recording.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private SegmentingSink createSegmentingSink() throws IOException {
+        final File dir = CameraHelper.getOutputMediaDir();
+        if (dir == null) {
+            throw new IOException("Output directory is unavailable");
+        }
+        final String recordingName = CameraHelper.getOutputMediaFileName();
+        // Loop recordings list their segments in the index, which evicts the oldest ones.
+        final SegmentIndex index = loopBudgetBytes > 0 ? getSegmentIndex() : null;
+        final long budgetBytes = loopBudgetBytes;
+        final long headroomBytes = segmentBytes > 0
+                ? segmentBytes : nominalBytesPerSecond * segmentDurationMs / 1000;
+        if (index != null) {
+            trimLoop(index, budgetBytes, headroomBytes);
+        }
+
+        SegmentingSink sink = new SegmentingSink(new SegmentingSink.SegmentFactory() {
+            @Override
+            public SampleSink createSegment(int segment) throws IOException {
+                String name = CameraHelper.getSegmentFileName(recordingName, segment);
+                if (index != null) {
+                    index.add(name);
+                }
+                String path = new File(dir, name).getPath();
+                return container == CONTAINER_FRAGMENTED_MP4
+                        ? FragmentedMp4Sink.fromPath(path)
+                        : new MuxerSink(path);
+            }
+
+            @Override
+            public void onSegmentDiscarded(int segment) {
+                String name = CameraHelper.getSegmentFileName(recordingName, segment);
+                if (index != null) {
+                    index.remove(name);
+                }
+                File file = new File(dir, name);
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete unused segment " + file);
+                }
+            }
+        }, segmentDurationMs * 1000, segmentBytes);
+
+        sink.setListener(new SegmentingSink.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                SurfaceRecorder recorder = mSurfaceRecorder;
+                if (recorder != null) {
+                    recorder.requestSyncFrame();
+                }
+            }
+
+            @Override
+            public void onSegmentFinished(int segment, long durationUs, long bytes) {
+                Log.d(TAG, "Segment " + segment + " finished: " + durationUs / 1000 + " ms, "
+                        + bytes + " bytes");
+                if (index != null) {
+                    String name = CameraHelper.getSegmentFileName(recordingName, segment);
+                    index.complete(name, System.currentTimeMillis() - durationUs / 1000,
+                            durationUs, new File(dir, name).length());
+                    trimLoop(index, budgetBytes, headroomBytes);
+                }
+            }
+        });
+        return sink;
+    }
+
+    /**
+     * Evicts the oldest unlocked segments of loop recordings until the segment being written,
+     * estimated at {@code headroomBytes}, fits into {@code budgetBytes}.
+     */
+    private static void trimLoop(SegmentIndex index, long budgetBytes, long headroomBytes) {
+        while (index.getTotalBytes() + headroomBytes > budgetBytes) {
+            if (index.evictOldest() < 0) {
+                Log.w(TAG, "Loop recording is over its budget, the remaining "
+                        + index.size() + " segments are locked");
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the index of loop recording segments, opened on first use. That maps a file and
+     * may recover the segments of a crashed recording, so it is first used off the main thread:
+     * by a loop recording on the controller thread, by eviction on a background thread.
+     * @throws IOException if the output directory is unavailable or the index unreadable.
+     */
+    private synchronized SegmentIndex getSegmentIndex() throws IOException {
+        if (segmentIndex == null) {
+            File dir = CameraHelper.getOutputMediaDir();
+            if (dir == null) {
+                throw new IOException("Output directory is unavailable");
+            }
+            segmentIndex = SegmentIndex.open(dir);
+            Log.d(TAG, "Segment index: " + segmentIndex.size() + " segments, "
+                    + segmentIndex.getTotalBytes() / 1024 / 1024 + " MB");
+        }
+        return segmentIndex;
+    }
+
+    /**
+     * Creates the sink for dashcam recording: the last {@link #dashcamWindowMs} are kept in
+     * memory and every {@link #saveDashcamClip(long)} writes a new file in
+     * {@link CameraHelper#getOutputMediaDir()}.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private PreRecordSink createPreRecordSink(CamcorderProfile profile) throws IOException {
+        final File dir = CameraHelper.getOutputMediaDir();
+        if (dir == null) {
+            throw new IOException("Output directory is unavailable");
+        }
+        final String recordingName = CameraHelper.getOutputMediaFileName();
+        // One GOP more than the window, as eviction works on whole GOPs.
+        long frames = (dashcamWindowMs / 1000 + I_FRAME_INTERVAL_SEC + 1)
+                * profile.videoFrameRate;
+        int maxSamples = (int) Math.min(Integer.MAX_VALUE, Math.max(frames, 1));
+
+        return new PreRecordSink(new PreRecordSink.ClipFactory() {
+            @Override
+            public SampleSink createClip(int index) throws IOException {
+                String path = new File(dir,
+                        CameraHelper.getSegmentFileName(recordingName, index)).getPath();
+                return container == CONTAINER_FRAGMENTED_MP4
+                        ? FragmentedMp4Sink.fromPath(path)
+                        : new MuxerSink(path);
+            }
+        }, dashcamBufferBytes, maxSamples, dashcamWindowMs * 1000);
+    }
+
+    /**
+     * Saves a dashcam clip whenever the camera sees motion. The frames come from a small
+     * analysis stream with camera2 and from preview callbacks with the legacy camera.
+     *
+     * @return the analysis surface to configure instead of {@code analysis}.
+     */
+    private Surface startMotionMonitor(CamcorderProfile profile, Surface analysis) {
+        motionMonitor = new MotionMonitor(new MotionMonitor.Listener() {
+            @Override
+            public void onMotion() {
+                PreRecordSink sink = preRecordSink;
+                if (sink != null) {
+                    sink.trigger(motionPostRollMs * 1000);
+                }
+            }
+        });
+        if (captureSource.supportsSurfaceOutputs()) {
+            if (analysis != null) {
+                Log.w(TAG, "Analysis surface replaced by motion detection");
+            }
+            return motionMonitor.openAnalysisSurface();
+        }
+        motionMonitor.setPreviewSize(profile.videoFrameWidth, profile.videoFrameHeight);
+        ((LegacyCaptureSource) captureSource).setFrameCallback(motionMonitor,
+                MotionMonitor.CALLBACK_BUFFERS);
+        return analysis;
+    }
+
+    private void releaseMotionMonitor() {
+        if (motionMonitor == null) {
+            return;
+        }
+        if (captureSource instanceof LegacyCaptureSource) {
+            ((LegacyCaptureSource) captureSource).setFrameCallback(null, 0);
+        }
+        motionMonitor.release();
+        motionMonitor = null;
+    }
+
+    private void startQualityControl(final int fullBitRate) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                qualityController = new QualityController(fullBitRate);
+                mainHandler.postDelayed(checkQuality, QUALITY_CHECK_INTERVAL_MS);
+            }
+        });
+    }
+
+    private void stopQualityControl() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.removeCallbacks(checkQuality);
+                qualityController = null;
+            }
+        });
+    }
+
+    /**
+     * Feeds the quality controller with the state of the surface engine and applies its
+     * decisions. Runs on the main thread.
+     */
+    private final Runnable checkQuality = new Runnable() {
+        @Override
+        public void run() {
+            SurfaceRecorder recorder = mSurfaceRecorder;
+            AsyncSampleSink writer = writerSink;
+            QualityController controller = qualityController;
+            if (recorder == null || writer == null || controller == null) {
+                return;
+            }
+            AsyncSampleSink.Stats stats = writer.getStats();
+            if (controller.update(SystemClock.elapsedRealtime(), recorder.getFramesRendered(),
+                    recorder.getSamplesWritten(), stats.queuedBytes, writer.getCapacity(),
+                    stats.droppedSamples, readBatteryTemperature())) {
+                Log.d(TAG, "Quality level " + controller.getLevel() + ", "
+                        + controller.getBitRate() / 1000 + " kbps: " + controller.getReason());
+                recorder.setBitRate(controller.getBitRate());
+            }
+            mainHandler.postDelayed(this, QUALITY_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private void startStorageMonitor() {
+        final long bytesPerSecond = nominalBytesPerSecond;
+        final FileDescriptor fd = outputFileDescriptor;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                storageForecast = new StorageForecast(bytesPerSecond);
+                storageFd = fd;
+                storageLow = false;
+                mainHandler.post(checkStorage);
+            }
+        });
+    }
+
+    private void stopStorageMonitor() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.removeCallbacks(checkStorage);
+                storageForecast = null;
+                storageFd = null;
+                remainingRecordSeconds = -1;
+            }
+        });
+    }
+
+    /**
+     * Forecasts the recording time left, and makes room or stops the recording while it can
+     * still be finished cleanly. Runs on the main thread.
+     */
+    private final Runnable checkStorage = new Runnable() {
+        @Override
+        public void run() {
+            StorageForecast forecast = storageForecast;
+            if (forecast == null) {
+                return;
+            }
+            long free = getFreeBytes(storageFd);
+            if (free >= 0) {
+                SurfaceRecorder recorder = mSurfaceRecorder;
+                int action = forecast.update(SystemClock.elapsedRealtime(),
+                        recorder != null ? recorder.getBytesWritten() : -1, free);
+                remainingRecordSeconds = forecast.getRemainingSeconds();
+                if (action == StorageForecast.ACTION_STOP) {
+                    Log.w(TAG, "Storage is full (" + free / 1024 / 1024
+                            + " MB free), stopping the recording");
+                    stopRecord();
+                    return;
+                }
+                if (action == StorageForecast.ACTION_MAKE_ROOM) {
+                    makeRoom(forecast);
+                } else {
+                    storageLow = false;
+                }
+            }
+            mainHandler.postDelayed(this, STORAGE_CHECK_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Closes the current file of a segmented recording, so a full card costs at most the next
+     * segment, and evicts the oldest recordings if {@link #setStorageEviction enabled}.
+     */
+    private void makeRoom(StorageForecast forecast) {
+        boolean firstWarning = !storageLow;
+        if (firstWarning) {
+            storageLow = true;
+            Log.w(TAG, "Storage is running low, " + forecast.getRemainingSeconds()
+                    + " s of recording left");
+            rolloverSegment();
+        }
+        final File dir = CameraHelper.getOutputMediaDir();
+        if (!storageEviction || evicting || dir == null) {
+            return;
+        }
+        if (!isOnVolumeOf(storageFd, dir)) {
+            // Deleting there frees nothing for this recording; it stops cleanly at
+            // StorageForecast.CRITICAL_SEC instead.
+            if (firstWarning) {
+                Log.w(TAG, "Recording is not on the volume of " + dir + ", not evicting");
+            }
+            return;
+        }
+        evicting = true;
+        final long bytesToFree = forecast.getBytesToFree();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Loop recordings of an earlier run may have locked segments in there.
+                    SegmentIndex index = segmentIndex;
+                    if (index == null && new File(dir, SegmentIndex.FILE_NAME).exists()) {
+                        try {
+                            index = getSegmentIndex();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Not evicting, the segment index is unreadable: "
+                                    + e.getMessage());
+                            return;
+                        }
+                    }
+                    long freed = 0;
+                    // Loop recording segments first, through their index.
+                    long bytes;
+                    while (index != null && freed < bytesToFree
+                            && (bytes = index.evictOldest()) >= 0) {
+                        freed += bytes;
+                    }
+                    if (freed < bytesToFree) {
+                        freed += evictOldestFiles(dir, bytesToFree - freed, index);
+                    }
+                    Log.d(TAG, "Evicted " + freed / 1024 / 1024 + " of "
+                            + bytesToFree / 1024 / 1024 + " MB to free");
+                } finally {
+                    evicting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the least recently modified files in {@code dir}, with their key frame index,
+     * until {@code bytesToFree} are freed. Files modified in the last {@link #EVICT_MIN_AGE_MS}
+     * may still be written and are kept, as are the segment index and its locked segments.
+     *
+     * @param index Segment index of loop recordings, or null if none was opened.
+     * @return bytes freed.
+     */
+    private static long evictOldestFiles(File dir, long bytesToFree, SegmentIndex index) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Set<String> locked = index != null
+                ? index.getLockedNames() : Collections.<String>emptySet();
+        // Files may be modified while sorting, sort by a snapshot.
+        final Map<File, Long> modified = new HashMap<File, Long>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return modified.get(a).compareTo(modified.get(b));
+            }
+        });
+        long cutoff = System.currentTimeMillis() - EVICT_MIN_AGE_MS;
+        long freed = 0;
+        for (File file : files) {
+            if (freed >= bytesToFree) {
+                break;
+            }
+            String name = file.getName();
+            if (!file.isFile() || modified.get(file) > cutoff
+                    || name.endsWith(KeyframeIndex.SIDECAR_EXTENSION)
+                    || name.equals(SegmentIndex.FILE_NAME) || locked.contains(name)) {
+                continue;
+            }
+            long length = file.length();
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to evict " + file);
+                continue;
+            }
+            Log.i(TAG, "Evicted " + file);
+            if (index != null) {
+                index.remove(name);
+            }
+            freed += length;
+            File sidecar = KeyframeIndex.sidecarFor(file);
+            length = sidecar.length();
+            if (sidecar.delete()) {
+                freed += length;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return true if a recording into {@code fd}, or into {@code dir} if null, is on the
+     * filesystem of {@code dir}, so deleting files there makes room for it.
+     */
+    private static boolean isOnVolumeOf(FileDescriptor fd, File dir) {
+        if (fd == null) {
+            return true;
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && isOnVolumeOfApi21(fd, dir);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isOnVolumeOfApi21(FileDescriptor fd, File dir) {
+        try {
+            return Os.fstat(fd).st_dev == Os.stat(dir.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return space left for a recording into {@code fd}, or into
+     * {@link CameraHelper#getOutputMediaDir()} if null; -1 if unknown.
+     */
+    private static long getFreeBytes(FileDescriptor fd) {
+        if (fd != null) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? getFreeBytesApi21(fd) : -1;
+        }
+        File dir = CameraHelper.getOutputMediaDir();
+        return dir == null ? -1 : dir.getUsableSpace();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static long getFreeBytesApi21(FileDescriptor fd) {
+        try {
+            StructStatVfs stat = Os.fstatvfs(fd);
+            return stat.f_bavail * stat.f_frsize;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return battery temperature in tenths of a degree Celsius, or {@link Integer#MIN_VALUE}
+     * if unknown.
+     */
+    private int readBatteryTemperature() {
+        // Sticky broadcast, no receiver needed.
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery == null
+                ? Integer.MIN_VALUE
+                : battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+    }
+
+    private void releaseSurfaceRecorder() {
+        stopQualityControl();
+        if (mSurfaceRecorder != null) {
+            mSurfaceRecorder.stop();
+            mSurfaceRecorder = null;
+        }
+        if (writerSink != null) {
+            Log.d(TAG, "Writer: " + writerSink.getStats());
+            writerSink = null;
+        }
+        if (proxyWriterSink != null) {
+            Log.d(TAG, "Proxy writer: " + proxyWriterSink.getStats());
+            proxyWriterSink = null;
+        }
+        if (liveStreamSink != null) {
+            Log.d(TAG, "Live stream: " + liveStreamSink.getStats());
+            liveStreamSink = null;
+        }
+        preRecordSink = null;
+        segmentingSink = null;
+        releaseMotionMonitor();
+    }
+
+    /**
+     * Camera and recorder operations of the {@link RecorderController}, which calls them one at
+     * a time on its own thread. The camera and the recorders are only touched from there.
+     */
+    private class CameraDelegate implements RecorderController.Delegate {
+
+        @Override
+        public boolean openCamera() {
+            if (!MainService.this.openCamera()) {
+                Log.w(TAG, "Unable to open camera, will retry when recording starts");
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean prepareRecorder() {
+            StartupTrace.mark(StartupTrace.PREPARE_BEGIN);
+            StartupTrace.beginSection("prepareVideoRecorder");
+            try {
+                if (!prepareVideoRecorder()) {
+                    return false;
+                }
+            } finally {
+                StartupTrace.endSection();
+            }
+            StartupTrace.mark(StartupTrace.RECORDER_PREPARED);
+            return true;
+        }
+
+        @Override
+        public boolean startRecorder() {
+            // Camera is available and unlocked, MediaRecorder is prepared,
+            // now you can start recording
+            Log.d(TAG, "Starting record");
+            powerStats = new PowerStats(MainService.this);
+            powerStats.begin();
+            StartupTrace.beginSection("startRecording");
+            try {
+                // With the surface engine frames flow into the encoder as soon as the camera
+                // runs. The legacy camera leaves this to MediaRecorder.
+                captureSource.start();
+                if (mMediaRecorder != null) {
+                    mMediaRecorder.start();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to start recording: " + e.getMessage());
                 return false;
+            } finally {
+                StartupTrace.endSection();
+            }
+            StartupTrace.mark(StartupTrace.RECORDER_STARTED);
+            startStorageMonitor();
+            if (headless) {
+                // No preview frame will close the timeline.
+                reportStartup();
             }
             return true;
         }
 
         @Override
-        protected void onPostExecute(Boolean result) {
-            // dummy so far
+        public void stopRecorder() {
+            // BEGIN_INCLUDE(stop_release_media_recorder)
+            if (mMediaRecorder != null) {
+                try {
+                    mMediaRecorder.stop();  // stop the recording
+                } catch (RuntimeException e) {
+                    // Thrown when nothing was recorded yet, the file is unusable anyway.
+                    Log.w(TAG, "MediaRecorder stopped without data: " + e.getMessage());
+                }
+            }
+            // No more frames into the recorders; takes the legacy camera back from MediaRecorder.
+            if (captureSource != null) {
+                captureSource.stop();
+            }
+            stopStorageMonitor();
+            releaseMediaRecorder(); // release the MediaRecorder object
+            releaseSurfaceRecorder();
+            outputFileDescriptor = null;
+            if (powerStats != null) {
+                lastPowerUsage = (headless ? "headless, " : "preview, ") + powerStats.end();
+                Log.d(TAG, "Power usage: " + lastPowerUsage);
+                powerStats = null;
+            }
+            // END_INCLUDE(stop_release_media_recorder)
+        }
+
+        @Override
+        public void setZoom(int zoom) {
+            if (captureSource != null && captureSource.getMaxZoom() > 0) {
+                captureSource.setZoom(Math.min(zoom, captureSource.getMaxZoom()));
+            }
+        }
+
+        @Override
+        public void rollover() {
+            if (segmentingSink != null) {
+                segmentingSink.requestRollover();
+            }
+        }
+
+        @Override
+        public void releaseCamera() {
+            MainService.this.releaseCamera();
+            if (offscreenTexture != null) {
+                offscreenTexture.release();
+                offscreenTexture = null;
+            }
         }
     }
 
@@ -236,10 +1239,48 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
     }
 
     private void releaseCamera() {
-        if (mCamera != null) {
+        if (captureSource != null) {
             // release the camera for other applications
-            mCamera.release();
-            mCamera = null;
+            captureSource.release();
+            captureSource = null;
+        }
+    }
+
+    /**
+     * Opens the default back-facing camera through the selected camera API and applies the
+     * settings that don't depend on the recording.
+     */
+    private boolean openCamera() {
+        long startMs = SystemClock.elapsedRealtime();
+        CaptureSource source = useCamera2()
+                ? new Camera2CaptureSource(this, CameraCharacteristics.LENS_FACING_BACK)
+                : new LegacyCaptureSource(cameraCache, Camera.CameraInfo.CAMERA_FACING_BACK);
+        StartupTrace.beginSection("openCamera");
+        try {
+            source.open();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return false;
+        } finally {
+            StartupTrace.endSection();
+        }
+        captureSource = source;
+        Log.d(TAG, "Camera " + source.getCameraId() + " opened in "
+                + (SystemClock.elapsedRealtime() - startMs) + " ms");
+        StartupTrace.mark(StartupTrace.CAMERA_OPENED);
+        return true;
+    }
+
+    private boolean useCamera2() {
+        switch (cameraApi) {
+            case CAMERA_API_LEGACY:
+                return false;
+            case CAMERA_API_CAMERA2:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+            default:
+                // MediaRecorder keeps recording from the legacy camera unless asked otherwise.
+                return engine == ENGINE_SURFACE && Camera2CaptureSource.isPreferred(this,
+                        CameraCharacteristics.LENS_FACING_BACK);
         }
     }
 
@@ -262,14 +1303,343 @@ public class MainService extends Service implements TextureView.SurfaceTextureLi
 
     public void setZoom(int newZoom)
     {
-        mCamera.startSmoothZoom(newZoom);
+        controller.setZoom(newZoom);
+    }
+
+    /**
+     * Stops the current recording and keeps the camera open for the next one.
+     */
+    public void stopRecord()
+    {
+        controller.stop();
+    }
+
+    /**
+     * Starts a new file at the next key frame of a segmented recording, see
+     * {@link #startSegmentedRecord}. Ignored for other recordings.
+     */
+    public void rolloverSegment()
+    {
+        controller.rollover();
     }
 
     public void startRecord(FileDescriptor out, int desiredQuality)
     {
+        startRecord(out, desiredQuality, ENGINE_MEDIA_RECORDER);
+    }
+
+    /**
+     * @param desiredEngine {@link #ENGINE_MEDIA_RECORDER} or {@link #ENGINE_SURFACE}.
+     */
+    public void startRecord(FileDescriptor out, int desiredQuality, int desiredEngine)
+    {
+        markStartRecord();
         outputFileDescriptor = out;
         quality = desiredQuality;
-        if (isSurfaceCreated)
-            new MediaPrepareTask().execute(null, null, null);
+        engine = desiredEngine;
+        segmented = false;
+        dashcam = false;
+        requestStart();
+    }
+
+    /**
+     * Marks the start request on the startup timeline. Recordings not started from the capture
+     * button begin a timeline of their own.
+     */
+    private static void markStartRecord() {
+        if (StartupTrace.isMarked(StartupTrace.RECORDER_STARTED)) {
+            StartupTrace.begin(StartupTrace.START_RECORD);
+        } else {
+            StartupTrace.mark(StartupTrace.START_RECORD);
+        }
+    }
+
+    /**
+     * Records the next recordings without the preview overlay: the GPU composites nothing
+     * while the screen is off, recording starts without waiting for a window surface and the
+     * overlay permission isn't needed. The legacy camera previews into an offscreen texture
+     * nobody draws; camera2 and the surface engine need no preview at all. Compare the power
+     * usage of both modes with {@link #getLastPowerUsage()}.
+     */
+    public void setHeadless(boolean enabled)
+    {
+        headless = enabled;
+    }
+
+    /**
+     * @return CPU time and battery charge used by the last finished recording, normalized per
+     * hour and tagged with whether it was headless, or null if none finished yet.
+     */
+    public String getLastPowerUsage()
+    {
+        return lastPowerUsage;
+    }
+
+    /**
+     * Lets recordings delete the least recently modified files in
+     * {@link CameraHelper#getOutputMediaDir()}, finished segments of the running recording
+     * included, once less than {@link StorageForecast#LOW_SEC} of recording time is left.
+     * Without it a recording stops shortly before the storage fills up, as does a recording
+     * into a file descriptor on another volume, e.g. a document on a removable card.
+     */
+    public void setStorageEviction(boolean enabled)
+    {
+        storageEviction = enabled;
+    }
+
+    /**
+     * @return recording time left on the storage of the running recording at its current
+     * bitrate, in seconds, or -1 if not recording or unknown.
+     */
+    public long getRemainingRecordTime()
+    {
+        return remainingRecordSeconds;
+    }
+
+    /**
+     * Burns the date, time and {@code label} (e.g. a device id) into the video of the next
+     * recordings. Rendered on the GPU by {@link #ENGINE_SURFACE}; MediaRecorder has no stage to
+     * draw into, so recordings with {@link #ENGINE_MEDIA_RECORDER} stay unmarked.
+     *
+     * @param label Text after the timestamp, or null to disable the overlay.
+     */
+    public void setTimestampOverlay(String label)
+    {
+        overlayLabel = label;
+    }
+
+    /**
+     * Encodes the next recordings a second time at a low resolution and bitrate, e.g. 360p at
+     * 800 kbps next to a 1080p archive, into a {@code _proxy} file in
+     * {@link CameraHelper#getOutputMediaDir()}. Both streams come from the same camera frames,
+     * scaled on the GPU, and are written independently. Requires {@link #ENGINE_SURFACE} and
+     * a device that can run two encoders at once; dashcam recording has no proxy.
+     *
+     * @param height Height of the proxy, its width follows the aspect ratio of the recording;
+     * 0 to disable the proxy.
+     * @param bitRate Bitrate of the proxy in bits per second.
+     */
+    public void setProxyStream(int height, int bitRate)
+    {
+        proxyBitRate = bitRate;
+        proxyHeight = height;
+    }
+
+    /**
+     * Streams the next recordings live as HLS: short fragmented MP4 segments and a rolling
+     * {@code live.m3u8} playlist are uploaded with HTTP {@code PUT} requests below
+     * {@code baseUrl}, from where players can fetch them; any server that stores what is put
+     * to it will do, including one on the loopback interface. The local recording is not
+     * affected by the network: when uploads fall behind, the stream drops frames. Requires
+     * {@link #ENGINE_SURFACE}; with a {@linkplain #setProxyStream proxy} the proxy is streamed.
+     *
+     * @param baseUrl e.g. {@code http://192.168.1.2:8080/cam1/}, or null to stop streaming.
+     */
+    public void setLiveStream(String baseUrl)
+    {
+        liveStreamUrl = baseUrl;
+    }
+
+    /**
+     * Selects the camera API for the next recording.
+     *
+     * @param api {@link #CAMERA_API_AUTO}, {@link #CAMERA_API_LEGACY} or
+     * {@link #CAMERA_API_CAMERA2}.
+     */
+    public void setCameraApi(int api)
+    {
+        cameraApi = api;
+    }
+
+    /**
+     * Asks the camera for a frame rate range for the next recording; the closest supported
+     * range is used. A fixed range (e.g. 30-30 or 60-60) gives a steady frame rate, which
+     * camera2 honours much better than the legacy API. When {@code maxFps} is set the encoder
+     * is configured for it as well.
+     *
+     * @param minFps Lowest frame rate, 0 for the rate of the quality profile.
+     * @param maxFps Highest frame rate, 0 for the rate of the quality profile.
+     */
+    public void setFrameRate(int minFps, int maxFps)
+    {
+        minFrameRate = minFps;
+        maxFrameRate = maxFps;
+    }
+
+    /**
+     * Feeds a low resolution surface, e.g. of an {@link android.media.ImageReader}, from the
+     * same camera session as the recording, starting with the next one. Requires camera2;
+     * ignored with the legacy camera API.
+     *
+     * @param surface The surface, or null for none.
+     */
+    public void setAnalysisSurface(Surface surface)
+    {
+        analysisSurface = surface;
+    }
+
+    /**
+     * Lets the surface engine lower its bitrate while storage can't keep up, the encoder is
+     * throttled or the battery is hot, and raise it again once they recover. Takes effect with
+     * the next recording; requires API 19 to change the bitrate of a running encoder.
+     */
+    public void setAdaptiveQuality(boolean enabled)
+    {
+        adaptiveQuality = enabled;
+    }
+
+    /**
+     * Selects the container written by {@link #ENGINE_SURFACE} for the next recording.
+     *
+     * @param desiredContainer {@link #CONTAINER_MP4} or {@link #CONTAINER_FRAGMENTED_MP4}.
+     */
+    public void setContainer(int desiredContainer)
+    {
+        container = desiredContainer;
+    }
+
+    /**
+     * Records into consecutive MP4 files in {@link CameraHelper#getOutputMediaDir()}, starting a
+     * new one at the first key frame after either limit is reached. A crash then loses at most
+     * the current segment. Uses {@link #ENGINE_SURFACE}, so it requires API 18.
+     *
+     * @param maxSegmentDurationMs Segment duration limit, 0 for none.
+     * @param maxSegmentBytes Segment size limit, 0 for none.
+     */
+    public void startSegmentedRecord(int desiredQuality, long maxSegmentDurationMs,
+                                     long maxSegmentBytes)
+    {
+        startSegments(desiredQuality, maxSegmentDurationMs, maxSegmentBytes, 0);
+    }
+
+    private void startSegments(int desiredQuality, long maxSegmentDurationMs,
+                               long maxSegmentBytes, long budgetBytes) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Log.e(TAG, "Segmented recording requires API 18");
+            return;
+        }
+        markStartRecord();
+        outputFileDescriptor = null;
+        quality = desiredQuality;
+        engine = ENGINE_SURFACE;
+        segmented = true;
+        dashcam = false;
+        segmentDurationMs = maxSegmentDurationMs;
+        segmentBytes = maxSegmentBytes;
+        loopBudgetBytes = budgetBytes;
+        requestStart();
+    }
+
+    /**
+     * Records around the clock within a fixed amount of storage: a segmented recording like
+     * {@link #startSegmentedRecord} whose oldest segments are deleted once the segments of all
+     * loop recordings would exceed {@code budgetBytes}. Segments locked with
+     * {@link #lockRecentLoopSegments} or {@link #setLoopSegmentLocked} are kept; when only locked
+     * segments are left the budget is exceeded rather than losing them. The segments are listed
+     * in {@link SegmentIndex#FILE_NAME}, so neither eviction nor a restart has to scan the
+     * directory. Requires API 18.
+     *
+     * @param maxSegmentDurationMs Segment duration; the unit of eviction.
+     * @param budgetBytes Storage for all loop recording segments.
+     */
+    public void startLoopRecord(int desiredQuality, long maxSegmentDurationMs, long budgetBytes)
+    {
+        if (budgetBytes <= 0 || maxSegmentDurationMs <= 0) {
+            Log.e(TAG, "Loop recording requires a segment duration and a budget");
+            return;
+        }
+        startSegments(desiredQuality, maxSegmentDurationMs, 0, budgetBytes);
+    }
+
+    /**
+     * Locks the loop recording segments of the last {@code durationMs}, including the one being
+     * recorded, against eviction, e.g. to keep the video of an event.
+     *
+     * @return number of segments locked, 0 if no loop recording ran since the service started.
+     */
+    public int lockRecentLoopSegments(long durationMs)
+    {
+        SegmentIndex index = segmentIndex;
+        return index != null ? index.lockSince(System.currentTimeMillis() - durationMs) : 0;
+    }
+
+    /**
+     * Locks a loop recording segment against eviction, or releases it. Unless a loop recording
+     * ran since the service started this opens the segment index, so call it off the main
+     * thread.
+     *
+     * @param name File name of the segment in {@link CameraHelper#getOutputMediaDir()}.
+     * @return false if it is not a loop recording segment.
+     */
+    public boolean setLoopSegmentLocked(String name, boolean locked)
+    {
+        try {
+            return getSegmentIndex().setLocked(name, locked);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to lock " + name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the last {@code windowMs} of encoded video in memory without writing anything, until
+     * {@link #saveDashcamClip(long)} is called. Uses {@link #ENGINE_SURFACE}, so it requires
+     * API 18.
+     *
+     * @param bufferBytes Memory reserved for the buffered video. When the window doesn't fit,
+     * the oldest seconds are dropped.
+     * @param windowMs How much video before a save to keep.
+     */
+    public void startDashcam(int desiredQuality, int bufferBytes, long windowMs)
+    {
+        startPreRecord(desiredQuality, bufferBytes, windowMs, 0);
+    }
+
+    /**
+     * Records only while something moves: a dashcam recording like {@link #startDashcam} whose
+     * clips are saved by a motion detector instead of {@link #saveDashcamClip}. A clip starts
+     * {@code preRollMs} before the motion was seen and ends {@code postRollMs} after it was last
+     * seen. Nothing is written while the scene is still. Requires API 18.
+     *
+     * @param bufferBytes Memory reserved for the pre-roll, see {@link #startDashcam}.
+     */
+    public void startMotionRecord(int desiredQuality, int bufferBytes, long preRollMs,
+                                  long postRollMs)
+    {
+        startPreRecord(desiredQuality, bufferBytes, preRollMs, Math.max(1, postRollMs));
+    }
+
+    private void startPreRecord(int desiredQuality, int bufferBytes, long windowMs,
+                                long postRollMs) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Log.e(TAG, "Dashcam recording requires API 18");
+            return;
+        }
+        markStartRecord();
+        outputFileDescriptor = null;
+        quality = desiredQuality;
+        engine = ENGINE_SURFACE;
+        segmented = false;
+        dashcam = true;
+        dashcamBufferBytes = bufferBytes;
+        dashcamWindowMs = windowMs;
+        motionPostRollMs = postRollMs;
+        requestStart();
+    }
+
+    /**
+     * Writes the buffered window plus the next {@code postRollMs} of live video into a new file
+     * in {@link CameraHelper#getOutputMediaDir()}. Saving again before the clip ends extends it.
+     *
+     * @return false if no dashcam recording is running.
+     */
+    public boolean saveDashcamClip(long postRollMs)
+    {
+        PreRecordSink sink = preRecordSink;
+        if (sink == null) {
+            return false;
+        }
+        sink.trigger(postRollMs * 1000);
+        return true;
     }
 }
@@ -0,0 +1,142 @@
+package com.example.android.mediarecorder;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import com.example.android.common.media.LegacyCaptureSource;
+import com.example.android.common.media.MotionDetector;
+
+/**
+ * Feeds a {@link MotionDetector} from the camera and reports frames showing motion. With
+ * camera2 the frames come from a small {@link ImageReader} in the recording's capture session,
+ * analysed on a thread of its own; with the legacy camera from preview callbacks into a few
+ * reused buffers, see {@link LegacyCaptureSource#setFrameCallback}. Either way nothing is
+ * allocated per frame.
+ */
+class MotionMonitor implements Camera.PreviewCallback {
+
+    private static final String TAG = "MotionMonitor";
+
+    // Size of the camera2 analysis stream: QCIF, a YUV output size virtually every camera lists.
+    static final int ANALYSIS_WIDTH = 176;
+    static final int ANALYSIS_HEIGHT = 144;
+    // Samples of the detector grid, whatever the size of the frames.
+    static final int GRID_WIDTH = 88;
+    static final int GRID_HEIGHT = 72;
+    // Images the analysis stream holds; one being analysed, one being filled.
+    private static final int MAX_IMAGES = 2;
+    /** Preview callback buffers for the legacy camera. */
+    static final int CALLBACK_BUFFERS = 3;
+
+    interface Listener {
+        /**
+         * A frame showed motion. Called for every such frame, on the analysis thread.
+         */
+        void onMotion();
+    }
+
+    private final Listener mListener;
+    private final MotionDetector mDetector = new MotionDetector(GRID_WIDTH, GRID_HEIGHT);
+    private boolean mMotion;
+    // Camera2 analysis stream, if opened.
+    private HandlerThread mThread;
+    private ImageReader mReader;
+    // Legacy preview size, see setPreviewSize().
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    MotionMonitor(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Opens the camera2 analysis stream.
+     *
+     * @return the surface to pass as analysis output to
+     * {@link com.example.android.common.media.CaptureSource#configure}.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    Surface openAnalysisSurface() {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mReader = ImageReader.newInstance(ANALYSIS_WIDTH, ANALYSIS_HEIGHT,
+                ImageFormat.YUV_420_888, MAX_IMAGES);
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image;
+                try {
+                    image = reader.acquireLatestImage();
+                } catch (IllegalStateException e) {
+                    // Closed by release() while the frame arrived.
+                    return;
+                }
+                if (image == null) {
+                    return;
+                }
+                try {
+                    Image.Plane luma = image.getPlanes()[0];
+                    report(mDetector.process(luma.getBuffer(), image.getWidth(),
+                            image.getHeight(), luma.getRowStride()));
+                } finally {
+                    image.close();
+                }
+            }
+        }, new Handler(mThread.getLooper()));
+        return mReader.getSurface();
+    }
+
+    /**
+     * Sets the size of the legacy camera preview frames passed to {@link #onPreviewFrame}.
+     */
+    void setPreviewSize(int width, int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
+    /**
+     * Legacy camera frames in NV21, whose luma plane comes first.
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+        try {
+            report(mDetector.process(data, 0, mPreviewWidth, mPreviewHeight, mPreviewWidth));
+        } finally {
+            camera.addCallbackBuffer(data);
+        }
+    }
+
+    private void report(boolean motion) {
+        if (motion != mMotion) {
+            mMotion = motion;
+            Log.d(TAG, (motion ? "Motion started, " : "Motion ended, ")
+                    + mDetector.getChangedPermille() + " per mille changed");
+        }
+        if (motion) {
+            mListener.onMotion();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    void release() {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+        }
+    }
+}
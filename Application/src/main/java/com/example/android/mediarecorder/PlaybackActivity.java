@@ -0,0 +1,187 @@
+package com.example.android.mediarecorder;
+
+import android.app.Activity;
+import android.graphics.Matrix;
+import android.graphics.SurfaceTexture;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.SeekBar;
+import android.widget.Toast;
+
+import com.example.android.common.media.VideoPlayer;
+
+/**
+ * Plays back the recording passed as the data of the starting intent with {@link VideoPlayer}.
+ * Tapping the video pauses and resumes it; the seek bar jumps to the closest key frame.
+ */
+public class PlaybackActivity extends Activity implements TextureView.SurfaceTextureListener,
+        VideoPlayer.Listener {
+
+    private static final String TAG = "PlaybackActivity";
+
+    // How often the seek bar follows the playback position.
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private final Handler handler = new Handler();
+    private TextureView textureView;
+    private SeekBar seekBar;
+    private VideoPlayer player;
+    private Surface surface;
+    private boolean playing;
+
+    private final Runnable updateProgress = new Runnable() {
+        @Override
+        public void run() {
+            if (player != null && !seekBar.isPressed()) {
+                seekBar.setProgress((int) (player.getStats().positionUs / 1000));
+            }
+            handler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        FrameLayout root = new FrameLayout(this);
+        textureView = new TextureView(this);
+        textureView.setSurfaceTextureListener(this);
+        textureView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                togglePlayback();
+            }
+        });
+        root.addView(textureView, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        seekBar = new SeekBar(this);
+        seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser && player != null) {
+                    player.seekTo(progress * 1000L);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+        root.addView(seekBar, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT,
+                Gravity.BOTTOM));
+        setContentView(root);
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+        Uri uri = getIntent().getData();
+        if (uri == null) {
+            Log.e(TAG, "No recording to play");
+            finish();
+            return;
+        }
+        surface = new Surface(texture);
+        player = new VideoPlayer(surface, this, handler);
+        player.open(this, uri);
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture texture, int width, int height) {
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
+        releasePlayer();
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture texture) {
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (player != null && playing) {
+            togglePlayback();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        releasePlayer();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onPrepared(VideoPlayer player, int width, int height, long durationUs) {
+        fitVideo(width, height);
+        seekBar.setMax((int) (durationUs / 1000));
+        togglePlayback();
+        handler.post(updateProgress);
+    }
+
+    @Override
+    public void onCompletion(VideoPlayer player) {
+        playing = false;
+        Log.d(TAG, "Playback finished: " + player.getStats());
+    }
+
+    @Override
+    public void onError(VideoPlayer player, String message) {
+        Toast.makeText(this, "Playback failed: " + message, Toast.LENGTH_LONG).show();
+        finish();
+    }
+
+    private void togglePlayback() {
+        if (player == null) {
+            return;
+        }
+        playing = !playing;
+        if (playing) {
+            player.play();
+        } else {
+            player.pause();
+            Log.d(TAG, "Paused: " + player.getStats());
+        }
+    }
+
+    /**
+     * Letterboxes the video in the view, keeping its aspect ratio.
+     */
+    private void fitVideo(int videoWidth, int videoHeight) {
+        int viewWidth = textureView.getWidth();
+        int viewHeight = textureView.getHeight();
+        float scale = Math.min((float) viewWidth / videoWidth, (float) viewHeight / videoHeight);
+        Matrix matrix = new Matrix();
+        matrix.setScale(videoWidth * scale / viewWidth, videoHeight * scale / viewHeight,
+                viewWidth / 2f, viewHeight / 2f);
+        textureView.setTransform(matrix);
+    }
+
+    private void releasePlayer() {
+        handler.removeCallbacks(updateProgress);
+        if (player != null) {
+            Log.d(TAG, "Playback stats: " + player.getStats());
+            player.release();
+            player = null;
+        }
+        if (surface != null) {
+            surface.release();
+            surface = null;
+        }
+    }
+}
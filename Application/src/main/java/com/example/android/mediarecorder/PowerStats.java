@@ -0,0 +1,72 @@
+package com.example.android.mediarecorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Measures CPU time of this process and battery charge drawn while recording, normalized per
+ * recorded hour, so capture engines can be compared on the same device.
+ *
+ * Note that {@link android.media.MediaRecorder} does most of its work in the media server, so
+ * for that engine the CPU figure only covers our own process.
+ */
+class PowerStats {
+
+    private final Context mContext;
+
+    private long mStartElapsedMs;
+    private long mStartCpuMs;
+    private long mStartChargeUah;
+
+    PowerStats(Context context) {
+        mContext = context;
+    }
+
+    void begin() {
+        mStartElapsedMs = SystemClock.elapsedRealtime();
+        mStartCpuMs = Process.getElapsedCpuTime();
+        mStartChargeUah = readChargeCounter();
+    }
+
+    /**
+     * @return a one-line summary of the usage since {@link #begin()}.
+     */
+    String end() {
+        long elapsedMs = SystemClock.elapsedRealtime() - mStartElapsedMs;
+        long cpuMs = Process.getElapsedCpuTime() - mStartCpuMs;
+        long chargeUah = readChargeCounter();
+        double hours = Math.max(elapsedMs, 1) / 3600000.0;
+
+        StringBuilder summary = new StringBuilder()
+                .append("recorded ").append(elapsedMs / 1000).append(" s, cpu ")
+                .append(cpuMs).append(" ms (").append(Math.round(cpuMs / hours))
+                .append(" ms/h)");
+        if (mStartChargeUah > 0 && chargeUah > 0) {
+            long drawnUah = mStartChargeUah - chargeUah;
+            summary.append(", battery ").append(drawnUah / 1000).append(" mAh (")
+                    .append(Math.round(drawnUah / 1000 / hours)).append(" mAh/h)");
+        }
+        return summary.toString();
+    }
+
+    private long readChargeCounter() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+        return readChargeCounterApi21();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private long readChargeCounterApi21() {
+        BatteryManager batteryManager =
+                (BatteryManager) mContext.getSystemService(Context.BATTERY_SERVICE);
+        // Reported in microampere-hours, 0 or Integer.MIN_VALUE when unsupported.
+        return batteryManager == null
+                ? 0 : Math.max(0, batteryManager.getIntProperty(
+                        BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER));
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.mediarecorder;
+
+/**
+ * Decides the encoder bitrate from how well the device keeps up: whether the encoder outputs
+ * frames as fast as they are fed to it, the backlog of the writer and the battery temperature.
+ * Steps down quickly when any of them is in trouble and back up slowly once all of them have
+ * been fine for a while.
+ *
+ * Plain Java without timers or Android calls: the caller feeds cumulative counters and the
+ * current time to {@link #update}, so a recording can be replayed deterministically.
+ */
+class QualityController {
+
+    /** Bitrate of each level in percent of the full bitrate, from best to worst. */
+    static final int[] BITRATE_PERCENT = {100, 70, 50, 35, 25};
+
+    // Writer backlog, in percent of its capacity, that is too high / low enough to step up.
+    static final int BACKLOG_HIGH_PERCENT = 50;
+    static final int BACKLOG_LOW_PERCENT = 10;
+
+    // Battery temperature in tenths of a degree Celsius that is too hot / cool enough.
+    static final int TEMPERATURE_HOT = 430;
+    static final int TEMPERATURE_COOL = 400;
+
+    // Encoder output below this percentage of its input means it is throttled. Comparing with
+    // the input rather than the nominal frame rate ignores the camera slowing down in low light.
+    static final int ENCODER_LOW_PERCENT = 80;
+
+    // Minimum time between two steps down, and time without trouble before a step up.
+    static final long STEP_DOWN_HOLD_MS = 3000;
+    static final long STEP_UP_HOLD_MS = 20000;
+
+    private final int mFullBitRate;
+
+    private int mLevel;
+    private long mLastUpdateMs = -1;
+    private long mLastFramesIn;
+    private long mLastFramesOut;
+    private long mLastDropped;
+    private long mLastStepMs;
+    private long mCalmSinceMs;
+    private String mReason = "";
+
+    /**
+     * @param fullBitRate Bitrate of the best level, in bits per second.
+     */
+    QualityController(int fullBitRate) {
+        mFullBitRate = fullBitRate;
+    }
+
+    /**
+     * Feeds one observation, typically once per second.
+     *
+     * @param nowMs Monotonic time of the observation.
+     * @param framesIn Frames fed to the encoder since recording started.
+     * @param framesOut Frames output by the encoder since recording started.
+     * @param backlogBytes Bytes waiting for the writer.
+     * @param backlogCapacity Bytes the writer can queue.
+     * @param droppedFrames Frames dropped by the writer since recording started.
+     * @param temperature Battery temperature in tenths of a degree Celsius, or
+     * {@link Integer#MIN_VALUE} if unknown.
+     * @return true if the level changed; the new bitrate is {@link #getBitRate()}.
+     */
+    boolean update(long nowMs, long framesIn, long framesOut, int backlogBytes,
+                   int backlogCapacity, long droppedFrames, int temperature) {
+        if (mLastUpdateMs < 0) {
+            mLastUpdateMs = nowMs;
+            mLastFramesIn = framesIn;
+            mLastFramesOut = framesOut;
+            mLastDropped = droppedFrames;
+            mLastStepMs = nowMs;
+            mCalmSinceMs = nowMs;
+            return false;
+        }
+        if (nowMs <= mLastUpdateMs) {
+            return false;
+        }
+        long in = framesIn - mLastFramesIn;
+        long out = framesOut - mLastFramesOut;
+        long dropped = droppedFrames - mLastDropped;
+        mLastUpdateMs = nowMs;
+        mLastFramesIn = framesIn;
+        mLastFramesOut = framesOut;
+        mLastDropped = droppedFrames;
+
+        long backlogPercent = backlogCapacity > 0 ? 100L * backlogBytes / backlogCapacity : 0;
+        long encoderPercent = in > 0 ? 100 * out / in : 100;
+        boolean knownTemperature = temperature != Integer.MIN_VALUE;
+
+        String trouble = null;
+        if (dropped > 0) {
+            trouble = "writer dropped " + dropped + " frames";
+        } else if (backlogPercent >= BACKLOG_HIGH_PERCENT) {
+            trouble = "writer backlog " + backlogPercent + "%";
+        } else if (knownTemperature && temperature >= TEMPERATURE_HOT) {
+            trouble = "battery at " + temperature / 10 + " C";
+        } else if (encoderPercent < ENCODER_LOW_PERCENT) {
+            trouble = "encoder output at " + encoderPercent + "% of input";
+        }
+
+        if (trouble != null) {
+            mCalmSinceMs = nowMs;
+            boolean canStep = mLevel < BITRATE_PERCENT.length - 1;
+            if (canStep && nowMs - mLastStepMs >= STEP_DOWN_HOLD_MS) {
+                return step(1, nowMs, trouble);
+            }
+            return false;
+        }
+
+        boolean calm = backlogPercent <= BACKLOG_LOW_PERCENT
+                && (!knownTemperature || temperature <= TEMPERATURE_COOL);
+        if (!calm) {
+            mCalmSinceMs = nowMs;
+            return false;
+        }
+        if (mLevel > 0 && nowMs - mCalmSinceMs >= STEP_UP_HOLD_MS
+                && nowMs - mLastStepMs >= STEP_UP_HOLD_MS) {
+            mCalmSinceMs = nowMs;
+            return step(-1, nowMs, "recovered");
+        }
+        return false;
+    }
+
+    /**
+     * @return the current level, 0 being the best quality.
+     */
+    int getLevel() {
+        return mLevel;
+    }
+
+    int getBitRate() {
+        return (int) ((long) mFullBitRate * BITRATE_PERCENT[mLevel] / 100);
+    }
+
+    /**
+     * @return why the level last changed, for logging.
+     */
+    String getReason() {
+        return mReason;
+    }
+
+    private boolean step(int delta, long nowMs, String reason) {
+        mLevel += delta;
+        mLastStepMs = nowMs;
+        mReason = reason;
+        return true;
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.mediarecorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Owns the thread all camera and recorder operations run on. Callers post commands from any
+ * thread; they are executed one at a time, in order, by a state machine that only forwards the
+ * ones that make sense in the current state to a {@link Delegate}. The camera and the recorders
+ * are therefore only ever touched from one thread, never from the UI thread, and don't share an
+ * executor with the rest of the app.
+ */
+class RecorderController {
+
+    private static final String TAG = "RecorderController";
+
+    /** Camera closed. */
+    static final int STATE_IDLE = 0;
+    /** Camera open, no recorder. */
+    static final int STATE_OPENED = 1;
+    /** Recorder prepared, not started yet. */
+    static final int STATE_PREPARED = 2;
+    static final int STATE_RECORDING = 3;
+    /** Camera released and thread gone; no further commands are accepted. */
+    static final int STATE_RELEASED = 4;
+
+    private static final int CMD_OPEN = 0;
+    private static final int CMD_PREPARE = 1;
+    private static final int CMD_START = 2;
+    private static final int CMD_ZOOM = 3;
+    private static final int CMD_ROLLOVER = 4;
+    private static final int CMD_STOP = 5;
+    private static final int CMD_RELEASE = 6;
+
+    /**
+     * Does the actual work. All methods are called on the controller thread.
+     */
+    interface Delegate {
+        /** @return false if the camera couldn't be opened. */
+        boolean openCamera();
+
+        /** Sets up the recorder for the current request; false on failure. */
+        boolean prepareRecorder();
+
+        /** Starts the prepared recorder; false on failure. */
+        boolean startRecorder();
+
+        /** Stops the recorder if it is running and releases it. */
+        void stopRecorder();
+
+        void setZoom(int zoom);
+
+        /** Starts a new output file at the next key frame, if the recording is segmented. */
+        void rollover();
+
+        void releaseCamera();
+    }
+
+    private final Delegate mDelegate;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private volatile int mState = STATE_IDLE;
+
+    RecorderController(Delegate delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * @param looper Looper to run on, or null to start a dedicated thread. Tests pass their
+     * own.
+     */
+    RecorderController(Delegate delegate, Looper looper) {
+        mDelegate = delegate;
+        if (looper == null) {
+            mThread = new HandlerThread("RecorderController");
+            mThread.start();
+            looper = mThread.getLooper();
+        } else {
+            mThread = null;
+        }
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                handleCommand(msg.what, msg.arg1);
+            }
+        };
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Opens the camera ahead of any recording.
+     */
+    void open() {
+        send(CMD_OPEN, 0);
+    }
+
+    /**
+     * Prepares and starts a recording, opening the camera first if needed.
+     */
+    void prepareAndStart() {
+        send(CMD_PREPARE, 0);
+        send(CMD_START, 0);
+    }
+
+    void setZoom(int zoom) {
+        send(CMD_ZOOM, zoom);
+    }
+
+    void rollover() {
+        send(CMD_ROLLOVER, 0);
+    }
+
+    /**
+     * Stops the recording, keeping the camera open for the next one.
+     */
+    void stop() {
+        send(CMD_STOP, 0);
+    }
+
+    /**
+     * Stops the recording, releases the camera and ends the thread once the commands posted
+     * before are done. {@code done}, if not null, is then posted to {@code doneHandler}.
+     */
+    void release(final Runnable done, final Handler doneHandler) {
+        send(CMD_RELEASE, 0);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mThread != null) {
+                    mThread.quit();
+                }
+                if (done != null) {
+                    doneHandler.post(done);
+                }
+            }
+        });
+    }
+
+    private void send(int command, int arg) {
+        if (!mHandler.sendMessage(mHandler.obtainMessage(command, arg, 0))) {
+            Log.w(TAG, "Command " + command + " dropped, controller released");
+        }
+    }
+
+    /**
+     * The state machine. Runs on the controller thread only.
+     */
+    void handleCommand(int command, int arg) {
+        int state = mState;
+        if (state == STATE_RELEASED) {
+            Log.w(TAG, "Command " + command + " ignored, controller released");
+            return;
+        }
+        switch (command) {
+            case CMD_OPEN:
+                if (state == STATE_IDLE && mDelegate.openCamera()) {
+                    mState = STATE_OPENED;
+                }
+                break;
+            case CMD_PREPARE:
+                if (state == STATE_PREPARED || state == STATE_RECORDING) {
+                    Log.w(TAG, "Already recording, prepare ignored");
+                    break;
+                }
+                if (state == STATE_IDLE) {
+                    if (!mDelegate.openCamera()) {
+                        break;
+                    }
+                    mState = STATE_OPENED;
+                }
+                if (mDelegate.prepareRecorder()) {
+                    mState = STATE_PREPARED;
+                } else {
+                    mDelegate.stopRecorder();
+                }
+                break;
+            case CMD_START:
+                if (state != STATE_PREPARED) {
+                    // Normally because the preceding prepare failed.
+                    Log.w(TAG, "Nothing prepared, start ignored");
+                    break;
+                }
+                if (mDelegate.startRecorder()) {
+                    mState = STATE_RECORDING;
+                } else {
+                    mDelegate.stopRecorder();
+                    mState = STATE_OPENED;
+                }
+                break;
+            case CMD_ZOOM:
+                if (state != STATE_IDLE) {
+                    mDelegate.setZoom(arg);
+                }
+                break;
+            case CMD_ROLLOVER:
+                if (state == STATE_RECORDING) {
+                    mDelegate.rollover();
+                }
+                break;
+            case CMD_STOP:
+                if (state == STATE_PREPARED || state == STATE_RECORDING) {
+                    mDelegate.stopRecorder();
+                    mState = STATE_OPENED;
+                }
+                break;
+            case CMD_RELEASE:
+                if (state == STATE_PREPARED || state == STATE_RECORDING) {
+                    mDelegate.stopRecorder();
+                }
+                if (state != STATE_IDLE) {
+                    mDelegate.releaseCamera();
+                }
+                mState = STATE_RELEASED;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.android.mediarecorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Timeline of the record-start path, from the tap on the capture button to the first recorded
+ * frame, so the time to first frame can be measured and compared per device.
+ *
+ * Stages are marked from whichever thread reaches them with a monotonic timestamp stored in a
+ * preallocated array; marking never allocates. The synchronous stages are additionally wrapped
+ * in {@link Trace} sections with {@link #beginSection} and {@link #endSection}, so they show up
+ * in systrace. {@link #report} logs the timeline as JSON and appends it as a CSV row to
+ * {@link #CSV_FILE_NAME} in the external files directory of the app.
+ */
+final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    static final String CSV_FILE_NAME = "startup_trace.csv";
+
+    static final int CAPTURE_CLICK = 0;
+    static final int FILE_CREATED = 1;
+    static final int SERVICE_CREATED = 2;
+    static final int SERVICE_CONNECTED = 3;
+    static final int START_RECORD = 4;
+    static final int SURFACE_AVAILABLE = 5;
+    static final int PREPARE_BEGIN = 6;
+    static final int CAMERA_OPENED = 7;
+    static final int RECORDER_PREPARED = 8;
+    static final int RECORDER_STARTED = 9;
+    static final int FIRST_FRAME = 10;
+
+    private static final String[] STAGE_NAMES = {
+            "capture_click",
+            "file_created",
+            "service_created",
+            "service_connected",
+            "start_record",
+            "surface_available",
+            "prepare_begin",
+            "camera_opened",
+            "recorder_prepared",
+            "recorder_started",
+            "first_frame",
+    };
+
+    // Nanoseconds from System.nanoTime(), 0 for stages not reached yet.
+    private static final long[] sStageNs = new long[STAGE_NAMES.length];
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Forgets the previous timeline and marks {@code stage} as its first stage.
+     */
+    static synchronized void begin(int stage) {
+        for (int i = 0; i < sStageNs.length; i++) {
+            sStageNs[i] = 0;
+        }
+        sStageNs[stage] = System.nanoTime();
+    }
+
+    /**
+     * Records the time {@code stage} was reached. Only the first mark of a stage counts, so
+     * e.g. the first frame can be marked on every frame.
+     */
+    static synchronized void mark(int stage) {
+        if (sStageNs[stage] == 0) {
+            sStageNs[stage] = System.nanoTime();
+        }
+    }
+
+    static synchronized boolean isMarked(int stage) {
+        return sStageNs[stage] != 0;
+    }
+
+    /**
+     * Starts a systrace section on the calling thread. {@code name} should be a constant, so no
+     * string is built per call.
+     */
+    static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginSectionApi18(name);
+        }
+    }
+
+    /**
+     * Ends the section most recently started on the calling thread.
+     */
+    static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endSectionApi18();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginSectionApi18(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endSectionApi18() {
+        Trace.endSection();
+    }
+
+    /**
+     * Logs the timeline and appends it to the CSV file. Does file I/O, so keep it off threads
+     * that render or encode.
+     */
+    static void report(Context context) {
+        long[] stageNs;
+        synchronized (StartupTrace.class) {
+            stageNs = sStageNs.clone();
+        }
+        long originNs = 0;
+        for (long ns : stageNs) {
+            if (ns != 0 && (originNs == 0 || ns < originNs)) {
+                originNs = ns;
+            }
+        }
+        if (originNs == 0) {
+            return;
+        }
+        Log.d(TAG, toJson(stageNs, originNs));
+
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            Log.w(TAG, "External files directory unavailable, CSV not written");
+            return;
+        }
+        File file = new File(dir, CSV_FILE_NAME);
+        boolean header = !file.exists();
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            if (header) {
+                writer.write(csvHeader());
+            }
+            writer.write(toCsvRow(stageNs, originNs));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file + ": " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the stages reached, in milliseconds since the earliest of them, e.g.
+     * {@code {"device":"...","stages_ms":{"capture_click":0.0,...}}}.
+     */
+    private static String toJson(long[] stageNs, long originNs) {
+        StringBuilder json = new StringBuilder("{\"device\":\"")
+                .append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append("\",\"sdk\":").append(Build.VERSION.SDK_INT)
+                .append(",\"stages_ms\":{");
+        boolean first = true;
+        for (int i = 0; i < stageNs.length; i++) {
+            if (stageNs[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(STAGE_NAMES[i]).append("\":")
+                    .append(toMs(stageNs[i] - originNs));
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String csvHeader() {
+        StringBuilder csv = new StringBuilder("device,sdk");
+        for (String name : STAGE_NAMES) {
+            csv.append(',').append(name);
+        }
+        return csv.append('\n').toString();
+    }
+
+    /**
+     * @return one row matching {@link #csvHeader()}, empty cells for stages not reached.
+     */
+    private static String toCsvRow(long[] stageNs, long originNs) {
+        StringBuilder csv = new StringBuilder()
+                .append((Build.MANUFACTURER + " " + Build.MODEL).replace(',', ' '))
+                .append(',').append(Build.VERSION.SDK_INT);
+        for (long ns : stageNs) {
+            csv.append(',');
+            if (ns != 0) {
+                csv.append(toMs(ns - originNs));
+            }
+        }
+        return csv.append('\n').toString();
+    }
+
+    private static double toMs(long ns) {
+        return Math.round(ns / 10000.0) / 100.0;
+    }
+}
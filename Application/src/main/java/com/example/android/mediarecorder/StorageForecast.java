@@ -0,0 +1,95 @@
+package com.example.android.mediarecorder;
+
+/**
+ * Forecasts how much longer a recording fits on its storage from the free space and the rate
+ * the recording is written at, and decides when to make room and when to stop while the
+ * recording can still be finished cleanly. A full card otherwise only shows as a failed write,
+ * which loses the index of a classic MP4 and with it the whole file.
+ *
+ * Plain Java without timers or Android calls, like {@link QualityController}: the caller feeds
+ * counters and the current time to {@link #update}.
+ */
+class StorageForecast {
+
+    /** Kept free for the index written when a recording stops and for the file system. */
+    static final long RESERVE_BYTES = 64L << 20;
+
+    /** Recording time left below which room is made, and the time making room aims for. */
+    static final long LOW_SEC = 10 * 60;
+    static final long TARGET_SEC = 2 * LOW_SEC;
+
+    /** Recording time left below which the recording is stopped. */
+    static final long CRITICAL_SEC = 30;
+
+    // Weight of the latest measurement in the smoothed write rate, in percent.
+    static final int RATE_SMOOTHING_PERCENT = 25;
+
+    static final int ACTION_NONE = 0;
+    /** Space runs low: evict old recordings, close the current segment. */
+    static final int ACTION_MAKE_ROOM = 1;
+    /** Space is about to run out: stop recording. */
+    static final int ACTION_STOP = 2;
+
+    private long mBytesPerSecond;
+    private long mLastUpdateMs = -1;
+    private long mLastBytesWritten;
+    private long mFreeBytes = Long.MAX_VALUE;
+    private long mRemainingSeconds = Long.MAX_VALUE;
+
+    /**
+     * @param nominalBytesPerSecond Expected write rate, e.g. from the bitrates of the profile;
+     * used until measurements come in and when the recorder can't count its bytes.
+     */
+    StorageForecast(long nominalBytesPerSecond) {
+        mBytesPerSecond = Math.max(1, nominalBytesPerSecond);
+    }
+
+    /**
+     * Feeds one observation, typically every few seconds.
+     *
+     * @param nowMs Monotonic time of the observation.
+     * @param bytesWritten Bytes of the recording written so far, or -1 if unknown.
+     * @param freeBytes Space left on the storage of the recording.
+     * @return {@link #ACTION_NONE}, {@link #ACTION_MAKE_ROOM} or {@link #ACTION_STOP}.
+     */
+    int update(long nowMs, long bytesWritten, long freeBytes) {
+        if (bytesWritten >= 0) {
+            if (mLastUpdateMs >= 0 && nowMs > mLastUpdateMs
+                    && bytesWritten >= mLastBytesWritten) {
+                long rate = (bytesWritten - mLastBytesWritten) * 1000 / (nowMs - mLastUpdateMs);
+                mBytesPerSecond = Math.max(1, mBytesPerSecond
+                        + (rate - mBytesPerSecond) * RATE_SMOOTHING_PERCENT / 100);
+            }
+            mLastUpdateMs = nowMs;
+            mLastBytesWritten = bytesWritten;
+        }
+        mFreeBytes = freeBytes;
+        long usable = freeBytes - RESERVE_BYTES;
+        mRemainingSeconds = usable <= 0 ? 0 : usable / mBytesPerSecond;
+        if (mRemainingSeconds < CRITICAL_SEC) {
+            return ACTION_STOP;
+        }
+        if (mRemainingSeconds < LOW_SEC) {
+            return ACTION_MAKE_ROOM;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * @return recording time left at the current rate, as of the last {@link #update}.
+     */
+    long getRemainingSeconds() {
+        return mRemainingSeconds;
+    }
+
+    long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @return bytes to delete to get back to {@link #TARGET_SEC} of recording time.
+     */
+    long getBytesToFree() {
+        return Math.max(0, RESERVE_BYTES + TARGET_SEC * mBytesPerSecond - mFreeBytes);
+    }
+}
@@ -0,0 +1,698 @@
+package com.example.android.mediarecorder;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.common.gles.EglCore;
+import com.example.android.common.gles.ExternalTextureRenderer;
+import com.example.android.common.gles.TextOverlayRenderer;
+import com.example.android.common.media.AudioCapture;
+import com.example.android.common.media.MediaCodecWrapper;
+import com.example.android.common.media.SampleSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Capture engine that encodes camera frames without {@link android.media.MediaRecorder}.
+ *
+ * The camera renders into a {@link SurfaceTexture} owned by this class. Every frame is drawn
+ * with GLES straight into the input {@link android.view.Surface} of a video encoder and,
+ * optionally, into a preview surface; pixels stay on the GPU and never pass through the Java
+ * heap. Encoded samples are drained on a separate thread into a {@link SampleSink}.
+ *
+ * An optional proxy output encodes the same frames a second time, typically at a much lower
+ * resolution and bitrate, into a sink of its own. The GPU scales the frame while drawing it, so
+ * the proxy costs one extra draw and a second encoder session rather than a later transcode.
+ *
+ * An optional overlay burns the wall clock time and a label into the encoded frames, drawn
+ * with GLES after the camera frame; without it frames take exactly the same path as before.
+ *
+ * Optional audio is captured by an {@link AudioCapture} from the first video frame on, timed
+ * against the clock of the camera frames, and written to the main sink as a second track. The
+ * sink is started once both tracks are known; writes from the two drain threads are serialized.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class SurfaceRecorder implements SurfaceTexture.OnFrameAvailableListener {
+
+    private static final String TAG = "SurfaceRecorder";
+
+    // How long the drain thread blocks on the encoder before re-checking for a stop request.
+    private static final long DRAIN_TIMEOUT_MS = 100;
+
+    // How long we wait for the encoder to flush after end-of-stream was signalled.
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    // How long the video waits for the audio track before its sink is started without it.
+    private static final long TRACK_TIMEOUT_MS = 1000;
+
+    // Camera timestamps further than this from System.nanoTime() are on another clock.
+    private static final long CLOCK_BASE_TOLERANCE_NS = 1000000000L;
+
+    /**
+     * A sink and the state of the outputs feeding it. Samples are written with its lock held.
+     */
+    private static class Destination {
+        final SampleSink sink;
+        // Tracks still to be added before the sink is started.
+        int pendingTracks = 1;
+        boolean started;
+
+        Destination(SampleSink sink) {
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * One encoder with its input surface, drain thread and sink.
+     */
+    private static class Output {
+        final String name;
+        final MediaFormat format;
+        final Destination destination;
+        final SampleSink sink;
+        // Audio may be left out of the sink if it comes too late; video never is.
+        final boolean optional;
+        final int width;
+        final int height;
+
+        MediaCodecWrapper encoder;
+        // Only touched on the render thread.
+        EGLSurface surface = EGL14.EGL_NO_SURFACE;
+        Thread drainThread;
+        int trackIndex = -1;
+        // Set if the sink started without this output.
+        boolean skipped;
+        volatile IOException sinkError;
+        volatile long samplesWritten;
+        volatile long bytesWritten;
+
+        Output(String name, MediaFormat format, Destination destination, boolean optional) {
+            this.name = name;
+            this.format = format;
+            this.destination = destination;
+            this.sink = destination.sink;
+            this.optional = optional;
+            this.width = format.containsKey(MediaFormat.KEY_WIDTH)
+                    ? format.getInteger(MediaFormat.KEY_WIDTH) : 0;
+            this.height = format.containsKey(MediaFormat.KEY_HEIGHT)
+                    ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0;
+        }
+    }
+
+    private final Output mMain;
+    private Output mProxy;
+    private Output mAudio;
+    private int mAudioSource;
+    private AudioCapture mAudioCapture;
+    // Render thread only.
+    private boolean mAudioStarted;
+
+    // GL state, only touched on the render thread.
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+    private EglCore mEglCore;
+    private EGLSurface mPreviewSurface = EGL14.EGL_NO_SURFACE;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private ExternalTextureRenderer mRenderer;
+    private int mTextureId;
+    private SurfaceTexture mCameraTexture;
+    private final float[] mTexMatrix = new float[16];
+
+    // Timestamp overlay, only set up if a label was given; render thread only.
+    private String mOverlayLabel;
+    private TextOverlayRenderer mOverlay;
+    private char[] mOverlayText;
+    private Calendar mOverlayCalendar;
+    private long mOverlaySecond = -1;
+
+    private volatile boolean mStopRequested;
+    private volatile long mFramesRendered;
+
+    private final Runnable mDrawFrame = new Runnable() {
+        @Override
+        public void run() {
+            drawFrame();
+        }
+    };
+
+    /**
+     * @param videoFormat Encoder format, see {@link MediaCodecWrapper#createVideoEncoderFormat}.
+     * @param sink Receives the encoded samples. Stopped by {@link #stop()}.
+     */
+    SurfaceRecorder(MediaFormat videoFormat, SampleSink sink) {
+        mMain = new Output("main", videoFormat, new Destination(sink), false);
+    }
+
+    /**
+     * Records audio into the main sink as well. Must be called before {@link #start}; if the
+     * microphone or the encoder is unavailable, video is recorded alone.
+     *
+     * @param audioFormat Encoder format, see {@link MediaCodecWrapper#createAudioEncoderFormat}.
+     * @param audioSource One of {@link android.media.MediaRecorder.AudioSource}.
+     */
+    void setAudio(MediaFormat audioFormat, int audioSource) {
+        mAudio = new Output("audio", audioFormat, mMain.destination, true);
+        mAudioSource = audioSource;
+    }
+
+    /**
+     * Encodes every frame a second time into {@code sink}. Must be called before
+     * {@link #start}.
+     *
+     * @param videoFormat Encoder format of the proxy, normally of the same aspect ratio as the
+     * main output.
+     * @param sink Receives the encoded proxy samples. Stopped by {@link #stop()}.
+     */
+    void setProxy(MediaFormat videoFormat, SampleSink sink) {
+        mProxy = new Output("proxy", videoFormat, new Destination(sink), false);
+    }
+
+    /**
+     * Burns "yyyy-MM-dd HH:mm:ss {@code label}" into the top left corner of every encoded
+     * frame. The preview stays clean. Must be called before {@link #start}.
+     *
+     * @param label E.g. a device id; characters outside {@link TextOverlayRenderer#GLYPHS}
+     * are drawn as spaces.
+     */
+    void setTimestampOverlay(String label) {
+        mOverlayLabel = label;
+    }
+
+    /**
+     * Starts the encoders and the render and drain threads.
+     *
+     * @param preview Optional texture (e.g. from a {@link android.view.TextureView}) that frames
+     * are mirrored to, or null to record without preview.
+     * @return the texture the camera must render its preview into.
+     */
+    SurfaceTexture start(final SurfaceTexture preview) throws IOException {
+        startEncoder(mMain);
+        if (mProxy != null) {
+            try {
+                startEncoder(mProxy);
+            } catch (IOException | RuntimeException e) {
+                // Keep the main recording, it is what matters.
+                Log.e(TAG, "Unable to start proxy encoder: " + e.getMessage());
+                stopQuietly(mProxy.sink);
+                mProxy = null;
+            }
+        }
+        if (mAudio != null) {
+            startAudio();
+        }
+
+        mRenderThread = new HandlerThread("SurfaceRecorder-GL");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        final RuntimeException[] error = new RuntimeException[1];
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setUpGl(preview);
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                } finally {
+                    ready.countDown();
+                }
+            }
+        });
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while setting up GL");
+        }
+        if (error[0] != null) {
+            stop();
+            throw new IOException("Unable to set up GL: " + error[0].getMessage());
+        }
+
+        startDrain(mMain);
+        if (mProxy != null) {
+            startDrain(mProxy);
+        }
+        if (mAudio != null) {
+            startDrain(mAudio);
+        }
+        return mCameraTexture;
+    }
+
+    private void startAudio() {
+        try {
+            startEncoder(mAudio);
+            mAudioCapture = new AudioCapture(mAudio.encoder, mAudio.format, mAudioSource);
+            mMain.destination.pendingTracks++;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to start audio, recording video only: " + e.getMessage());
+            if (mAudio.encoder != null) {
+                mAudio.encoder.stopAndRelease();
+            }
+            mAudio = null;
+        }
+    }
+
+    private void startEncoder(final Output output) throws IOException {
+        output.encoder = MediaCodecWrapper.fromEncoderFormat(output.format);
+        output.encoder.setOutputSampleListener(new MediaCodecWrapper.OutputSampleListener() {
+            @Override
+            public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info,
+                    ByteBuffer buffer) {
+                writeSample(output, info, buffer);
+            }
+        });
+    }
+
+    private void startDrain(final Output output) {
+        output.drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(output);
+            }
+        }, "SurfaceRecorder-drain-" + output.name);
+        output.drainThread.start();
+    }
+
+    /**
+     * Flushes the encoders, finishes the sinks and releases everything. The camera must have
+     * stopped rendering into the texture returned by {@link #start} before.
+     */
+    void stop() {
+        if (mRenderHandler != null) {
+            final CountDownLatch released = new CountDownLatch(1);
+            mRenderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseGl();
+                    released.countDown();
+                }
+            });
+            awaitQuietly(released);
+            mRenderThread.quit();
+            mRenderThread = null;
+            mRenderHandler = null;
+        }
+
+        // All encoders flush in parallel.
+        mStopRequested = true;
+        signalEndOfStream(mMain);
+        signalEndOfStream(mProxy);
+        if (mAudioCapture != null) {
+            mAudioCapture.stop();
+            mAudioCapture = null;
+        }
+        // Audio shares the main sink, which is stopped with the main output.
+        stopOutput(mAudio, false);
+        stopOutput(mMain, true);
+        stopOutput(mProxy, true);
+        Log.d(TAG, "Stopped after " + mFramesRendered + " frames");
+    }
+
+    private static void signalEndOfStream(Output output) {
+        if (output != null && output.encoder != null && output.drainThread != null) {
+            output.encoder.signalEndOfInputStream();
+        }
+    }
+
+    private static void stopOutput(Output output, boolean stopSink) {
+        if (output == null) {
+            return;
+        }
+        if (output.encoder != null) {
+            if (output.drainThread != null) {
+                try {
+                    output.drainThread.join(STOP_TIMEOUT_MS + DRAIN_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                output.drainThread = null;
+            }
+            output.encoder.stopAndRelease();
+            output.encoder = null;
+        }
+        if (stopSink) {
+            stopQuietly(output.sink);
+        }
+        Log.d(TAG, "Output " + output.name + ": " + output.samplesWritten + " samples, "
+                + output.bytesWritten + " bytes");
+    }
+
+    private static void stopQuietly(SampleSink sink) {
+        try {
+            sink.stop();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to finish output: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the main encoder for a key frame as soon as possible, e.g. to start a new segment.
+     */
+    void requestSyncFrame() {
+        requestSyncFrame(mMain);
+    }
+
+    /**
+     * Asks the proxy encoder for a key frame, e.g. after its writer dropped samples.
+     */
+    void requestProxySyncFrame() {
+        requestSyncFrame(mProxy);
+    }
+
+    private static void requestSyncFrame(Output output) {
+        MediaCodecWrapper encoder = output == null ? null : output.encoder;
+        if (encoder != null) {
+            encoder.requestSyncFrame();
+        }
+    }
+
+    /**
+     * Changes the main encoder bitrate, starting with a new key frame. Requires API 19; ignored
+     * on older devices.
+     */
+    void setBitRate(int bitRate) {
+        MediaCodecWrapper encoder = mMain.encoder;
+        if (encoder != null) {
+            encoder.setVideoBitRate(bitRate);
+            encoder.requestSyncFrame();
+        }
+    }
+
+    long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /**
+     * @return samples the main encoder output so far; the sink may still drop some of them.
+     */
+    long getSamplesWritten() {
+        return mMain.samplesWritten;
+    }
+
+    long getBytesWritten() {
+        return mMain.bytesWritten;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        // May be called on an arbitrary thread; GL work belongs to the render thread.
+        Handler handler = mRenderHandler;
+        if (handler != null) {
+            handler.post(mDrawFrame);
+        }
+    }
+
+    private void setUpGl(SurfaceTexture preview) {
+        mEglCore = new EglCore();
+        mMain.surface = mEglCore.createWindowSurface(mMain.encoder.getInputSurface());
+        if (mProxy != null) {
+            mProxy.surface = mEglCore.createWindowSurface(mProxy.encoder.getInputSurface());
+        }
+        if (preview != null) {
+            mPreviewSurface = mEglCore.createWindowSurface(preview);
+            mPreviewWidth = mEglCore.querySurface(mPreviewSurface, EGL14.EGL_WIDTH);
+            mPreviewHeight = mEglCore.querySurface(mPreviewSurface, EGL14.EGL_HEIGHT);
+        }
+        mEglCore.makeCurrent(mMain.surface);
+
+        mRenderer = new ExternalTextureRenderer();
+        mTextureId = mRenderer.createTextureObject();
+        if (mOverlayLabel != null) {
+            // "yyyy-MM-dd HH:mm:ss " is 20 characters.
+            mOverlayText = (String.format("%20s", "") + mOverlayLabel).toCharArray();
+            // Glyphs are rendered for the main output and scaled down for the proxy.
+            mOverlay = new TextOverlayRenderer(mOverlayText.length, mMain.height / 24f,
+                    mMain.height);
+            mOverlayCalendar = Calendar.getInstance();
+        }
+        mCameraTexture = new SurfaceTexture(mTextureId);
+        mCameraTexture.setOnFrameAvailableListener(this);
+    }
+
+    private void drawFrame() {
+        if (mEglCore == null) {
+            return;
+        }
+        mEglCore.makeCurrent(mMain.surface);
+        mCameraTexture.updateTexImage();
+        mCameraTexture.getTransformMatrix(mTexMatrix);
+        if (mOverlay != null) {
+            updateOverlayText();
+        }
+
+        long timestampNs = mCameraTexture.getTimestamp();
+        if (mAudioCapture != null && !mAudioStarted) {
+            mAudioStarted = true;
+            mAudioCapture.start(getClockOffsetNs(timestampNs));
+        }
+        drawOutput(mMain, timestampNs);
+        if (mProxy != null) {
+            mEglCore.makeCurrent(mProxy.surface);
+            drawOutput(mProxy, timestampNs);
+        }
+        mFramesRendered++;
+
+        if (mPreviewSurface != EGL14.EGL_NO_SURFACE) {
+            mEglCore.makeCurrent(mPreviewSurface);
+            GLES20.glViewport(0, 0, mPreviewWidth, mPreviewHeight);
+            mRenderer.draw(mTextureId, mTexMatrix);
+            if (!mEglCore.swapBuffers(mPreviewSurface)) {
+                // The preview went away (e.g. the overlay was removed), keep recording.
+                mEglCore.releaseSurface(mPreviewSurface);
+                mPreviewSurface = EGL14.EGL_NO_SURFACE;
+            }
+        }
+    }
+
+    /**
+     * @return offset from {@link System#nanoTime()} to the clock of the camera timestamps,
+     * which is the monotonic clock on most devices but the boot time clock on some camera2
+     * devices.
+     */
+    private static long getClockOffsetNs(long timestampNs) {
+        long nowNs = System.nanoTime();
+        if (Math.abs(timestampNs - nowNs) < CLOCK_BASE_TOLERANCE_NS) {
+            return 0;
+        }
+        return SystemClock.elapsedRealtimeNanos() - nowNs;
+    }
+
+    /**
+     * Draws the latched frame into the current surface, which belongs to {@code output}.
+     */
+    private void drawOutput(Output output, long timestampNs) {
+        GLES20.glViewport(0, 0, output.width, output.height);
+        mRenderer.draw(mTextureId, mTexMatrix);
+        if (mOverlay != null) {
+            mOverlay.draw(output.width, output.height);
+        }
+        mEglCore.setPresentationTime(output.surface, timestampNs);
+        mEglCore.swapBuffers(output.surface);
+    }
+
+    /**
+     * Writes the current time into the overlay text, once per second.
+     */
+    private void updateOverlayText() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        if (second == mOverlaySecond) {
+            return;
+        }
+        mOverlaySecond = second;
+        Calendar c = mOverlayCalendar;
+        c.setTimeInMillis(now);
+        char[] t = mOverlayText;
+        putDigits(t, 0, c.get(Calendar.YEAR), 4);
+        t[4] = '-';
+        putDigits(t, 5, c.get(Calendar.MONTH) + 1, 2);
+        t[7] = '-';
+        putDigits(t, 8, c.get(Calendar.DAY_OF_MONTH), 2);
+        t[10] = ' ';
+        putDigits(t, 11, c.get(Calendar.HOUR_OF_DAY), 2);
+        t[13] = ':';
+        putDigits(t, 14, c.get(Calendar.MINUTE), 2);
+        t[16] = ':';
+        putDigits(t, 17, c.get(Calendar.SECOND), 2);
+        mOverlay.setText(t, t.length);
+    }
+
+    private static void putDigits(char[] text, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            text[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private void releaseGl() {
+        if (mCameraTexture != null) {
+            mCameraTexture.setOnFrameAvailableListener(null);
+            mCameraTexture.release();
+            mCameraTexture = null;
+        }
+        if (mRenderer != null) {
+            mRenderer.release();
+            mRenderer = null;
+        }
+        if (mOverlay != null) {
+            mOverlay.release();
+            mOverlay = null;
+        }
+        if (mEglCore != null) {
+            if (mPreviewSurface != EGL14.EGL_NO_SURFACE) {
+                mEglCore.releaseSurface(mPreviewSurface);
+                mPreviewSurface = EGL14.EGL_NO_SURFACE;
+            }
+            releaseSurface(mMain);
+            releaseSurface(mProxy);
+            mEglCore.release();
+            mEglCore = null;
+        }
+    }
+
+    private void releaseSurface(Output output) {
+        if (output != null && output.surface != EGL14.EGL_NO_SURFACE) {
+            mEglCore.releaseSurface(output.surface);
+            output.surface = EGL14.EGL_NO_SURFACE;
+        }
+    }
+
+    /**
+     * Moves encoded samples from the encoder of {@code output} to its sink until end-of-stream.
+     */
+    private void drain(Output output) {
+        MediaCodecWrapper encoder = output.encoder;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long stopDeadline = 0;
+        try {
+            while (output.sinkError == null) {
+                if (!encoder.awaitSample(DRAIN_TIMEOUT_MS)) {
+                    if (mStopRequested) {
+                        long now = SystemClock.elapsedRealtime();
+                        if (stopDeadline == 0) {
+                            stopDeadline = now + STOP_TIMEOUT_MS;
+                        } else if (now > stopDeadline) {
+                            Log.w(TAG, "Encoder didn't signal end of stream, giving up");
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                encoder.peekSample(info);
+                if (output.trackIndex < 0 && !output.skipped) {
+                    // The format carries SPS/PPS once the encoder produced its first output.
+                    if (!addTrack(output, encoder.getOutputFormat())) {
+                        break;
+                    }
+                }
+                encoder.popSample(false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            output.sinkError = e;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Encoder " + output.name + " failed: " + e.getMessage());
+        }
+        if (output.sinkError != null) {
+            Log.e(TAG, "Unable to write " + output.name + " output: "
+                    + output.sinkError.getMessage());
+        }
+    }
+
+    /**
+     * Adds the track of {@code output} to its sink and waits for the sink to start, which
+     * happens once every track feeding it is known. A video output waits at most
+     * {@link #TRACK_TIMEOUT_MS} and then starts the sink on its own; audio coming later is left
+     * out.
+     *
+     * @return false if recording stopped before the sink started.
+     */
+    private boolean addTrack(Output output, MediaFormat format) throws IOException {
+        Destination destination = output.destination;
+        synchronized (destination) {
+            if (destination.started) {
+                Log.w(TAG, "Output " + output.name + " came too late for the sink, left out");
+                output.skipped = true;
+                return true;
+            }
+            output.trackIndex = destination.sink.addTrack(format);
+            if (--destination.pendingTracks == 0) {
+                startSink(destination);
+                return true;
+            }
+            long deadline = SystemClock.elapsedRealtime() + TRACK_TIMEOUT_MS;
+            while (!destination.started) {
+                if (mStopRequested) {
+                    return false;
+                }
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (!output.optional && remaining <= 0) {
+                    Log.w(TAG, "Starting " + output.name + " output without "
+                            + destination.pendingTracks + " missing tracks");
+                    startSink(destination);
+                    break;
+                }
+                try {
+                    destination.wait(output.optional ? DRAIN_TIMEOUT_MS
+                            : Math.min(remaining, DRAIN_TIMEOUT_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void startSink(Destination destination) throws IOException {
+        destination.sink.start();
+        destination.started = true;
+        destination.notifyAll();
+    }
+
+    private static void writeSample(Output output, MediaCodec.BufferInfo info,
+            ByteBuffer buffer) {
+        if (output.sinkError != null || output.trackIndex < 0 || output.skipped
+                || info.size == 0) {
+            return;
+        }
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        try {
+            // Audio and video of the main sink come from two drain threads.
+            synchronized (output.destination) {
+                output.sink.writeSampleData(output.trackIndex, buffer, info);
+            }
+            output.samplesWritten++;
+            output.bytesWritten += info.size;
+        } catch (IOException e) {
+            output.sinkError = e;
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
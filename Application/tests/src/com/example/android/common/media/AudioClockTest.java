@@ -0,0 +1,118 @@
+package com.example.android.common.media;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Feeds the clock chunks from a simulated audio device whose clock drifts against the video
+ * clock, read with scheduling jitter, and compares the presentation times with the true
+ * capture times.
+ */
+public class AudioClockTest extends TestCase {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long START_US = 5000000;
+    // Largest change of the correction over one chunk while slewing.
+    private static final long MAX_STEP_US =
+            Math.max(1, CHUNK_FRAMES * 1000000L / SAMPLE_RATE * AudioClock.MAX_SLEW_PPM / 1000000);
+
+    /**
+     * An audio device running {@code driftPpm} fast against the video clock, read in chunks
+     * that return late by up to a few milliseconds, sometimes by much more.
+     */
+    private static class Device {
+        final double mDriftPpm;
+        final Random mRandom = new Random(42);
+        long mFrames;
+
+        Device(double driftPpm) {
+            mDriftPpm = driftPpm;
+        }
+
+        /** @return video clock time the frame at {@link #mFrames} was captured at. */
+        long trueTimeUs() {
+            return START_US + (long) (mFrames * 1e6 / SAMPLE_RATE / (1 + mDriftPpm / 1e6));
+        }
+
+        /** @return capture time as derived from when the read returned. */
+        long observedTimeUs() {
+            long lateUs = mRandom.nextInt(5000);
+            if (mRandom.nextInt(50) == 0) {
+                lateUs += 30000;
+            }
+            return trueTimeUs() + lateUs;
+        }
+    }
+
+    public void testFollowsDriftWithinSlewLimit() {
+        for (double drift : new double[] {200, -200}) {
+            Device device = new Device(drift);
+            AudioClock clock = new AudioClock(SAMPLE_RATE);
+            long lastPtsUs = Long.MIN_VALUE;
+            long lastCorrectionUs = 0;
+            long maxErrorUs = 0;
+            // An hour of audio: uncorrected, 200 ppm would add up to 720 ms.
+            long chunks = 3600L * SAMPLE_RATE / CHUNK_FRAMES;
+            for (long i = 0; i < chunks; i++) {
+                long trueUs = device.trueTimeUs();
+                long ptsUs = clock.next(CHUNK_FRAMES, device.observedTimeUs());
+                device.mFrames += CHUNK_FRAMES;
+
+                assertTrue("Chunk " + i + " at " + ptsUs + " after " + lastPtsUs,
+                        ptsUs > lastPtsUs);
+                lastPtsUs = ptsUs;
+                long correctionUs = clock.getCorrectionUs();
+                // The first window sets the correction at once, later ones only slew it.
+                if (i > 2 * AudioClock.WINDOW_US * SAMPLE_RATE / 1000000 / CHUNK_FRAMES) {
+                    assertTrue("Correction stepped by " + (correctionUs - lastCorrectionUs),
+                            Math.abs(correctionUs - lastCorrectionUs) <= MAX_STEP_US);
+                }
+                lastCorrectionUs = correctionUs;
+                // Converged after the first seconds.
+                if (ptsUs - START_US > 10000000) {
+                    maxErrorUs = Math.max(maxErrorUs, Math.abs(ptsUs - trueUs));
+                }
+            }
+            assertTrue(drift + " ppm off by " + maxErrorUs + " us", maxErrorUs < 2000);
+            assertEquals(0, clock.getResyncCount());
+            // Running fast means the audio clock is corrected backwards.
+            assertEquals(drift > 0, clock.getCorrectionUs() < 0);
+        }
+    }
+
+    public void testLostFramesResyncOnce() {
+        Device device = new Device(100);
+        AudioClock clock = new AudioClock(SAMPLE_RATE);
+        long lastPtsUs = Long.MIN_VALUE;
+        long maxErrorUs = 0;
+        long chunks = 60L * SAMPLE_RATE / CHUNK_FRAMES;
+        for (long i = 0; i < chunks; i++) {
+            if (i == chunks / 2) {
+                // An overrun: half a second of audio never reaches us.
+                device.mFrames += SAMPLE_RATE / 2;
+            }
+            long trueUs = device.trueTimeUs();
+            long ptsUs = clock.next(CHUNK_FRAMES, device.observedTimeUs());
+            device.mFrames += CHUNK_FRAMES;
+            assertTrue(ptsUs > lastPtsUs);
+            lastPtsUs = ptsUs;
+            if (i > chunks / 2 + 2 * AudioClock.WINDOW_US * SAMPLE_RATE / 1000000 / CHUNK_FRAMES) {
+                maxErrorUs = Math.max(maxErrorUs, Math.abs(ptsUs - trueUs));
+            }
+        }
+        assertEquals(1, clock.getResyncCount());
+        assertTrue("Off by " + maxErrorUs + " us after the gap", maxErrorUs < 2000);
+    }
+
+    public void testEndFollowsLastChunk() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE);
+        long ptsUs = 0;
+        for (int i = 0; i < 100; i++) {
+            ptsUs = clock.next(CHUNK_FRAMES, START_US + i * CHUNK_FRAMES * 1000000L / SAMPLE_RATE);
+        }
+        assertEquals(100 * CHUNK_FRAMES, clock.getFrames());
+        assertEquals(ptsUs + CHUNK_FRAMES * 1000000L / SAMPLE_RATE, clock.getEndUs(), 1);
+    }
+}
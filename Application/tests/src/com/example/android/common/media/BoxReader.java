@@ -0,0 +1,130 @@
+package com.example.android.common.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back the MP4 boxes our writers produce, so tests can check their layout.
+ */
+class BoxReader {
+
+    static class Box {
+        final String type;
+        // Offset of the box header in the file.
+        final int start;
+        final int size;
+        // Offset of the payload, past the header and, for full boxes, version and flags.
+        final int payload;
+
+        Box(String type, int start, int size, int payload) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.payload = payload;
+        }
+
+        int end() {
+            return start + size;
+        }
+    }
+
+    // Boxes whose payload starts with version and flags.
+    private static final String FULL_BOXES = "mvhd tkhd mdhd hdlr vmhd smhd dref stsd stts stsc "
+            + "stsz stco mehd trex mfhd tfhd tfdt trun esds";
+
+    private final ByteBuffer mData;
+
+    BoxReader(byte[] data) {
+        mData = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @return the top level boxes, which must tile the whole file.
+     */
+    List<Box> topLevel() {
+        return read(0, mData.limit());
+    }
+
+    /**
+     * @return the boxes in {@code parent}, a plain container like {@code moov} or {@code traf}.
+     * Sample descriptions have fields before their children and can't be read this way.
+     */
+    List<Box> children(Box parent) {
+        return read(parent.payload, parent.end());
+    }
+
+    /**
+     * @return the only child of type {@code type}, found depth first through {@code path}.
+     */
+    Box find(Box parent, String... path) {
+        Box box = parent;
+        for (String type : path) {
+            Box found = null;
+            for (Box child : children(box)) {
+                if (child.type.equals(type)) {
+                    if (found != null) {
+                        throw new AssertionError("More than one " + type + " in " + box.type);
+                    }
+                    found = child;
+                }
+            }
+            if (found == null) {
+                throw new AssertionError("No " + type + " in " + box.type);
+            }
+            box = found;
+        }
+        return box;
+    }
+
+    List<Box> findAll(Box parent, String type) {
+        List<Box> boxes = new ArrayList<Box>();
+        for (Box child : children(parent)) {
+            if (child.type.equals(type)) {
+                boxes.add(child);
+            }
+        }
+        return boxes;
+    }
+
+    int flags(Box box) {
+        return mData.getInt(box.payload - 4) & 0xffffff;
+    }
+
+    int getInt(int offset) {
+        return mData.getInt(offset);
+    }
+
+    long getLong(int offset) {
+        return mData.getLong(offset);
+    }
+
+    byte[] getBytes(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mData.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private List<Box> read(int from, int to) {
+        List<Box> boxes = new ArrayList<Box>();
+        int offset = from;
+        while (offset < to) {
+            if (offset + 8 > to) {
+                throw new AssertionError("Truncated box header at " + offset);
+            }
+            int size = mData.getInt(offset);
+            String type = new String(getBytes(offset + 4, 4));
+            if (size < 8 || offset + size > to) {
+                throw new AssertionError("Box " + type + " at " + offset + " has size " + size
+                        + ", its parent ends at " + to);
+            }
+            int payload = offset + 8 + (FULL_BOXES.contains(type) ? 4 : 0);
+            boxes.add(new Box(type, offset, size, payload));
+            offset += size;
+        }
+        return boxes;
+    }
+}
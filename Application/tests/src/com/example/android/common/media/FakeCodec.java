@@ -0,0 +1,252 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Polled {@link MediaCodecWrapper.Codec} copying each input buffer into an output buffer as
+ * soon as it is queued, with the same metadata. The input buffer is free again once that output
+ * buffer is released. Allocation free once constructed, so the wrapper's own allocations can be
+ * counted.
+ * <p>
+ * Dequeues wait up to their timeout, and like {@link MediaCodec} a dequeue throws while another
+ * one of the same kind is pending on another thread.
+ */
+class FakeCodec implements MediaCodecWrapper.Codec {
+
+    private final ByteBuffer[] mInputs;
+    private ByteBuffer[] mOutputs;
+    private final IntRingQueue mFreeInputs;
+    private IntRingQueue mFreeOutputs;
+    private final IntRingQueue mPendingOutputs;
+    // Input buffer each output buffer was copied from.
+    private int[] mOutputInputs;
+    private int[] mOutputSizes;
+    private long[] mOutputPtsUs;
+    private int[] mOutputFlags;
+    // Status the next dequeueOutputBuffer() returns before any buffer, or TRY_AGAIN_LATER.
+    private int mNextStatus = MediaCodec.INFO_TRY_AGAIN_LATER;
+    private boolean mInputDequeuePending;
+    private boolean mOutputDequeuePending;
+
+    int queued;
+    int released;
+    int rendered;
+    int flushes;
+
+    FakeCodec(int inputCount, int outputCount, int capacity) {
+        mInputs = new ByteBuffer[inputCount];
+        for (int i = 0; i < inputCount; i++) {
+            mInputs[i] = ByteBuffer.allocateDirect(capacity);
+        }
+        mFreeInputs = new IntRingQueue(inputCount);
+        mPendingOutputs = new IntRingQueue(outputCount);
+        setOutputBuffers(outputCount, capacity);
+    }
+
+    /**
+     * Replaces the output buffers, as reported by {@link MediaCodec#INFO_OUTPUT_BUFFERS_CHANGED}.
+     * Only while no output is pending.
+     */
+    synchronized void changeOutputBuffers(int count, int capacity) {
+        if (!mPendingOutputs.isEmpty()) {
+            throw new IllegalStateException("Outputs pending");
+        }
+        setOutputBuffers(count, capacity);
+        mNextStatus = MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
+    }
+
+    /**
+     * Makes the next dequeueOutputBuffer() report {@code status} first, e.g.
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}.
+     */
+    synchronized void reportStatus(int status) {
+        mNextStatus = status;
+    }
+
+    private void setOutputBuffers(int count, int capacity) {
+        mOutputs = new ByteBuffer[count];
+        mFreeOutputs = new IntRingQueue(count);
+        for (int i = 0; i < count; i++) {
+            mOutputs[i] = ByteBuffer.allocateDirect(capacity);
+            mFreeOutputs.add(i);
+        }
+        mOutputInputs = new int[count];
+        mOutputSizes = new int[count];
+        mOutputPtsUs = new long[count];
+        mOutputFlags = new int[count];
+    }
+
+    @Override
+    public synchronized void start() {
+        mFreeInputs.clear();
+        for (int i = 0; i < mInputs.length; i++) {
+            mFreeInputs.add(i);
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public synchronized void flush() {
+        flushes++;
+        start();
+        while (!mPendingOutputs.isEmpty()) {
+            mFreeOutputs.add(mPendingOutputs.remove());
+        }
+    }
+
+    @Override
+    public void setCallback(MediaCodec.Callback callback) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return mInputs;
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return mOutputs;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        if (mInputDequeuePending) {
+            throw new IllegalStateException("Input dequeue pending");
+        }
+        mInputDequeuePending = true;
+        try {
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (mFreeInputs.isEmpty()) {
+                if (!waitUntil(deadline)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+            return mFreeInputs.remove();
+        } finally {
+            mInputDequeuePending = false;
+        }
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (mOutputDequeuePending) {
+            throw new IllegalStateException("Output dequeue pending");
+        }
+        if (mNextStatus != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            int status = mNextStatus;
+            mNextStatus = MediaCodec.INFO_TRY_AGAIN_LATER;
+            return status;
+        }
+        mOutputDequeuePending = true;
+        try {
+            long deadline = System.nanoTime() + timeoutUs * 1000;
+            while (mPendingOutputs.isEmpty()) {
+                if (!waitUntil(deadline)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+        } finally {
+            mOutputDequeuePending = false;
+        }
+        int index = mPendingOutputs.remove();
+        info.set(0, mOutputSizes[index], mOutputPtsUs[index], mOutputFlags[index]);
+        return index;
+    }
+
+    /**
+     * Waits for a buffer to be queued or released, releasing the monitor meanwhile.
+     *
+     * @return False, if the deadline passed.
+     */
+    private boolean waitUntil(long deadlineNs) {
+        long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+            return false;
+        }
+        try {
+            wait(remainingNs / 1000000, (int) (remainingNs % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size,
+            long presentationTimeUs, int flags) {
+        if (mFreeOutputs.isEmpty()) {
+            throw new IllegalStateException("No free output buffer");
+        }
+        int output = mFreeOutputs.remove();
+        ByteBuffer in = mInputs[index];
+        ByteBuffer out = mOutputs[output];
+        for (int i = 0; i < size; i++) {
+            out.put(i, in.get(offset + i));
+        }
+        mOutputInputs[output] = index;
+        mOutputSizes[output] = size;
+        mOutputPtsUs[output] = presentationTimeUs;
+        mOutputFlags[output] = flags;
+        mPendingOutputs.add(output);
+        queued++;
+        notifyAll();
+    }
+
+    @Override
+    public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+            long presentationTimeUs, int flags) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        mFreeOutputs.add(index);
+        mFreeInputs.add(mOutputInputs[index]);
+        released++;
+        if (render) {
+            rendered++;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        releaseOutputBuffer(index, true);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a fragmented MP4 from synthetic H.264 and AAC samples and parses it back.
+ */
+public class FragmentedMp4SinkTest extends TestCase {
+
+    private static final long START_US = 1000000;
+    private static final long VIDEO_FRAME_US = 1000000 / 30;
+    private static final int VIDEO_KEY_INTERVAL = 30;
+    // AAC frames of 1024 samples at 16 kHz last exactly 64 ms.
+    private static final int AUDIO_SAMPLE_RATE = 16000;
+    private static final long AUDIO_FRAME_US = 64000;
+    // Key frames come every 999990 us, so each one starts a fragment.
+    private static final long FRAGMENT_US = 900000;
+
+    private static final int SYNC = 0x02000000;
+    private static final int NON_SYNC = 0x01010000;
+
+    private static final byte[] SPS =
+            {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private ByteArrayOutputStream mOutput;
+    private FragmentedMp4Sink mSink;
+    private int mVideoTrack;
+    private int mAudioTrack;
+    // Expected MP4 samples and their sync state, per track in decode order.
+    private final List<byte[]> mVideoSamples = new ArrayList<byte[]>();
+    private final List<Boolean> mVideoSync = new ArrayList<Boolean>();
+    private final List<byte[]> mAudioSamples = new ArrayList<byte[]>();
+
+    @Override
+    protected void setUp() throws Exception {
+        mOutput = new ByteArrayOutputStream();
+        mSink = new FragmentedMp4Sink(Channels.newChannel(mOutput), FRAGMENT_US);
+
+        MediaFormat video =
+                MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+        video.setByteBuffer("csd-0", ByteBuffer.wrap(annexB(SPS)));
+        video.setByteBuffer("csd-1", ByteBuffer.wrap(annexB(PPS)));
+        MediaFormat audio = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                AUDIO_SAMPLE_RATE, 1);
+        audio.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[] {0x14, 0x08}));
+        mVideoTrack = mSink.addTrack(video);
+        mAudioTrack = mSink.addTrack(audio);
+    }
+
+    public void testLayout() throws IOException {
+        record(3500000);
+        BoxReader reader = new BoxReader(mOutput.toByteArray());
+        List<BoxReader.Box> boxes = reader.topLevel();
+
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        BoxReader.Box moov = boxes.get(1);
+        assertEquals(2, reader.findAll(moov, "trak").size());
+        assertEquals(2, reader.findAll(reader.find(moov, "mvex"), "trex").size());
+        BoxReader.Box videoTrak = reader.findAll(moov, "trak").get(0);
+        assertEquals(90000, reader.getInt(reader.find(videoTrak, "mdia", "mdhd").payload + 8));
+
+        // A fragment starts on each key frame, about one per second.
+        int fragments = (boxes.size() - 2) / 2;
+        assertEquals(4, fragments);
+        for (int f = 0; f < fragments; f++) {
+            assertEquals("moof", boxes.get(2 + 2 * f).type);
+            assertEquals("mdat", boxes.get(3 + 2 * f).type);
+        }
+    }
+
+    public void testSamplesRoundTrip() throws IOException {
+        record(3500000);
+        BoxReader reader = new BoxReader(mOutput.toByteArray());
+        List<BoxReader.Box> boxes = reader.topLevel();
+
+        int videoSample = 0;
+        int audioSample = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            BoxReader.Box moof = boxes.get(i);
+            BoxReader.Box mdat = boxes.get(i + 1);
+            assertEquals(i / 2, reader.getInt(reader.find(moof, "mfhd").payload));
+
+            int mdatBytes = 0;
+            for (BoxReader.Box traf : reader.findAll(moof, "traf")) {
+                int trackId = reader.getInt(reader.find(traf, "tfhd").payload);
+                BoxReader.Box trun = reader.find(traf, "trun");
+                assertEquals(0x000701, reader.flags(trun));
+                int count = reader.getInt(trun.payload);
+                int dataOffset = reader.getInt(trun.payload + 4);
+                int data = moof.start + dataOffset;
+                assertTrue(data >= mdat.payload && data < mdat.end());
+
+                for (int s = 0; s < count; s++) {
+                    int entry = trun.payload + 8 + s * 12;
+                    int size = reader.getInt(entry + 4);
+                    int flags = reader.getInt(entry + 8);
+                    byte[] bytes = reader.getBytes(data, size);
+                    if (trackId == mVideoTrack + 1) {
+                        assertTrue(Arrays.equals(mVideoSamples.get(videoSample), bytes));
+                        assertEquals(mVideoSync.get(videoSample) ? SYNC : NON_SYNC, flags);
+                        // Fragments start on key frames.
+                        assertEquals(s == 0, mVideoSync.get(videoSample).booleanValue());
+                        videoSample++;
+                    } else {
+                        assertEquals(mAudioTrack + 1, trackId);
+                        assertTrue(Arrays.equals(mAudioSamples.get(audioSample), bytes));
+                        assertEquals(SYNC, flags);
+                        audioSample++;
+                    }
+                    data += size;
+                    mdatBytes += size;
+                }
+            }
+            assertEquals(mdat.size - 8, mdatBytes);
+        }
+        assertEquals(mVideoSamples.size(), videoSample);
+        assertEquals(mAudioSamples.size(), audioSample);
+    }
+
+    public void testDecodeTimesContinue() throws IOException {
+        record(3500000);
+        BoxReader reader = new BoxReader(mOutput.toByteArray());
+        List<BoxReader.Box> boxes = reader.topLevel();
+
+        // Next expected tfdt per track id, from the durations of the fragments before.
+        long[] nextDecodeTime = new long[3];
+        long[] timescale = {0, 90000, AUDIO_SAMPLE_RATE};
+        for (int i = 2; i < boxes.size(); i += 2) {
+            for (BoxReader.Box traf : reader.findAll(boxes.get(i), "traf")) {
+                int trackId = reader.getInt(reader.find(traf, "tfhd").payload);
+                BoxReader.Box tfdt = reader.find(traf, "tfdt");
+                long decodeTime = reader.getLong(tfdt.payload);
+                if (i == 2) {
+                    assertEquals(0, decodeTime);
+                } else {
+                    assertEquals("Track " + trackId + " in fragment " + i / 2,
+                            nextDecodeTime[trackId], decodeTime);
+                }
+                BoxReader.Box trun = reader.find(traf, "trun");
+                int count = reader.getInt(trun.payload);
+                long duration = 0;
+                for (int s = 0; s < count; s++) {
+                    int sampleDuration = reader.getInt(trun.payload + 8 + s * 12);
+                    assertTrue(sampleDuration > 0);
+                    duration += sampleDuration;
+                }
+                nextDecodeTime[trackId] = decodeTime + duration;
+            }
+        }
+        // Every track spans the recording.
+        assertEquals(3500000 * timescale[1] / 1000000, nextDecodeTime[1], 3000);
+        assertEquals(3500000 * timescale[2] / 1000000, nextDecodeTime[2], 1024);
+    }
+
+    public void testKeepsBufferPosition() throws IOException {
+        mSink.start();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        buffer.position(7).limit(200);
+        ByteBuffer sample = ByteBuffer.wrap(annexB(new byte[] {0x65, 1, 2, 3}));
+        for (int i = 0; i < sample.limit(); i++) {
+            buffer.put(40 + i, sample.get(i));
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(40, sample.limit(), START_US, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        mSink.writeSampleData(mVideoTrack, buffer, info);
+        assertEquals(7, buffer.position());
+        assertEquals(200, buffer.limit());
+        mSink.stop();
+    }
+
+    public void testLengthPrefixedInputIsKept() throws IOException {
+        mSink.start();
+        byte[] prefixed = {0, 0, 0, 3, 0x65, 9, 9};
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, prefixed.length, START_US, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        mSink.writeSampleData(mVideoTrack, ByteBuffer.wrap(prefixed), info);
+        mSink.stop();
+
+        BoxReader reader = new BoxReader(mOutput.toByteArray());
+        BoxReader.Box mdat = reader.topLevel().get(3);
+        assertTrue(Arrays.equals(prefixed, reader.getBytes(mdat.payload, prefixed.length)));
+    }
+
+    /**
+     * Feeds interleaved video and audio from {@link #START_US} on, as the encoders would, and
+     * stops the sink.
+     */
+    private void record(long durationUs) throws IOException {
+        mSink.start();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        // Codec config is skipped, it is part of the format.
+        info.set(0, 4, START_US, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        mSink.writeSampleData(mVideoTrack, ByteBuffer.wrap(annexB(SPS)), info);
+
+        int frame = 0;
+        int audioFrame = 0;
+        long endUs = START_US + durationUs;
+        while (true) {
+            long videoUs = START_US + frame * VIDEO_FRAME_US;
+            long audioUs = START_US + audioFrame * AUDIO_FRAME_US;
+            if (videoUs >= endUs && audioUs >= endUs) {
+                break;
+            }
+            if (videoUs <= audioUs) {
+                writeVideo(frame++, videoUs, info);
+            } else {
+                writeAudio(audioFrame++, audioUs, info);
+            }
+        }
+        mSink.stop();
+    }
+
+    private void writeVideo(int frame, long ptsUs, MediaCodec.BufferInfo info)
+            throws IOException {
+        boolean key = frame % VIDEO_KEY_INTERVAL == 0;
+        byte[] slice = new byte[20 + frame % 7];
+        Arrays.fill(slice, (byte) (0x80 | frame));
+        slice[0] = (byte) (key ? 0x65 : 0x41);
+        byte[] sei = {0x06, 5, 1, (byte) frame};
+
+        // A 4 byte start code, then a 3 byte one, behind some unrelated bytes.
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 4 + slice.length + 3 + sei.length);
+        buffer.position(16);
+        buffer.put(annexB(slice)).put(new byte[] {0, 0, 1}).put(sei);
+        info.set(16, buffer.position() - 16, ptsUs, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        buffer.clear();
+        mSink.writeSampleData(mVideoTrack, buffer, info);
+
+        ByteBuffer expected = ByteBuffer.allocate(4 + slice.length + 4 + sei.length);
+        expected.putInt(slice.length).put(slice).putInt(sei.length).put(sei);
+        mVideoSamples.add(expected.array());
+        mVideoSync.add(key);
+    }
+
+    private void writeAudio(int frame, long ptsUs, MediaCodec.BufferInfo info)
+            throws IOException {
+        byte[] data = new byte[10 + frame % 5];
+        Arrays.fill(data, (byte) (0x80 | frame));
+        info.set(0, data.length, ptsUs, 0);
+        mSink.writeSampleData(mAudioTrack, ByteBuffer.wrap(data), info);
+        mAudioSamples.add(data);
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        byte[] bytes = new byte[4 + nal.length];
+        bytes[3] = 1;
+        System.arraycopy(nal, 0, bytes, 4, nal.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.common.media;
+
+import junit.framework.TestCase;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Checks the order of elements as the circular array wraps around and grows.
+ */
+public class IntRingQueueTest extends TestCase {
+
+    public void testFifoAcrossWraparound() {
+        IntRingQueue queue = new IntRingQueue(4);
+        queue.add(0);
+        queue.add(1);
+        queue.add(2);
+        assertEquals(0, queue.remove());
+        assertEquals(1, queue.remove());
+        // Wraps around the end of the array.
+        queue.add(3);
+        queue.add(4);
+        queue.add(5);
+        assertEquals(4, queue.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2 + i, queue.get(i));
+        }
+        for (int i = 2; i <= 5; i++) {
+            assertEquals(i, queue.peek());
+            assertEquals(i, queue.remove());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testAddFirstKeepsOrder() {
+        IntRingQueue queue = new IntRingQueue(8);
+        queue.add(5);
+        queue.add(6);
+        // The head is at the start of the array, so the values wrap around backwards.
+        queue.addFirst(new int[] {9, 1, 2, 3, 9}, 1, 3);
+        assertContents(queue, 1, 2, 3, 5, 6);
+
+        queue.add(7);
+        assertEquals(1, queue.remove());
+        assertEquals(2, queue.remove());
+        queue.addFirst(new int[] {2}, 0, 1);
+        assertContents(queue, 2, 3, 5, 6, 7);
+    }
+
+    public void testGrowKeepsOrder() {
+        IntRingQueue queue = new IntRingQueue(3);
+        queue.add(0);
+        queue.add(1);
+        queue.remove();
+        queue.add(2);
+        queue.add(3);
+        // Full and wrapped; both ends grow it.
+        queue.add(4);
+        queue.addFirst(new int[] {-2, -1}, 0, 2);
+        assertContents(queue, -2, -1, 1, 2, 3, 4);
+        for (int i = 5; i < 20; i++) {
+            queue.add(i);
+        }
+        assertEquals(21, queue.size());
+        assertEquals(-2, queue.get(0));
+        assertEquals(19, queue.get(20));
+    }
+
+    public void testEmpty() {
+        IntRingQueue queue = new IntRingQueue(0);
+        assertTrue(queue.isEmpty());
+        queue.add(1);
+        queue.add(2);
+        queue.clear();
+        assertEquals(0, queue.size());
+        try {
+            queue.peek();
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+        try {
+            queue.remove();
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+        try {
+            queue.get(0);
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+        queue.add(3);
+        assertContents(queue, 3);
+    }
+
+    private static void assertContents(IntRingQueue queue, int... values) {
+        assertEquals(values.length, queue.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Element " + i, values[i], queue.get(i));
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams synthetic H.264 to a loopback HTTP server and checks what arrives there.
+ */
+public class LiveStreamSinkTest extends TestCase {
+
+    private static final long START_US = 1000000;
+    private static final long FRAME_US = 1000000 / 30;
+    // Key frames come every 499995 us, so each one starts a segment.
+    private static final int KEY_INTERVAL = 15;
+    private static final long SEGMENT_US = 450000;
+    private static final int FRAME_BYTES = 2000;
+    // Four segments of about 30 KB fill the queue.
+    private static final int MAX_QUEUED_BYTES = 100 * 1024;
+
+    private static final byte[] SPS =
+            {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02, (byte) 0x80};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    /**
+     * Minimal HTTP/1.1 server storing PUT bodies by name; one request per connection.
+     */
+    private static class Server implements Runnable {
+        final ServerSocket mSocket;
+        final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+        // Names of the PUT requests, in the order they arrived.
+        final List<String> mPuts = new ArrayList<String>();
+        // Holds back the responses, and with them the sender, while closed.
+        volatile CountDownLatch mGate = new CountDownLatch(0);
+        private final Thread mThread = new Thread(this, "LoopbackHttp");
+
+        Server() throws IOException {
+            mSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            mThread.start();
+        }
+
+        String getBaseUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/live/";
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = mSocket.accept();
+                } catch (IOException e) {
+                    // Closed by the test.
+                    return;
+                }
+                try {
+                    handle(socket);
+                } catch (IOException e) {
+                    // The client gave up; it retries on a new connection.
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void handle(Socket socket) throws IOException, InterruptedException {
+            InputStream in = socket.getInputStream();
+            String[] request = readLine(in).split(" ");
+            int length = 0;
+            String header;
+            while ((header = readLine(in)).length() > 0) {
+                int colon = header.indexOf(':');
+                if (header.substring(0, colon).equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(header.substring(colon + 1).trim());
+                }
+            }
+            byte[] body = new byte[length];
+            for (int read = 0; read < length; ) {
+                int n = in.read(body, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Truncated body");
+                }
+                read += n;
+            }
+            String name = request[1].substring(request[1].lastIndexOf('/') + 1);
+            mGate.await();
+            synchronized (this) {
+                if (request[0].equals("PUT")) {
+                    mFiles.put(name, body);
+                    mPuts.add(name);
+                } else if (request[0].equals("DELETE")) {
+                    mFiles.remove(name);
+                }
+            }
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + (request[0].equals("PUT") ? "201 Created" : "204 No Content")
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("UTF-8");
+        }
+
+        void close() throws IOException, InterruptedException {
+            mGate.countDown();
+            mSocket.close();
+            mThread.join();
+        }
+    }
+
+    private Server mServer;
+    private LiveStreamSink mSink;
+    private int mTrack;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mKeyFramesRequested;
+
+    @Override
+    protected void setUp() throws Exception {
+        mServer = new Server();
+        mSink = new LiveStreamSink(new LiveStreamSink.HttpUploader(mServer.getBaseUrl()),
+                SEGMENT_US, MAX_QUEUED_BYTES, 100);
+        mSink.setListener(new LiveStreamSink.Listener() {
+            @Override
+            public void onKeyFrameNeeded() {
+                mKeyFramesRequested++;
+            }
+        });
+        MediaFormat format =
+                MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(annexB(SPS)));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(annexB(PPS)));
+        mTrack = mSink.addTrack(format);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    public void testStream() throws Exception {
+        mSink.start();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int frame = 0; frame < 60; frame++) {
+            write(frame);
+            expected.add(frame);
+        }
+        mSink.stop();
+
+        assertEquals(0, mSink.getStats().droppedSamples);
+        assertEquals(LiveStreamSink.INIT_SEGMENT_NAME, mServer.mPuts.get(0));
+        List<String> segments = segmentPuts();
+        assertEquals(4, segments.size());
+        assertPlaylist(segments);
+        assertEquals(expected, receivedFrames());
+    }
+
+    public void testDropsUntilKeyFrameWhenCongested() throws Exception {
+        // Nothing is acknowledged, so segments pile up in the send queue.
+        mServer.mGate = new CountDownLatch(1);
+        mSink.start();
+        List<Integer> expected = new ArrayList<Integer>();
+        int frame = 0;
+        while (mSink.getStats().droppedSamples == 0) {
+            assertTrue("Queue never filled up", frame < 300);
+            write(frame);
+            expected.add(frame++);
+        }
+        // The frame that found the queue full wasn't sent.
+        int firstDropped = expected.remove(expected.size() - 1);
+        assertEquals(1, mKeyFramesRequested);
+        assertTrue(mSink.getStats().queuedBytes >= MAX_QUEUED_BYTES);
+
+        // Still full, even key frames are dropped.
+        int congestedEnd = (firstDropped / KEY_INTERVAL + 1) * KEY_INTERVAL + 1;
+        while (frame <= congestedEnd) {
+            write(frame++);
+        }
+        assertEquals(congestedEnd - firstDropped + 1, mSink.getStats().droppedSamples);
+
+        mServer.mGate.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mSink.getStats().queuedBytes > 0) {
+            assertTrue("Queue never drained", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        // Drained, yet nothing is sent before the next key frame.
+        while (frame % KEY_INTERVAL != 0) {
+            write(frame++);
+        }
+        long dropped = mSink.getStats().droppedSamples;
+        int resumed = frame;
+        for (int end = frame + 2 * KEY_INTERVAL; frame < end; frame++) {
+            write(frame);
+            expected.add(frame);
+        }
+        mSink.stop();
+
+        assertEquals(resumed - firstDropped, dropped);
+        assertEquals(dropped, mSink.getStats().droppedSamples);
+        assertEquals(0, mSink.getStats().segmentsFailed);
+        assertEquals(expected, receivedFrames());
+        assertPlaylist(segmentPuts());
+    }
+
+    public void testIsNonReference() {
+        assertTrue(isNonReference(new byte[] {0, 0, 0, 1, 0x01, 1, 2}));
+        assertFalse(isNonReference(new byte[] {0, 0, 0, 1, 0x41, 1, 2}));
+        assertFalse(isNonReference(new byte[] {0, 0, 0, 1, 0x65, 1, 2}));
+        // The first slice decides, whatever comes before it.
+        assertTrue(isNonReference(new byte[] {0, 0, 1, 0x06, 5, 0, 0, 1, 0x01, 1}));
+        assertFalse(isNonReference(new byte[] {0, 0, 0, 1, 0x06, 5, 1}));
+    }
+
+    private static boolean isNonReference(byte[] bytes) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, bytes.length, 0, 0);
+        return LiveStreamSink.isNonReference(ByteBuffer.wrap(bytes), info);
+    }
+
+    /**
+     * Checks the final playlist lists the segments in upload order, each with the duration of
+     * its fragment.
+     */
+    private void assertPlaylist(List<String> segments) throws IOException {
+        String playlist;
+        synchronized (mServer) {
+            playlist = new String(mServer.mFiles.get(LiveStreamSink.PLAYLIST_NAME), "UTF-8");
+        }
+        String[] lines = playlist.split("\n");
+        assertEquals("#EXTM3U", lines[0]);
+        assertTrue(playlist, playlist.contains("#EXT-X-MAP:URI=\"init.mp4\"\n"));
+        assertTrue(playlist, playlist.endsWith("#EXT-X-ENDLIST\n"));
+
+        int targetDuration = -1;
+        List<String> listed = new ArrayList<String>();
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith("#EXT-X-TARGETDURATION:")) {
+                targetDuration = Integer.parseInt(lines[i].substring(22));
+            } else if (lines[i].startsWith("#EXTINF:")) {
+                String name = lines[i + 1];
+                listed.add(name);
+                double seconds = Double.parseDouble(
+                        lines[i].substring(8, lines[i].indexOf(',')));
+                assertEquals(name, fragmentDuration(name), seconds, 0.002);
+                assertTrue(seconds <= targetDuration);
+            }
+        }
+        assertEquals(segments, listed);
+    }
+
+    /**
+     * @return the uploaded segments, which must have arrived in order.
+     */
+    private List<String> segmentPuts() {
+        List<String> segments = new ArrayList<String>();
+        synchronized (mServer) {
+            for (String name : mServer.mPuts) {
+                if (name.startsWith("segment")) {
+                    segments.add(name);
+                }
+            }
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals(String.format(Locale.US, "segment%05d.m4s", i), segments.get(i));
+        }
+        return segments;
+    }
+
+    private double fragmentDuration(String name) {
+        byte[] data;
+        synchronized (mServer) {
+            data = mServer.mFiles.get(name);
+        }
+        BoxReader reader = new BoxReader(data);
+        BoxReader.Box trun = reader.find(reader.topLevel().get(0), "traf", "trun");
+        int count = reader.getInt(trun.payload);
+        long ticks = 0;
+        for (int s = 0; s < count; s++) {
+            ticks += reader.getInt(trun.payload + 8 + s * 12);
+        }
+        return ticks / 90000.0;
+    }
+
+    /**
+     * @return numbers of the frames in the segments uploaded so far, in segment order.
+     */
+    private List<Integer> receivedFrames() {
+        List<Integer> frames = new ArrayList<Integer>();
+        for (String name : segmentPuts()) {
+            byte[] data;
+            synchronized (mServer) {
+                data = mServer.mFiles.get(name);
+            }
+            BoxReader reader = new BoxReader(data);
+            List<BoxReader.Box> boxes = reader.topLevel();
+            assertEquals("moof", boxes.get(0).type);
+            assertEquals("mdat", boxes.get(1).type);
+            BoxReader.Box trun = reader.find(boxes.get(0), "traf", "trun");
+            int count = reader.getInt(trun.payload);
+            int sample = boxes.get(0).start + reader.getInt(trun.payload + 4);
+            for (int s = 0; s < count; s++) {
+                int size = reader.getInt(trun.payload + 8 + s * 12 + 4);
+                byte[] nal = reader.getBytes(sample + 4, 3);
+                frames.add(((nal[1] & 0x7f) << 7) | (nal[2] & 0x7f));
+                sample += size;
+            }
+        }
+        return frames;
+    }
+
+    private void write(int frame) throws IOException {
+        boolean key = frame % KEY_INTERVAL == 0;
+        byte[] nal = new byte[FRAME_BYTES];
+        // No zero bytes after the header, so no start code emulation.
+        Arrays.fill(nal, (byte) 0x80);
+        nal[0] = (byte) (key ? 0x65 : 0x41);
+        nal[1] = (byte) (0x80 | (frame >> 7));
+        nal[2] = (byte) (0x80 | (frame & 0x7f));
+        byte[] sample = annexB(nal);
+        mInfo.set(0, sample.length, START_US + frame * FRAME_US,
+                key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mSink.writeSampleData(mTrack, ByteBuffer.wrap(sample), mInfo);
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        byte[] bytes = new byte[4 + nal.length];
+        bytes[3] = 1;
+        System.arraycopy(nal, 0, bytes, 4, nal.length);
+        return bytes;
+    }
+}
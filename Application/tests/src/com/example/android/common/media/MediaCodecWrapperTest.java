@@ -0,0 +1,369 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drives the buffer bookkeeping of {@link MediaCodecWrapper} in polling mode with a
+ * {@link FakeCodec}.
+ */
+public class MediaCodecWrapperTest extends TestCase {
+
+    private static final String TAG = "MediaCodecWrapperTest";
+
+    private static final int INPUT_BUFFERS = 4;
+    private static final int OUTPUT_BUFFERS = 4;
+    private static final int CAPACITY = 64;
+
+    private FakeCodec mCodec;
+    private MediaCodecWrapper mWrapper;
+    private final ByteBuffer mSample = ByteBuffer.allocateDirect(CAPACITY);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    // What the listener saw, in primitives so that counting allocations isn't disturbed.
+    private int mSamplesOut;
+    private long mLastPtsUs;
+    private long mLastContent;
+    private int mMismatches;
+
+    @Override
+    protected void setUp() {
+        mCodec = new FakeCodec(INPUT_BUFFERS, OUTPUT_BUFFERS, CAPACITY);
+        mWrapper = MediaCodecWrapper.fromCodec(mCodec, false);
+        mWrapper.setOutputSampleListener(new MediaCodecWrapper.OutputSampleListener() {
+            @Override
+            public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info,
+                    ByteBuffer buffer) {
+                mSamplesOut++;
+                mLastPtsUs = info.presentationTimeUs;
+                mLastContent = buffer.getLong(info.offset);
+                if (mLastContent != info.presentationTimeUs) {
+                    mMismatches++;
+                }
+            }
+        });
+    }
+
+    public void testSamplesPassThroughInOrder() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            write(1000 * i);
+        }
+        assertEquals(3, mCodec.queued);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mWrapper.peekSample(mInfo));
+            assertEquals(1000 * i, mInfo.presentationTimeUs);
+            assertEquals(8, mInfo.size);
+            mWrapper.popSample(true);
+            assertEquals(1000 * i, mLastContent);
+        }
+        assertFalse(mWrapper.peekSample(mInfo));
+        assertEquals(3, mSamplesOut);
+        assertEquals(3, mCodec.rendered);
+    }
+
+    public void testPopWithoutRenderSkipsListener() throws Exception {
+        write(0);
+        mWrapper.popSample(false);
+        assertEquals(0, mSamplesOut);
+        assertEquals(1, mCodec.released);
+        assertEquals(0, mCodec.rendered);
+    }
+
+    public void testOutputBuffersChangedGrowsInfoPool() throws Exception {
+        write(0);
+        mWrapper.popSample(true);
+        mCodec.changeOutputBuffers(2 * OUTPUT_BUFFERS, CAPACITY);
+        // Go through every output buffer, so indices past the old count come out too.
+        for (int i = 0; i < 2 * OUTPUT_BUFFERS; i += INPUT_BUFFERS) {
+            for (int j = i; j < i + INPUT_BUFFERS; j++) {
+                write(1000 * j);
+            }
+            for (int j = i; j < i + INPUT_BUFFERS; j++) {
+                assertTrue(mWrapper.peekSample(mInfo));
+                assertEquals(1000 * j, mInfo.presentationTimeUs);
+                mWrapper.popSample(true);
+            }
+        }
+        assertEquals(0, mMismatches);
+        assertFalse(mWrapper.peekSample(mInfo));
+    }
+
+    public void testFormatChangeIsNotASample() throws Exception {
+        mCodec.reportStatus(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
+        assertFalse(mWrapper.peekSample(mInfo));
+        write(5);
+        assertTrue(mWrapper.peekSample(mInfo));
+        assertEquals(5, mInfo.presentationTimeUs);
+    }
+
+    public void testFlushDiscardsSamples() throws Exception {
+        write(0);
+        write(1000);
+        assertTrue(mWrapper.peekSample(mInfo));
+        mWrapper.flush();
+        assertEquals(1, mCodec.flushes);
+        assertFalse(mWrapper.peekSample(mInfo));
+        write(5000);
+        assertTrue(mWrapper.peekSample(mInfo));
+        assertEquals(5000, mInfo.presentationTimeUs);
+    }
+
+    public void testTooLargeSampleKeepsInputBuffer() throws Exception {
+        assertTrue(mWrapper.dequeueInputBuffer() >= 0);
+        // Three buffers left; none is lost to the failed write.
+        ByteBuffer large = ByteBuffer.allocate(CAPACITY + 1);
+        try {
+            mWrapper.writeSample(large, null, 0, 0);
+            fail();
+        } catch (MediaCodecWrapper.WriteException expected) {
+        }
+        for (int i = 0; i < INPUT_BUFFERS - 1; i++) {
+            assertTrue(writeSample(i));
+        }
+        assertFalse(writeSample(99));
+    }
+
+    public void testWriteSamplesTakesEveryFreeBuffer() throws Exception {
+        ByteBuffer[] inputs = samples(6);
+        long[] ptsUs = {0, 1000, 2000, 3000, 4000, 5000};
+        // Empty samples need no buffer.
+        inputs[1].limit(0);
+        assertEquals(INPUT_BUFFERS + 1, mWrapper.writeSamples(inputs, ptsUs, null, 0, 6));
+        assertEquals(INPUT_BUFFERS, mCodec.queued);
+        assertEquals(0, mWrapper.writeSamples(inputs, ptsUs, null, 5, 1));
+
+        popAll();
+        assertEquals(1, mWrapper.writeSamples(inputs, ptsUs, null, 5, 1));
+        popAll();
+        assertEquals(5, mSamplesOut);
+        assertEquals(5000, mLastPtsUs);
+        assertEquals(0, mMismatches);
+    }
+
+    public void testWriteSamplesPassesFlags() throws Exception {
+        ByteBuffer[] inputs = samples(2);
+        inputs[1].limit(0);
+        int[] flags = {MediaCodec.BUFFER_FLAG_KEY_FRAME, MediaCodec.BUFFER_FLAG_END_OF_STREAM};
+        // An empty end of stream sample is queued, not skipped.
+        assertEquals(2, mWrapper.writeSamples(inputs, new long[] {0, 1000}, flags, 0, 2));
+        assertTrue(mWrapper.peekSample(mInfo));
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, mInfo.flags);
+        mWrapper.popSample(false);
+        assertTrue(mWrapper.peekSample(mInfo));
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, mInfo.flags);
+        assertEquals(0, mInfo.size);
+    }
+
+    public void testWriteSamplesStopsAtTooLargeSample() throws Exception {
+        ByteBuffer[] inputs = samples(3);
+        inputs[1] = ByteBuffer.allocate(CAPACITY + 1);
+        long[] ptsUs = {0, 1000, 2000};
+        try {
+            mWrapper.writeSamples(inputs, ptsUs, null, 0, 3);
+            fail();
+        } catch (MediaCodecWrapper.WriteException e) {
+            assertEquals(1, e.getAcceptedSamples());
+        }
+        assertEquals(1, mCodec.queued);
+        // The buffers taken for the rest were handed back.
+        ByteBuffer[] rest = samples(INPUT_BUFFERS);
+        long[] restPtsUs = {0, 1000, 2000, 3000};
+        assertEquals(INPUT_BUFFERS - 1, mWrapper.writeSamples(rest, restPtsUs, null, 1, 3));
+        popAll();
+        assertEquals(INPUT_BUFFERS, mSamplesOut);
+        assertEquals(3000, mLastPtsUs);
+        assertEquals(0, mMismatches);
+    }
+
+    /**
+     * An input thread and an output thread waiting on the codec at the same time, as
+     * AudioCapture and the drain thread of SurfaceRecorder do. The codec rejects overlapping
+     * dequeues, so each one must wait its turn.
+     */
+    public void testConcurrentWaiters() throws Exception {
+        final int count = 2000;
+        final Throwable[] error = new Throwable[1];
+        Thread input = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        int index;
+                        while ((index = mWrapper.dequeueInputBuffer()) < 0) {
+                            mWrapper.awaitInputBuffer(10);
+                        }
+                        mWrapper.getInputBuffer(index).putLong(0, 1000L * i);
+                        mWrapper.queueInputBuffer(index, 8, 1000L * i, 0);
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        input.start();
+        long expectedPtsUs = 0;
+        while (mSamplesOut < count && error[0] == null) {
+            if (mWrapper.awaitSample(10)) {
+                assertTrue(mWrapper.peekSample(mInfo));
+                assertEquals(expectedPtsUs, mInfo.presentationTimeUs);
+                mWrapper.popSample(true);
+                expectedPtsUs += 1000;
+            }
+        }
+        input.join();
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        assertEquals(count, mSamplesOut);
+        assertEquals(0, mMismatches);
+    }
+
+    /**
+     * Compares the cost per sample of {@link MediaCodecWrapper#writeSamples} with one
+     * {@link MediaCodecWrapper#writeSample} call per sample. The fake codec costs next to
+     * nothing, so this is the wrapper's own overhead: locking and polling the codec.
+     */
+    public void testWriteSamplesCost() throws Exception {
+        ByteBuffer[] inputs = samples(INPUT_BUFFERS);
+        long[] ptsUs = new long[INPUT_BUFFERS];
+        int rounds = 20000;
+        // Warm up both paths.
+        measureSingle(inputs, ptsUs, rounds);
+        measureBatch(inputs, ptsUs, rounds);
+        long singleNs = measureSingle(inputs, ptsUs, rounds);
+        long batchNs = measureBatch(inputs, ptsUs, rounds);
+        Log.i(TAG, "Per sample: " + singleNs + " ns with writeSample(), " + batchNs
+                + " ns with writeSamples()");
+        assertEquals(4 * rounds * INPUT_BUFFERS, mSamplesOut);
+        assertEquals(0, mMismatches);
+    }
+
+    private long measureSingle(ByteBuffer[] inputs, long[] ptsUs, int rounds)
+            throws MediaCodecWrapper.WriteException {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < inputs.length; i++) {
+                fill(inputs[i], ptsUs, i, round);
+                if (!mWrapper.writeSample(inputs[i], null, ptsUs[i], 0)) {
+                    // As a player does: the codec is polled when the buffers we know ran out.
+                    mWrapper.peekSample(mInfo);
+                    mWrapper.writeSample(inputs[i], null, ptsUs[i], 0);
+                }
+            }
+            popAll();
+        }
+        return (System.nanoTime() - start) / (rounds * inputs.length);
+    }
+
+    private long measureBatch(ByteBuffer[] inputs, long[] ptsUs, int rounds)
+            throws MediaCodecWrapper.WriteException {
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < inputs.length; i++) {
+                fill(inputs[i], ptsUs, i, round);
+            }
+            mWrapper.writeSamples(inputs, ptsUs, null, 0, inputs.length);
+            popAll();
+        }
+        return (System.nanoTime() - start) / (rounds * inputs.length);
+    }
+
+    private static void fill(ByteBuffer input, long[] ptsUs, int i, int round) {
+        ptsUs[i] = 1000L * (round * ptsUs.length + i);
+        input.clear();
+        input.putLong(ptsUs[i]).flip();
+    }
+
+    private static ByteBuffer[] samples(int count) {
+        ByteBuffer[] samples = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = ByteBuffer.allocate(8);
+            samples[i].putLong(1000L * i).flip();
+        }
+        return samples;
+    }
+
+    private void popAll() {
+        while (mWrapper.peekSample(mInfo)) {
+            mWrapper.popSample(true);
+        }
+    }
+
+    /**
+     * Steady state writing, peeking and popping, output buffer changes included, must not
+     * allocate: no boxing of buffer indices and no new {@link MediaCodec.BufferInfo}.
+     */
+    public void testSteadyStateDoesNotAllocate() throws Exception {
+        ByteBuffer[] batch = {ByteBuffer.allocateDirect(8), ByteBuffer.allocateDirect(8)};
+        long[] batchPtsUs = new long[batch.length];
+        // Warm up, so that the queues grew to their working size and the JIT settled.
+        runSteadyState(200, batch, batchPtsUs);
+
+        // Three samples per iteration, a million in all, so that the queues wrap around and
+        // the info pool is reused many times over.
+        int iterations = 340000;
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        int samples = runSteadyState(iterations, batch, batchPtsUs);
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        assertEquals(0, allocations);
+        assertEquals((200 + iterations) * 3, mSamplesOut);
+        assertEquals(iterations * 3, samples);
+        assertEquals(0, mMismatches);
+    }
+
+    /**
+     * @return the number of samples popped.
+     */
+    private int runSteadyState(int iterations, ByteBuffer[] batch, long[] batchPtsUs)
+            throws MediaCodecWrapper.WriteException {
+        int popped = 0;
+        long ptsUs = 0;
+        for (int i = 0; i < iterations; i++) {
+            ptsUs += 1000;
+            mSample.clear();
+            mSample.putLong(ptsUs).flip();
+            if (!mWrapper.writeSample(mSample, null, ptsUs, 0)) {
+                mWrapper.peekSample(mInfo);
+                mWrapper.writeSample(mSample, null, ptsUs, 0);
+            }
+            for (int j = 0; j < batch.length; j++) {
+                ptsUs += 1000;
+                batch[j].clear();
+                batch[j].putLong(ptsUs).flip();
+                batchPtsUs[j] = ptsUs;
+            }
+            mWrapper.writeSamples(batch, batchPtsUs, null, 0, batch.length);
+            while (mWrapper.peekSample(mInfo)) {
+                mWrapper.popSample(true);
+                popped++;
+            }
+            if (i % 10 == 0) {
+                // Same buffers, so the info pool is reused as is.
+                mCodec.reportStatus(MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED);
+            }
+        }
+        return popped;
+    }
+
+    private void write(long ptsUs) throws MediaCodecWrapper.WriteException {
+        if (!writeSample(ptsUs)) {
+            // Collect the input buffers the codec freed meanwhile.
+            mWrapper.peekSample(mInfo);
+            assertTrue(writeSample(ptsUs));
+        }
+    }
+
+    private boolean writeSample(long ptsUs) throws MediaCodecWrapper.WriteException {
+        mSample.clear();
+        mSample.putLong(ptsUs).flip();
+        return mWrapper.writeSample(mSample, null, ptsUs, 0);
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.android.common.media;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds {@link MotionDetector} synthetic luma planes: a fixed texture with a bright square
+ * standing for a moving object.
+ */
+public class MotionDetectorTest extends TestCase {
+
+    private static final String TAG = "MotionDetectorTest";
+
+    // The camera2 analysis stream and the grid MotionMonitor samples it with.
+    private static final int WIDTH = 176;
+    private static final int HEIGHT = 144;
+    private static final int GRID_WIDTH = 88;
+    private static final int GRID_HEIGHT = 72;
+    // Brightness of the object over the background, well above DEFAULT_THRESHOLD.
+    private static final int OBJECT_DELTA = 60;
+    // 15x15 grid samples, 35 per mille of the grid.
+    private static final int OBJECT_SIZE = 30;
+
+    private MotionDetector mDetector;
+
+    @Override
+    protected void setUp() {
+        mDetector = new MotionDetector(GRID_WIDTH, GRID_HEIGHT);
+    }
+
+    public void testStillSceneShowsNoMotion() {
+        byte[] frame = still();
+        for (int i = 0; i < 30; i++) {
+            assertFalse(process(frame));
+            assertEquals(0, mDetector.getChangedPermille());
+        }
+    }
+
+    public void testMovingObjectAfterConfirmFrames() {
+        byte[] still = still();
+        assertFalse(process(still));
+        for (int i = 0; i < MotionDetector.CONFIRM_FRAMES - 1; i++) {
+            assertFalse(process(objectAt(10 + 4 * i)));
+            assertEquals(35, mDetector.getChangedPermille(), 1);
+        }
+        for (int i = MotionDetector.CONFIRM_FRAMES - 1; i < 30; i++) {
+            assertTrue("Frame " + i, process(objectAt(10 + 4 * i)));
+        }
+        // Motion ends with the first still frame; the post-roll covers the gaps.
+        assertFalse(process(still));
+    }
+
+    public void testSingleFrameFlickerIsIgnored() {
+        byte[] still = still();
+        byte[] object = objectAt(40);
+        assertFalse(process(still));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(process(object));
+            assertFalse(process(still));
+        }
+    }
+
+    public void testTriggerPermille() {
+        // 8x8 grid samples, 10 per mille.
+        byte[] still = still();
+        byte[] small = frame(WIDTH, HEIGHT, 40, 40, 16, 16, OBJECT_DELTA);
+        assertFalse(process(still));
+        assertFalse(process(small));
+        assertFalse(process(small));
+        assertEquals(10, mDetector.getChangedPermille());
+
+        mDetector.reset();
+        mDetector.setTriggerPermille(10);
+        assertFalse(process(still));
+        assertFalse(process(small));
+        assertTrue(process(small));
+    }
+
+    public void testThreshold() {
+        // A quarter of the frame 30 brighter: 22.5 above the rest once the average shift of
+        // 7.5 is taken out, just below DEFAULT_THRESHOLD.
+        byte[] still = still();
+        byte[] dim = frame(WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT / 4, 30);
+        assertFalse(process(still));
+        assertFalse(process(dim));
+        assertFalse(process(dim));
+        assertEquals(0, mDetector.getChangedPermille());
+
+        mDetector.reset();
+        mDetector.setThreshold(16);
+        assertFalse(process(still));
+        assertFalse(process(dim));
+        assertTrue(process(dim));
+        assertEquals(250, mDetector.getChangedPermille());
+    }
+
+    public void testBrightnessChangeIsNotMotion() {
+        assertFalse(process(still()));
+        // Auto exposure brightening the whole frame at once.
+        byte[] brighter = frame(WIDTH, HEIGHT, 0, 0, WIDTH, HEIGHT, 50);
+        for (int i = 0; i < 5; i++) {
+            assertFalse(process(brighter));
+            assertEquals(0, mDetector.getChangedPermille());
+        }
+    }
+
+    public void testObjectThatStopsIsAbsorbed() {
+        assertFalse(process(still()));
+        byte[] object = objectAt(50);
+        assertFalse(process(object));
+        assertTrue(process(object));
+        // The background closes 1/16 of the gap per frame, so the object is absorbed in half
+        // a second.
+        int frames = 2;
+        while (process(object)) {
+            frames++;
+        }
+        assertEquals(14, frames);
+        for (int i = 0; i < 30; i++) {
+            assertFalse(process(object));
+        }
+    }
+
+    public void testNewFrameSizeResetsBackground() {
+        assertFalse(process(still()));
+        assertFalse(process(objectAt(10)));
+        assertTrue(process(objectAt(14)));
+        // Frames of another size are a new background, whatever they show.
+        byte[] large = frame(2 * WIDTH, 2 * HEIGHT, 20, 20, 2 * OBJECT_SIZE, 2 * OBJECT_SIZE,
+                OBJECT_DELTA);
+        assertFalse(mDetector.process(large, 0, 2 * WIDTH, 2 * HEIGHT, 2 * WIDTH));
+        assertFalse(mDetector.process(large, 0, 2 * WIDTH, 2 * HEIGHT, 2 * WIDTH));
+    }
+
+    public void testByteBufferMatchesArray() {
+        // A plane with padded rows behind a few unrelated bytes, like an Image plane.
+        int offset = 5;
+        int rowStride = WIDTH + 16;
+        ByteBuffer plane = ByteBuffer.allocateDirect(offset + rowStride * HEIGHT);
+        MotionDetector bufferDetector = new MotionDetector(GRID_WIDTH, GRID_HEIGHT);
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = i == 0 ? still() : objectAt(8 * i);
+            for (int y = 0; y < HEIGHT; y++) {
+                plane.position(offset + y * rowStride);
+                plane.put(frame, y * WIDTH, WIDTH);
+            }
+            plane.position(offset);
+            boolean motion = process(frame);
+            assertEquals(motion, bufferDetector.process(plane, WIDTH, HEIGHT, rowStride));
+            assertEquals(mDetector.getChangedPermille(), bufferDetector.getChangedPermille());
+            assertEquals(offset, plane.position());
+        }
+    }
+
+    /**
+     * Runs every camera frame through it, so a frame must cost a small fraction of the frame
+     * interval whatever its size: only the grid is read.
+     */
+    public void testPerFrameCost() {
+        long analysisNs = measure(WIDTH, HEIGHT);
+        long previewNs = measure(1280, 720);
+        Log.i(TAG, "Per frame: " + analysisNs / 1000 + " us at " + WIDTH + "x" + HEIGHT + ", "
+                + previewNs / 1000 + " us at 1280x720");
+        // A tenth of a 30 fps frame interval, leaving plenty of room on slow devices.
+        assertTrue(analysisNs < 3000000);
+        assertTrue(previewNs < 3000000);
+    }
+
+    private long measure(int width, int height) {
+        MotionDetector detector = new MotionDetector(GRID_WIDTH, GRID_HEIGHT);
+        byte[][] frames = new byte[8][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(width, height, width / 10 + i * width / 20, height / 3,
+                    width / 6, height / 6, OBJECT_DELTA);
+        }
+        // Warm up, so the JIT compiled the loops before we time them.
+        for (int i = 0; i < 200; i++) {
+            detector.process(frames[i % frames.length], 0, width, height, width);
+        }
+        int count = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            detector.process(frames[i % frames.length], 0, width, height, width);
+        }
+        return (System.nanoTime() - start) / count;
+    }
+
+    private boolean process(byte[] frame) {
+        return mDetector.process(frame, 0, WIDTH, HEIGHT, WIDTH);
+    }
+
+    private static byte[] objectAt(int x) {
+        return frame(WIDTH, HEIGHT, x % (WIDTH - OBJECT_SIZE), 50, OBJECT_SIZE, OBJECT_SIZE,
+                OBJECT_DELTA);
+    }
+
+    private static byte[] still() {
+        return frame(WIDTH, HEIGHT, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return a textured luma plane, {@code delta} brighter in the given rectangle.
+     */
+    private static byte[] frame(int width, int height, int x, int y, int rectWidth,
+            int rectHeight, int delta) {
+        byte[] luma = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int value = 40 + ((column * 7 + row * 13) & 0x7f);
+                if (column >= x && column < x + rectWidth
+                        && row >= y && row < y + rectHeight) {
+                    value += delta;
+                }
+                luma[row * width + column] = (byte) value;
+            }
+        }
+        return luma;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.common.media;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks box sizes and headers as {@link BoxReader} and MP4 parsers see them.
+ */
+public class Mp4BoxWriterTest extends TestCase {
+
+    public void testNestedSizes() {
+        Mp4BoxWriter w = new Mp4BoxWriter(16);
+        w.beginBox("moov");
+        w.beginFullBox("mvhd", 1, 0x000203).writeInt(7).endBox();
+        w.beginBox("trak").writeLong(-1).endBox();
+        w.endBox();
+        ByteBuffer buffer = w.getBuffer();
+
+        assertEquals(8 + 16 + 16, buffer.remaining());
+        assertEquals(40, buffer.getInt(0));
+        assertEquals(16, buffer.getInt(8));
+        assertEquals(0x01000203, buffer.getInt(16));
+        assertEquals(7, buffer.getInt(20));
+        assertEquals(16, buffer.getInt(24));
+        assertEquals(-1, buffer.getLong(32));
+
+        BoxReader reader = new BoxReader(toArray(buffer));
+        BoxReader.Box moov = reader.topLevel().get(0);
+        assertEquals("moov", moov.type);
+        assertEquals(2, reader.children(moov).size());
+        assertEquals("trak", reader.children(moov).get(1).type);
+    }
+
+    public void testPatchAndReset() {
+        Mp4BoxWriter w = new Mp4BoxWriter(8);
+        w.beginBox("trun");
+        int offset = w.position();
+        w.writeInt(0).writeZeros(100);
+        w.putInt(offset, 0x12345678);
+        w.endBox();
+        ByteBuffer buffer = w.getBuffer();
+        assertEquals(112, buffer.getInt(0));
+        assertEquals(0x12345678, buffer.getInt(offset));
+
+        w.reset();
+        assertEquals(0, w.position());
+        w.beginBox("free").endBox();
+        assertEquals(8, w.getBuffer().remaining());
+    }
+
+    public void testUnbalancedBoxes() {
+        Mp4BoxWriter w = new Mp4BoxWriter(8);
+        w.beginBox("moof");
+        try {
+            w.getBuffer();
+            fail("Open box not reported");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        w.endBox();
+        try {
+            w.endBox();
+            fail("Unopened box not reported");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
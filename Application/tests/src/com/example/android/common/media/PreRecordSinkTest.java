@@ -0,0 +1,188 @@
+package com.example.android.common.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the pre-roll and post-roll of the clips {@link PreRecordSink} saves, as used by motion
+ * triggered recording: every frame with motion triggers again.
+ */
+public class PreRecordSinkTest extends TestCase {
+
+    // 25 fps with a key frame every second.
+    private static final long FRAME_US = 40000;
+    private static final int KEY_INTERVAL = 25;
+    private static final long PRE_ROLL_US = 2000000;
+    private static final long POST_ROLL_US = 1500000;
+
+    /**
+     * Clip recording the frame numbers written to it.
+     */
+    private static class Clip implements SampleSink {
+        final List<Integer> frames = new ArrayList<Integer>();
+        volatile boolean started;
+        volatile boolean stopped;
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer,
+                MediaCodec.BufferInfo info) {
+            assertTrue(started);
+            assertFalse(stopped);
+            frames.add((buffer.get(info.offset) & 0xff)
+                    | (buffer.get(info.offset + 1) & 0xff) << 8);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    private final List<Clip> mClips = new ArrayList<Clip>();
+    private volatile CountDownLatch mCreated;
+    private PreRecordSink mSink;
+    private int mTrack;
+    private int mFrame;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(64);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    @Override
+    protected void setUp() throws IOException {
+        mSink = new PreRecordSink(new PreRecordSink.ClipFactory() {
+            @Override
+            public SampleSink createClip(int index) {
+                Clip clip = new Clip();
+                synchronized (mClips) {
+                    assertEquals(mClips.size(), index);
+                    mClips.add(clip);
+                }
+                mCreated.countDown();
+                return clip;
+            }
+        }, 1024 * 1024, 1000, PRE_ROLL_US);
+        mTrack = mSink.addTrack(
+                MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240));
+        mSink.start();
+    }
+
+    public void testClipHasPreRollAndPostRoll() throws Exception {
+        writeUntil(126);
+        // Motion seen at 5.04 s, between key frames.
+        trigger();
+        writeUntil(300);
+        mSink.stop();
+
+        assertEquals(1, mClips.size());
+        Clip clip = mClips.get(0);
+        assertTrue(clip.stopped);
+        // From the key frame at 3 s, the last one at least the pre-roll before the motion,
+        // to the first key frame after 6.54 s.
+        assertEquals(range(75, 175), clip.frames);
+    }
+
+    public void testContinuedMotionExtendsClip() throws Exception {
+        writeUntil(126);
+        trigger();
+        // Motion in every frame for another second.
+        while (mFrame < 151) {
+            mSink.trigger(POST_ROLL_US);
+            write();
+        }
+        writeUntil(300);
+        mSink.stop();
+
+        assertEquals(1, mClips.size());
+        // Last motion at 6 s, so the clip ends at the key frame at 8 s.
+        assertEquals(range(75, 200), mClips.get(0).frames);
+    }
+
+    public void testNextClipStartsWhereLastEnded() throws Exception {
+        writeUntil(126);
+        trigger();
+        writeUntil(226);
+        // Motion again at 9.04 s. The buffer restarted with the key frame ending the first
+        // clip at 7 s, which is also the last one at least the pre-roll before.
+        trigger();
+        writeUntil(350);
+        mSink.stop();
+
+        assertEquals(2, mClips.size());
+        assertEquals(range(75, 175), mClips.get(0).frames);
+        assertEquals(range(175, 275), mClips.get(1).frames);
+    }
+
+    public void testStopFinishesClip() throws Exception {
+        writeUntil(85);
+        trigger();
+        writeUntil(100);
+        mSink.stop();
+
+        assertEquals(1, mClips.size());
+        assertTrue(mClips.get(0).stopped);
+        assertEquals(range(25, 100), mClips.get(0).frames);
+    }
+
+    /**
+     * Triggers a clip as a frame with motion does, and keeps writing frames until it started.
+     * The buffer doesn't change its first frame meanwhile as long as no key frame arrives.
+     */
+    private void trigger() throws Exception {
+        mCreated = new CountDownLatch(1);
+        int clips = mClips.size();
+        mSink.trigger(POST_ROLL_US);
+        write();
+        assertTrue(mCreated.await(5, TimeUnit.SECONDS));
+        Clip clip;
+        synchronized (mClips) {
+            clip = mClips.get(clips);
+        }
+        while (!clip.started) {
+            assertTrue("Clip not started before the next key frame",
+                    mFrame % KEY_INTERVAL != 0);
+            Thread.sleep(1);
+            write();
+        }
+    }
+
+    private void writeUntil(int frame) throws IOException {
+        while (mFrame < frame) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        mBuffer.clear();
+        mBuffer.put((byte) mFrame).put((byte) (mFrame >> 8)).put(new byte[30]);
+        mInfo.set(0, mBuffer.position(), mFrame * FRAME_US,
+                mFrame % KEY_INTERVAL == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        mSink.writeSampleData(mTrack, mBuffer, mInfo);
+        mFrame++;
+    }
+
+    private static List<Integer> range(int start, int end) {
+        List<Integer> frames = new ArrayList<Integer>();
+        for (int i = start; i < end; i++) {
+            frames.add(i);
+        }
+        return frames;
+    }
+}
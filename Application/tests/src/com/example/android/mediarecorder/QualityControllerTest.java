@@ -0,0 +1,144 @@
+package com.example.android.mediarecorder;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays traces of recording conditions, one observation per second, and checks when the
+ * controller steps down and back up.
+ */
+public class QualityControllerTest extends TestCase {
+
+    private static final int FULL_BIT_RATE = 10000000;
+    private static final int CAPACITY = 1000000;
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    // Trace phases: seconds, frames fed and output per second, writer backlog in percent of
+    // its capacity, frames dropped per second, battery temperature.
+    private static final int SECONDS = 0;
+    private static final int FRAMES_IN = 1;
+    private static final int FRAMES_OUT = 2;
+    private static final int BACKLOG = 3;
+    private static final int DROPPED = 4;
+    private static final int TEMPERATURE = 5;
+
+    public void testCalmRecordingKeepsFullQuality() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        assertEquals("", replay(controller, new int[][] {
+                {120, 30, 30, 5, 0, 350},
+        }));
+        assertEquals(0, controller.getLevel());
+        assertEquals(FULL_BIT_RATE, controller.getBitRate());
+    }
+
+    public void testCongestionStepsDownAndRecovers() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        // Writer backlog over half the queue for 10 s: a step every 3 s, the first one
+        // immediately since the last step is long ago. Then it drains; the controller waits
+        // 20 s without trouble per step up.
+        assertEquals("11:1 14:2 17:3 20:4 40:3 60:2 80:1 100:0 ", replay(controller, new int[][] {
+                {10, 30, 30, 5, 0, UNKNOWN},
+                {10, 30, 30, 60, 0, UNKNOWN},
+                {100, 30, 30, 5, 0, UNKNOWN},
+        }));
+        assertEquals("recovered", controller.getReason());
+    }
+
+    public void testBurstOfDropsStepsOnce() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        assertEquals("11:1 ", replay(controller, new int[][] {
+                {10, 30, 30, 5, 0, UNKNOWN},
+                {2, 30, 30, 5, 4, UNKNOWN},
+                {15, 30, 30, 5, 0, UNKNOWN},
+        }));
+        assertTrue(controller.getReason(), controller.getReason().contains("dropped"));
+    }
+
+    public void testModerateBacklogHoldsLevel() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        // Between the low and high marks: no trouble, but not calm enough to step up.
+        assertEquals("6:1 ", replay(controller, new int[][] {
+                {5, 30, 30, 5, 0, UNKNOWN},
+                {1, 30, 30, 80, 0, UNKNOWN},
+                {60, 30, 30, 30, 0, UNKNOWN},
+        }));
+        assertEquals(1, controller.getLevel());
+    }
+
+    public void testThermalTraceUsesHysteresis() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        // Heats up past 43 C for 7 s, then cools to 42 C, between the marks, and only steps
+        // back up 20 s after dropping to 40 C.
+        assertEquals("11:1 14:2 17:3 57:2 77:1 97:0 ", replay(controller, new int[][] {
+                {10, 30, 30, 5, 0, 410},
+                {7, 30, 30, 5, 0, 440},
+                {20, 30, 30, 5, 0, 420},
+                {60, 30, 30, 5, 0, 400},
+        }));
+    }
+
+    public void testThrottledEncoderStepsDown() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        assertEquals("6:1 9:2 ", replay(controller, new int[][] {
+                {5, 30, 30, 5, 0, UNKNOWN},
+                {5, 30, 20, 5, 0, UNKNOWN},
+                {5, 30, 30, 5, 0, UNKNOWN},
+        }));
+        assertTrue(controller.getReason(), controller.getReason().contains("encoder"));
+        // A camera slowing down in low light is not the encoder's fault.
+        controller = new QualityController(FULL_BIT_RATE);
+        assertEquals("", replay(controller, new int[][] {
+                {5, 30, 30, 5, 0, UNKNOWN},
+                {20, 15, 15, 5, 0, UNKNOWN},
+        }));
+    }
+
+    public void testStopsAtLowestLevel() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        replay(controller, new int[][] {
+                {60, 30, 30, 90, 0, 450},
+        });
+        int lowest = QualityController.BITRATE_PERCENT.length - 1;
+        assertEquals(lowest, controller.getLevel());
+        assertEquals(FULL_BIT_RATE / 100 * QualityController.BITRATE_PERCENT[lowest],
+                controller.getBitRate());
+    }
+
+    public void testIgnoresTimeGoingBack() {
+        QualityController controller = new QualityController(FULL_BIT_RATE);
+        assertFalse(controller.update(10000, 0, 0, 0, CAPACITY, 0, UNKNOWN));
+        assertFalse(controller.update(20000, 300, 300, 0, CAPACITY, 0, UNKNOWN));
+        assertFalse(controller.update(20000, 330, 330, CAPACITY, CAPACITY, 5, UNKNOWN));
+        assertFalse(controller.update(15000, 360, 360, CAPACITY, CAPACITY, 10, UNKNOWN));
+        assertEquals(0, controller.getLevel());
+    }
+
+    /**
+     * Feeds the phases of {@code trace} one second at a time: a first observation at 0 s, then
+     * one at the end of each second of the trace.
+     *
+     * @return the level changes as "second:level ", in order.
+     */
+    private static String replay(QualityController controller, int[][] trace) {
+        StringBuilder changes = new StringBuilder();
+        long framesIn = 0;
+        long framesOut = 0;
+        long dropped = 0;
+        int second = 0;
+        controller.update(0, 0, 0, 0, CAPACITY, 0, UNKNOWN);
+        for (int[] phase : trace) {
+            for (int s = 0; s < phase[SECONDS]; s++) {
+                second++;
+                framesIn += phase[FRAMES_IN];
+                framesOut += phase[FRAMES_OUT];
+                dropped += phase[DROPPED];
+                if (controller.update(second * 1000L, framesIn, framesOut,
+                        CAPACITY / 100 * phase[BACKLOG], CAPACITY, dropped,
+                        phase[TEMPERATURE])) {
+                    changes.append(second).append(':').append(controller.getLevel())
+                            .append(' ');
+                }
+            }
+        }
+        return changes.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.android.mediarecorder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the controller's state machine with a fake delegate on a thread of the test's own and
+ * checks which delegate calls each ordering of commands leads to.
+ */
+public class RecorderControllerTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Records the calls it receives; each one can be made to fail.
+     */
+    private static class FakeDelegate implements RecorderController.Delegate {
+        final StringBuffer calls = new StringBuffer();
+        volatile boolean openFails;
+        volatile boolean prepareFails;
+        volatile boolean startFails;
+        // If set, prepareRecorder() blocks until it is counted down.
+        volatile CountDownLatch prepareGate;
+        final CountDownLatch preparing = new CountDownLatch(1);
+
+        @Override
+        public boolean openCamera() {
+            calls.append("open ");
+            return !openFails;
+        }
+
+        @Override
+        public boolean prepareRecorder() {
+            calls.append("prepare ");
+            preparing.countDown();
+            CountDownLatch gate = prepareGate;
+            if (gate != null) {
+                await(gate);
+            }
+            return !prepareFails;
+        }
+
+        @Override
+        public boolean startRecorder() {
+            calls.append("start ");
+            return !startFails;
+        }
+
+        @Override
+        public void stopRecorder() {
+            calls.append("stop ");
+        }
+
+        @Override
+        public void setZoom(int zoom) {
+            calls.append("zoom").append(zoom).append(' ');
+        }
+
+        @Override
+        public void rollover() {
+            calls.append("rollover ");
+        }
+
+        @Override
+        public void releaseCamera() {
+            calls.append("release ");
+        }
+    }
+
+    private HandlerThread mThread;
+    private FakeDelegate mDelegate;
+    private RecorderController mController;
+
+    @Override
+    protected void setUp() throws Exception {
+        mThread = new HandlerThread("RecorderControllerTest");
+        mThread.start();
+        mDelegate = new FakeDelegate();
+        mController = new RecorderController(mDelegate, mThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+    }
+
+    public void testRecordAndRelease() {
+        mController.open();
+        mController.prepareAndStart();
+        mController.rollover();
+        mController.stop();
+        mController.release(null, null);
+        assertCalls("open prepare start rollover stop release ");
+        assertEquals(RecorderController.STATE_RELEASED, mController.getState());
+    }
+
+    public void testOpenIsIdempotent() {
+        mController.open();
+        mController.open();
+        mController.prepareAndStart();
+        assertCalls("open prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testPrepareOpensCamera() {
+        mController.prepareAndStart();
+        assertCalls("open prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testOpenFailureIsRetriedByPrepare() {
+        mDelegate.openFails = true;
+        mController.open();
+        mController.prepareAndStart();
+        assertCalls("open open ");
+        assertEquals(RecorderController.STATE_IDLE, mController.getState());
+
+        mDelegate.openFails = false;
+        mController.prepareAndStart();
+        assertCalls("open open open prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testPrepareFailureSkipsStart() {
+        mDelegate.prepareFails = true;
+        mController.prepareAndStart();
+        // The half prepared recorder is released; start finds nothing prepared.
+        assertCalls("open prepare stop ");
+        assertEquals(RecorderController.STATE_OPENED, mController.getState());
+
+        mDelegate.prepareFails = false;
+        mController.prepareAndStart();
+        assertCalls("open prepare stop prepare start ");
+    }
+
+    public void testStartFailureKeepsCamera() {
+        mDelegate.startFails = true;
+        mController.prepareAndStart();
+        assertCalls("open prepare start stop ");
+        assertEquals(RecorderController.STATE_OPENED, mController.getState());
+
+        mDelegate.startFails = false;
+        mController.prepareAndStart();
+        assertCalls("open prepare start stop prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testStopAndRestart() {
+        mController.prepareAndStart();
+        mController.stop();
+        mController.stop();
+        mController.prepareAndStart();
+        assertCalls("open prepare start stop prepare start ");
+    }
+
+    public void testCommandsOutOfState() {
+        // Nothing to act on while the camera is closed.
+        mController.setZoom(2);
+        mController.rollover();
+        mController.stop();
+        assertCalls("");
+        mController.open();
+        mController.setZoom(2);
+        mController.rollover();
+        assertCalls("open zoom2 ");
+        mController.prepareAndStart();
+        // A second prepare while recording is ignored, so is its start.
+        mController.prepareAndStart();
+        assertCalls("open zoom2 prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testCommandsWhileBusyRunInOrder() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        mDelegate.prepareGate = gate;
+        mController.prepareAndStart();
+        assertTrue(mDelegate.preparing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Posted while the delegate is busy preparing: queued, not run concurrently.
+        mController.setZoom(3);
+        mController.stop();
+        mController.prepareAndStart();
+        assertEquals("open prepare ", mDelegate.calls.toString());
+        assertEquals(RecorderController.STATE_OPENED, mController.getState());
+
+        mDelegate.prepareGate = null;
+        gate.countDown();
+        assertCalls("open prepare start zoom3 stop prepare start ");
+        assertEquals(RecorderController.STATE_RECORDING, mController.getState());
+    }
+
+    public void testReleaseWhileBusy() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        mDelegate.prepareGate = gate;
+        mController.prepareAndStart();
+        assertTrue(mDelegate.preparing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch released = new CountDownLatch(1);
+        HandlerThread doneThread = new HandlerThread("done");
+        doneThread.start();
+        mController.release(new Runnable() {
+            @Override
+            public void run() {
+                released.countDown();
+            }
+        }, new Handler(doneThread.getLooper()));
+        // Commands after the release are ignored.
+        mController.prepareAndStart();
+        gate.countDown();
+
+        assertTrue(released.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        doneThread.quit();
+        assertEquals("open prepare start stop release ", mDelegate.calls.toString());
+        assertEquals(RecorderController.STATE_RELEASED, mController.getState());
+    }
+
+    /**
+     * Waits for the commands posted so far and checks the delegate calls they made.
+     */
+    private void assertCalls(String expected) {
+        final CountDownLatch idle = new CountDownLatch(1);
+        new Handler(mThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        await(idle);
+        assertEquals(expected, mDelegate.calls.toString());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}